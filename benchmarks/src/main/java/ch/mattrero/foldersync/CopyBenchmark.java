@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copy throughput of {@link FoldersSynchronizer#syncAdded(Path)} for a
+ * single file of a given size, the backup file being deleted before each
+ * copy.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CopyBenchmark {
+
+	@Param({ "4096", "1048576", "67108864", "1073741824" })
+	public long size;
+
+	private Path sourceDir;
+	private Path backupDir;
+	private Path sourceFile;
+	private Path backupFile;
+
+	private FoldersSynchronizer synchronizer;
+
+	@Setup(Level.Trial)
+	public void createFile() throws IOException {
+		sourceDir = SyntheticTree.createTempDir("source");
+		backupDir = SyntheticTree.createTempDir("backup");
+		sourceFile = sourceDir.resolve("file");
+		backupFile = backupDir.resolve("file");
+		SyntheticTree.writeFile(sourceFile, size, new Random(size));
+
+		synchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+	}
+
+	@Setup(Level.Invocation)
+	public void deleteBackupFile() throws IOException {
+		Files.deleteIfExists(backupFile);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteFiles() throws IOException {
+		SyntheticTree.delete(sourceDir);
+		SyntheticTree.delete(backupDir);
+	}
+
+	@Benchmark
+	public boolean syncAdded(final Counters counters) {
+		final boolean copied = synchronizer.syncAdded(sourceFile);
+		if (copied) {
+			counters.bytes += size;
+		}
+		return copied;
+	}
+}
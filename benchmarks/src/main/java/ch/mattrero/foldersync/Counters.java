@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Secondary results of a benchmark, reported by JMH as rates next to the
+ * ops/s of the benchmark itself (bytes/s and entries/s).
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Counters {
+
+	public long bytes;
+	public long entries;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		bytes = 0;
+		entries = 0;
+	}
+
+	void add(final SyncReport report) {
+		bytes += report.getBytesCopied();
+		entries += report.getScanned();
+	}
+}
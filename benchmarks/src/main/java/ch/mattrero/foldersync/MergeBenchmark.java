@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The recursive merge of {@link FoldersSynchronizer#syncTree(Path)} alone,
+ * on a backup already up to date, listing the backup folders or reading
+ * them from a manifest.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MergeBenchmark {
+
+	@Param({ "DEEP", "WIDE", "SMALL_FILES" })
+	public SyntheticTree.Shape shape;
+
+	@Param({ "false", "true" })
+	public boolean manifest;
+
+	private Path sourceDir;
+	private Path backupDir;
+	private Path manifestDir;
+
+	private FoldersSynchronizer synchronizer;
+
+	@Setup(Level.Trial)
+	public void createTrees() throws IOException {
+		sourceDir = SyntheticTree.createTempDir("source");
+		backupDir = SyntheticTree.createTempDir("backup");
+		manifestDir = SyntheticTree.createTempDir("manifest");
+		SyntheticTree.create(sourceDir, shape);
+
+		synchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		if (manifest) {
+			synchronizer.setManifest(manifestDir.resolve("manifest"));
+		}
+		// Copies the tree and loads the manifest
+		synchronizer.sync();
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteTrees() throws IOException {
+		SyntheticTree.delete(sourceDir);
+		SyntheticTree.delete(backupDir);
+		SyntheticTree.delete(manifestDir);
+	}
+
+	@Benchmark
+	public void syncTree(final Counters counters) {
+		final SyncReport before = synchronizer.getMetrics().report();
+		synchronizer.syncTree(sourceDir);
+		counters.add(synchronizer.getMetrics().report().since(before));
+	}
+}
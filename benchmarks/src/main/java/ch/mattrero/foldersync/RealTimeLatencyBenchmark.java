@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time from a file being written in the source to its copy being complete in
+ * the backup, through a running {@link FoldersRealTimeSynchronizer} (watch
+ * service, coalescing and dispatching included).
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RealTimeLatencyBenchmark {
+
+	private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+	@Param({ "0", "200" })
+	public long quietPeriod;
+
+	@Param({ "4096", "1048576" })
+	public long size;
+
+	private Path sourceDir;
+	private Path backupDir;
+
+	private FoldersRealTimeSynchronizer synchronizer;
+
+	private final Random random = new Random(0);
+	private long fileCount;
+
+	@Setup(Level.Trial)
+	public void start() throws IOException, InterruptedException, ExecutionException {
+		sourceDir = SyntheticTree.createTempDir("source");
+		backupDir = SyntheticTree.createTempDir("backup");
+
+		synchronizer = new FoldersRealTimeSynchronizer(new FoldersSynchronizer(sourceDir, backupDir));
+		synchronizer.setCoalescing(quietPeriod,
+				Math.max(quietPeriod * 10, FoldersRealTimeSynchronizer.DEFAULT_MAX_DELAY));
+		synchronizer.start();
+		synchronizer.whenSynced().get();
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() throws IOException, InterruptedException {
+		synchronizer.shutdownNow();
+
+		SyntheticTree.delete(sourceDir);
+		SyntheticTree.delete(backupDir);
+	}
+
+	@Benchmark
+	public long eventToBackup(final Counters counters) throws IOException, InterruptedException {
+		final String name = "file" + fileCount++;
+		SyntheticTree.writeFile(sourceDir.resolve(name), size, random);
+
+		final Path backupFile = backupDir.resolve(name);
+		final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+		while (!Files.isRegularFile(backupFile) || Files.size(backupFile) != size) {
+			if (System.nanoTime() > deadline) {
+				throw new IllegalStateException("Not synced in time : " + backupFile);
+			}
+			Thread.sleep(1);
+		}
+
+		counters.bytes += size;
+		return size;
+	}
+}
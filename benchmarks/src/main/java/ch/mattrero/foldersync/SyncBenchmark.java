@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole {@link FoldersSynchronizer#sync()} runs : a resync of a backup
+ * already up to date (pure scan and compare) and a full initial copy.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SyncBenchmark {
+
+	@Param({ "DEEP", "WIDE", "SMALL_FILES", "HUGE_FILES" })
+	public SyntheticTree.Shape shape;
+
+	@Param({ "1", "4" })
+	public int parallelism;
+
+	private Path sourceDir;
+	private Path syncedBackupDir;
+	private Path emptyBackupDir;
+
+	private FoldersSynchronizer resync;
+	private FoldersSynchronizer initialCopy;
+
+	@Setup(Level.Trial)
+	public void createTrees() throws IOException {
+		sourceDir = SyntheticTree.createTempDir("source");
+		syncedBackupDir = SyntheticTree.createTempDir("backup");
+		emptyBackupDir = SyntheticTree.createTempDir("backup");
+		SyntheticTree.create(sourceDir, shape);
+
+		resync = new FoldersSynchronizer(sourceDir, syncedBackupDir);
+		resync.setParallelism(parallelism);
+		resync.sync();
+
+		initialCopy = new FoldersSynchronizer(sourceDir, emptyBackupDir);
+		initialCopy.setParallelism(parallelism);
+	}
+
+	@Setup(Level.Invocation)
+	public void emptyBackup() throws IOException {
+		SyntheticTree.clean(emptyBackupDir);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteTrees() throws IOException {
+		SyntheticTree.delete(sourceDir);
+		SyntheticTree.delete(syncedBackupDir);
+		SyntheticTree.delete(emptyBackupDir);
+	}
+
+	@Benchmark
+	public SyncReport noOpResync(final Counters counters) {
+		final SyncReport report = resync.sync();
+		counters.add(report);
+		return report;
+	}
+
+	@Benchmark
+	public SyncReport fullInitialCopy(final Counters counters) {
+		final SyncReport report = initialCopy.sync();
+		counters.add(report);
+		return report;
+	}
+}
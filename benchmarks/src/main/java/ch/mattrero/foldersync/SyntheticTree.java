@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Generates source trees of a given shape, with pseudo-random (but
+ * reproducible) content so that neither the file system nor the copy can
+ * take shortcuts on zeroes.
+ */
+public class SyntheticTree {
+
+	public enum Shape {
+		/** A chain of 64 nested directories with 8 files of 4 KB each */
+		DEEP(64, 1, 8, 4 * 1024),
+		/** A single directory with 20000 files of 1 KB */
+		WIDE(1, 1, 20000, 1024),
+		/** 100 directories of 100 files of 4 KB */
+		SMALL_FILES(1, 100, 100, 4 * 1024),
+		/** 3 files of 256 MB */
+		HUGE_FILES(1, 1, 3, 256 * 1024 * 1024);
+
+		private final int depth;
+		private final int width;
+		private final int filesPerDirectory;
+		private final int fileSize;
+
+		Shape(final int depth, final int width, final int filesPerDirectory, final int fileSize) {
+			this.depth = depth;
+			this.width = width;
+			this.filesPerDirectory = filesPerDirectory;
+			this.fileSize = fileSize;
+		}
+
+		public long getTotalBytes() {
+			return (long) depth * width * filesPerDirectory * fileSize;
+		}
+
+		public long getTotalFiles() {
+			return (long) depth * width * filesPerDirectory;
+		}
+	}
+
+	private static final int CHUNK_SIZE = 1 << 20;
+
+	private SyntheticTree() {
+	}
+
+	public static Path createTempDir(final String prefix) throws IOException {
+		return Files.createTempDirectory("foldersync-" + prefix);
+	}
+
+	/**
+	 * Fills the given (existing) directory with a tree of the given shape.
+	 */
+	public static void create(final Path root, final Shape shape) throws IOException {
+		final Random random = new Random(shape.ordinal());
+
+		Path level = root;
+		for (int d = 0; d < shape.depth; d++) {
+			for (int w = 0; w < shape.width; w++) {
+				final Path directory = shape.width == 1 ? level : level.resolve("dir" + w);
+				Files.createDirectories(directory);
+				for (int f = 0; f < shape.filesPerDirectory; f++) {
+					writeFile(directory.resolve("file" + f), shape.fileSize, random);
+				}
+			}
+			level = level.resolve("level" + d);
+		}
+	}
+
+	public static void writeFile(final Path file, final long size, final Random random) throws IOException {
+		final byte[] chunk = new byte[(int) Math.min(size, CHUNK_SIZE)];
+		try (FileChannel channel = FileChannel.open(file, CREATE_NEW, WRITE)) {
+			for (long written = 0; written < size; written += chunk.length) {
+				random.nextBytes(chunk);
+				final ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, size - written));
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Empties the given directory, keeping it.
+	 */
+	public static void clean(final Path directory) throws IOException {
+		FileUtils.cleanDirectory(directory.toFile());
+	}
+
+	public static void delete(final Path directory) throws IOException {
+		if (directory != null) {
+			FileUtils.deleteDirectory(directory.toFile());
+		}
+	}
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
+
+/**
+ * On-disk image of a backup tree (type, size and modification date of every
+ * entry) so that a sync can be merged without listing the backup folders.
+ */
+public class BackupManifest {
+
+	private static final int MAGIC = 0x46534d31;
+
+	private final Path manifestFile;
+	private final Path tempFile;
+
+	/** Entries by name, for each directory (relative path, "" for the root) */
+	private final Map<String, Map<String, Entry>> directories;
+
+	private volatile boolean loaded;
+
+	public BackupManifest(final Path manifestFile) {
+		this.manifestFile = manifestFile;
+		this.tempFile = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+		this.directories = new ConcurrentHashMap<String, Map<String, Entry>>();
+		this.loaded = false;
+	}
+
+	public Path getManifestFile() {
+		return manifestFile;
+	}
+
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	public boolean exists() {
+		return Files.isRegularFile(manifestFile);
+	}
+
+	public void load() throws IOException {
+		directories.clear();
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifestFile)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a backup manifest : " + manifestFile);
+			}
+
+			final int directoryCount = in.readInt();
+			for (int i = 0; i < directoryCount; i++) {
+				final String directory = in.readUTF();
+				final int entryCount = in.readInt();
+				final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>(Math.max(16, entryCount * 2));
+				for (int j = 0; j < entryCount; j++) {
+					entries.put(in.readUTF(), new Entry(in.readBoolean(), in.readLong(), in.readLong()));
+				}
+				directories.put(directory, entries);
+			}
+		}
+
+		loaded = true;
+	}
+
+	public void save() throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile),
+				1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(directories.size());
+			for (final Map.Entry<String, Map<String, Entry>> directory : directories.entrySet()) {
+				final Map<String, Entry> entries = directory.getValue();
+				out.writeUTF(directory.getKey());
+				out.writeInt(entries.size());
+				for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+					out.writeUTF(entry.getKey());
+					out.writeBoolean(entry.getValue().directory);
+					out.writeLong(entry.getValue().size);
+					out.writeLong(entry.getValue().lastModified);
+				}
+			}
+		}
+
+		Files.move(tempFile, manifestFile, REPLACE_EXISTING, ATOMIC_MOVE);
+	}
+
+	/**
+	 * Forgets everything and records the current content of the real backup
+	 * tree.
+	 */
+	public void rebuild(final Path backupDir) throws IOException {
+		directories.clear();
+		directories.put("", new ConcurrentHashMap<String, Entry>());
+		putTree(backupDir.relativize(backupDir), backupDir, (path, attrs) -> false);
+		loaded = true;
+	}
+
+	/**
+	 * Names of the entries known in the given directory, empty if the
+	 * directory is unknown.
+	 */
+	public Map<String, Entry> list(final Path relativeDir) {
+		final Map<String, Entry> entries = directories.get(relativeDir.toString());
+		return entries == null ? Collections.<String, Entry> emptyMap() : entries;
+	}
+
+	public Entry get(final Path relativeItem) {
+		if (relativeItem.getFileName() == null || relativeItem.toString().isEmpty()) {
+			return null;
+		}
+		return list(parentOf(relativeItem)).get(relativeItem.getFileName().toString());
+	}
+
+	public void put(final Path relativeItem, final BasicFileAttributes attributes) {
+		final Entry entry = new Entry(attributes.isDirectory(), attributes.size(), attributes.lastModifiedTime()
+				.toMillis());
+
+		directories.computeIfAbsent(parentOf(relativeItem).toString(), k -> new ConcurrentHashMap<String, Entry>())
+				.put(relativeItem.getFileName().toString(), entry);
+
+		if (entry.directory) {
+			directories.putIfAbsent(relativeItem.toString(), new ConcurrentHashMap<String, Entry>());
+		}
+	}
+
+	/**
+	 * Records a whole tree, read from the given real path, but the excluded
+	 * entries.
+	 */
+	public void putTree(final Path relativeRoot, final Path root,
+			final BiPredicate<Path, BasicFileAttributes> excluded) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(final Path directory, final BasicFileAttributes attrs)
+					throws IOException {
+				if (!directory.equals(root) && excluded.test(directory, attrs)) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				if (!directory.equals(root) || !relativeRoot.toString().isEmpty()) {
+					put(relativeRoot.resolve(root.relativize(directory)), attrs);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+				if (!isOwnFile(file) && !excluded.test(file, attrs)) {
+					put(relativeRoot.resolve(root.relativize(file)), attrs);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	public void remove(final Path relativeItem) {
+		final Entry entry = list(parentOf(relativeItem)).remove(relativeItem.getFileName().toString());
+		if (entry != null && entry.directory) {
+			removeChildren(relativeItem);
+		}
+	}
+
+	/**
+	 * Renames an entry, with everything below if it is a directory.
+	 */
+	public void move(final Path fromRelativeItem, final Path toRelativeItem) {
+		final Entry entry = list(parentOf(fromRelativeItem)).remove(fromRelativeItem.getFileName().toString());
+		if (entry == null) {
+			return;
+		}
+
+		directories.computeIfAbsent(parentOf(toRelativeItem).toString(), k -> new ConcurrentHashMap<String, Entry>())
+				.put(toRelativeItem.getFileName().toString(), entry);
+
+		if (entry.directory) {
+			moveChildren(fromRelativeItem, toRelativeItem);
+		}
+	}
+
+	private void moveChildren(final Path fromRelativeDir, final Path toRelativeDir) {
+		final Map<String, Entry> entries = directories.remove(fromRelativeDir.toString());
+		if (entries == null) {
+			return;
+		}
+		directories.put(toRelativeDir.toString(), entries);
+		for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+			if (entry.getValue().directory) {
+				moveChildren(fromRelativeDir.resolve(entry.getKey()), toRelativeDir.resolve(entry.getKey()));
+			}
+		}
+	}
+
+	private void removeChildren(final Path relativeDir) {
+		final Map<String, Entry> entries = directories.remove(relativeDir.toString());
+		if (entries == null) {
+			return;
+		}
+		for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+			if (entry.getValue().directory) {
+				removeChildren(relativeDir.resolve(entry.getKey()));
+			}
+		}
+	}
+
+	private boolean isOwnFile(final Path file) {
+		if (!file.getFileName().equals(manifestFile.getFileName())
+				&& !file.getFileName().equals(tempFile.getFileName())) {
+			return false;
+		}
+		final Path absoluteFile = file.toAbsolutePath().normalize();
+		return absoluteFile.equals(manifestFile.toAbsolutePath().normalize())
+				|| absoluteFile.equals(tempFile.toAbsolutePath().normalize());
+	}
+
+	private static Path parentOf(final Path relativeItem) {
+		final Path parent = relativeItem.getParent();
+		return parent == null ? relativeItem.getFileSystem().getPath("") : parent;
+	}
+
+	public static class Entry implements BasicFileAttributes {
+
+		private final boolean directory;
+		private final long size;
+		private final long lastModified;
+
+		Entry(final boolean directory, final long size, final long lastModified) {
+			this.directory = directory;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		@Override
+		public FileTime lastModifiedTime() {
+			return FileTime.fromMillis(lastModified);
+		}
+
+		@Override
+		public FileTime lastAccessTime() {
+			return lastModifiedTime();
+		}
+
+		@Override
+		public FileTime creationTime() {
+			return lastModifiedTime();
+		}
+
+		@Override
+		public boolean isRegularFile() {
+			return !directory;
+		}
+
+		@Override
+		public boolean isDirectory() {
+			return directory;
+		}
+
+		@Override
+		public boolean isSymbolicLink() {
+			return false;
+		}
+
+		@Override
+		public boolean isOther() {
+			return false;
+		}
+
+		@Override
+		public long size() {
+			return size;
+		}
+
+		@Override
+		public Object fileKey() {
+			return null;
+		}
+	}
+}
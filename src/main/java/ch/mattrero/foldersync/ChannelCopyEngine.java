@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.EnumSet;
+import java.util.function.BiPredicate;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies through {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * into a hidden temporary sibling which is then atomically renamed over the
+ * target, so that a backup item is either complete or absent.
+ */
+public class ChannelCopyEngine implements ICopyEngine {
+
+	public static final String TEMP_SUFFIX = ".fstmp";
+
+	public static final long DEFAULT_CHUNK_SIZE = 16L * 1024 * 1024;
+
+	/** Bytes copied between two checkpoints of a large file in the journal */
+	public static final long CHECKPOINT_INTERVAL = 256L * 1024 * 1024;
+
+	/** Bytes compared with the source before a checkpoint, to resume a copy */
+	static final int VERIFY_WINDOW = 1024 * 1024;
+
+	final Logger logger = LoggerFactory.getLogger(ChannelCopyEngine.class);
+
+	private final long chunkSize;
+
+	private volatile boolean forceWrites;
+
+	private volatile IoScheduler ioScheduler;
+
+	private volatile SyncJournal journal;
+
+	public ChannelCopyEngine() {
+		this(DEFAULT_CHUNK_SIZE);
+	}
+
+	public ChannelCopyEngine(final long chunkSize) {
+		this.chunkSize = chunkSize;
+		this.forceWrites = false;
+	}
+
+	public static Path tempPathFor(final Path target) {
+		return target.resolveSibling("." + target.getFileName() + TEMP_SUFFIX);
+	}
+
+	public static boolean isTempPath(final Path path) {
+		final String name = path.getFileName().toString();
+		return name.startsWith(".") && name.endsWith(TEMP_SUFFIX);
+	}
+
+	@Override
+	public long copyFile(final Path source, final Path target) throws IOException {
+		final Path temp = tempPathFor(target);
+
+		try {
+			final long copied = transfer(source, temp);
+			copyAttributes(source, temp);
+			publish(temp, target);
+			return copied;
+		} catch (final IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+	}
+
+	@Override
+	public long copyDirectory(final Path source, final Path target,
+			final BiPredicate<Path, BasicFileAttributes> excluded) throws IOException {
+		if (Files.exists(target, NOFOLLOW_LINKS)) {
+			// Merge into the existing directory, each file being published on its own
+			return copyTree(source, target, false, excluded, false);
+		}
+
+		final Path temp = tempPathFor(target);
+		final SyncJournal currentJournal = journal;
+		final boolean resumed = currentJournal != null && currentJournal.isOpen()
+				&& Files.isDirectory(temp, NOFOLLOW_LINKS);
+		if (!resumed) {
+			FileUtils.deleteQuietly(temp.toFile());
+		}
+
+		try {
+			final long copied = copyTree(source, temp, true, excluded, resumed);
+			publish(temp, target);
+			return copied;
+		} catch (final IOException e) {
+			FileUtils.deleteQuietly(temp.toFile());
+			throw e;
+		}
+	}
+
+	private long copyTree(final Path source, final Path target, final boolean direct,
+			final BiPredicate<Path, BasicFileAttributes> excluded, final boolean resumed) throws IOException {
+		final TreeCopier copier = new TreeCopier(source, target, direct, excluded, resumed);
+		Files.walkFileTree(source, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, copier);
+		return copier.copied;
+	}
+
+	/**
+	 * Copies the content of the source file into the target file, resuming
+	 * from the last checkpoint of the journal (if any) when both files still
+	 * match before it.
+	 */
+	long transfer(final Path source, final Path target) throws IOException {
+		final SyncJournal currentJournal = journal;
+		final long lastModified = currentJournal == null ? 0 : Files.getLastModifiedTime(source).toMillis();
+		final long resumeOffset = currentJournal == null ? 0 : resumeOffset(currentJournal, source, target,
+				lastModified);
+
+		try (FileChannel in = FileChannel.open(source, READ);
+				FileChannel out = resumeOffset > 0 ? FileChannel.open(target, WRITE) : FileChannel.open(target,
+						CREATE, WRITE, TRUNCATE_EXISTING)) {
+			final long size = in.size();
+			long position = resumeOffset;
+			long checkpoint = position + CHECKPOINT_INTERVAL;
+			if (resumeOffset > 0) {
+				logger.debug("Resuming copy of " + source + " at byte " + resumeOffset);
+				out.position(resumeOffset);
+			}
+
+			final IoScheduler scheduler = ioScheduler;
+			final long step = scheduler == null ? chunkSize : Math.min(chunkSize, IoScheduler.GRANT_SIZE);
+			if (scheduler != null) {
+				scheduler.acquireOp();
+			}
+
+			while (position < size) {
+				final long length = Math.min(step, size - position);
+				if (scheduler != null) {
+					scheduler.acquireBytes(length, size);
+				}
+				final long transferred = in.transferTo(position, length, out);
+				if (transferred <= 0) {
+					break;
+				}
+				position += transferred;
+
+				if (currentJournal != null && position >= checkpoint && position < size) {
+					out.force(false);
+					currentJournal.checkpoint(target, size, lastModified, position);
+					checkpoint = position + CHECKPOINT_INTERVAL;
+				}
+			}
+
+			if (out.size() > position) {
+				out.truncate(position);
+			}
+			if (forceWrites) {
+				out.force(true);
+			}
+			if (currentJournal != null) {
+				currentJournal.finished(target);
+			}
+
+			return position - resumeOffset;
+		}
+	}
+
+	/**
+	 * The offset from which a previous copy of the source into the target can
+	 * go on : the one of its last checkpoint, if the source did not change
+	 * since and the bytes just before are the same in both files, else 0.
+	 */
+	private static long resumeOffset(final SyncJournal journal, final Path source, final Path target,
+			final long lastModified) throws IOException {
+		final SyncJournal.Checkpoint checkpoint = journal.getCheckpoint(target);
+		if (checkpoint == null || !Files.isRegularFile(target, NOFOLLOW_LINKS)) {
+			return 0;
+		}
+
+		final long offset = checkpoint.getOffset();
+		if (!checkpoint.matches(Files.size(source), lastModified) || Files.size(target) < offset) {
+			journal.finished(target);
+			return 0;
+		}
+
+		final int window = (int) Math.min(VERIFY_WINDOW, offset);
+		try (FileChannel in = FileChannel.open(source, READ); FileChannel out = FileChannel.open(target, READ)) {
+			if (!read(in, offset - window, window).equals(read(out, offset - window, window))) {
+				journal.finished(target);
+				return 0;
+			}
+		}
+
+		return offset;
+	}
+
+	private static ByteBuffer read(final FileChannel channel, final long position, final int length)
+			throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				break;
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	static void copyAttributes(final Path source, final Path target) throws IOException {
+		final PosixFileAttributeView sourcePosixView = Files.getFileAttributeView(source,
+				PosixFileAttributeView.class);
+		final PosixFileAttributeView targetPosixView = Files.getFileAttributeView(target,
+				PosixFileAttributeView.class);
+
+		final BasicFileAttributes attributes;
+		if (sourcePosixView != null && targetPosixView != null) {
+			final PosixFileAttributes posixAttributes = sourcePosixView.readAttributes();
+			targetPosixView.setPermissions(posixAttributes.permissions());
+			attributes = posixAttributes;
+		} else {
+			attributes = Files.readAttributes(source, BasicFileAttributes.class);
+		}
+
+		Files.getFileAttributeView(target, BasicFileAttributeView.class).setTimes(attributes.lastModifiedTime(),
+				attributes.lastAccessTime(), attributes.creationTime());
+	}
+
+	static void publish(final Path temp, final Path target) throws IOException {
+		try {
+			Files.move(temp, target, ATOMIC_MOVE, REPLACE_EXISTING);
+		} catch (final AtomicMoveNotSupportedException e) {
+			Files.move(temp, target, REPLACE_EXISTING);
+		}
+	}
+
+	public boolean isForceWrites() {
+		return forceWrites;
+	}
+
+	/**
+	 * Flushes every copied file to the device before publishing it (slower,
+	 * but survives a power loss, not only a crash).
+	 */
+	public void setForceWrites(final boolean forceWrites) {
+		this.forceWrites = forceWrites;
+	}
+
+	public IoScheduler getIoScheduler() {
+		return ioScheduler;
+	}
+
+	/**
+	 * Paces the copies (one operation per file, then its bytes), null (the
+	 * default) to copy at full speed.
+	 */
+	public void setIoScheduler(final IoScheduler ioScheduler) {
+		this.ioScheduler = ioScheduler;
+	}
+
+	public SyncJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Checkpoints the copies of large files in the given journal, and resumes
+	 * them (and the copies of whole directories) where it says, null (the
+	 * default) to always copy from scratch.
+	 */
+	public void setJournal(final SyncJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Walks a source tree to copy it into the target. When resuming the copy
+	 * of a whole directory, the subtrees completed according to the journal
+	 * and the files already copied (same size and modification date) are
+	 * skipped, and whatever is no longer in the source is removed.
+	 */
+	private class TreeCopier extends SimpleFileVisitor<Path> {
+
+		private final Path source;
+		private final Path target;
+		private final boolean direct;
+		private final BiPredicate<Path, BasicFileAttributes> excluded;
+		private final boolean resumed;
+		private final SyncJournal journal;
+
+		private long copied;
+
+		TreeCopier(final Path source, final Path target, final boolean direct,
+				final BiPredicate<Path, BasicFileAttributes> excluded, final boolean resumed) {
+			this.source = source;
+			this.target = target;
+			this.direct = direct;
+			this.excluded = excluded;
+			this.resumed = resumed;
+			this.journal = direct ? ChannelCopyEngine.this.journal : null;
+			this.copied = 0;
+		}
+
+		private Path resolveTarget(final Path item) {
+			return target.resolve(source.relativize(item).toString());
+		}
+
+		@Override
+		public FileVisitResult preVisitDirectory(final Path directory, final BasicFileAttributes attrs)
+				throws IOException {
+			if (!directory.equals(source) && excluded.test(directory, attrs)) {
+				return FileVisitResult.SKIP_SUBTREE;
+			}
+			final Path targetDir = resolveTarget(directory);
+			if (resumed && journal.isCompleted(directory) && Files.isDirectory(targetDir, NOFOLLOW_LINKS)) {
+				return FileVisitResult.SKIP_SUBTREE;
+			}
+			Files.createDirectories(targetDir);
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+			if (excluded.test(file, attrs)) {
+				return FileVisitResult.CONTINUE;
+			}
+
+			final Path targetFile = resolveTarget(file);
+
+			if (resumed && isCopied(attrs, targetFile)) {
+				return FileVisitResult.CONTINUE;
+			}
+
+			if (direct) {
+				copied += transfer(file, targetFile);
+				copyAttributes(file, targetFile);
+			} else {
+				copied += copyFile(file, targetFile);
+			}
+
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult visitFileFailed(final Path file, final IOException e) {
+			logger.warn("Failed to copy " + file, e);
+			if (journal != null) {
+				journal.failed(file);
+			}
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult postVisitDirectory(final Path directory, final IOException e) throws IOException {
+			final Path targetDir = resolveTarget(directory);
+			if (resumed) {
+				removeDeleted(directory, targetDir);
+			}
+			copyAttributes(directory, targetDir);
+			if (journal != null) {
+				journal.completed(directory);
+			}
+			return FileVisitResult.CONTINUE;
+		}
+
+		/**
+		 * Whether the target file is a complete copy, its modification date
+		 * being set only once its content is written.
+		 */
+		private boolean isCopied(final BasicFileAttributes attrs, final Path targetFile) throws IOException {
+			if (!Files.isRegularFile(targetFile, NOFOLLOW_LINKS)) {
+				return false;
+			}
+			final BasicFileAttributes targetAttrs = Files.readAttributes(targetFile, BasicFileAttributes.class,
+					NOFOLLOW_LINKS);
+			return targetAttrs.size() == attrs.size()
+					&& targetAttrs.lastModifiedTime().toMillis() == attrs.lastModifiedTime().toMillis();
+		}
+
+		/**
+		 * Removes the entries copied by the interrupted run which are no
+		 * longer in the source.
+		 */
+		private void removeDeleted(final Path directory, final Path targetDir) throws IOException {
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(targetDir)) {
+				for (final Path entry : entries) {
+					if (!Files.exists(directory.resolve(entry.getFileName().toString()), NOFOLLOW_LINKS)) {
+						FileUtils.deleteQuietly(entry.toFile());
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Deduplicating copy engine : the content of each file is cut into chunks
+ * at content-defined boundaries (so that an insertion only changes the
+ * chunks around it), each chunk being kept once in an {@link ObjectStore}.
+ * The backup tree only holds pointer files listing the chunks of each file,
+ * with the modification date and permissions of the source. Copying a file
+ * whose chunks are all stored already only writes its pointer.
+ */
+public class DedupCopyEngine extends FileByFileCopyEngine {
+
+	public static final int MIN_CHUNK_SIZE = 256 * 1024;
+	public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	/** About one boundary per MiB past the minimum chunk size */
+	private static final long BOUNDARY_MASK = (1L << 20) - 1;
+
+	private static final long MAGIC = 0x4653444544555031L;
+	/** Magic number and size, then the length and digest of each chunk */
+	private static final int HEADER_LENGTH = 8 + 8;
+
+	/** Random values of the gear rolling hash, one per byte value */
+	private static final long[] GEAR = new long[256];
+
+	static {
+		final Random random = new Random(0x46534745L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	private final ObjectStore store;
+
+	private final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[MAX_CHUNK_SIZE]);
+
+	private volatile IoScheduler ioScheduler;
+
+	public DedupCopyEngine(final ObjectStore store) {
+		this.store = store;
+	}
+
+	public ObjectStore getStore() {
+		return store;
+	}
+
+	public IoScheduler getIoScheduler() {
+		return ioScheduler;
+	}
+
+	/**
+	 * Paces the reads of the source files (one operation per file, then its
+	 * bytes), null (the default) to read at full speed.
+	 */
+	public void setIoScheduler(final IoScheduler ioScheduler) {
+		this.ioScheduler = ioScheduler;
+	}
+
+	/**
+	 * Stores the chunks of the source file and writes its pointer file.
+	 *
+	 * @return the number of bytes written to the store
+	 */
+	@Override
+	long copyFile(final Path source, final BasicFileAttributes attributes, final Path target) throws IOException {
+		final Path temp = ChannelCopyEngine.tempPathFor(target);
+
+		try {
+			final long stored;
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				stored = writePointer(source, out);
+			}
+			ChannelCopyEngine.copyAttributes(source, temp);
+			ChannelCopyEngine.publish(temp, target);
+			return stored;
+		} catch (final IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+	}
+
+	private long writePointer(final Path source, final DataOutputStream out) throws IOException {
+		final byte[] buffer = buffers.get();
+		final MessageDigest digest = ObjectStore.newMessageDigest();
+		final IoScheduler scheduler = ioScheduler;
+		long stored = 0;
+
+		try (FileChannel in = FileChannel.open(source, READ)) {
+			final long size = in.size();
+			out.writeLong(MAGIC);
+			out.writeLong(size);
+			if (scheduler != null) {
+				scheduler.acquireOp();
+			}
+
+			int filled = 0;
+			boolean eof = false;
+			long read = 0;
+			while (true) {
+				while (!eof && filled < buffer.length) {
+					final int n = in.read(ByteBuffer.wrap(buffer, filled, buffer.length - filled));
+					if (n < 0) {
+						eof = true;
+					} else {
+						filled += n;
+						read += n;
+						if (scheduler != null) {
+							scheduler.acquireBytes(n, size);
+						}
+					}
+				}
+				if (filled == 0) {
+					break;
+				}
+
+				final int length = boundary(buffer, filled);
+				digest.update(buffer, 0, length);
+				final byte[] hash = digest.digest();
+				stored += store.put(hash, buffer, length);
+				out.writeInt(length);
+				out.write(hash);
+
+				System.arraycopy(buffer, length, buffer, 0, filled - length);
+				filled -= length;
+			}
+
+			if (read != size) {
+				throw new IOException("Source changed while being copied : " + source);
+			}
+			// End of the chunks
+			out.writeInt(0);
+		}
+
+		return stored;
+	}
+
+	/**
+	 * Length of the next chunk : up to the first position (past the minimum
+	 * chunk size) where the gear hash of the last bytes has all its low bits
+	 * clear, or everything given.
+	 */
+	static int boundary(final byte[] data, final int length) {
+		if (length <= MIN_CHUNK_SIZE) {
+			return length;
+		}
+
+		long hash = 0;
+		// The gear hash only depends on the last 64 bytes
+		for (int i = MIN_CHUNK_SIZE - 64; i < length; i++) {
+			hash = (hash << 1) + GEAR[data[i] & 0xff];
+			if (i >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0) {
+				return i + 1;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Attributes of a backup item as seen by a sync : the size of the file it
+	 * points to for a pointer file.
+	 */
+	public BasicFileAttributes readAttributes(final Path backupItem) throws IOException {
+		final BasicFileAttributes attributes = Files.readAttributes(backupItem, BasicFileAttributes.class);
+		if (!attributes.isRegularFile() || attributes.size() < HEADER_LENGTH) {
+			return attributes;
+		}
+
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(backupItem))) {
+			if (in.readLong() != MAGIC) {
+				return attributes;
+			}
+			return new BackupManifest.Entry(false, in.readLong(), attributes.lastModifiedTime().toMillis());
+		}
+	}
+
+	/**
+	 * Rebuilds a file or a whole directory from the backup, the files which
+	 * are not pointers being copied as they are.
+	 */
+	public void restore(final Path backupItem, final Path target) throws IOException {
+		Files.walkFileTree(backupItem, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(final Path directory, final BasicFileAttributes attrs)
+					throws IOException {
+				Files.createDirectories(target.resolve(backupItem.relativize(directory).toString()));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+				restoreFile(file, target.resolve(backupItem.relativize(file).toString()));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(final Path directory, final IOException e) throws IOException {
+				ChannelCopyEngine.copyAttributes(directory, target.resolve(backupItem.relativize(directory)
+						.toString()));
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void restoreFile(final Path pointer, final Path target) throws IOException {
+		final Path temp = ChannelCopyEngine.tempPathFor(target);
+
+		try {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(pointer)))) {
+				if (Files.size(pointer) < HEADER_LENGTH || in.readLong() != MAGIC) {
+					Files.copy(pointer, temp, REPLACE_EXISTING, COPY_ATTRIBUTES, NOFOLLOW_LINKS);
+				} else {
+					final long size = in.readLong();
+					try (OutputStream out = Files.newOutputStream(temp)) {
+						long written = 0;
+						for (int length = in.readInt(); length > 0; length = in.readInt()) {
+							final byte[] hash = new byte[ObjectStore.HASH_LENGTH];
+							in.readFully(hash);
+							final byte[] chunk = store.get(hash);
+							out.write(chunk);
+							written += chunk.length;
+						}
+						if (written != size) {
+							throw new IOException("Incomplete pointer " + pointer);
+						}
+					}
+					ChannelCopyEngine.copyAttributes(pointer, temp);
+				}
+			}
+			ChannelCopyEngine.publish(temp, target);
+		} catch (final IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Deletes from the store the chunks no pointer of the given backup trees
+	 * refers to. Not to be run while one of them is being synced.
+	 *
+	 * @return the number of bytes freed
+	 */
+	public long collectGarbage(final Collection<Path> backupDirs) throws IOException {
+		final Set<String> hashes = new HashSet<String>();
+
+		for (final Path backupDir : backupDirs) {
+			Files.walkFileTree(backupDir, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+					if (!attrs.isRegularFile() || attrs.size() < HEADER_LENGTH) {
+						return FileVisitResult.CONTINUE;
+					}
+					try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files
+							.newInputStream(file)))) {
+						if (in.readLong() == MAGIC) {
+							in.readLong();
+							for (int length = in.readInt(); length > 0; length = in.readInt()) {
+								final byte[] hash = new byte[ObjectStore.HASH_LENGTH];
+								in.readFully(hash);
+								hashes.add(ObjectStore.toHex(hash));
+							}
+						}
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+
+		return store.retainAll(hashes);
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * Updates an existing backup file in place by rewriting only the blocks that
+ * differ from the source (compared byte for byte at the same offsets), then
+ * appending the new tail or truncating the removed one. Both files are read
+ * once, block by block, the source and the backup being local.
+ */
+public class DeltaTransfer {
+
+	public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+	private final int blockSize;
+
+	private volatile IoScheduler ioScheduler;
+
+	public DeltaTransfer() {
+		this(DEFAULT_BLOCK_SIZE);
+	}
+
+	public DeltaTransfer(final int blockSize) {
+		if (blockSize < 512) {
+			throw new IllegalArgumentException("Block size must be at least 512 bytes : " + blockSize);
+		}
+		this.blockSize = blockSize;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public IoScheduler getIoScheduler() {
+		return ioScheduler;
+	}
+
+	/**
+	 * Paces the reads of both files (one operation per update, then the bytes
+	 * of each block), null (the default) to read at full speed.
+	 */
+	public void setIoScheduler(final IoScheduler ioScheduler) {
+		this.ioScheduler = ioScheduler;
+	}
+
+	/**
+	 * Makes the target file identical to the source file, its modification
+	 * date being set last so that an interrupted update is detected as
+	 * modified again on next sync.
+	 *
+	 * @return the number of bytes written to the target
+	 */
+	public long update(final Path source, final Path target) throws IOException {
+		long written = 0;
+
+		try (FileChannel in = FileChannel.open(source, READ); FileChannel out = FileChannel.open(target, READ, WRITE)) {
+			final long length = in.size();
+			final long targetLength = out.size();
+			final ByteBuffer sourceBlock = ByteBuffer.allocate(blockSize);
+			final ByteBuffer targetBlock = ByteBuffer.allocate(blockSize);
+			final IoScheduler scheduler = ioScheduler;
+			if (scheduler != null) {
+				scheduler.acquireOp();
+			}
+
+			for (long position = 0; position < length; position += blockSize) {
+				if (scheduler != null) {
+					scheduler.acquireBytes(Math.min(blockSize, length - position), length);
+				}
+				readBlock(in, position, sourceBlock);
+
+				if (position < targetLength) {
+					if (scheduler != null) {
+						scheduler.acquireBytes(Math.min(blockSize, targetLength - position), targetLength);
+					}
+					readBlock(out, position, targetBlock);
+					if (sourceBlock.equals(targetBlock)) {
+						continue;
+					}
+				}
+
+				while (sourceBlock.hasRemaining()) {
+					written += out.write(sourceBlock, position + sourceBlock.position());
+				}
+			}
+
+			if (targetLength > length) {
+				out.truncate(length);
+			}
+			out.force(false);
+		}
+
+		ChannelCopyEngine.copyAttributes(source, target);
+
+		return written;
+	}
+
+	private static void readBlock(final FileChannel channel, final long position, final ByteBuffer buffer)
+			throws IOException {
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				break;
+			}
+		}
+		buffer.flip();
+	}
+}
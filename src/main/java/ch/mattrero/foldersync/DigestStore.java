@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content digests of files, cached by path, size, modification date and file
+ * key (inode) so that an unchanged file is never read twice.
+ */
+public class DigestStore {
+
+	private static final int MAGIC = 0x46534431;
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final String algorithm;
+	private final Path storeFile;
+
+	private final Map<String, CachedDigest> digests;
+
+	private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer
+			.allocateDirect(BUFFER_SIZE));
+
+	public DigestStore() {
+		this("SHA-256", null);
+	}
+
+	/**
+	 * @param storeFile
+	 *            file where the digests are kept between runs, null to keep
+	 *            them in memory only
+	 */
+	public DigestStore(final String algorithm, final Path storeFile) {
+		this.algorithm = algorithm;
+		this.storeFile = storeFile;
+		this.digests = new ConcurrentHashMap<String, CachedDigest>();
+
+		newMessageDigest();
+	}
+
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	public byte[] digest(final Path file, final BasicFileAttributes attributes) throws IOException {
+		final String key = file.toAbsolutePath().toString();
+		final String fileKey = attributes.fileKey() == null ? "" : attributes.fileKey().toString();
+		final long lastModified = attributes.lastModifiedTime().toMillis();
+
+		final CachedDigest cached = digests.get(key);
+		if (cached != null && cached.matches(attributes.size(), lastModified, fileKey)) {
+			cached.touched = true;
+			return cached.digest;
+		}
+
+		final byte[] digest = compute(file);
+		final CachedDigest computed = new CachedDigest(attributes.size(), lastModified, fileKey, digest);
+		computed.touched = true;
+		digests.put(key, computed);
+		return digest;
+	}
+
+	/**
+	 * Streams the whole file through the digest, without caching.
+	 */
+	public byte[] compute(final Path file) throws IOException {
+		final MessageDigest messageDigest = newMessageDigest();
+		final ByteBuffer buffer = buffers.get();
+
+		try (FileChannel channel = FileChannel.open(file, READ)) {
+			buffer.clear();
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				messageDigest.update(buffer);
+				buffer.clear();
+			}
+		}
+
+		return messageDigest.digest();
+	}
+
+	public void forget(final Path file) {
+		digests.remove(file.toAbsolutePath().toString());
+	}
+
+	public void load() throws IOException {
+		if (storeFile == null || !Files.isRegularFile(storeFile)) {
+			return;
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(storeFile)))) {
+			if (in.readInt() != MAGIC || !in.readUTF().equals(algorithm)) {
+				return;
+			}
+
+			final int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				final String key = in.readUTF();
+				final long size = in.readLong();
+				final long lastModified = in.readLong();
+				final String fileKey = in.readUTF();
+				final byte[] digest = new byte[in.readUnsignedByte()];
+				in.readFully(digest);
+				digests.put(key, new CachedDigest(size, lastModified, fileKey, digest));
+			}
+		}
+	}
+
+	/**
+	 * Saves the digests, dropping the ones loaded from the previous run and
+	 * never used since.
+	 */
+	public void save() throws IOException {
+		if (storeFile == null) {
+			return;
+		}
+
+		digests.values().removeIf(cached -> !cached.touched);
+
+		final Path tempFile = storeFile.resolveSibling(storeFile.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile),
+				1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeUTF(algorithm);
+			out.writeInt(digests.size());
+			for (final Map.Entry<String, CachedDigest> entry : digests.entrySet()) {
+				final CachedDigest cached = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeLong(cached.size);
+				out.writeLong(cached.lastModified);
+				out.writeUTF(cached.fileKey);
+				out.writeByte(cached.digest.length);
+				out.write(cached.digest);
+			}
+		}
+
+		Files.move(tempFile, storeFile, REPLACE_EXISTING, ATOMIC_MOVE);
+	}
+
+	private MessageDigest newMessageDigest() {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException("Unsupported digest algorithm : " + algorithm, e);
+		}
+	}
+
+	private static class CachedDigest {
+
+		private final long size;
+		private final long lastModified;
+		private final String fileKey;
+		private final byte[] digest;
+
+		private volatile boolean touched;
+
+		CachedDigest(final long size, final long lastModified, final String fileKey, final byte[] digest) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.fileKey = fileKey;
+			this.digest = digest;
+			this.touched = false;
+		}
+
+		boolean matches(final long size, final long lastModified, final String fileKey) {
+			return this.size == size && this.lastModified == lastModified
+					&& (fileKey.isEmpty() || this.fileKey.isEmpty() || Objects.equals(this.fileKey, fileKey));
+		}
+	}
+}
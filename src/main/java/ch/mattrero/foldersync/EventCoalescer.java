@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent.Kind;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collapses the bursts of watch events received for a same path into their
+ * net effect, handed over once the path has been quiet for a while (or has
+ * been pending for too long).
+ */
+public class EventCoalescer {
+
+	final Logger logger = LoggerFactory.getLogger(EventCoalescer.class);
+
+	private static final List<Kind<?>> DELETED = Collections.<Kind<?>> singletonList(ENTRY_DELETE);
+	private static final List<Kind<?>> CREATED = Collections.<Kind<?>> singletonList(ENTRY_CREATE);
+
+	private final long quietPeriod;
+	private final long maxDelay;
+
+	private final Handler handler;
+
+	private final Map<Path, PendingEvent> pending;
+
+	private MoveDetector moveDetector;
+	private BiConsumer<Path, Path> moveHandler;
+
+	private int maxPending = Integer.MAX_VALUE;
+	private Function<Path, Object> groupOf = path -> null;
+	private Consumer<Path> overflowHandler;
+
+	/** Number of pending paths of each group */
+	private final Map<Object, Integer> groupSizes;
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param quietPeriod
+	 *            milliseconds without any event for a path before its net
+	 *            event is handled, 0 to handle every event immediately
+	 * @param maxDelay
+	 *            maximum milliseconds an event can be held back
+	 */
+	public EventCoalescer(final long quietPeriod, final long maxDelay, final BiConsumer<Path, Kind<?>> handler) {
+		this(quietPeriod, maxDelay, (path, kind, firstSeen) -> handler.accept(path, kind));
+	}
+
+	public EventCoalescer(final long quietPeriod, final long maxDelay, final Handler handler) {
+		this.quietPeriod = quietPeriod;
+		this.maxDelay = Math.max(quietPeriod, maxDelay);
+		this.handler = handler;
+		this.pending = new LinkedHashMap<Path, PendingEvent>();
+		this.groupSizes = new HashMap<Object, Integer>();
+	}
+
+	/**
+	 * Among the events due together, a deletion and a creation recognized by
+	 * the given detector as the same entry are handed over as one move
+	 * instead. Only possible with a quiet period. To be called before
+	 * starting.
+	 */
+	public void setMoveHandler(final MoveDetector moveDetector, final BiConsumer<Path, Path> moveHandler) {
+		this.moveDetector = moveDetector;
+		this.moveHandler = moveHandler;
+	}
+
+	/**
+	 * Once the given number of paths are pending, the events of other paths
+	 * are handed to the given handler right away instead of being held
+	 * back, typically to merge their directory later. To be called before
+	 * starting.
+	 */
+	public void setOverflowHandler(final int maxPending, final Consumer<Path> overflowHandler) {
+		setOverflowHandler(maxPending, path -> null, overflowHandler);
+	}
+
+	/**
+	 * Same as {@link #setOverflowHandler(int, Consumer)}, the limit applying
+	 * to the paths of each group (as told by the given function) on its own.
+	 */
+	public void setOverflowHandler(final int maxPending, final Function<Path, Object> groupOf,
+			final Consumer<Path> overflowHandler) {
+		this.maxPending = maxPending;
+		this.groupOf = groupOf;
+		this.overflowHandler = overflowHandler;
+	}
+
+	public synchronized void start() {
+		if (quietPeriod <= 0 || scheduler != null) {
+			return;
+		}
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			final Thread thread = new Thread(r, "folder-sync-coalescer");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		final long tick = Math.max(10, quietPeriod / 4);
+		scheduler.scheduleWithFixedDelay(() -> flush(false), tick, tick, TimeUnit.MILLISECONDS);
+	}
+
+	public void submit(final Path path, final Kind<?> kind) {
+		final long now = System.currentTimeMillis();
+
+		if (quietPeriod <= 0) {
+			handler.handle(path, kind, now);
+			return;
+		}
+
+		synchronized (this) {
+			final PendingEvent event = pending.get(path);
+			if (event != null) {
+				event.add(kind, now);
+				return;
+			}
+			final Object group = groupOf.apply(path);
+			final int groupSize = groupSizes.getOrDefault(group, 0);
+			if (groupSize < maxPending || overflowHandler == null) {
+				pending.put(path, new PendingEvent(group, kind, now));
+				groupSizes.put(group, groupSize + 1);
+				return;
+			}
+		}
+
+		overflowHandler.accept(path);
+	}
+
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Handles the pending events which are due, or all of them.
+	 */
+	public void flush(final boolean all) {
+		final long now = System.currentTimeMillis();
+		final List<Map.Entry<Path, PendingEvent>> due = new ArrayList<Map.Entry<Path, PendingEvent>>();
+
+		synchronized (this) {
+			final Iterator<Map.Entry<Path, PendingEvent>> iterator = pending.entrySet().iterator();
+			while (iterator.hasNext()) {
+				final Map.Entry<Path, PendingEvent> entry = iterator.next();
+				if (all || entry.getValue().isDue(now)) {
+					due.add(entry);
+					iterator.remove();
+					groupSizes.computeIfPresent(entry.getValue().group, (group, size) -> size > 1 ? size - 1 : null);
+				}
+			}
+		}
+
+		if (moveDetector != null) {
+			pairMoves(due);
+		}
+
+		for (final Map.Entry<Path, PendingEvent> entry : due) {
+			if (entry.getValue().movedTo != null) {
+				try {
+					moveHandler.accept(entry.getKey(), entry.getValue().movedTo);
+				} catch (final RuntimeException e) {
+					logger.warn("Failed to handle move of " + entry.getKey() + " to " + entry.getValue().movedTo, e);
+				}
+				continue;
+			}
+
+			for (final Kind<?> kind : entry.getValue().netKinds()) {
+				try {
+					handler.handle(entry.getKey(), kind, entry.getValue().firstSeen);
+				} catch (final RuntimeException e) {
+					logger.warn("Failed to handle " + kind + " for " + entry.getKey(), e);
+				}
+			}
+		}
+	}
+
+	private void pairMoves(final List<Map.Entry<Path, PendingEvent>> due) {
+		final Map<Object, Map.Entry<Path, PendingEvent>> deleted = new HashMap<Object, Map.Entry<Path, PendingEvent>>();
+		for (final Map.Entry<Path, PendingEvent> entry : due) {
+			if (entry.getValue().netKinds().equals(DELETED)) {
+				final Object key = moveDetector.deletedKey(entry.getKey());
+				if (key != null) {
+					deleted.putIfAbsent(key, entry);
+				}
+			}
+		}
+
+		if (deleted.isEmpty()) {
+			return;
+		}
+
+		for (final Map.Entry<Path, PendingEvent> entry : due) {
+			if (entry.getValue().netKinds().equals(CREATED)) {
+				final Object key = moveDetector.createdKey(entry.getKey());
+				final Map.Entry<Path, PendingEvent> from = (key == null ? null : deleted.remove(key));
+				if (from != null) {
+					from.getValue().movedTo = entry.getKey();
+					entry.getValue().movedFrom = true;
+				}
+			}
+		}
+
+		due.removeIf(entry -> entry.getValue().movedFrom);
+	}
+
+	/**
+	 * Handles all the pending events and stops.
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			if (scheduler != null) {
+				scheduler.shutdownNow();
+				scheduler = null;
+			}
+		}
+		flush(true);
+	}
+
+	public interface Handler {
+
+		/**
+		 * @param firstSeen
+		 *            time of the first of the events merged into this one
+		 */
+		void handle(Path path, Kind<?> kind, long firstSeen);
+	}
+
+	private class PendingEvent {
+
+		private final Object group;
+		private final boolean existedBefore;
+		private final long firstSeen;
+
+		private boolean replaced;
+		private Kind<?> lastKind;
+		private long lastSeen;
+
+		private Path movedTo;
+		private boolean movedFrom;
+
+		PendingEvent(final Object group, final Kind<?> kind, final long now) {
+			this.group = group;
+			this.existedBefore = kind != ENTRY_CREATE;
+			this.firstSeen = now;
+			this.replaced = false;
+			this.lastKind = kind;
+			this.lastSeen = now;
+		}
+
+		void add(final Kind<?> kind, final long now) {
+			if (kind == ENTRY_CREATE && lastKind == ENTRY_DELETE) {
+				replaced = true;
+			}
+			lastKind = kind;
+			lastSeen = now;
+		}
+
+		boolean isDue(final long now) {
+			return now - lastSeen >= quietPeriod || now - firstSeen >= maxDelay;
+		}
+
+		List<Kind<?>> netKinds() {
+			final List<Kind<?>> kinds = new ArrayList<Kind<?>>(2);
+			final boolean existsNow = lastKind != ENTRY_DELETE;
+
+			if (existedBefore && !existsNow) {
+				kinds.add(ENTRY_DELETE);
+			} else if (!existedBefore && existsNow) {
+				kinds.add(ENTRY_CREATE);
+			} else if (existedBefore && replaced) {
+				kinds.add(ENTRY_DELETE);
+				kinds.add(ENTRY_CREATE);
+			} else if (existedBefore) {
+				kinds.add(ENTRY_MODIFY);
+			}
+
+			return kinds;
+		}
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs sync tasks on a pool of single-threaded lanes. Tasks are assigned to a
+ * lane by parent directory, so that the changes of a same directory stay
+ * ordered while other directories proceed in parallel, even under a single
+ * top-level one. A task offered to a full lane is refused rather than
+ * waited for, the caller falling back to a merge of the whole directory.
+ * 
+ * The changes of the entries of a directory whose backup is being created (a
+ * copy or a move) follow its creation on its lane, as they cannot be synced
+ * before.
+ */
+public class EventDispatcher {
+
+	final Logger logger = LoggerFactory.getLogger(EventDispatcher.class);
+
+	private final ThreadPoolExecutor[] lanes;
+
+	private final int queueCapacity;
+
+	/** Directories whose backup is being created, with the lane creating it */
+	private final Map<Path, PendingTree> pendingTrees;
+
+	public EventDispatcher(final int threads, final int queueCapacity) {
+		if (threads < 1 || queueCapacity < 1) {
+			throw new IllegalArgumentException("Threads and queue capacity must be at least 1");
+		}
+
+		this.lanes = new ThreadPoolExecutor[threads];
+		this.queueCapacity = queueCapacity;
+		this.pendingTrees = new HashMap<Path, PendingTree>();
+
+		for (int i = 0; i < threads; i++) {
+			final String name = "folder-sync-worker-" + i;
+			// Unbounded : the capacity only limits the tasks offered
+			lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+					r -> {
+						final Thread thread = new Thread(r, name);
+						thread.setDaemon(true);
+						return thread;
+					});
+		}
+	}
+
+	/**
+	 * Queues a task unless its lane already holds as many tasks as the queue
+	 * capacity.
+	 *
+	 * @return false if refused, lane full or dispatcher shut down
+	 */
+	public boolean offer(final Path sourceItem, final Runnable task) {
+		synchronized (pendingTrees) {
+			final ThreadPoolExecutor lane = lanes[routeOf(sourceItem)];
+			if (lane.getQueue().size() >= queueCapacity) {
+				return false;
+			}
+			return execute(lane, sourceItem, task);
+		}
+	}
+
+	/**
+	 * Queues, as {@link #offer(Path, Runnable)}, a task creating the backup of
+	 * a whole directory : the changes of its entries offered until it is done
+	 * are queued behind it.
+	 *
+	 * @return false if refused, lane full or dispatcher shut down
+	 */
+	public boolean offerTree(final Path sourceSubDir, final Runnable task) {
+		synchronized (pendingTrees) {
+			final int route = routeOf(sourceSubDir);
+			final ThreadPoolExecutor lane = lanes[route];
+			if (lane.getQueue().size() >= queueCapacity) {
+				return false;
+			}
+
+			final PendingTree pending = pendingTrees.computeIfAbsent(sourceSubDir, d -> new PendingTree(route));
+			pending.count++;
+			final boolean queued = execute(lane, sourceSubDir, () -> {
+				try {
+					task.run();
+				} finally {
+					done(sourceSubDir);
+				}
+			});
+			if (!queued) {
+				done(sourceSubDir);
+			}
+			return queued;
+		}
+	}
+
+	private void done(final Path sourceSubDir) {
+		synchronized (pendingTrees) {
+			final PendingTree pending = pendingTrees.get(sourceSubDir);
+			if (pending != null && --pending.count == 0) {
+				pendingTrees.remove(sourceSubDir);
+			}
+		}
+	}
+
+	/**
+	 * Lane of the changes of an entry : the one of the creation of the
+	 * closest pending ancestor if any, else the one of its directory.
+	 */
+	private int routeOf(final Path sourceItem) {
+		if (!pendingTrees.isEmpty()) {
+			for (Path directory = sourceItem.getParent(); directory != null; directory = directory.getParent()) {
+				final PendingTree pending = pendingTrees.get(directory);
+				if (pending != null) {
+					return pending.lane;
+				}
+			}
+		}
+		return laneOf(sourceItem.getParent());
+	}
+
+	/**
+	 * Queues a task on the lane of the entries of the given directory,
+	 * whatever the number of tasks waiting : for the tasks which are already
+	 * bounded by other means (one per directory to recover).
+	 */
+	public void dispatch(final Path sourceSubDir, final Runnable task) {
+		execute(lanes[laneOf(sourceSubDir)], sourceSubDir, task);
+	}
+
+	private boolean execute(final ThreadPoolExecutor lane, final Path sourceItem, final Runnable task) {
+		try {
+			lane.execute(() -> {
+				try {
+					task.run();
+				} catch (final RuntimeException e) {
+					logger.warn("Failed to sync " + sourceItem, e);
+				}
+			});
+			return true;
+		} catch (final RejectedExecutionException e) {
+			logger.debug("Dispatcher is shut down, dropping task for " + sourceItem);
+			return false;
+		}
+	}
+
+	/**
+	 * Lane of the changes of the entries of a directory.
+	 */
+	int laneOf(final Path sourceSubDir) {
+		return Math.floorMod(sourceSubDir.hashCode(), lanes.length);
+	}
+
+	/**
+	 * Number of tasks waiting in all lanes.
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		for (final ThreadPoolExecutor lane : lanes) {
+			final BlockingQueue<Runnable> queue = lane.getQueue();
+			depth += queue.size();
+		}
+		return depth;
+	}
+
+	public void shutdownNow() {
+		for (final ThreadPoolExecutor lane : lanes) {
+			lane.shutdownNow();
+		}
+	}
+
+	/**
+	 * Lets the queued tasks complete, for at most the given time.
+	 */
+	public void shutdown(final long timeoutMillis) throws InterruptedException {
+		for (final ThreadPoolExecutor lane : lanes) {
+			lane.shutdown();
+		}
+
+		final long deadline = System.currentTimeMillis() + timeoutMillis;
+		for (final ThreadPoolExecutor lane : lanes) {
+			if (!lane.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+				logger.warn("Sync tasks still running after shutdown timeout");
+				lane.shutdownNow();
+			}
+		}
+	}
+
+	private static class PendingTree {
+
+		private final int lane;
+
+		/** Number of creations queued or running */
+		private int count;
+
+		PendingTree(final int lane) {
+			this.lane = lane;
+		}
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the sync tasks of many independent queues (lanes) on one bounded pool
+ * of threads. The lanes having tasks take turns : a worker runs one task of
+ * the lane at the head, which then goes back at the tail if it has more, so
+ * that a busy lane cannot starve the others. The tasks of a lane run one at a
+ * time, in order. An idle lane costs no thread, only its (empty) queue.
+ */
+public class FairDispatcher {
+
+	final Logger logger = LoggerFactory.getLogger(FairDispatcher.class);
+
+	/** Lanes with tasks, each at most once */
+	private final BlockingQueue<Lane> ready;
+
+	private final Thread[] workers;
+
+	/** Queued to stop the workers once no lane has tasks left */
+	private final Lane stop;
+
+	public FairDispatcher(final int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Threads must be at least 1");
+		}
+
+		this.ready = new LinkedBlockingQueue<Lane>();
+		this.stop = new Lane(0);
+		this.workers = new Thread[threads];
+
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(this::work, "folder-sync-worker-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * A new lane, holding at most the given number of tasks offered.
+	 */
+	public Lane newLane(final int capacity) {
+		return new Lane(capacity);
+	}
+
+	/**
+	 * Number of lanes waiting for a worker.
+	 */
+	public int getReadyCount() {
+		return ready.size();
+	}
+
+	private void work() {
+		while (true) {
+			final Lane lane;
+			try {
+				lane = ready.take();
+			} catch (final InterruptedException e) {
+				return;
+			}
+
+			if (lane == stop) {
+				// Passed on to the other workers
+				final boolean idle = ready.isEmpty();
+				ready.add(stop);
+				if (idle) {
+					return;
+				}
+				continue;
+			}
+
+			lane.runNext();
+		}
+	}
+
+	/**
+	 * Lets the queued tasks complete, for at most the given time.
+	 */
+	public void shutdown(final long timeoutMillis) throws InterruptedException {
+		ready.add(stop);
+
+		final long deadline = System.currentTimeMillis() + timeoutMillis;
+		for (final Thread worker : workers) {
+			worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+			if (worker.isAlive()) {
+				logger.warn("Sync tasks still running after shutdown timeout");
+				shutdownNow();
+				return;
+			}
+		}
+	}
+
+	public void shutdownNow() {
+		ready.clear();
+		ready.add(stop);
+		for (final Thread worker : workers) {
+			worker.interrupt();
+		}
+	}
+
+	public class Lane {
+
+		private final int capacity;
+		private final Deque<Runnable> tasks;
+
+		/** Whether ready or being run */
+		private boolean scheduled;
+		private boolean closed;
+
+		Lane(final int capacity) {
+			this.capacity = capacity;
+			this.tasks = new ArrayDeque<Runnable>();
+		}
+
+		/**
+		 * Queues a task unless the lane is full (or closed).
+		 *
+		 * @return whether it was queued
+		 */
+		public synchronized boolean offer(final Runnable task) {
+			if (tasks.size() >= capacity) {
+				return false;
+			}
+			return submit(task);
+		}
+
+		/**
+		 * Queues a task even if the lane is full, for tasks whose number is
+		 * bounded otherwise.
+		 *
+		 * @return whether it was queued, not if the lane is closed
+		 */
+		public synchronized boolean submit(final Runnable task) {
+			if (closed) {
+				return false;
+			}
+
+			tasks.add(task);
+			if (!scheduled) {
+				scheduled = true;
+				ready.add(this);
+			}
+			return true;
+		}
+
+		public synchronized int size() {
+			return tasks.size();
+		}
+
+		/**
+		 * Drops the queued tasks and refuses new ones.
+		 */
+		public synchronized void close() {
+			closed = true;
+			tasks.clear();
+		}
+
+		void runNext() {
+			final Runnable task;
+			synchronized (this) {
+				task = tasks.poll();
+			}
+
+			if (task != null) {
+				try {
+					task.run();
+				} catch (final RuntimeException e) {
+					logger.warn("Failed to run sync task", e);
+				}
+			}
+
+			synchronized (this) {
+				if (tasks.isEmpty()) {
+					scheduled = false;
+				} else {
+					ready.add(this);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,588 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies a source file or tree into several targets while reading the source
+ * once. The chunks read are handed to one writer thread per target through a
+ * bounded queue; a target whose queue is full is detached and catches up by
+ * reading the rest of the source on its own, so that a slow target never
+ * holds the others back. As with {@link ChannelCopyEngine}, each target is
+ * written to a hidden temporary sibling atomically renamed once complete.
+ */
+public class FanOutCopyEngine {
+
+	public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+	public static final int DEFAULT_QUEUE_CHUNKS = 16;
+
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+	/** Queue markers, the reader never puts more than one of them per writer */
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+	private static final ByteBuffer DETACHED = ByteBuffer.allocate(0);
+	private static final ByteBuffer ABORTED = ByteBuffer.allocate(0);
+
+	final Logger logger = LoggerFactory.getLogger(FanOutCopyEngine.class);
+
+	private final int chunkSize;
+	private final int queueChunks;
+
+	private final ExecutorService writers;
+
+	private volatile boolean forceWrites;
+
+	private volatile IoScheduler ioScheduler;
+
+	public FanOutCopyEngine() {
+		this(DEFAULT_CHUNK_SIZE, DEFAULT_QUEUE_CHUNKS);
+	}
+
+	public FanOutCopyEngine(final int chunkSize, final int queueChunks) {
+		if (chunkSize < 1 || queueChunks < 1) {
+			throw new IllegalArgumentException("Chunk size and queue chunks must be at least 1");
+		}
+
+		this.chunkSize = chunkSize;
+		this.queueChunks = queueChunks;
+		this.forceWrites = false;
+		this.writers = Executors.newCachedThreadPool(r -> {
+			final Thread thread = new Thread(r, "folder-sync-fanout-" + THREAD_COUNT.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Copies a file with its attributes into every target, replacing them if
+	 * any.
+	 */
+	public Result copyFile(final Path source, final List<Path> targets) {
+		final List<Path> temps = new ArrayList<Path>(targets.size());
+		for (final Path target : targets) {
+			temps.add(ChannelCopyEngine.tempPathFor(target));
+		}
+
+		final Result result = new Result();
+		result.bytes = transfer(source, temps, result.failures);
+
+		for (int i = 0; i < targets.size(); i++) {
+			final Path temp = temps.get(i);
+			final IOException failure = result.failures.remove(temp);
+			try {
+				if (failure != null) {
+					throw failure;
+				}
+				ChannelCopyEngine.copyAttributes(source, temp);
+				ChannelCopyEngine.publish(temp, targets.get(i));
+			} catch (final IOException e) {
+				result.failures.put(targets.get(i), e);
+				deleteQuietly(temp);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Copies a whole directory tree with its attributes into every target,
+	 * walking the source once. A target which does not exist yet is built
+	 * aside and published whole, an existing one is merged into file by
+	 * file.
+	 * 
+	 * @param excluded
+	 *            tells which entries (and subtrees) of the source to skip
+	 */
+	public Result copyDirectory(final Path source, final List<Path> targets,
+			final BiPredicate<Path, BasicFileAttributes> excluded) {
+		final Result result = new Result();
+		final List<TreeTarget> treeTargets = new ArrayList<TreeTarget>(targets.size());
+
+		for (final Path target : targets) {
+			if (Files.exists(target, NOFOLLOW_LINKS)) {
+				treeTargets.add(new TreeTarget(target, target, false));
+			} else {
+				final Path temp = ChannelCopyEngine.tempPathFor(target);
+				deleteQuietly(temp);
+				treeTargets.add(new TreeTarget(target, temp, true));
+			}
+		}
+
+		try {
+			Files.walkFileTree(source, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new TreeCopier(
+					source, treeTargets, excluded, result));
+		} catch (final IOException e) {
+			for (final TreeTarget target : treeTargets) {
+				target.fail(e);
+			}
+		}
+
+		for (final TreeTarget target : treeTargets) {
+			try {
+				if (target.failure != null) {
+					throw target.failure;
+				}
+				if (target.direct) {
+					ChannelCopyEngine.publish(target.root, target.target);
+				}
+			} catch (final IOException e) {
+				result.failures.put(target.target, e);
+				if (target.direct) {
+					deleteQuietly(target.root);
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Writes the content of the source into every given file.
+	 * 
+	 * @return the number of bytes read from the source
+	 */
+	long transfer(final Path source, final List<Path> outputs, final Map<Path, IOException> failures) {
+		final IoScheduler scheduler = ioScheduler;
+		final IoScheduler.Priority priority = IoScheduler.currentPriority();
+
+		try (FileChannel in = FileChannel.open(source, READ)) {
+			final long size = in.size();
+			if (scheduler != null) {
+				scheduler.acquire(priority, size, 0, outputs.size());
+			}
+
+			if (size <= chunkSize) {
+				// Not worth a hand-over : written in turn by the calling thread
+				final ByteBuffer content = ByteBuffer.allocate((int) size);
+				if (scheduler != null) {
+					scheduler.acquire(priority, size, size * outputs.size(), 0);
+				}
+				readChunk(in, 0, content);
+				for (final Path output : outputs) {
+					try (FileChannel out = FileChannel.open(output, CREATE, WRITE, TRUNCATE_EXISTING)) {
+						write(out, 0, content.duplicate());
+					} catch (final IOException e) {
+						failures.put(output, e);
+					}
+				}
+				return content.limit();
+			}
+
+			return stream(in, size, outputs, failures, scheduler, priority);
+		} catch (final IOException e) {
+			for (final Path output : outputs) {
+				failures.put(output, e);
+			}
+			return 0;
+		}
+	}
+
+	private long stream(final FileChannel in, final long size, final List<Path> outputs,
+			final Map<Path, IOException> failures, final IoScheduler scheduler, final IoScheduler.Priority priority) {
+		final CountDownLatch done = new CountDownLatch(outputs.size());
+		final List<TargetWriter> targetWriters = new ArrayList<TargetWriter>(outputs.size());
+		for (final Path output : outputs) {
+			final TargetWriter writer = new TargetWriter(in, size, output, done, scheduler, priority);
+			targetWriters.add(writer);
+			writers.execute(writer);
+		}
+
+		long position = 0;
+		IOException readFailure = null;
+		try {
+			while (position < size) {
+				final ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(chunkSize, size - position));
+				if (scheduler != null) {
+					// Once per target written, the detached ones paying for their own reads
+					int attached = 0;
+					for (final TargetWriter writer : targetWriters) {
+						if (writer.isAttached()) {
+							attached++;
+						}
+					}
+					scheduler.acquire(priority, size, (long) chunk.capacity() * Math.max(1, attached), 0);
+				}
+				readChunk(in, position, chunk);
+				if (!chunk.hasRemaining()) {
+					break;
+				}
+
+				for (final TargetWriter writer : targetWriters) {
+					writer.offer(chunk, position);
+				}
+				position += chunk.limit();
+			}
+		} catch (final IOException e) {
+			readFailure = e;
+		}
+
+		for (final TargetWriter writer : targetWriters) {
+			writer.close(readFailure == null ? END : ABORTED);
+		}
+
+		try {
+			done.await();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			readFailure = new IOException("Interrupted while writing targets", e);
+		}
+
+		for (final TargetWriter writer : targetWriters) {
+			if (readFailure != null) {
+				failures.put(writer.output, readFailure);
+			} else if (writer.failure != null) {
+				failures.put(writer.output, writer.failure);
+			}
+		}
+
+		return position;
+	}
+
+	private static void readChunk(final FileChannel in, final long position, final ByteBuffer chunk)
+			throws IOException {
+		while (chunk.hasRemaining()) {
+			if (in.read(chunk, position + chunk.position()) < 0) {
+				break;
+			}
+		}
+		chunk.flip();
+	}
+
+	private static long write(final FileChannel out, final long position, final ByteBuffer chunk)
+			throws IOException {
+		long written = 0;
+		while (chunk.hasRemaining()) {
+			written += out.write(chunk, position + written);
+		}
+		return written;
+	}
+
+	private void deleteQuietly(final Path path) {
+		FileUtils.deleteQuietly(path.toFile());
+	}
+
+	public boolean isForceWrites() {
+		return forceWrites;
+	}
+
+	/**
+	 * Flushes every copied file to the device before publishing it (see
+	 * {@link ChannelCopyEngine#setForceWrites(boolean)}).
+	 */
+	public void setForceWrites(final boolean forceWrites) {
+		this.forceWrites = forceWrites;
+	}
+
+	public IoScheduler getIoScheduler() {
+		return ioScheduler;
+	}
+
+	/**
+	 * Paces the copies (one operation per file and target, then the bytes
+	 * written to each target, as that many single copies would be), null (the
+	 * default) to copy at full speed.
+	 */
+	public void setIoScheduler(final IoScheduler ioScheduler) {
+		this.ioScheduler = ioScheduler;
+	}
+
+	/**
+	 * Outcome of a copy : the bytes read from the source, and the targets
+	 * which could not be written.
+	 */
+	public static class Result {
+
+		private long bytes;
+		private final Map<Path, IOException> failures = new LinkedHashMap<Path, IOException>();
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public Map<Path, IOException> getFailures() {
+			return Collections.unmodifiableMap(failures);
+		}
+
+		public boolean isFailed(final Path target) {
+			return failures.containsKey(target);
+		}
+	}
+
+	/**
+	 * Writes the chunks queued by the reader into one output, until told to
+	 * end, to abort, or to go on alone from where the queue stopped.
+	 */
+	private class TargetWriter implements Runnable {
+
+		private final FileChannel in;
+		private final long size;
+		private final Path output;
+		private final CountDownLatch done;
+
+		/** Paces the reads of a detached writer, as the reader's */
+		private final IoScheduler scheduler;
+		private final IoScheduler.Priority priority;
+
+		/** One more slot than data chunks, for the final marker */
+		private final BlockingQueue<ByteBuffer> chunks;
+
+		private boolean detached;
+		private volatile IOException failure;
+
+		TargetWriter(final FileChannel in, final long size, final Path output, final CountDownLatch done,
+				final IoScheduler scheduler, final IoScheduler.Priority priority) {
+			this.in = in;
+			this.size = size;
+			this.output = output;
+			this.done = done;
+			this.scheduler = scheduler;
+			this.priority = priority;
+			this.chunks = new ArrayBlockingQueue<ByteBuffer>(queueChunks + 1);
+			this.detached = false;
+		}
+
+		/**
+		 * Whether the chunks read are still handed to this writer.
+		 */
+		boolean isAttached() {
+			return !detached && failure == null;
+		}
+
+		/**
+		 * Called by the reader only, never blocks.
+		 */
+		void offer(final ByteBuffer chunk, final long position) {
+			if (detached || failure != null) {
+				return;
+			}
+			if (chunks.remainingCapacity() > 1) {
+				chunks.add(chunk.duplicate());
+			} else {
+				logger.debug("Copy to " + output + " lagging, detached at " + position);
+				detached = true;
+				chunks.add(DETACHED);
+			}
+		}
+
+		void close(final ByteBuffer marker) {
+			if (!detached) {
+				chunks.add(marker);
+			}
+		}
+
+		@Override
+		public void run() {
+			try (FileChannel out = FileChannel.open(output, CREATE, WRITE, TRUNCATE_EXISTING)) {
+				long position = 0;
+				while (true) {
+					final ByteBuffer chunk = chunks.take();
+					if (chunk == END) {
+						break;
+					} else if (chunk == ABORTED) {
+						return;
+					} else if (chunk == DETACHED) {
+						// Positional reads do not disturb the reader
+						out.position(position);
+						while (position < size) {
+							final long length = Math.min(chunkSize, size - position);
+							if (scheduler != null) {
+								scheduler.acquire(priority, size, length, 0);
+							}
+							final long transferred = in.transferTo(position, length, out);
+							if (transferred <= 0) {
+								break;
+							}
+							position += transferred;
+						}
+						break;
+					}
+					position += write(out, position, chunk);
+				}
+
+				if (forceWrites) {
+					out.force(true);
+				}
+			} catch (final IOException e) {
+				failure = e;
+			} catch (final InterruptedException e) {
+				failure = new IOException("Interrupted while writing " + output, e);
+			} finally {
+				done.countDown();
+			}
+		}
+	}
+
+	/**
+	 * Where a target tree is being written : the target itself, or its
+	 * temporary sibling (files then written directly, the whole tree being
+	 * published at once).
+	 */
+	private static class TreeTarget {
+
+		private final Path target;
+		private final Path root;
+		private final boolean direct;
+
+		private IOException failure;
+
+		TreeTarget(final Path target, final Path root, final boolean direct) {
+			this.target = target;
+			this.root = root;
+			this.direct = direct;
+		}
+
+		void fail(final IOException e) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+	}
+
+	private class TreeCopier extends SimpleFileVisitor<Path> {
+
+		private final Path source;
+		private final List<TreeTarget> targets;
+		private final BiPredicate<Path, BasicFileAttributes> excluded;
+		private final Result result;
+
+		TreeCopier(final Path source, final List<TreeTarget> targets,
+				final BiPredicate<Path, BasicFileAttributes> excluded, final Result result) {
+			this.source = source;
+			this.targets = targets;
+			this.excluded = excluded;
+			this.result = result;
+		}
+
+		private Path resolveTarget(final TreeTarget target, final Path item) {
+			return target.root.resolve(source.relativize(item).toString());
+		}
+
+		@Override
+		public FileVisitResult preVisitDirectory(final Path directory, final BasicFileAttributes attrs) {
+			if (!directory.equals(source) && excluded.test(directory, attrs)) {
+				return FileVisitResult.SKIP_SUBTREE;
+			}
+			for (final TreeTarget target : targets) {
+				if (target.failure == null) {
+					try {
+						Files.createDirectories(resolveTarget(target, directory));
+					} catch (final IOException e) {
+						target.fail(e);
+					}
+				}
+			}
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+			if (excluded.test(file, attrs)) {
+				return FileVisitResult.CONTINUE;
+			}
+
+			// Written directly into a tree being built aside, through a temporary file otherwise
+			final List<TreeTarget> live = new ArrayList<TreeTarget>(targets.size());
+			final List<Path> outputs = new ArrayList<Path>(targets.size());
+			for (final TreeTarget target : targets) {
+				if (target.failure == null) {
+					live.add(target);
+					final Path targetFile = resolveTarget(target, file);
+					outputs.add(target.direct ? targetFile : ChannelCopyEngine.tempPathFor(targetFile));
+				}
+			}
+			if (live.isEmpty()) {
+				return FileVisitResult.TERMINATE;
+			}
+
+			final Map<Path, IOException> failures = new LinkedHashMap<Path, IOException>();
+			result.bytes += transfer(file, outputs, failures);
+
+			for (int i = 0; i < live.size(); i++) {
+				final TreeTarget target = live.get(i);
+				final Path output = outputs.get(i);
+				try {
+					if (failures.containsKey(output)) {
+						throw failures.get(output);
+					}
+					ChannelCopyEngine.copyAttributes(file, output);
+					if (!target.direct) {
+						ChannelCopyEngine.publish(output, resolveTarget(target, file));
+					}
+				} catch (final IOException e) {
+					if (!target.direct) {
+						deleteQuietly(output);
+					}
+					target.fail(e);
+				}
+			}
+
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult visitFileFailed(final Path file, final IOException e) {
+			logger.warn("Failed to copy " + file, e);
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult postVisitDirectory(final Path directory, final IOException e) {
+			for (final TreeTarget target : targets) {
+				if (target.failure == null) {
+					try {
+						ChannelCopyEngine.copyAttributes(directory, resolveTarget(target, directory));
+					} catch (final IOException e2) {
+						target.fail(e2);
+					}
+				}
+			}
+			return FileVisitResult.CONTINUE;
+		}
+	}
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static ch.mattrero.foldersync.SyncStatus.ADDED;
+import static ch.mattrero.foldersync.SyncStatus.DELETED;
+import static ch.mattrero.foldersync.SyncStatus.MODIFIED;
+import static ch.mattrero.foldersync.SyncStatus.SYNCHRONIZED;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One-way synchronization of a source folder into several backup folders at
+ * once. Each source directory is listed, and the attributes of its entries
+ * read, a single time whatever the number of backups : its sorted names are
+ * merged with the sorted names of every backup in one pass. A new or
+ * modified file needed by several backups is then read once and streamed into
+ * all of them (see {@link FanOutCopyEngine}).
+ * <p>
+ * Each backup keeps its own {@link FoldersSynchronizer} (see
+ * {@link #getDestinations()}) for its manifest, metrics and options, which
+ * applies the other changes and any copy needed by this backup alone. Moves
+ * are only replayed by the real-time sync.
+ */
+public class FanOutSynchronizer {
+
+	final Logger logger = LoggerFactory.getLogger(FanOutSynchronizer.class);
+
+	private final Path sourceDir;
+	private final List<FoldersSynchronizer> destinations;
+
+	private FanOutCopyEngine copyEngine = new FanOutCopyEngine();
+
+	private Consumer<Path> directoryListener;
+
+	private long spillThreshold = SortedNames.DEFAULT_MEMORY_LIMIT;
+
+	public FanOutSynchronizer(final Path sourceDir, final List<Path> backupDirs, final SyncFilter filter) {
+		if (backupDirs.isEmpty()) {
+			throw new IllegalArgumentException("At least one backup folder is needed");
+		}
+
+		this.sourceDir = sourceDir;
+
+		final List<FoldersSynchronizer> synchronizers = new ArrayList<FoldersSynchronizer>(backupDirs.size());
+		for (final Path backupDir : backupDirs) {
+			synchronizers.add(new FoldersSynchronizer(sourceDir, backupDir, filter));
+		}
+		this.destinations = Collections.unmodifiableList(synchronizers);
+	}
+
+	public FanOutSynchronizer(final Path sourceDir, final List<Path> backupDirs) {
+		this(sourceDir, backupDirs, SyncFilter.NONE);
+	}
+
+	/**
+	 * @return what this sync did, by backup folder
+	 */
+	public Map<Path, SyncReport> sync() {
+		return sync(() -> false);
+	}
+
+	/**
+	 * Like {@link #sync()}, stopping at the next entry once the given
+	 * condition holds.
+	 */
+	Map<Path, SyncReport> sync(final BooleanSupplier cancelled) {
+		final Map<FoldersSynchronizer, SyncReport> before = new IdentityHashMap<FoldersSynchronizer, SyncReport>();
+		for (final FoldersSynchronizer destination : destinations) {
+			before.put(destination, destination.getMetrics().report());
+			destination.prepareManifest();
+		}
+
+		final Deque<Branch> branches = new ArrayDeque<Branch>();
+		branches.push(new Branch(sourceDir, destinations));
+		while (!branches.isEmpty() && !cancelled.getAsBoolean()) {
+			final Branch branch = branches.pop();
+			for (final Branch subBranch : mergeTree(branch.sourceSubDir, branch.destinations, cancelled)) {
+				branches.push(subBranch);
+			}
+		}
+
+		final Set<DigestStore> digestStores = Collections.newSetFromMap(new IdentityHashMap<DigestStore, Boolean>());
+		final Map<Path, SyncReport> reports = new LinkedHashMap<Path, SyncReport>();
+		for (final FoldersSynchronizer destination : destinations) {
+			destination.saveManifest();
+			// A store shared by the backups is saved once
+			if (destination.getDigestStore() != null && digestStores.add(destination.getDigestStore())) {
+				destination.saveDigests();
+			}
+			reports.put(destination.getBackupDir(), destination.getMetrics().report().since(before.get(
+					destination)));
+		}
+
+		return reports;
+	}
+
+	/**
+	 * Merges the direct content of a source directory into its backups and
+	 * returns the sub-directories that still have to be merged, each with the
+	 * backups it is in sync with so far.
+	 */
+	private List<Branch> mergeTree(final Path sourceSubDir, final List<FoldersSynchronizer> targets,
+			final BooleanSupplier cancelled) {
+		final Map<Path, List<FoldersSynchronizer>> subDirs = new LinkedHashMap<Path, List<FoldersSynchronizer>>();
+		final List<BackupCursor> cursors = new ArrayList<BackupCursor>(targets.size());
+		final FoldersSynchronizer first = targets.get(0);
+
+		if (directoryListener != null) {
+			directoryListener.accept(sourceSubDir);
+		}
+
+		try (SortedNames sourceNames = SortedNames.list(sourceSubDir, spillThreshold)) {
+			for (final FoldersSynchronizer target : targets) {
+				// An unreadable backup is left behind, the others go on
+				try {
+					cursors.add(new BackupCursor(target, sourceSubDir));
+				} catch (final IOException | SecurityException e) {
+					logger.warn("Failed to list backup of " + sourceSubDir + " in " + target.getBackupDir()
+							+ ", skipping it", e);
+				}
+			}
+			if (cursors.isEmpty()) {
+				return Collections.emptyList();
+			}
+
+			for (byte[] name = sourceNames.next(); name != null; name = sourceNames.next()) {
+				if (cancelled.getAsBoolean()) {
+					// The rest of the backups is left as it is
+					return Collections.emptyList();
+				}
+				final Path sourceItem = sourceSubDir.resolve(SortedNames.toString(name));
+
+				for (final BackupCursor cursor : cursors) {
+					cursor.deleteBefore(name);
+				}
+
+				BasicFileAttributes attributes;
+				try {
+					attributes = first.getFilter().needsAttributes() ? Files.readAttributes(sourceItem,
+							BasicFileAttributes.class) : null;
+					if (first.isExcluded(sourceItem, attributes)) {
+						continue;
+					}
+					if (attributes == null) {
+						attributes = Files.readAttributes(sourceItem, BasicFileAttributes.class);
+					}
+				} catch (final IOException e) {
+					// Vanished or unreadable : left as is until next sync
+					logger.debug("Failed to read attributes of " + sourceItem, e);
+					for (final BackupCursor cursor : cursors) {
+						cursor.skip(name);
+					}
+					continue;
+				}
+
+				final Map<FoldersSynchronizer, SyncOperation> copies = new LinkedHashMap<FoldersSynchronizer,
+						SyncOperation>();
+				for (final BackupCursor cursor : cursors) {
+					final SyncOperation operation = cursor.compare(sourceItem, name, attributes);
+					if (operation == null) {
+						continue;
+					}
+
+					if (operation.getStatus() == SYNCHRONIZED) {
+						if (attributes.isDirectory()) {
+							subDirs.computeIfAbsent(sourceItem, k -> new ArrayList<FoldersSynchronizer>()).add(
+									cursor.synchronizer);
+						}
+					} else if (isCopy(operation, cursor.synchronizer)) {
+						copies.put(cursor.synchronizer, operation);
+					} else {
+						cursor.synchronizer.apply(operation);
+						if (operation.getStatus() != MODIFIED && attributes.isDirectory()) {
+							subDirs.computeIfAbsent(sourceItem, k -> new ArrayList<FoldersSynchronizer>()).add(
+									cursor.synchronizer);
+						}
+					}
+				}
+
+				copy(sourceItem, attributes, copies);
+			}
+
+			for (final BackupCursor cursor : cursors) {
+				cursor.deleteBefore(null);
+			}
+		} catch (final IOException | SecurityException e) {
+			logger.debug("Failed to sync tree " + sourceSubDir, e);
+		} finally {
+			for (final BackupCursor cursor : cursors) {
+				cursor.close();
+			}
+		}
+
+		final List<Branch> branches = new ArrayList<Branch>(subDirs.size());
+		for (final Map.Entry<Path, List<FoldersSynchronizer>> subDir : subDirs.entrySet()) {
+			branches.add(new Branch(subDir.getKey(), subDir.getValue()));
+		}
+		return branches;
+	}
+
+	/**
+	 * Whether an operation is a plain copy of the source entry, which can be
+	 * shared with other backups : an addition, or the replacement of a file
+	 * by a file (unless updated in place by a delta transfer).
+	 */
+	private static boolean isCopy(final SyncOperation operation, final FoldersSynchronizer synchronizer) {
+		switch (operation.getStatus()) {
+			case ADDED:
+				return true;
+			case MODIFIED:
+				return synchronizer.getDeltaTransfer() == null && operation.getSourceAttributes().isRegularFile()
+						&& operation.getBackupAttributes().isRegularFile();
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Copies a source entry into every backup needing it, reading it once.
+	 */
+	private void copy(final Path sourceItem, final BasicFileAttributes attributes,
+			final Map<FoldersSynchronizer, SyncOperation> copies) throws IOException {
+		if (copies.isEmpty()) {
+			return;
+		}
+
+		if (copies.size() == 1) {
+			final Map.Entry<FoldersSynchronizer, SyncOperation> copy = copies.entrySet().iterator().next();
+			copy.getKey().apply(copy.getValue());
+			return;
+		}
+
+		final FoldersSynchronizer first = copies.keySet().iterator().next();
+		final List<Path> backupItems = new ArrayList<Path>(copies.size());
+		for (final FoldersSynchronizer synchronizer : copies.keySet()) {
+			backupItems.add(synchronizer.resolveBackupItemPath(sourceItem));
+		}
+
+		final long start = System.nanoTime();
+		final FanOutCopyEngine.Result result;
+		if (attributes.isDirectory()) {
+			first.visitDirectories(sourceItem);
+			result = copyEngine.copyDirectory(sourceItem, backupItems, first::isExcluded);
+		} else {
+			result = copyEngine.copyFile(sourceItem, backupItems);
+		}
+		final long nanos = System.nanoTime() - start;
+
+		for (final Map.Entry<FoldersSynchronizer, SyncOperation> copy : copies.entrySet()) {
+			final FoldersSynchronizer synchronizer = copy.getKey();
+			final Path backupItem = synchronizer.resolveBackupItemPath(sourceItem);
+			boolean copied = false;
+			try {
+				if (result.isFailed(backupItem)) {
+					throw result.getFailures().get(backupItem);
+				}
+				synchronizer.added(sourceItem, attributes, result.getBytes(), nanos);
+				copied = true;
+			} catch (final IOException e) {
+				logger.warn("Failed to create " + backupItem, e);
+			}
+			synchronizer.getMetrics().applied(copy.getValue().getStatus(), copied);
+		}
+	}
+
+	public Path getSourceDir() {
+		return sourceDir;
+	}
+
+	/**
+	 * The synchronizer of each backup folder, in the given order, to
+	 * configure them one by one.
+	 */
+	public List<FoldersSynchronizer> getDestinations() {
+		return destinations;
+	}
+
+	public FanOutCopyEngine getCopyEngine() {
+		return copyEngine;
+	}
+
+	public void setCopyEngine(final FanOutCopyEngine copyEngine) {
+		this.copyEngine = copyEngine;
+	}
+
+	/**
+	 * Paces the I/O of every backup and of the shared copies (see
+	 * {@link FoldersSynchronizer#setIoScheduler(IoScheduler)}).
+	 */
+	public void setIoScheduler(final IoScheduler ioScheduler) {
+		copyEngine.setIoScheduler(ioScheduler);
+		for (final FoldersSynchronizer destination : destinations) {
+			destination.setIoScheduler(ioScheduler);
+		}
+	}
+
+	public Consumer<Path> getDirectoryListener() {
+		return directoryListener;
+	}
+
+	/**
+	 * Called with every source directory before it is listed, including the
+	 * directories of a new subtree before it is copied.
+	 */
+	public void setDirectoryListener(final Consumer<Path> directoryListener) {
+		this.directoryListener = directoryListener;
+		for (final FoldersSynchronizer destination : destinations) {
+			destination.setDirectoryListener(directoryListener);
+		}
+	}
+
+	public long getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	/**
+	 * Bytes of entry names of a directory kept in memory, beyond which they
+	 * are sorted on disk (for the source and for each backup).
+	 */
+	public void setSpillThreshold(final long spillThreshold) {
+		this.spillThreshold = spillThreshold;
+		for (final FoldersSynchronizer destination : destinations) {
+			destination.setSpillThreshold(spillThreshold);
+		}
+	}
+
+	/**
+	 * A source directory to merge, with the backups to merge it into.
+	 */
+	private static class Branch {
+
+		private final Path sourceSubDir;
+		private final List<FoldersSynchronizer> destinations;
+
+		Branch(final Path sourceSubDir, final List<FoldersSynchronizer> destinations) {
+			this.sourceSubDir = sourceSubDir;
+			this.destinations = destinations;
+		}
+	}
+
+	/**
+	 * The sorted entry names of one backup directory, consumed in step with
+	 * the source ones.
+	 */
+	private class BackupCursor {
+
+		private final FoldersSynchronizer synchronizer;
+		private final Path sourceSubDir;
+		private final SortedNames names;
+
+		private byte[] name;
+
+		BackupCursor(final FoldersSynchronizer synchronizer, final Path sourceSubDir) throws IOException {
+			this.synchronizer = synchronizer;
+			this.sourceSubDir = sourceSubDir;
+			this.names = synchronizer.listBackupNames(synchronizer.resolveBackupItemPath(sourceSubDir));
+			this.name = names.next();
+		}
+
+		/**
+		 * Deletes the backup entries sorted before the given source name, all
+		 * the remaining ones if null.
+		 */
+		void deleteBefore(final byte[] sourceName) throws IOException {
+			while (name != null && (sourceName == null || SortedNames.compare(name, sourceName) < 0)) {
+				final Path sourceItem = sourceSubDir.resolve(SortedNames.toString(name));
+				name = names.next();
+
+				final BasicFileAttributes attributes;
+				try {
+					attributes = synchronizer.readBackupAttributesOf(sourceItem);
+				} catch (final IOException e) {
+					logger.debug("Failed to read attributes of backup of " + sourceItem, e);
+					continue;
+				}
+
+				if (!synchronizer.isExcluded(sourceItem, attributes)) {
+					synchronizer.apply(SyncOperation.of(DELETED, sourceItem, null, attributes,
+							synchronizer::isExcluded));
+				}
+			}
+		}
+
+		/**
+		 * Leaves the backup entry of the given name (if any) as it is.
+		 */
+		void skip(final byte[] sourceName) throws IOException {
+			if (name != null && SortedNames.compare(name, sourceName) == 0) {
+				name = names.next();
+			}
+		}
+
+		/**
+		 * Compares a source entry with the backup entry of the same name,
+		 * if any.
+		 * 
+		 * @return the operation to apply to this backup, null to leave it as
+		 *         it is
+		 */
+		SyncOperation compare(final Path sourceItem, final byte[] sourceName, final BasicFileAttributes attributes)
+				throws IOException {
+			synchronizer.getMetrics().scanned();
+
+			if (name == null || SortedNames.compare(name, sourceName) != 0) {
+				return SyncOperation.of(ADDED, sourceItem, attributes, null, synchronizer::isExcluded);
+			}
+			name = names.next();
+
+			final BasicFileAttributes backupAttributes;
+			try {
+				backupAttributes = synchronizer.readBackupAttributesOf(sourceItem);
+			} catch (final IOException e) {
+				logger.debug("Failed to read attributes of backup of " + sourceItem, e);
+				return null;
+			}
+
+			if (synchronizer.isExcluded(sourceItem, backupAttributes)) {
+				// Excluded by its backup attributes only : replaced, as by the merge of a single backup
+				return SyncOperation.of(ADDED, sourceItem, attributes, null, synchronizer::isExcluded);
+			}
+
+			return SyncOperation.of(synchronizer.compare(sourceItem, attributes, backupAttributes), sourceItem,
+					attributes, backupAttributes, synchronizer::isExcluded);
+		}
+
+		void close() {
+			try {
+				names.close();
+			} catch (final IOException e) {
+			}
+		}
+	}
+}
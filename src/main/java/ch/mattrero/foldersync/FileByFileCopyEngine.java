@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.function.BiPredicate;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copy engine which copies a directory tree file by file, each one being
+ * published on its own, into a hidden temporary sibling renamed over the
+ * target once complete (see {@link ChannelCopyEngine}).
+ */
+abstract class FileByFileCopyEngine implements ICopyEngine {
+
+	final Logger logger = LoggerFactory.getLogger(getClass());
+
+	@Override
+	public long copyFile(final Path source, final Path target) throws IOException {
+		return copyFile(source, Files.readAttributes(source, BasicFileAttributes.class), target);
+	}
+
+	/**
+	 * Copies a file, as described by the given attributes.
+	 */
+	abstract long copyFile(Path source, BasicFileAttributes attributes, Path target) throws IOException;
+
+	@Override
+	public long copyDirectory(final Path source, final Path target,
+			final BiPredicate<Path, BasicFileAttributes> excluded) throws IOException {
+		if (Files.exists(target, NOFOLLOW_LINKS)) {
+			return copyTree(source, target, excluded);
+		}
+
+		final Path temp = ChannelCopyEngine.tempPathFor(target);
+		FileUtils.deleteQuietly(temp.toFile());
+
+		try {
+			final long copied = copyTree(source, temp, excluded);
+			ChannelCopyEngine.publish(temp, target);
+			return copied;
+		} catch (final IOException e) {
+			FileUtils.deleteQuietly(temp.toFile());
+			throw e;
+		}
+	}
+
+	private long copyTree(final Path source, final Path target,
+			final BiPredicate<Path, BasicFileAttributes> excluded) throws IOException {
+		final long[] copied = new long[1];
+
+		Files.walkFileTree(source, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+				new SimpleFileVisitor<Path>() {
+					private Path resolveTarget(final Path item) {
+						return target.resolve(source.relativize(item).toString());
+					}
+
+					@Override
+					public FileVisitResult preVisitDirectory(final Path directory, final BasicFileAttributes attrs)
+							throws IOException {
+						if (!directory.equals(source) && excluded.test(directory, attrs)) {
+							return FileVisitResult.SKIP_SUBTREE;
+						}
+						Files.createDirectories(resolveTarget(directory));
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs)
+							throws IOException {
+						if (!excluded.test(file, attrs)) {
+							copied[0] += copyFile(file, attrs, resolveTarget(file));
+						}
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed(final Path file, final IOException e) {
+						logger.warn("Failed to copy " + file, e);
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult postVisitDirectory(final Path directory, final IOException e)
+							throws IOException {
+						ChannelCopyEngine.copyAttributes(directory, resolveTarget(directory));
+						return FileVisitResult.CONTINUE;
+					}
+				});
+
+		return copied[0];
+	}
+}
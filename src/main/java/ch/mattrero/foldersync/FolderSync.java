@@ -17,36 +17,66 @@
 package ch.mattrero.foldersync;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class FolderSync {
 
-	public void sync(final Path sourceDir, final Path backupDir, List<String> ignored) {
-		new FoldersSynchronizer(sourceDir, backupDir, ignored).sync();
+	public SyncReport sync(final Path sourceDir, final Path backupDir, List<String> ignored) {
+		return new FoldersSynchronizer(sourceDir, backupDir, ignored).sync();
 	}
 	
-	public void sync(final Path sourceDir, final Path backupDir) {
-		new FoldersSynchronizer(sourceDir, backupDir).sync();
+	public SyncReport sync(final Path sourceDir, final Path backupDir, final SyncFilter filter) {
+		return new FoldersSynchronizer(sourceDir, backupDir, filter).sync();
+	}
+
+	public SyncReport sync(final Path sourceDir, final Path backupDir) {
+		return new FoldersSynchronizer(sourceDir, backupDir).sync();
+	}
+
+	/**
+	 * Syncs on the given executor, see
+	 * {@link FoldersSynchronizer#syncAsync(Executor, Consumer)}.
+	 */
+	public CompletableFuture<SyncReport> syncAsync(final Path sourceDir, final Path backupDir,
+			final SyncFilter filter, final Executor executor, final Consumer<SyncProgress> progressListener) {
+		return new FoldersSynchronizer(sourceDir, backupDir, filter).syncAsync(executor, progressListener);
 	}
 
 	public IRealTimeSynchronizer realTimeSync(final Path sourceDir, final Path backupDir) throws IOException {
+		return realTimeSync(sourceDir, backupDir, SyncFilter.NONE);
+	}
+
+	public IRealTimeSynchronizer realTimeSync(final Path sourceDir, final Path backupDir, final SyncFilter filter)
+			throws IOException {
+		return realTimeSync(new FoldersSynchronizer(sourceDir, backupDir, filter));
+	}
+
+	public IRealTimeSynchronizer realTimeSync(final FoldersSynchronizer foldersSynchronizer) throws IOException {
 		final FoldersRealTimeSynchronizer foldersRealTimeSynchronizer = new FoldersRealTimeSynchronizer(
-				new FoldersSynchronizer(sourceDir, backupDir));
+				foldersSynchronizer);
 		foldersRealTimeSynchronizer.start();
 
-		while (!foldersRealTimeSynchronizer.isRunning()) {
-			try {
-				Thread.sleep(1000);
-			} catch (final InterruptedException e) {
-			}
+		try {
+			foldersRealTimeSynchronizer.whenSynced().join();
+		} catch (final CompletionException e) {
+			throw new IOException("Failed to start real-time sync", e.getCause());
 		}
 
 		/*
@@ -59,20 +89,334 @@ public class FolderSync {
 		return foldersRealTimeSynchronizer;
 	}
 
+	/**
+	 * Real-time sync by polling the source instead of watching it, for the
+	 * file systems that give no watch events (see
+	 * {@link PollingRealTimeSynchronizer}).
+	 */
+	public IRealTimeSynchronizer pollingSync(final FoldersSynchronizer foldersSynchronizer) throws IOException {
+		final PollingRealTimeSynchronizer pollingRealTimeSynchronizer = new PollingRealTimeSynchronizer(
+				foldersSynchronizer);
+		pollingRealTimeSynchronizer.start();
+
+		try {
+			pollingRealTimeSynchronizer.whenReady().join();
+		} catch (final CompletionException e) {
+			throw new IOException("Failed to start polling sync", e.getCause());
+		}
+
+		return pollingRealTimeSynchronizer;
+	}
+
+	/**
+	 * Syncs in real time all the pairs listed in the given config file, in
+	 * one shared set of threads (see {@link SyncDaemon}), until shut down.
+	 */
+	public SyncDaemon daemon(final Path configFile) throws IOException {
+		final SyncDaemon syncDaemon = new SyncDaemon(configFile);
+		syncDaemon.start();
+
+		try {
+			syncDaemon.whenReady().join();
+		} catch (final CompletionException e) {
+			throw new IOException("Failed to start sync daemon", e.getCause());
+		}
+
+		return syncDaemon;
+	}
+
+	/**
+	 * @return what this sync did, by backup folder
+	 */
+	public Map<Path, SyncReport> sync(final Path sourceDir, final List<Path> backupDirs, final SyncFilter filter) {
+		return new FanOutSynchronizer(sourceDir, backupDirs, filter).sync();
+	}
+
+	/**
+	 * Writes a new point-in-time snapshot of the source in the backup folder
+	 * (see {@link SnapshotSynchronizer}), then prunes the old ones.
+	 */
+	public SyncReport snapshot(final Path sourceDir, final Path backupDir, final SyncFilter filter,
+			final RetentionPolicy retentionPolicy) throws IOException {
+		final SnapshotSynchronizer snapshotSynchronizer = new SnapshotSynchronizer(sourceDir, backupDir, filter);
+		snapshotSynchronizer.setRetentionPolicy(retentionPolicy);
+		return snapshotSynchronizer.sync();
+	}
+
+	/**
+	 * Syncs the source into the backup folder of the {@link SyncReceiver}
+	 * listening on the given host and port.
+	 */
+	public SyncReport sync(final Path sourceDir, final String host, final int port, final SyncFilter filter)
+			throws IOException {
+		return new RemoteSynchronizer(sourceDir, host, port, filter).sync();
+	}
+
+	/**
+	 * Receives the syncs sent to the given port of the loopback interface
+	 * into the backup folder, until the returned receiver is closed.
+	 */
+	public SyncReceiver receive(final Path backupDir, final int port) throws IOException {
+		final SyncReceiver syncReceiver = new SyncReceiver(backupDir, port);
+		syncReceiver.start();
+		return syncReceiver;
+	}
+
+	/**
+	 * Receives the syncs of the senders knowing the secret, sent to the given
+	 * address and port, into the backup folder, until the returned receiver is
+	 * closed.
+	 */
+	public SyncReceiver receive(final Path backupDir, final InetAddress bindAddress, final int port,
+			final byte[] secret) throws IOException {
+		final SyncReceiver syncReceiver = new SyncReceiver(backupDir, bindAddress, port, secret);
+		syncReceiver.start();
+		return syncReceiver;
+	}
+
+	/**
+	 * Syncs the source into every backup folder, with a single watch service.
+	 */
+	public IRealTimeSynchronizer realTimeSync(final FanOutSynchronizer fanOutSynchronizer) throws IOException {
+		final FoldersRealTimeSynchronizer foldersRealTimeSynchronizer = new FoldersRealTimeSynchronizer(
+				fanOutSynchronizer);
+		foldersRealTimeSynchronizer.start();
+
+		try {
+			foldersRealTimeSynchronizer.whenSynced().join();
+		} catch (final CompletionException e) {
+			throw new IOException("Failed to start real-time sync", e.getCause());
+		}
+
+		return foldersRealTimeSynchronizer;
+	}
+
 	public static void main(final String[] args) {
 		final Logger logger = LoggerFactory.getLogger(FolderSync.class);
 
-		if (args[0].startsWith("-")) {
-			final Path fromDir = Paths.get(args[1]);
-			final Path toDir = Paths.get(args[2]);
+		boolean realTime = false;
+		boolean polling = false;
+		boolean moveDetection = false;
+		boolean dryRun = false;
+		boolean snapshots = false;
+		RetentionPolicy retentionPolicy = RetentionPolicy.DEFAULT;
+		long bytesPerSecond = IoScheduler.UNLIMITED;
+		long opsPerSecond = IoScheduler.UNLIMITED;
+		Path journalFile = null;
+		Path storeDir = null;
+		boolean compress = false;
+		boolean restore = false;
+		boolean collectGarbage = false;
+		int receivePort = -1;
+		String bindAddress = null;
+		Path secretFile = null;
+		String remote = null;
+		Path configFile = null;
+		SyncFilter filter = SyncFilter.NONE;
+		final List<String> dirs = new ArrayList<String>();
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-x")) {
+				final Path ruleFile = Paths.get(args[++i]);
+				try {
+					filter = SyncFilter.load(ruleFile);
+				} catch (final IOException e) {
+					logger.warn("Failed to read exclusion rules " + ruleFile.toAbsolutePath(), e);
+					return;
+				}
+			} else if (args[i].equals("-n")) {
+				dryRun = true;
+			} else if (args[i].equals("-mv")) {
+				moveDetection = true;
+			} else if (args[i].equals("-bps")) {
+				bytesPerSecond = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-ops")) {
+				opsPerSecond = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-snap")) {
+				snapshots = true;
+			} else if (args[i].equals("-keep")) {
+				retentionPolicy = RetentionPolicy.parse(args[++i]);
+			} else if (args[i].equals("-j")) {
+				journalFile = Paths.get(args[++i]);
+			} else if (args[i].equals("-dedup")) {
+				storeDir = Paths.get(args[++i]);
+			} else if (args[i].equals("-z")) {
+				compress = true;
+			} else if (args[i].equals("-restore")) {
+				restore = true;
+			} else if (args[i].equals("-gc")) {
+				collectGarbage = true;
+			} else if (args[i].equals("-poll")) {
+				realTime = true;
+				polling = true;
+			} else if (args[i].equals("-daemon")) {
+				configFile = Paths.get(args[++i]);
+			} else if (args[i].equals("-receive")) {
+				receivePort = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-bind")) {
+				bindAddress = args[++i];
+			} else if (args[i].equals("-secret")) {
+				secretFile = Paths.get(args[++i]);
+			} else if (args[i].equals("-remote")) {
+				remote = args[++i];
+			} else if (args[i].startsWith("-")) {
+				realTime = true;
+			} else {
+				dirs.add(args[i]);
+			}
+		}
+
+		if (configFile != null) {
+			logger.info("Starting sync daemon for the pairs of {} ...", configFile.toAbsolutePath());
+			try {
+				final SyncDaemon syncDaemon = new FolderSync().daemon(configFile);
+				logger.info("Sync daemon started for {} pair(s)", syncDaemon.getSourceDirs().size());
+			} catch (final IOException e) {
+				logger.warn("Failed to start sync daemon for " + configFile.toAbsolutePath(), e);
+			}
+			return;
+		}
+
+		byte[] secret = null;
+		if (secretFile != null) {
+			try {
+				secret = new String(Files.readAllBytes(secretFile), StandardCharsets.UTF_8).trim().getBytes(
+						StandardCharsets.UTF_8);
+			} catch (final IOException e) {
+				logger.warn("Failed to read secret " + secretFile.toAbsolutePath(), e);
+				return;
+			}
+		}
+
+		if (receivePort >= 0) {
+			final Path backupDir = Paths.get(dirs.get(0));
+			try {
+				final SyncReceiver syncReceiver = new FolderSync().receive(backupDir, bindAddress == null
+						? InetAddress.getLoopbackAddress() : InetAddress.getByName(bindAddress), receivePort, secret);
+				logger.info("Receiving syncs on {}:{} into {}", syncReceiver.getBindAddress().getHostAddress(),
+						receivePort, backupDir.toAbsolutePath());
+			} catch (final IOException | IllegalArgumentException e) {
+				logger.warn("Failed to listen on port " + receivePort, e);
+			}
+			return;
+		}
+
+		final Path fromDir = Paths.get(dirs.get(0));
+
+		if (remote != null) {
+			final int separator = remote.lastIndexOf(':');
+			final RemoteSynchronizer remoteSynchronizer = new RemoteSynchronizer(fromDir, remote.substring(0,
+					separator), Integer.parseInt(remote.substring(separator + 1)), filter);
+			remoteSynchronizer.setCompress(compress);
+			remoteSynchronizer.setSecret(secret);
+			logger.info("Start synchronizing {} to {} ...", fromDir.toAbsolutePath(), remote);
+			try {
+				logger.info("  => {}", remoteSynchronizer.sync());
+			} catch (final IOException e) {
+				logger.warn("Failed to sync " + fromDir.toAbsolutePath() + " to " + remote, e);
+			}
+			return;
+		}
+
+		final List<Path> toDirs = new ArrayList<Path>();
+		for (final String dir : dirs.subList(1, dirs.size())) {
+			toDirs.add(Paths.get(dir));
+		}
 
+		final DedupCopyEngine dedupCopyEngine = storeDir == null ? null : new DedupCopyEngine(new ObjectStore(
+				storeDir, compress));
+		if (restore) {
+			if (dedupCopyEngine == null || toDirs.size() != 1) {
+				logger.warn("Restoring needs -dedup <store_dir> <backup_directory> <target_directory>");
+				return;
+			}
+			try {
+				dedupCopyEngine.restore(fromDir, toDirs.get(0));
+				logger.info("Restored {} into {}", fromDir.toAbsolutePath(), toDirs.get(0).toAbsolutePath());
+			} catch (final IOException e) {
+				logger.warn("Failed to restore " + fromDir.toAbsolutePath(), e);
+			}
+			return;
+		}
+
+		final FanOutSynchronizer synchronizer = new FanOutSynchronizer(fromDir, toDirs, filter);
+		for (final FoldersSynchronizer destination : synchronizer.getDestinations()) {
+			destination.setMoveDetection(moveDetection);
+		}
+		if (journalFile != null) {
+			if (toDirs.size() == 1) {
+				synchronizer.getDestinations().get(0).setJournal(journalFile);
+			} else {
+				logger.warn("A journal can only be kept with one backup folder, ignoring {}", journalFile);
+			}
+		}
+		if (dedupCopyEngine != null) {
+			if (toDirs.size() == 1) {
+				synchronizer.getDestinations().get(0).setCopyEngine(dedupCopyEngine);
+			} else {
+				logger.warn("Only one backup folder can be deduplicated, ignoring {}", storeDir);
+			}
+		}
+		final IoScheduler ioScheduler = bytesPerSecond != IoScheduler.UNLIMITED
+				|| opsPerSecond != IoScheduler.UNLIMITED ? new IoScheduler(bytesPerSecond, opsPerSecond) : null;
+		if (ioScheduler != null) {
+			synchronizer.setIoScheduler(ioScheduler);
+		}
+
+		if (dryRun) {
+			logger.info("Planning sync of folders (dry run) ...");
+			logger.info("  => from : {}", fromDir.toAbsolutePath());
+
+			for (final FoldersSynchronizer destination : synchronizer.getDestinations()) {
+				logger.info("  => to   : {}", destination.getBackupDir().toAbsolutePath());
+
+				long totalBytes = 0;
+				for (final Map.Entry<SyncStatus, SyncPlan.Estimate> estimate : destination.plan().estimate()
+						.entrySet()) {
+					logger.info("  {} : {}", estimate.getKey(), estimate.getValue());
+					totalBytes += estimate.getValue().getBytes();
+				}
+
+				logger.info("Would copy at most {} byte(s)", totalBytes);
+			}
+
+			return;
+		}
+
+		if (snapshots) {
+			for (final Path toDir : toDirs) {
+				logger.info("Taking snapshot of {} into {} ...", fromDir.toAbsolutePath(), toDir.toAbsolutePath());
+				final SnapshotSynchronizer snapshotSynchronizer = new SnapshotSynchronizer(fromDir, toDir, filter);
+				snapshotSynchronizer.setRetentionPolicy(retentionPolicy);
+				snapshotSynchronizer.setIoScheduler(ioScheduler);
+				try {
+					logger.info("  => {}", snapshotSynchronizer.sync());
+				} catch (final IOException e) {
+					logger.warn("Failed to take snapshot of " + fromDir.toAbsolutePath() + " into "
+							+ toDir.toAbsolutePath(), e);
+				}
+			}
+
+			return;
+		}
+
+		if (realTime) {
 			logger.info("Starting real-time synchronizer ...");
 
 			try {
-				new FolderSync().realTimeSync(fromDir, toDir);
+				if (polling && toDirs.size() == 1) {
+					new FolderSync().pollingSync(synchronizer.getDestinations().get(0));
+				} else if (polling) {
+					logger.warn("Only one backup folder can be synced by polling");
+					return;
+				} else if (toDirs.size() == 1) {
+					new FolderSync().realTimeSync(synchronizer.getDestinations().get(0));
+				} else {
+					new FolderSync().realTimeSync(synchronizer);
+				}
 			} catch (final IOException e) {
 				logger.warn("Failed to start real-time sync for folders " + fromDir.toAbsolutePath() + " => "
-						+ toDir.toAbsolutePath(), e);
+						+ toDirs, e);
 			}
 
 			logger.info("Real-time synchronizer started");
@@ -80,20 +424,35 @@ public class FolderSync {
 			return;
 		}
 
-		final Path fromDir = Paths.get(args[0]);
-		final Path toDir = Paths.get(args[1]);
-
 		logger.info("Start synchronizing folders ...");
 		logger.info("  => from : {}", fromDir.toAbsolutePath());
-		logger.info("  => to   : {}", toDir.toAbsolutePath());
+		for (final Path toDir : toDirs) {
+			logger.info("  => to   : {}", toDir.toAbsolutePath());
+		}
 
 		final long startDate = System.currentTimeMillis();
 
-		new FolderSync().sync(fromDir, toDir);
+		final Map<Path, SyncReport> reports;
+		if (toDirs.size() == 1) {
+			reports = Collections.singletonMap(toDirs.get(0), synchronizer.getDestinations().get(0).sync());
+		} else {
+			reports = synchronizer.sync();
+		}
 
 		final SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss:SSS");
 		format.setTimeZone(TimeZone.getTimeZone("GMT"));
 
 		logger.info("Finished synchronizing folders in {} secs", format.format(System.currentTimeMillis() - startDate));
+		for (final Map.Entry<Path, SyncReport> report : reports.entrySet()) {
+			logger.info("  => {} : {}", report.getKey().toAbsolutePath(), report.getValue());
+		}
+
+		if (collectGarbage && dedupCopyEngine != null && toDirs.size() == 1) {
+			try {
+				logger.info("Freed {} byte(s) of unused chunks", dedupCopyEngine.collectGarbage(toDirs));
+			} catch (final IOException e) {
+				logger.warn("Failed to collect unused chunks of " + storeDir.toAbsolutePath(), e);
+			}
+		}
 	}
 }
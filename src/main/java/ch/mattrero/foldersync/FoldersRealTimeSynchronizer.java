@@ -16,12 +16,14 @@
  */
 package ch.mattrero.foldersync;
 
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -32,30 +34,133 @@ import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.ToIntFunction;
+
+import javax.management.JMException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Watches a source tree and replays its changes into one backup folder, or
+ * into several (see {@link FanOutSynchronizer}) with a single watch service.
+ * Each backup then gets its own coalescer and dispatcher, so that a slow one
+ * piles up its own events without delaying the others.
+ */
 public class FoldersRealTimeSynchronizer extends Thread implements IRealTimeSynchronizer {
 
 	final Logger logger = LoggerFactory.getLogger(FoldersRealTimeSynchronizer.class);
 
+	/** The synchronizer of the (first) backup */
 	private final FoldersSynchronizer foldersSynchronizer;
 
+	/** The synchronizer of every backup */
+	private final List<FoldersSynchronizer> synchronizers;
+
+	private final FanOutSynchronizer fanOutSynchronizer;
+
+	public static final long DEFAULT_QUIET_PERIOD = 200;
+	public static final long DEFAULT_MAX_DELAY = 2000;
+
+	public static final int DEFAULT_WORKER_THREADS = 4;
+	public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+	public static final long SHUTDOWN_TIMEOUT = 60000;
+
 	private final WatchService watchService;
 	private final Map<WatchKey, Path> watchKeys;
+	private final Map<Path, WatchKey> watchedDirs;
+
+	private volatile List<Destination> destinations;
+
+	private final RealTimeMetrics realTimeMetrics;
+
+	private long quietPeriod = DEFAULT_QUIET_PERIOD;
+	private long maxDelay = DEFAULT_MAX_DELAY;
+
+	private int workerThreads = DEFAULT_WORKER_THREADS;
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
 
 	private volatile boolean running;
+	/** Also stops the initial sync at its next entry */
+	private volatile boolean shutdownRequested;
+
+	private final CompletableFuture<Void> ready;
+	private final CompletableFuture<Void> synced;
+
+	/** Released once the initial sync is over */
+	private final CountDownLatch seeded;
 
 	public FoldersRealTimeSynchronizer(final FoldersSynchronizer foldersSynchronizer) throws IOException {
-		this.watchKeys = new HashMap<WatchKey, Path>();
+		this(Collections.singletonList(foldersSynchronizer), null);
+	}
+
+	public FoldersRealTimeSynchronizer(final FanOutSynchronizer fanOutSynchronizer) throws IOException {
+		this(fanOutSynchronizer.getDestinations(), fanOutSynchronizer);
+	}
+
+	private FoldersRealTimeSynchronizer(final List<FoldersSynchronizer> synchronizers,
+			final FanOutSynchronizer fanOutSynchronizer) throws IOException {
+		this.watchKeys = new ConcurrentHashMap<WatchKey, Path>();
+		this.watchedDirs = new ConcurrentHashMap<Path, WatchKey>();
 		this.watchService = FileSystems.getDefault().newWatchService();
 
-		this.foldersSynchronizer = foldersSynchronizer;
+		this.foldersSynchronizer = synchronizers.get(0);
+		this.synchronizers = synchronizers;
+		this.fanOutSynchronizer = fanOutSynchronizer;
 
 		this.running = false;
+		this.ready = new CompletableFuture<Void>();
+		this.synced = new CompletableFuture<Void>();
+		this.seeded = new CountDownLatch(1);
+
+		this.realTimeMetrics = new RealTimeMetrics(watchKeys::size, () -> sum(d -> d.coalescer.getPendingCount()),
+				() -> sum(d -> d.dispatcher.getQueueDepth()));
+	}
+
+	private int sum(final ToIntFunction<Destination> gauge) {
+		final List<Destination> current = destinations;
+		return current == null ? 0 : current.stream().mapToInt(gauge).sum();
+	}
+
+	public RealTimeMetrics getRealTimeMetrics() {
+		return realTimeMetrics;
+	}
+
+	/**
+	 * Metrics of the (first) backup, see {@link FoldersSynchronizer#getMetrics()}
+	 * for the others.
+	 */
+	public SyncMetrics getMetrics() {
+		return foldersSynchronizer.getMetrics();
+	}
+
+	/**
+	 * Events for a same path are merged until it stays quiet for the given
+	 * period (but never held more than the max delay), a quiet period of 0
+	 * handles every event as it comes. To be called before starting.
+	 */
+	public void setCoalescing(final long quietPeriodMillis, final long maxDelayMillis) {
+		this.quietPeriod = quietPeriodMillis;
+		this.maxDelay = maxDelayMillis;
+	}
+
+	/**
+	 * Events are synced by the given number of worker threads, events of a
+	 * same directory being kept in order. Past queueCapacity events waiting
+	 * for a worker (or pending in the coalescer), the directory of a new event
+	 * is merged as a whole instead, so that nothing ever blocks the watch
+	 * loop. To be called before starting.
+	 */
+	public void setDispatching(final int workerThreads, final int queueCapacity) {
+		this.workerThreads = workerThreads;
+		this.queueCapacity = queueCapacity;
 	}
 
 	public void registerTree(final Path sourceSubDir) throws IOException {
@@ -63,12 +168,85 @@ public class FoldersRealTimeSynchronizer extends Thread implements IRealTimeSync
 			@Override
 			public FileVisitResult preVisitDirectory(final Path directory, final BasicFileAttributes attrs)
 					throws IOException {
-				watchKeys.put(directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), directory);
+				if (!directory.equals(sourceSubDir) && foldersSynchronizer.isExcluded(directory)) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				register(directory);
+				remember(directory, attrs);
 				return FileVisitResult.CONTINUE;
 			}
 		});
 	}
 
+	private void register(final Path directory) throws IOException {
+		final WatchKey key = directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+		watchKeys.put(key, directory);
+		watchedDirs.put(directory, key);
+	}
+
+	/**
+	 * Registers a directory met while syncing (before it gets listed), unless
+	 * already watched.
+	 */
+	void registerDirectory(final Path directory) {
+		if (watchedDirs.containsKey(directory)) {
+			return;
+		}
+
+		try {
+			final BasicFileAttributes attributes = Files.readAttributes(directory, BasicFileAttributes.class);
+			register(directory);
+			remember(directory, attributes);
+			if (directory.equals(foldersSynchronizer.getSourceDir())) {
+				ready.complete(null);
+			}
+		} catch (final IOException e) {
+			logger.warn("Failed to watch directory " + directory, e);
+		} catch (final ClosedWatchServiceException e) {
+			// Shutting down : the directory still gets synced
+		}
+	}
+
+	private void remember(final Path directory, final BasicFileAttributes attributes) {
+		final List<Destination> current = destinations;
+		if (current != null) {
+			for (final Destination destination : current) {
+				destination.overflowRecovery.remember(directory, attributes.lastModifiedTime());
+			}
+		}
+		for (final FoldersSynchronizer synchronizer : synchronizers) {
+			if (synchronizer.getMoveDetector() != null) {
+				synchronizer.getMoveDetector().remember(directory, attributes);
+			}
+		}
+	}
+
+	/**
+	 * Replays a move as a rename of the backup, then merges the moved
+	 * directory (registering it under its new path). Falls back to a deletion
+	 * and a creation if the backup cannot be renamed.
+	 */
+	void handleMove(final FoldersSynchronizer foldersSynchronizer, final Path fromPath, final Path toPath) {
+		if (foldersSynchronizer.isExcluded(fromPath) || foldersSynchronizer.isExcluded(toPath)
+				|| !foldersSynchronizer.syncMoved(fromPath, toPath)) {
+			handleEvent(foldersSynchronizer, fromPath, ENTRY_DELETE);
+			handleEvent(foldersSynchronizer, toPath, ENTRY_CREATE);
+			return;
+		}
+
+		foldersSynchronizer.getMetrics().applied(SyncStatus.MOVED, true);
+
+		if (Files.isDirectory(toPath)) {
+			watchedDirs.keySet().removeIf(directory -> directory.startsWith(fromPath));
+			foldersSynchronizer.getMoveDetector().forget(fromPath);
+			foldersSynchronizer.syncTree(toPath);
+		}
+	}
+
+	void handleEvent(final FoldersSynchronizer foldersSynchronizer, final Path fromPath, final Kind<?> kind) {
+		foldersSynchronizer.syncEvent(fromPath, kind);
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	public void run() {
@@ -77,22 +255,32 @@ public class FoldersRealTimeSynchronizer extends Thread implements IRealTimeSync
 		Kind<?> kind;
 		Path fromPath;
 
-		try {
-			foldersSynchronizer.sync();
-			registerTree(foldersSynchronizer.getSourceDir());
-		} catch (final IOException e) {
-			logger.warn(
-					"Failed to sync folders " + foldersSynchronizer.getSourceDir() + " => "
-							+ foldersSynchronizer.getBackupDir(), e);
+		final List<Destination> destinations = new ArrayList<Destination>(synchronizers.size());
+		for (final FoldersSynchronizer synchronizer : synchronizers) {
+			destinations.add(new Destination(synchronizer));
+		}
+		this.destinations = destinations;
+
+		registerMBeans();
+
+		running = !shutdownRequested;
+		for (final Destination destination : destinations) {
+			destination.coalescer.start();
 		}
 
-		running = true;
+		// The events are drained while the initial sync runs, then synced
+		final Thread seed = new Thread(this::seed, "folder-sync-seed");
+		seed.setDaemon(true);
+		seed.start();
 
 		while (running) {
 			try {
 				key = watchService.take();
 			} catch (final InterruptedException e) {
 				continue;
+			} catch (final ClosedWatchServiceException e) {
+				// Closed by shutdownNow
+				break;
 			}
 
 			parentDir = watchKeys.get(key);
@@ -107,29 +295,26 @@ public class FoldersRealTimeSynchronizer extends Thread implements IRealTimeSync
 
 				if (kind != OVERFLOW) {
 					fromPath = parentDir.resolve(((WatchEvent<Path>) event).context());
-					try {
-						if (kind == ENTRY_DELETE) {
-							foldersSynchronizer.syncDeleted(fromPath);
-						} else if (kind == ENTRY_CREATE) {
-							foldersSynchronizer.syncAdded(fromPath);
-							if (Files.isDirectory(fromPath)) {
-								registerTree(fromPath);
-							}
-						} else if (!Files.isDirectory(fromPath)) { // Nothing to do if we received MODIFIED on a directory
-							foldersSynchronizer.syncModified(fromPath);
-						}
-					} catch (final IOException e) {
-						logger.warn("Failed to sync item {}" + fromPath.toAbsolutePath(), e);
+					for (final Destination destination : destinations) {
+						destination.coalescer.submit(fromPath, kind);
 					}
 				} else {
 					logger.warn("Overflow for key " + parentDir.toAbsolutePath());
-					foldersSynchronizer.syncTree(parentDir);
+					realTimeMetrics.overflowed();
+					// Reported for every key at once : collapsed into one rescan
+					for (final Destination destination : destinations) {
+						destination.overflowRecovery.overflowed();
+					}
 				}
 			}
 
 			// reset key and remove from set if directory no longer accessible
 			if (!key.reset()) {
 				watchKeys.remove(key);
+				watchedDirs.remove(parentDir, key);
+				for (final Destination destination : destinations) {
+					destination.overflowRecovery.forget(parentDir);
+				}
 
 				if (watchKeys.isEmpty()) {
 					running = false;
@@ -138,11 +323,121 @@ public class FoldersRealTimeSynchronizer extends Thread implements IRealTimeSync
 			}
 		}
 
+		running = false;
+
+		try {
+			seed.join();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		for (final Destination destination : destinations) {
+			destination.coalescer.shutdown();
+		}
+
+		// The backups drain their queues concurrently, each within the timeout
+		final long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+		for (final Destination destination : destinations) {
+			try {
+				destination.dispatcher.shutdown(Math.max(0, deadline - System.currentTimeMillis()));
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
 		try {
 			watchService.close();
 		} catch (final IOException e) {
 		}
 
+		for (final FoldersSynchronizer synchronizer : synchronizers) {
+			synchronizer.saveManifest();
+			synchronizer.saveDigests();
+		}
+
+		unregisterMBeans();
+	}
+
+	/**
+	 * The initial sync, each directory being registered by the sync itself
+	 * right before being listed, so that no change can slip in between.
+	 */
+	private void seed() {
+		try {
+			if (fanOutSynchronizer != null) {
+				fanOutSynchronizer.setDirectoryListener(this::registerDirectory);
+				fanOutSynchronizer.sync(() -> shutdownRequested);
+			} else {
+				foldersSynchronizer.setDirectoryListener(this::registerDirectory);
+				foldersSynchronizer.sync(() -> shutdownRequested);
+			}
+			if (shutdownRequested) {
+				ready.cancel(false);
+				synced.cancel(false);
+			} else {
+				ready.complete(null);
+				synced.complete(null);
+			}
+		} catch (final RuntimeException e) {
+			logger.warn("Failed to sync " + foldersSynchronizer.getSourceDir() + ", stopping", e);
+			ready.completeExceptionally(e);
+			synced.completeExceptionally(e);
+			running = false;
+			try {
+				watchService.close();
+			} catch (final IOException e2) {
+				logger.debug("Failed to close the watch service", e2);
+			}
+		} finally {
+			seeded.countDown();
+		}
+	}
+
+	/**
+	 * A sync task which waits for the initial sync first, the events it
+	 * could overlap with being replayed after it.
+	 */
+	private Runnable afterSeed(final Runnable task) {
+		return () -> {
+			try {
+				seeded.await();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			task.run();
+		};
+	}
+
+	private void registerMBeans() {
+		final String name = foldersSynchronizer.getSourceDir().toAbsolutePath().toString();
+		try {
+			for (final FoldersSynchronizer synchronizer : synchronizers) {
+				// Named after the source alone when it has a single backup
+				synchronizer.getMetrics().register(synchronizers.size() == 1 ? name : name + " => "
+						+ synchronizer.getBackupDir().toAbsolutePath());
+			}
+			realTimeMetrics.register(name);
+			if (foldersSynchronizer.getIoScheduler() != null) {
+				foldersSynchronizer.getIoScheduler().register(name);
+			}
+		} catch (final JMException e) {
+			logger.warn("Failed to register metrics for " + name, e);
+		}
+	}
+
+	private void unregisterMBeans() {
+		try {
+			for (final FoldersSynchronizer synchronizer : synchronizers) {
+				synchronizer.getMetrics().unregister();
+			}
+			realTimeMetrics.unregister();
+			if (foldersSynchronizer.getIoScheduler() != null) {
+				foldersSynchronizer.getIoScheduler().unregister();
+			}
+		} catch (final JMException e) {
+			logger.debug("Failed to unregister metrics", e);
+		}
 	}
 
 	@Override
@@ -150,15 +445,81 @@ public class FoldersRealTimeSynchronizer extends Thread implements IRealTimeSync
 		return running;
 	}
 
+	/**
+	 * Completes once the source root is watched : every change from then on
+	 * reaches the backup, either through an event or through the initial sync
+	 * still going on.
+	 */
+	@Override
+	public CompletableFuture<Void> whenReady() {
+		return ready;
+	}
+
+	@Override
+	public CompletableFuture<Void> whenSynced() {
+		return synced;
+	}
+
+	/**
+	 * Stops watching, the initial sync (if still going on) at its next entry,
+	 * then lets the queued changes be synced (within the shutdown timeout).
+	 */
 	@Override
 	public void shutdownNow() throws InterruptedException {
+		shutdownRequested = true;
 		running = false;
 		try {
-			this.join();
+			// Wakes up the watch loop waiting for the next event
 			watchService.close();
-		} catch (final InterruptedException e) {
-			throw e;
 		} catch (final IOException e) {
+			logger.warn("Failed to close the watch service", e);
+		}
+		this.join();
+	}
+
+	/**
+	 * The event pipeline of one backup : its events are coalesced, then
+	 * synced by its own workers.
+	 */
+	private class Destination {
+
+		private final EventDispatcher dispatcher;
+		private final EventCoalescer coalescer;
+		private final OverflowRecovery overflowRecovery;
+
+		Destination(final FoldersSynchronizer synchronizer) {
+			final EventDispatcher dispatcher = new EventDispatcher(workerThreads, queueCapacity);
+			final OverflowRecovery overflowRecovery = new OverflowRecovery(synchronizer, (directory,
+					task) -> dispatcher.dispatch(directory, afterSeed(task)));
+			this.dispatcher = dispatcher;
+			this.overflowRecovery = overflowRecovery;
+			// The I/O of real-time changes goes ahead of bulk work, such as overflow recoveries
+			this.coalescer = new EventCoalescer(quietPeriod, maxDelay, (path, eventKind, firstSeen) -> {
+				final Runnable task = afterSeed(() -> IoScheduler.runWith(IoScheduler.Priority.REAL_TIME, () -> {
+					handleEvent(synchronizer, path, eventKind);
+					realTimeMetrics.synced(firstSeen);
+				}));
+				// The entries written into a new directory wait for its copy
+				final boolean offered = eventKind == ENTRY_CREATE && Files.isDirectory(path, NOFOLLOW_LINKS)
+						? dispatcher.offerTree(path, task) : dispatcher.offer(path, task);
+				if (!offered) {
+					// Too far behind : the directory gets merged as a whole instead
+					overflowRecovery.markDirty(path.getParent());
+				}
+			});
+			coalescer.setOverflowHandler(queueCapacity, path -> overflowRecovery.markDirty(path.getParent()));
+			if (synchronizer.getMoveDetector() != null) {
+				coalescer.setMoveHandler(synchronizer.getMoveDetector(), (from, to) -> {
+					final Runnable task = afterSeed(() -> IoScheduler.runWith(IoScheduler.Priority.REAL_TIME,
+							() -> handleMove(synchronizer, from, to)));
+					final boolean offered = Files.isDirectory(to, NOFOLLOW_LINKS) ? dispatcher.offerTree(to, task)
+							: dispatcher.offer(to, task);
+					if (!offered) {
+						overflowRecovery.markDirty(from.getParent());
+						overflowRecovery.markDirty(to.getParent());
+					}
+				});
+			}
 		}
 	}
 }
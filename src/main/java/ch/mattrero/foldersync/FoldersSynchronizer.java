@@ -19,18 +19,40 @@ package ch.mattrero.foldersync;
 import static ch.mattrero.foldersync.SyncStatus.ADDED;
 import static ch.mattrero.foldersync.SyncStatus.DELETED;
 import static ch.mattrero.foldersync.SyncStatus.MODIFIED;
+import static ch.mattrero.foldersync.SyncStatus.MOVED;
 import static ch.mattrero.foldersync.SyncStatus.SYNCHRONIZED;
-import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
-import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static ch.mattrero.foldersync.SyncStatus.TOUCHED;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
 
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent.Kind;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
@@ -40,117 +62,698 @@ public class FoldersSynchronizer {
 
 	final Logger logger = LoggerFactory.getLogger(FoldersSynchronizer.class);
 
+	/** Unmatched entries of a directory held back for move detection, per side */
+	static final int MAX_MOVE_CANDIDATES = 10000;
+
 	private final Path sourceDir;
 	private final Path backupDir;
 
-	private final List<String> ignored;
+	private final SyncFilter filter;
 
-	public FoldersSynchronizer(final Path sourceDir, final Path backupDir, List<String> ignored) {
+	private int parallelism = 1;
+
+	private BackupManifest manifest;
+
+	private DigestStore digestStore;
+
+	private DeltaTransfer deltaTransfer;
+
+	private ICopyEngine copyEngine = new ChannelCopyEngine();
+
+	private Consumer<Path> directoryListener;
+
+	private MoveDetector moveDetector;
+
+	private long spillThreshold = SortedNames.DEFAULT_MEMORY_LIMIT;
+
+	private IoScheduler ioScheduler;
+
+	private SyncJournal journal;
+
+	private final SyncMetrics metrics = new SyncMetrics();
+
+	private static final BooleanSupplier NEVER = () -> false;
+
+	/** Polled between entries by the sync in progress */
+	private volatile BooleanSupplier cancelled = NEVER;
+
+	private volatile SyncProgressTracker progress;
+
+	public FoldersSynchronizer(final Path sourceDir, final Path backupDir, final SyncFilter filter) {
 		this.sourceDir = sourceDir;
 		this.backupDir = backupDir;
-		this.ignored = ignored;
+		this.filter = filter;
+	}
+
+	public FoldersSynchronizer(final Path sourceDir, final Path backupDir, List<String> ignored) {
+		this(sourceDir, backupDir, SyncFilter.ofNames(ignored));
 	}
 	
 	public FoldersSynchronizer(final Path sourceDir, final Path backupDir) {
-		this.sourceDir = sourceDir;
-		this.backupDir = backupDir;
-		this.ignored = new ArrayList<String>();
+		this(sourceDir, backupDir, SyncFilter.NONE);
+	}
+
+	/**
+	 * @return what this sync did
+	 */
+	public SyncReport sync() {
+		return sync(null, false, NEVER);
+	}
+
+	/**
+	 * Like {@link #sync()}, stopping at the next entry once the given
+	 * condition holds.
+	 */
+	SyncReport sync(final BooleanSupplier cancelled) {
+		return sync(null, false, cancelled);
+	}
+
+	/**
+	 * Syncs on the given executor, without an estimate pass (the totals of
+	 * the progress are unknown), see
+	 * {@link #syncAsync(Executor, Consumer, boolean)}.
+	 */
+	public CompletableFuture<SyncReport> syncAsync(final Executor executor,
+			final Consumer<SyncProgress> progressListener) {
+		return syncAsync(executor, progressListener, false);
+	}
+
+	/**
+	 * Syncs on the given executor. Cancelling the returned future stops the
+	 * sync at the next entry (the copy in progress completes), the journal
+	 * if any being kept for the next run to resume. The progress listener (if
+	 * any) is called from the sync threads, at most every half second and
+	 * once at the end.
+	 *
+	 * @param estimate
+	 *            whether to walk the tree first for the totals of the
+	 *            progress, and so its remaining time, which costs a listing of
+	 *            both trees before anything is copied
+	 */
+	public CompletableFuture<SyncReport> syncAsync(final Executor executor,
+			final Consumer<SyncProgress> progressListener, final boolean estimate) {
+		final CompletableFuture<SyncReport> future = new CompletableFuture<SyncReport>();
+
+		executor.execute(() -> {
+			if (future.isDone()) {
+				// Cancelled before starting
+				return;
+			}
+			try {
+				future.complete(sync(progressListener, estimate, future::isCancelled));
+			} catch (final RuntimeException | Error e) {
+				future.completeExceptionally(e);
+			}
+		});
+
+		return future;
 	}
 
-	public void sync() {
-		syncTree(sourceDir);
+	private SyncReport sync(final Consumer<SyncProgress> progressListener, final boolean estimate,
+			final BooleanSupplier cancelled) {
+		openJournal();
+		this.cancelled = cancelled;
+		boolean finished = false;
+
+		try {
+			if (progressListener != null) {
+				progress = new SyncProgressTracker(metrics, progressListener, estimate ? plan().estimate() : null);
+			}
+
+			final SyncReport report;
+			if (parallelism > 1) {
+				final SyncReport before = metrics.report();
+
+				// Directories are merged in parallel as well
+				prepareManifest();
+
+				final ForkJoinPool pool = new ForkJoinPool(parallelism);
+				try {
+					pool.invoke(new SyncTreeTask(sourceDir));
+				} finally {
+					pool.shutdown();
+				}
+
+				saveManifest();
+				saveDigests();
+
+				report = metrics.report().since(before);
+			} else {
+				final SyncPlan plan = plan();
+				report = execute(plan, plan::checkpoint);
+			}
+
+			finished = !Thread.currentThread().isInterrupted() && !isCancelled();
+			if (progress != null) {
+				progress.finished();
+			}
+			return report;
+		} finally {
+			progress = null;
+			this.cancelled = NEVER;
+			closeJournal(finished);
+		}
+	}
+
+	private void openJournal() {
+		if (journal == null) {
+			return;
+		}
+
+		try {
+			journal.open(sourceDir, backupDir);
+			if (journal.isResumed()) {
+				logger.info("Resuming interrupted sync of " + sourceDir + " from journal " + journal.getJournalFile());
+			}
+		} catch (final IOException e) {
+			logger.warn("Failed to open journal " + journal.getJournalFile() + ", syncing without it", e);
+		}
 	}
 
-	private Path resolveBackupItemPath(final Path sourceItemPath) {
+	/**
+	 * Deletes the journal of a complete sync, else keeps it for the next run
+	 * to resume.
+	 */
+	private void closeJournal(final boolean finished) {
+		if (journal == null) {
+			return;
+		}
+
+		try {
+			if (finished) {
+				journal.delete();
+			} else {
+				journal.close();
+			}
+		} catch (final IOException e) {
+			logger.warn("Failed to close journal " + journal.getJournalFile(), e);
+		}
+	}
+
+	/**
+	 * Rescans the real backup tree instead of trusting the manifest (if any),
+	 * then syncs.
+	 */
+	public SyncReport verify() {
+		if (manifest != null) {
+			try {
+				manifest.rebuild(backupDir);
+			} catch (final IOException e) {
+				logger.warn("Failed to rescan backup " + backupDir, e);
+			}
+		}
+
+		return sync();
+	}
+
+	void prepareManifest() {
+		if (manifest == null || manifest.isLoaded()) {
+			return;
+		}
+
+		try {
+			if (manifest.exists()) {
+				manifest.load();
+				return;
+			}
+		} catch (final IOException e) {
+			logger.warn("Failed to load manifest " + manifest.getManifestFile() + ", rescanning backup", e);
+		}
+
+		try {
+			manifest.rebuild(backupDir);
+		} catch (final IOException e) {
+			logger.warn("Failed to rescan backup " + backupDir, e);
+		}
+	}
+
+	public void saveDigests() {
+		if (digestStore == null) {
+			return;
+		}
+
+		try {
+			digestStore.save();
+		} catch (final IOException e) {
+			logger.warn("Failed to save digests", e);
+		}
+	}
+
+	public void saveManifest() {
+		if (manifest == null || !manifest.isLoaded()) {
+			return;
+		}
+
+		try {
+			manifest.save();
+		} catch (final IOException e) {
+			logger.warn("Failed to save manifest " + manifest.getManifestFile(), e);
+		}
+	}
+
+	/**
+	 * Whether the sync in progress was cancelled, the remaining entries
+	 * being left for the next one.
+	 */
+	boolean isCancelled() {
+		return cancelled.getAsBoolean();
+	}
+
+	Path resolveBackupItemPath(final Path sourceItemPath) {
 		return backupDir.resolve(sourceDir.relativize(sourceItemPath));
 	}
 
 	void syncTree(final Path sourceSubDir) {
+		for (final Path subDir : mergeTree(sourceSubDir)) {
+			syncTree(subDir);
+		}
+	}
+
+	/**
+	 * Merges the direct content of a source directory into its backup and
+	 * returns the sub-directories that still have to be merged.
+	 */
+	List<Path> mergeTree(final Path sourceSubDir) {
+		final List<Path> subDirs = new ArrayList<Path>();
+
+		final Iterator<SyncOperation> operations = planTree(sourceSubDir, subDirs);
+		while (operations.hasNext()) {
+			final SyncOperation operation = operations.next();
+			if (apply(operation) && operation.getStatus() == MOVED && operation.isDirectory()) {
+				subDirs.add(operation.getSourceItem());
+			}
+		}
 
-		SyncStatus status = null;
-		BasicFileAttributes fromAttributes = null;
-		BasicFileAttributes toAttributes = null;
+		return subDirs;
+	}
 
+	/**
+	 * Lazily plans the whole sync, directory by directory, without changing
+	 * anything.
+	 */
+	public SyncPlan plan() {
+		prepareManifest();
+		return new SyncPlan(this, sourceDir, journal != null && journal.isOpen() ? journal : null);
+	}
 
-		try {
-			Iterator<Path> sourceIterator = Files.list(sourceSubDir).sorted().collect(Collectors.toList()).iterator();
-			Iterator<Path> backupIterator = Files
-					.list(resolveBackupItemPath(sourceSubDir))
-					.sorted()
-					.collect(Collectors.toList())
-					.iterator();
+	/**
+	 * Applies the operations of a plan (see {@link SyncExecutor}) with the
+	 * configured parallelism.
+	 */
+	public SyncReport execute(final Iterator<SyncOperation> plan) {
+		return execute(plan, () -> {
+		});
+	}
 
-			Path sourceItem = (sourceIterator.hasNext() ? sourceIterator.next() : null);
-			Path backupItem = (backupIterator.hasNext() ? backupIterator.next() : null);
+	private SyncReport execute(final Iterator<SyncOperation> plan, final Runnable checkpoint) {
+		final SyncReport before = metrics.report();
 
-			while (sourceItem != null || backupItem != null) {
+		new SyncExecutor(this, parallelism).execute(plan, checkpoint);
 
+		saveManifest();
+		saveDigests();
 
-				if (sourceItem == null) {
-					status = DELETED;
-				} else if (ignored.contains(sourceItem.getFileName().toString())) {
-					sourceItem = (sourceIterator.hasNext() ? sourceIterator.next() : null);
-					continue;
-				} else if (backupItem == null) {
-					status = ADDED;
-				} else if (sourceDir.relativize(sourceItem).compareTo(backupDir.relativize(backupItem)) < 0) {
-					status = ADDED;
-				} else if (sourceDir.relativize(sourceItem).compareTo(backupDir.relativize(backupItem)) > 0) {
-					status = DELETED;
-				} else if (Files.isDirectory(sourceItem) != Files.isDirectory(backupItem)) {
-					status = MODIFIED;
-				} else if (Files.isDirectory(sourceItem)) {
-					status = SYNCHRONIZED;
-				} else {
-					fromAttributes = Files.readAttributes(sourceItem, BasicFileAttributes.class);
-					toAttributes = Files.readAttributes(backupItem, BasicFileAttributes.class);
-
-					if (Math.abs(fromAttributes.lastModifiedTime().toMillis()
-							- toAttributes.lastModifiedTime().toMillis()) > 0) {
-						status = MODIFIED;
-					} else if (fromAttributes.size() != toAttributes.size()) {
-						status = MODIFIED;
-					} else {
-						status = SYNCHRONIZED;
-					}
+		return metrics.report().since(before);
+	}
+
+	/**
+	 * Compares the direct content of a source directory with its backup and
+	 * returns the operations to apply, one entry at a time. The
+	 * sub-directories that still have to be compared are added to the given
+	 * list as they are met.
+	 */
+	Iterator<SyncOperation> planTree(final Path sourceSubDir, final List<Path> subDirs) {
+		return new DirectoryMerge(sourceSubDir, subDirs);
+	}
+
+	/**
+	 * Applies an operation planned by {@link #planTree(Path, List)}, a failed
+	 * move falling back to a deletion and a copy.
+	 */
+	boolean apply(final SyncOperation operation) {
+		final boolean applied = applyOperation(operation);
+		metrics.applied(operation.getStatus(), applied);
+		if (!applied && journal != null) {
+			journal.failed(operation.getSourceItem());
+		}
+		final SyncProgressTracker tracker = progress;
+		if (tracker != null) {
+			tracker.applied();
+		}
+		return applied;
+	}
+
+	private boolean applyOperation(final SyncOperation operation) {
+		final Path sourceItem = operation.getSourceItem();
+		final BasicFileAttributes sourceAttributes = operation.getSourceAttributes();
+		final BasicFileAttributes backupAttributes = operation.getBackupAttributes();
+
+		switch (operation.getStatus()) {
+			case ADDED:
+				return syncAdded(sourceItem, sourceAttributes);
+			case DELETED:
+				return syncDeleted(sourceItem, backupAttributes);
+			case MODIFIED:
+				return syncModified(sourceItem, sourceAttributes, backupAttributes);
+			case MOVED:
+				if (syncMoved(operation.getMovedFrom(), sourceItem)) {
+					return true;
 				}
+				syncDeleted(operation.getMovedFrom(), backupAttributes);
+				syncAdded(sourceItem, sourceAttributes);
+				return false;
+			case TOUCHED:
+				return syncTouched(sourceItem, sourceAttributes);
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * Pairs as moves the deleted entries which look like one of the added
+	 * entries renamed (and removes both from the lists) : files of same size,
+	 * modification date and content, directories sharing
+	 * most of their entry names. The moved directories are then merged as any
+	 * other, which fixes whatever differs.
+	 */
+	private List<SyncOperation> detectMoves(final Map<Path, BasicFileAttributes> addedItems,
+			final Map<Path, BasicFileAttributes> deletedItems) {
+		final List<SyncOperation> moves = new ArrayList<SyncOperation>();
+		if (addedItems.isEmpty() || deletedItems.isEmpty()) {
+			return moves;
+		}
 
-				switch (status) {
-					case ADDED:
-						syncAdded(sourceItem);
-						sourceItem = (sourceIterator.hasNext() ? sourceIterator.next() : null);
-						break;
-					case DELETED:
-						syncDeleted(sourceDir.resolve(backupDir.relativize(backupItem)));
-						backupItem = (backupIterator.hasNext() ? backupIterator.next() : null);
-						break;
-					case MODIFIED:
-						syncModified(sourceItem);
-					case SYNCHRONIZED:
-					default:
-						if (Files.isDirectory(sourceItem)) {
-							syncTree(sourceItem);
-						}
-						sourceItem = (sourceIterator.hasNext() ? sourceIterator.next() : null);
-						backupItem = (backupIterator.hasNext() ? backupIterator.next() : null);
-						break;
+		final Map<Object, Deque<Path>> deletedFiles = new HashMap<Object, Deque<Path>>();
+		final Map<Path, Set<String>> deletedDirs = new HashMap<Path, Set<String>>();
+
+		for (final Map.Entry<Path, BasicFileAttributes> deleted : deletedItems.entrySet()) {
+			final Path deletedItem = deleted.getKey();
+			final BasicFileAttributes attributes = deleted.getValue();
+
+			if (attributes.isDirectory()) {
+				deletedDirs.put(deletedItem, null);
+			} else {
+				final Object key = moveDetector.fileKey(attributes);
+				if (key != null) {
+					deletedFiles.computeIfAbsent(key, k -> new ArrayDeque<Path>()).add(deletedItem);
 				}
 			}
+		}
 
-		} catch (final IOException | SecurityException e) {
-			logger.debug("Failed to sync tree " + sourceSubDir, e);
+		final Iterator<Map.Entry<Path, BasicFileAttributes>> iterator = addedItems.entrySet().iterator();
+		while (iterator.hasNext()) {
+			final Map.Entry<Path, BasicFileAttributes> added = iterator.next();
+			final Path addedItem = added.getKey();
+			final BasicFileAttributes attributes = added.getValue();
+			final Path movedItem;
+			try {
+				if (attributes.isDirectory()) {
+					movedItem = findMovedDirectory(addedItem, deletedDirs);
+				} else {
+					movedItem = findMovedFile(addedItem, attributes,
+							deletedFiles.get(moveDetector.fileKey(attributes)), deletedItems);
+				}
+			} catch (final IOException e) {
+				continue;
+			}
+
+			if (movedItem == null) {
+				continue;
+			}
+
+			iterator.remove();
+			deletedDirs.remove(movedItem);
+			moves.add(new SyncOperation(MOVED, addedItem, movedItem, attributes, deletedItems.remove(movedItem),
+					this::isExcluded));
+		}
+
+		return moves;
+	}
+
+	private Path findMovedFile(final Path addedItem, final BasicFileAttributes attributes,
+			final Deque<Path> candidates, final Map<Path, BasicFileAttributes> deletedItems) throws IOException {
+		if (candidates == null) {
+			return null;
+		}
+
+		final Iterator<Path> iterator = candidates.iterator();
+		while (iterator.hasNext()) {
+			final Path candidate = iterator.next();
+			if (hasSameContent(addedItem, attributes, resolveBackupItemPath(candidate), deletedItems.get(candidate))) {
+				iterator.remove();
+				return candidate;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Tells whether a source file has the same content as a backup file, by
+	 * digest in checksum mode, else by reading both. Size and modification date
+	 * alone cannot tell a moved file from a new one stamped alike.
+	 */
+	private boolean hasSameContent(final Path sourceItem, final BasicFileAttributes sourceAttributes,
+			final Path backupItem, final BasicFileAttributes backupAttributes) throws IOException {
+		if (sourceAttributes.size() != backupAttributes.size()) {
+			return false;
+		} else if (digestStore != null) {
+			return Arrays.equals(digestStore.digest(sourceItem, sourceAttributes),
+					digestStore.digest(backupItem, backupAttributes));
+		} else {
+			return FileUtils.contentEquals(sourceItem.toFile(), backupItem.toFile());
+		}
+	}
+
+	private Path findMovedDirectory(final Path addedItem, final Map<Path, Set<String>> candidates)
+			throws IOException {
+		if (candidates.isEmpty()) {
+			return null;
+		}
+
+		final Set<String> names = namesOf(addedItem);
+		if (names.isEmpty()) {
+			return null;
+		}
+
+		Path bestCandidate = null;
+		double bestScore = 0.5;
+		for (final Map.Entry<Path, Set<String>> candidate : candidates.entrySet()) {
+			if (candidate.getValue() == null) {
+				candidate.setValue(backupNamesOf(resolveBackupItemPath(candidate.getKey())));
+			}
+
+			final Set<String> common = new HashSet<String>(names);
+			common.retainAll(candidate.getValue());
+			final double score = (double) common.size() / (names.size() + candidate.getValue().size() - common.size());
+			if (score >= bestScore) {
+				bestScore = score;
+				bestCandidate = candidate.getKey();
+			}
+		}
+
+		return bestCandidate;
+	}
+
+	private static Set<String> namesOf(final Path directory) throws IOException {
+		final Set<String> names = new HashSet<String>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (final Path entry : stream) {
+				names.add(entry.getFileName().toString());
+			}
+		}
+		return names;
+	}
+
+	private Set<String> backupNamesOf(final Path backupSubDir) throws IOException {
+		if (manifest == null) {
+			return namesOf(backupSubDir);
+		}
+		return new HashSet<String>(manifest.list(backupDir.relativize(backupSubDir)).keySet());
+	}
+
+	/**
+	 * Compares a source entry with its existing backup, both being described
+	 * by the given attributes.
+	 */
+	SyncStatus compare(final Path sourceItem, final BasicFileAttributes fromAttributes,
+			final BasicFileAttributes toAttributes) throws IOException {
+		if (fromAttributes.isDirectory() != toAttributes.isDirectory()) {
+			return MODIFIED;
+		} else if (fromAttributes.isDirectory()) {
+			return SYNCHRONIZED;
+		} else if (digestStore != null && !(copyEngine instanceof DedupCopyEngine)) {
+			return compareContent(sourceItem, fromAttributes, resolveBackupItemPath(sourceItem), toAttributes);
+		} else if (Math.abs(fromAttributes.lastModifiedTime().toMillis()
+				- toAttributes.lastModifiedTime().toMillis()) > 0) {
+			return MODIFIED;
+		} else if (fromAttributes.size() != toAttributes.size()) {
+			return MODIFIED;
+		} else {
+			return SYNCHRONIZED;
+		}
+	}
+
+	private SyncStatus compareContent(final Path sourceItem, final BasicFileAttributes fromAttributes,
+			final Path backupItem, final BasicFileAttributes toAttributes) throws IOException {
+
+		if (fromAttributes.size() != toAttributes.size()) {
+			return MODIFIED;
+		}
+
+		if (!Arrays.equals(digestStore.digest(sourceItem, fromAttributes), digestStore.digest(backupItem, toAttributes))) {
+			return MODIFIED;
+		}
+
+		// Same content : only align the modification date so that the next
+		// comparison (by date or by cached digest) stays cheap
+		if (!fromAttributes.lastModifiedTime().equals(toAttributes.lastModifiedTime())) {
+			return TOUCHED;
+		}
+
+		return SYNCHRONIZED;
+	}
+
+	private boolean isExcluded(final Path item, final Path rootDir) throws IOException {
+		if (filter.isEmpty()) {
+			return false;
+		}
+
+		BasicFileAttributes attributes = null;
+		if (filter.needsAttributes()) {
+			attributes = rootDir == sourceDir ? Files.readAttributes(item, BasicFileAttributes.class)
+					: readBackupAttributes(item);
+		}
+		return filter.isExcluded(rootDir.relativize(item), attributes);
+	}
+
+	/**
+	 * Whether the given source item is excluded by the filter, judging by the
+	 * backup item if the source one no longer exists.
+	 */
+	public boolean isExcluded(final Path sourceItem) {
+		if (filter.isEmpty()) {
+			return false;
+		}
+
+		try {
+			return isExcluded(sourceItem, sourceDir);
+		} catch (final IOException e) {
+			try {
+				return isExcluded(resolveBackupItemPath(sourceItem), backupDir);
+			} catch (final IOException e2) {
+				return filter.isExcluded(sourceDir.relativize(sourceItem), null);
+			}
+		}
+	}
+
+	boolean isExcluded(final Path sourceItem, final BasicFileAttributes attributes) {
+		if (filter.isEmpty()) {
+			return false;
+		}
+		return filter.isExcluded(sourceDir.relativize(sourceItem), attributes);
+	}
+
+	SortedNames listBackupNames(final Path backupSubDir) throws IOException {
+		if (manifest == null) {
+			return SortedNames.list(backupSubDir, spillThreshold);
+		}
+
+		return SortedNames.of(manifest.list(backupDir.relativize(backupSubDir)).keySet(), spillThreshold);
+	}
+
+	private BasicFileAttributes readBackupAttributes(final Path backupItem) throws IOException {
+		if (manifest != null) {
+			final BasicFileAttributes attributes = manifest.get(backupDir.relativize(backupItem));
+			if (attributes != null) {
+				return attributes;
+			}
+		}
+		if (copyEngine instanceof DedupCopyEngine) {
+			return ((DedupCopyEngine) copyEngine).readAttributes(backupItem);
+		}
+		return Files.readAttributes(backupItem, BasicFileAttributes.class);
+	}
+
+	/**
+	 * Attributes of the backup of the given source item.
+	 */
+	BasicFileAttributes readBackupAttributesOf(final Path sourceItem) throws IOException {
+		return readBackupAttributes(resolveBackupItemPath(sourceItem));
+	}
+
+	/**
+	 * Replays a (coalesced) watch event of a source item into the backup.
+	 */
+	void syncEvent(final Path sourceItem, final Kind<?> kind) {
+		if (isExcluded(sourceItem)) {
+			return;
+		}
+
+		if (!Files.isDirectory(resolveBackupItemPath(sourceItem).getParent(), NOFOLLOW_LINKS)) {
+			// Its directory is not backed up yet, or any more : copied or deleted with it
+			logger.debug("No backup directory for " + sourceItem + ", skipping " + kind);
+			return;
+		}
+
+		if (kind == ENTRY_DELETE) {
+			metrics.applied(DELETED, syncDeleted(sourceItem));
+			return;
+		}
+
+		final BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(sourceItem, BasicFileAttributes.class);
+		} catch (final IOException e) {
+			// Already gone again, its deletion follows
+			logger.debug("Failed to read attributes of " + sourceItem, e);
+			return;
+		}
+
+		if (kind == ENTRY_CREATE) {
+			// new directories get registered before being copied (directory listener)
+			metrics.applied(ADDED, syncAdded(sourceItem, attributes));
+		} else if (!attributes.isDirectory()) { // Nothing to do if we received MODIFIED on a directory
+			metrics.applied(MODIFIED, syncModified(sourceItem, attributes));
+		}
+	}
+
+	/**
+	 * Replaces the backup of a modified source item, as described by the
+	 * given attributes.
+	 */
+	private boolean syncModified(final Path sourceItem, final BasicFileAttributes attributes) {
+		try {
+			return syncModified(sourceItem, attributes, readBackupAttributesOf(sourceItem));
+		} catch (final IOException e) {
+			logger.warn("Failed to replace " + resolveBackupItemPath(sourceItem), e);
+			return false;
 		}
 	}
 
 	boolean syncAdded(final Path sourceItem) {
 		try {
-			if (Files.isDirectory(sourceItem)) {
-				FileUtils.copyDirectory(sourceItem.toFile(), resolveBackupItemPath(sourceItem).toFile(), true);
-				logger.debug("Added directory " + sourceItem);
+			return syncAdded(sourceItem, Files.readAttributes(sourceItem, BasicFileAttributes.class));
+		} catch (final IOException e) {
+			logger.warn("Failed to create " + resolveBackupItemPath(sourceItem), e);
+			return false;
+		}
+	}
+
+	/**
+	 * Copies a new source item, as described by the given attributes.
+	 */
+	boolean syncAdded(final Path sourceItem, final BasicFileAttributes attributes) {
+		try {
+			final long start = System.nanoTime();
+			final long copied;
+			if (attributes.isDirectory()) {
+				visitDirectories(sourceItem);
+				copied = copyEngine.copyDirectory(sourceItem, resolveBackupItemPath(sourceItem), this::isExcluded);
 			} else {
-				Files.copy(sourceItem, resolveBackupItemPath(sourceItem), COPY_ATTRIBUTES, REPLACE_EXISTING);
-				logger.debug("Added file " + sourceItem);
+				copied = copyEngine.copyFile(sourceItem, resolveBackupItemPath(sourceItem));
 			}
+			added(sourceItem, attributes, copied, System.nanoTime() - start);
 		} catch (final IOException e) {
 			logger.warn("Failed to create " + resolveBackupItemPath(sourceItem), e);
 			return false;
@@ -159,22 +762,224 @@ public class FoldersSynchronizer {
 		return true;
 	}
 
+	/**
+	 * Records a new source item copied into the backup, by
+	 * {@link #syncAdded(Path, BasicFileAttributes)} or by a
+	 * {@link FanOutSynchronizer} on its behalf.
+	 */
+	void added(final Path sourceItem, final BasicFileAttributes attributes, final long copied, final long nanos)
+			throws IOException {
+		if (attributes.isDirectory()) {
+			metrics.copied(copied);
+			logger.debug("Added directory " + sourceItem);
+		} else {
+			metrics.copied(copied, nanos);
+			logger.debug("Added file " + sourceItem);
+		}
+
+		if (manifest != null) {
+			if (attributes.isDirectory()) {
+				manifest.putTree(sourceDir.relativize(sourceItem), sourceItem, this::isExcluded);
+			} else {
+				manifest.put(sourceDir.relativize(sourceItem), attributes);
+			}
+		}
+	}
+
+	/**
+	 * Announces the directories of a new source subtree to the directory
+	 * listener (if any), before it gets copied.
+	 */
+	void visitDirectories(final Path sourceSubDir) throws IOException {
+		if (directoryListener == null) {
+			return;
+		}
+
+		Files.walkFileTree(sourceSubDir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(final Path directory, final BasicFileAttributes attrs) {
+				if (!directory.equals(sourceSubDir) && isExcluded(directory, attrs)) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				directoryListener.accept(directory);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
 	boolean syncModified(final Path sourceItem) {
-		return syncDeleted(sourceItem) && syncAdded(sourceItem);
+		final Path backupItem = resolveBackupItemPath(sourceItem);
+
+		try {
+			return syncModified(sourceItem, Files.readAttributes(sourceItem, BasicFileAttributes.class), Files
+					.readAttributes(backupItem, BasicFileAttributes.class));
+		} catch (final IOException e) {
+			logger.warn("Failed to replace " + backupItem, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Replaces (or updates) the backup of a source item, both being described
+	 * by the given attributes.
+	 */
+	boolean syncModified(final Path sourceItem, final BasicFileAttributes fromAttributes,
+			final BasicFileAttributes toAttributes) {
+		// Pointer files of a deduplicated backup are replaced, never patched
+		if (deltaTransfer != null && !(copyEngine instanceof DedupCopyEngine)
+				&& syncDelta(sourceItem, fromAttributes, toAttributes)) {
+			return true;
+		}
+		if (fromAttributes.isRegularFile() && toAttributes.isRegularFile()) {
+			return syncReplaced(sourceItem, fromAttributes);
+		}
+		// Changed type : the old backup item has to go first
+		return syncDeleted(sourceItem, toAttributes) && syncAdded(sourceItem, fromAttributes);
+	}
+
+	/**
+	 * Copies a modified file over its backup, which the copy engine only
+	 * replaces once the new copy is complete : a failed copy leaves the
+	 * previous backup in place.
+	 */
+	private boolean syncReplaced(final Path sourceItem, final BasicFileAttributes attributes) {
+		final Path backupItem = resolveBackupItemPath(sourceItem);
+
+		try {
+			final long start = System.nanoTime();
+			final long copied = copyEngine.copyFile(sourceItem, backupItem);
+			metrics.copied(copied, System.nanoTime() - start);
+			logger.debug("Replaced file " + backupItem);
+
+			if (manifest != null) {
+				manifest.put(sourceDir.relativize(sourceItem), attributes);
+			}
+		} catch (final IOException e) {
+			logger.warn("Failed to replace " + backupItem, e);
+			return false;
+		}
+
+		return true;
+	}
+
+	private boolean syncDelta(final Path sourceItem, final BasicFileAttributes fromAttributes,
+			final BasicFileAttributes toAttributes) {
+		final Path backupItem = resolveBackupItemPath(sourceItem);
+
+		try {
+			if (!fromAttributes.isRegularFile() || !toAttributes.isRegularFile()
+					|| toAttributes.size() < deltaTransfer.getBlockSize()) {
+				return false;
+			}
+
+			final long start = System.nanoTime();
+			final long written = deltaTransfer.update(sourceItem, backupItem);
+			metrics.copied(written, System.nanoTime() - start);
+			logger.debug("Updated file " + sourceItem + " (" + written + " of " + fromAttributes.size()
+					+ " bytes written)");
+
+			if (manifest != null) {
+				manifest.put(sourceDir.relativize(sourceItem), fromAttributes);
+			}
+		} catch (final IOException e) {
+			logger.warn("Failed to update " + backupItem + ", replacing it", e);
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Renames the backup of a source item which has been moved, failing if
+	 * the new backup item already exists, if a moved file does not have the
+	 * content of the backup or if the move would not be a mere rename.
+	 */
+	boolean syncMoved(final Path fromSourceItem, final Path toSourceItem) {
+		final Path fromBackupItem = resolveBackupItemPath(fromSourceItem);
+		final Path toBackupItem = resolveBackupItemPath(toSourceItem);
+
+		try {
+			if (Files.exists(toBackupItem, NOFOLLOW_LINKS)) {
+				return false;
+			}
+
+			final BasicFileAttributes toAttributes = Files.readAttributes(toSourceItem, BasicFileAttributes.class);
+			if (!toAttributes.isDirectory()
+					&& !hasSameContent(toSourceItem, toAttributes, fromBackupItem,
+							Files.readAttributes(fromBackupItem, BasicFileAttributes.class))) {
+				return false;
+			}
+
+			acquireOp();
+			Files.move(fromBackupItem, toBackupItem, ATOMIC_MOVE);
+			logger.debug("Moved " + fromBackupItem + " to " + toBackupItem);
+
+			if (manifest != null) {
+				manifest.move(sourceDir.relativize(fromSourceItem), sourceDir.relativize(toSourceItem));
+			}
+		} catch (final IOException e) {
+			logger.debug("Failed to move " + fromBackupItem + " to " + toBackupItem, e);
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Aligns the modification date of a backup file having the same content
+	 * as its source.
+	 */
+	boolean syncTouched(final Path sourceItem, final BasicFileAttributes attributes) {
+		final Path backupItem = resolveBackupItemPath(sourceItem);
+
+		try {
+			acquireOp();
+			Files.setLastModifiedTime(backupItem, attributes.lastModifiedTime());
+			if (manifest != null) {
+				manifest.put(sourceDir.relativize(sourceItem), attributes);
+			}
+			logger.debug("Touched file " + backupItem);
+		} catch (final IOException e) {
+			logger.warn("Failed to touch " + backupItem, e);
+			return false;
+		}
+
+		return true;
 	}
 
 	boolean syncDeleted(final Path sourceItem) {
 		final Path backupItem = resolveBackupItemPath(sourceItem);
 
 		try {
-			if (Files.isDirectory(backupItem)) {
+			return syncDeleted(sourceItem, Files.readAttributes(backupItem, BasicFileAttributes.class));
+		} catch (final IOException e) {
+			logger.warn("Failed to delete " + backupItem, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Deletes the backup of a source item, the backup item being described by
+	 * the given attributes.
+	 */
+	boolean syncDeleted(final Path sourceItem, final BasicFileAttributes attributes) {
+		final Path backupItem = resolveBackupItemPath(sourceItem);
+
+		try {
+			acquireOp();
+			if (attributes.isDirectory()) {
 				FileUtils.deleteDirectory(backupItem.toFile());
 				logger.debug("Deleted directory " + backupItem);
 			} else {
 				Files.delete(backupItem);
 				logger.debug("Deleted file " + backupItem);
 			}
-		} catch (final IOException e) {
+
+			if (manifest != null) {
+				manifest.remove(sourceDir.relativize(sourceItem));
+			}
+		} catch (final IOException | IllegalArgumentException e) {
+			// IllegalArgumentException : the manifest said directory, but it is not
 			logger.warn("Failed to delete " + backupItem, e);
 			return false;
 		}
@@ -182,6 +987,171 @@ public class FoldersSynchronizer {
 		return true;
 	}
 
+	private void acquireOp() throws IOException {
+		if (ioScheduler != null) {
+			ioScheduler.acquireOp();
+		}
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Number of worker threads merging sub-directories concurrently, 1 (the
+	 * default) keeps the whole merge on the calling thread.
+	 */
+	public void setParallelism(final int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1 : " + parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+
+	public BackupManifest getManifest() {
+		return manifest;
+	}
+
+	/**
+	 * Keeps an image of the backup tree in the given file and merges against
+	 * it instead of listing the backup folders. Use {@link #verify()} to
+	 * rescan the real backup.
+	 */
+	public void setManifest(final Path manifestFile) {
+		this.manifest = new BackupManifest(manifestFile);
+	}
+
+	public DigestStore getDigestStore() {
+		return digestStore;
+	}
+
+	/**
+	 * Compares files of the same size by content digest instead of
+	 * modification date, null (the default) to compare by date and size.
+	 * Ignored with a {@link DedupCopyEngine}.
+	 */
+	public void setDigestStore(final DigestStore digestStore) {
+		this.digestStore = digestStore;
+
+		if (digestStore != null) {
+			try {
+				digestStore.load();
+			} catch (final IOException e) {
+				logger.warn("Failed to load digests, starting with an empty store", e);
+			}
+		}
+	}
+
+	public DeltaTransfer getDeltaTransfer() {
+		return deltaTransfer;
+	}
+
+	/**
+	 * Updates modified files in place block by block instead of replacing
+	 * them, null (the default) to always replace. Ignored with a
+	 * {@link DedupCopyEngine}.
+	 */
+	public void setDeltaTransfer(final DeltaTransfer deltaTransfer) {
+		this.deltaTransfer = deltaTransfer;
+		setIoScheduler(ioScheduler);
+	}
+
+	public ICopyEngine getCopyEngine() {
+		return copyEngine;
+	}
+
+	public void setCopyEngine(final ICopyEngine copyEngine) {
+		this.copyEngine = copyEngine;
+		setIoScheduler(ioScheduler);
+		if (copyEngine instanceof ChannelCopyEngine) {
+			((ChannelCopyEngine) copyEngine).setJournal(journal);
+		}
+	}
+
+	public SyncJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Keeps a journal of each sync in progress in the given file, so that a
+	 * sync interrupted by a crash or a reboot resumes where it stopped (see
+	 * {@link SyncJournal}), null (the default) to always start over.
+	 */
+	public void setJournal(final Path journalFile) {
+		this.journal = journalFile == null ? null : new SyncJournal(journalFile);
+
+		if (copyEngine instanceof ChannelCopyEngine) {
+			((ChannelCopyEngine) copyEngine).setJournal(journal);
+		}
+	}
+
+	public IoScheduler getIoScheduler() {
+		return ioScheduler;
+	}
+
+	/**
+	 * Paces the I/O of this synchronizer : its deletions, moves and touches,
+	 * and the copies of its delta transfer and of its copy engine (when a
+	 * {@link ChannelCopyEngine} or a {@link DedupCopyEngine}). Null (the
+	 * default) runs at full speed.
+	 */
+	public void setIoScheduler(final IoScheduler ioScheduler) {
+		this.ioScheduler = ioScheduler;
+
+		if (copyEngine instanceof ChannelCopyEngine) {
+			((ChannelCopyEngine) copyEngine).setIoScheduler(ioScheduler);
+		} else if (copyEngine instanceof DedupCopyEngine) {
+			((DedupCopyEngine) copyEngine).setIoScheduler(ioScheduler);
+		}
+		if (deltaTransfer != null) {
+			deltaTransfer.setIoScheduler(ioScheduler);
+		}
+	}
+
+	public Consumer<Path> getDirectoryListener() {
+		return directoryListener;
+	}
+
+	/**
+	 * Called with every source directory before it is listed, including the
+	 * directories of a new subtree before it is copied.
+	 */
+	public void setDirectoryListener(final Consumer<Path> directoryListener) {
+		this.directoryListener = directoryListener;
+	}
+
+	public SyncMetrics getMetrics() {
+		return metrics;
+	}
+
+	public long getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	/**
+	 * Bytes of entry names of a directory kept in memory, beyond which they
+	 * are sorted on disk.
+	 */
+	public void setSpillThreshold(final long spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	public MoveDetector getMoveDetector() {
+		return moveDetector;
+	}
+
+	/**
+	 * Replays the entries moved in the source as moves in the backup instead
+	 * of deletions and copies (see {@link MoveDetector}), disabled by default.
+	 */
+	public void setMoveDetection(final boolean moveDetection) {
+		this.moveDetector = moveDetection ? new MoveDetector(this) : null;
+	}
+
+	public SyncFilter getFilter() {
+		return filter;
+	}
+
 	public Path getSourceDir() {
 		return sourceDir;
 	}
@@ -190,4 +1160,281 @@ public class FoldersSynchronizer {
 		return backupDir;
 	}
 
+	/**
+	 * Merge-join of the sorted entry names of a source directory and of its
+	 * backup (see {@link SortedNames}), producing the operations lazily so
+	 * that memory stays flat whatever the size of the directory. The
+	 * attributes of each entry are read once per side and handed over to the
+	 * operation. With move detection, the deleted and added entries are held
+	 * back (up to {@link #MAX_MOVE_CANDIDATES} each) to be paired once both
+	 * sides have been read.
+	 */
+	private class DirectoryMerge implements Iterator<SyncOperation> {
+
+		private final Path sourceSubDir;
+		private final Path backupSubDir;
+		private final List<Path> subDirs;
+
+		private final Deque<SyncOperation> ready;
+		private final Map<Path, BasicFileAttributes> addedItems;
+		private final Map<Path, BasicFileAttributes> deletedItems;
+
+		private SortedNames sourceNames;
+		private SortedNames backupNames;
+
+		private byte[] sourceName;
+		private byte[] backupName;
+
+		private boolean done;
+
+		DirectoryMerge(final Path sourceSubDir, final List<Path> subDirs) {
+			this.sourceSubDir = sourceSubDir;
+			this.backupSubDir = resolveBackupItemPath(sourceSubDir);
+			this.subDirs = subDirs;
+			this.ready = new ArrayDeque<SyncOperation>();
+			this.addedItems = new LinkedHashMap<Path, BasicFileAttributes>();
+			this.deletedItems = new LinkedHashMap<Path, BasicFileAttributes>();
+			this.done = false;
+
+			if (directoryListener != null) {
+				directoryListener.accept(sourceSubDir);
+			}
+
+			try {
+				sourceNames = SortedNames.list(sourceSubDir, spillThreshold);
+				backupNames = listBackupNames(backupSubDir);
+
+				sourceName = sourceNames.next();
+				backupName = backupNames.next();
+			} catch (final IOException | SecurityException e) {
+				fail(e);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (ready.isEmpty() && !done) {
+				if (isCancelled()) {
+					cancel();
+					break;
+				}
+				try {
+					step();
+				} catch (final IOException | SecurityException e) {
+					fail(e);
+				}
+			}
+			return !ready.isEmpty();
+		}
+
+		@Override
+		public SyncOperation next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return ready.poll();
+		}
+
+		/**
+		 * Compares the first source entry and the first backup entry left,
+		 * or only the lowest of both if their names differ.
+		 */
+		private void step() throws IOException {
+			if (sourceName == null && backupName == null) {
+				finish();
+				return;
+			}
+
+			final int order = (sourceName == null ? 1 : backupName == null ? -1 : SortedNames.compare(sourceName,
+					backupName));
+			// Both sides seen from the source tree
+			final Path sourceItem = sourceSubDir.resolve(SortedNames.toString(order <= 0 ? sourceName : backupName));
+
+			BasicFileAttributes fromAttributes = null;
+			BasicFileAttributes toAttributes = null;
+
+			try {
+				if (order <= 0) {
+					fromAttributes = filter.needsAttributes() ? Files.readAttributes(sourceItem,
+							BasicFileAttributes.class) : null;
+					if (isExcluded(sourceItem, fromAttributes)) {
+						sourceName = sourceNames.next();
+						return;
+					}
+					if (fromAttributes == null) {
+						fromAttributes = Files.readAttributes(sourceItem, BasicFileAttributes.class);
+					}
+					metrics.scanned();
+				}
+
+				if (order >= 0) {
+					toAttributes = readBackupAttributesOf(sourceItem);
+					if (isExcluded(sourceItem, toAttributes)) {
+						// Left untouched
+						backupName = backupNames.next();
+						return;
+					}
+				}
+			} catch (final IOException e) {
+				// Vanished or unreadable : left as is until next sync
+				logger.debug("Failed to read attributes of " + sourceItem, e);
+				if (order <= 0) {
+					sourceName = sourceNames.next();
+				}
+				if (order >= 0) {
+					backupName = backupNames.next();
+				}
+				return;
+			}
+
+			if (order > 0 && journal != null && journal.isResumed() && ChannelCopyEngine.isTempPath(sourceItem)) {
+				// Partial copy of the interrupted sync, left for this one to resume
+				backupName = backupNames.next();
+				return;
+			}
+
+			final SyncStatus status;
+			if (order > 0) {
+				status = DELETED;
+			} else if (order < 0) {
+				status = ADDED;
+			} else {
+				status = compare(sourceItem, fromAttributes, toAttributes);
+			}
+
+			switch (status) {
+				case ADDED:
+					if (moveDetector != null && addedItems.size() < MAX_MOVE_CANDIDATES) {
+						addedItems.put(sourceItem, fromAttributes);
+					} else {
+						ready.add(SyncOperation.of(ADDED, sourceItem, fromAttributes, null,
+								FoldersSynchronizer.this::isExcluded));
+					}
+					sourceName = sourceNames.next();
+					break;
+				case DELETED:
+					if (moveDetector != null && deletedItems.size() < MAX_MOVE_CANDIDATES) {
+						deletedItems.put(sourceItem, toAttributes);
+					} else {
+						ready.add(SyncOperation.of(DELETED, sourceItem, null, toAttributes,
+								FoldersSynchronizer.this::isExcluded));
+					}
+					backupName = backupNames.next();
+					break;
+				case MODIFIED:
+					// A directory replacing a file is copied whole
+					ready.add(SyncOperation.of(MODIFIED, sourceItem, fromAttributes, toAttributes,
+							FoldersSynchronizer.this::isExcluded));
+					sourceName = sourceNames.next();
+					backupName = backupNames.next();
+					break;
+				case TOUCHED:
+					ready.add(SyncOperation.of(TOUCHED, sourceItem, fromAttributes, toAttributes,
+							FoldersSynchronizer.this::isExcluded));
+					if (fromAttributes.isDirectory()) {
+						subDirs.add(sourceItem);
+					}
+					sourceName = sourceNames.next();
+					backupName = backupNames.next();
+					break;
+				case SYNCHRONIZED:
+				default:
+					if (fromAttributes.isDirectory()) {
+						subDirs.add(sourceItem);
+					}
+					sourceName = sourceNames.next();
+					backupName = backupNames.next();
+					break;
+			}
+		}
+
+		private void finish() throws IOException {
+			done = true;
+			close();
+
+			if (moveDetector != null) {
+				ready.addAll(detectMoves(addedItems, deletedItems));
+				for (final Map.Entry<Path, BasicFileAttributes> deleted : deletedItems.entrySet()) {
+					ready.add(SyncOperation.of(DELETED, deleted.getKey(), null, deleted.getValue(),
+							FoldersSynchronizer.this::isExcluded));
+				}
+				for (final Map.Entry<Path, BasicFileAttributes> added : addedItems.entrySet()) {
+					ready.add(SyncOperation.of(ADDED, added.getKey(), added.getValue(), null,
+							FoldersSynchronizer.this::isExcluded));
+				}
+			}
+		}
+
+		/**
+		 * Drops what is left of the directory, for the next sync to plan
+		 * again.
+		 */
+		private void cancel() {
+			done = true;
+			ready.clear();
+			try {
+				close();
+			} catch (final IOException e) {
+				logger.debug("Failed to close listings of " + sourceSubDir, e);
+			}
+		}
+
+		private void fail(final Exception e) {
+			logger.debug("Failed to sync tree " + sourceSubDir, e);
+			if (journal != null) {
+				journal.failed(sourceSubDir);
+			}
+			done = true;
+			try {
+				close();
+			} catch (final IOException e2) {
+			}
+		}
+
+		private void close() throws IOException {
+			try {
+				if (sourceNames != null) {
+					sourceNames.close();
+				}
+			} finally {
+				if (backupNames != null) {
+					backupNames.close();
+				}
+			}
+		}
+	}
+
+	private class SyncTreeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path sourceSubDir;
+
+		SyncTreeTask(final Path sourceSubDir) {
+			this.sourceSubDir = sourceSubDir;
+		}
+
+		@Override
+		protected void compute() {
+			if (isCancelled()) {
+				return;
+			}
+			if (journal != null && journal.isCompleted(sourceSubDir)) {
+				// Synced by the interrupted run this one resumes
+				return;
+			}
+
+			final List<SyncTreeTask> tasks = new ArrayList<SyncTreeTask>();
+			for (final Path subDir : mergeTree(sourceSubDir)) {
+				tasks.add(new SyncTreeTask(subDir));
+			}
+			invokeAll(tasks);
+
+			// A cancelled merge may have stopped anywhere below
+			if (journal != null && !isCancelled()) {
+				journal.completed(sourceSubDir);
+			}
+		}
+	}
+
 }
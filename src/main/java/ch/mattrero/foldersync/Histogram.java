@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of non-negative values in power of two buckets : cheap enough
+ * to record from many threads on every file, precise enough for percentiles
+ * to within a factor of two.
+ */
+public class Histogram {
+
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray buckets;
+	private final LongAdder sum;
+
+	public Histogram() {
+		this.buckets = new AtomicLongArray(BUCKETS);
+		this.sum = new LongAdder();
+	}
+
+	public void record(final long value) {
+		final long positive = Math.max(0, value);
+		buckets.incrementAndGet(bucketOf(positive));
+		sum.add(positive);
+	}
+
+	public Snapshot snapshot() {
+		final long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+		}
+		return new Snapshot(counts, sum.sum());
+	}
+
+	private static int bucketOf(final long value) {
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+	}
+
+	/** Highest value counted in the given bucket */
+	private static long upperBound(final int bucket) {
+		return bucket == 0 ? 0 : bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+
+	public static class Snapshot {
+
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+
+		Snapshot(final long[] counts, final long sum) {
+			this.counts = counts;
+			this.sum = sum;
+
+			long count = 0;
+			for (final long bucketCount : counts) {
+				count += bucketCount;
+			}
+			this.count = count;
+		}
+
+		/**
+		 * What was recorded after the given snapshot (of the same histogram).
+		 */
+		public Snapshot since(final Snapshot previous) {
+			final long[] difference = new long[counts.length];
+			for (int i = 0; i < counts.length; i++) {
+				difference[i] = counts[i] - previous.counts[i];
+			}
+			return new Snapshot(difference, sum - previous.sum);
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getMean() {
+			return count == 0 ? 0 : sum / count;
+		}
+
+		/**
+		 * Upper bound of the given percentile (0 to 100).
+		 */
+		public long getPercentile(final double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+
+			final long rank = (long) Math.ceil(count * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && seen > 0) {
+					return upperBound(i);
+				}
+			}
+			return getMax();
+		}
+
+		/**
+		 * Upper bound of the highest value.
+		 */
+		public long getMax() {
+			for (int i = counts.length - 1; i >= 0; i--) {
+				if (counts[i] > 0) {
+					return upperBound(i);
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count + " mean=" + getMean() + " p50<=" + getPercentile(50) + " p99<="
+					+ getPercentile(99) + " max<=" + getMax();
+		}
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.function.BiPredicate;
+
+public interface ICopyEngine {
+
+	/**
+	 * Copies a file with its attributes, replacing the target if any.
+	 * 
+	 * @return the number of bytes copied
+	 */
+	public long copyFile(Path source, Path target) throws IOException;
+
+	/**
+	 * Copies a whole directory tree with its attributes, the target must not
+	 * exist yet or be a directory.
+	 * 
+	 * @param excluded
+	 *            tells which entries (and subtrees) of the source to skip
+	 * @return the number of bytes copied
+	 */
+	public long copyDirectory(Path source, Path target, BiPredicate<Path, BasicFileAttributes> excluded)
+			throws IOException;
+
+}
@@ -16,10 +16,24 @@
  */
 package ch.mattrero.foldersync;
 
+import java.util.concurrent.CompletableFuture;
+
 public interface IRealTimeSynchronizer {
 
 	public void shutdownNow() throws InterruptedException;
 
 	public boolean isRunning();
 
+	/**
+	 * Completes once watching is live : every change made from then on
+	 * reaches the backup (or fails with the startup error).
+	 */
+	public CompletableFuture<Void> whenReady();
+
+	/**
+	 * Completes once the initial sync is done as well (cancelled if shut down
+	 * before).
+	 */
+	public CompletableFuture<Void> whenSynced();
+
 }
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Paces the I/O of the syncs with token buckets, one for bytes per second
+ * and one for operations (files written, deleted, moved...) per second, both
+ * adjustable at runtime. Each bucket holds at most one second of its rate and
+ * may be overdrawn by a single request, which then waits for the debt to be
+ * paid back.
+ * <p>
+ * Waiting requests are served by priority : {@link Priority#REAL_TIME} work
+ * before {@link Priority#BULK} work (the default, see
+ * {@link #runWith(Priority, Runnable)}), then the smallest files first, then
+ * in arrival order. Copies ask for their bytes by chunks of at most
+ * {@link #GRANT_SIZE}, so that a small file never waits for a huge one to be
+ * done. The oldest waiting request is however served once it has been
+ * overtaken {@link #MAX_BYPASSES} times, so that a steady flow of small or
+ * real-time requests never starves a huge bulk copy.
+ */
+public class IoScheduler implements IoSchedulerMBean {
+
+	public static final long UNLIMITED = 0;
+
+	public static final int GRANT_SIZE = 1024 * 1024;
+
+	public static final int MAX_BYPASSES = 16;
+
+	public enum Priority {
+		/** Changes seen by the real-time sync */
+		REAL_TIME,
+		/** Initial syncs, resyncs and overflow recoveries */
+		BULK
+	}
+
+	private static final ThreadLocal<Priority> PRIORITY = ThreadLocal.withInitial(() -> Priority.BULK);
+
+	private final Object lock = new Object();
+
+	private final PriorityQueue<Request> requests;
+
+	/** The same requests, by arrival */
+	private final Set<Request> arrivals;
+
+	/** Requests served since the oldest one arrived */
+	private int bypasses;
+
+	private long bytesPerSecond;
+	private long opsPerSecond;
+
+	private double byteTokens;
+	private double opTokens;
+	private long lastRefill;
+
+	private long sequence;
+
+	private volatile boolean unlimited;
+
+	private ObjectName objectName;
+
+	public IoScheduler(final long bytesPerSecond, final long opsPerSecond) {
+		this.requests = new PriorityQueue<Request>(Comparator.comparing((final Request request) -> request.priority)
+				.thenComparingLong(request -> request.fileSize).thenComparingLong(request -> request.sequence));
+		this.arrivals = new LinkedHashSet<Request>();
+		this.lastRefill = System.nanoTime();
+		setLimits(bytesPerSecond, opsPerSecond);
+	}
+
+	/**
+	 * Runs the given task with the given priority for the I/O it does on the
+	 * calling thread.
+	 */
+	public static void runWith(final Priority priority, final Runnable task) {
+		final Priority previous = PRIORITY.get();
+		PRIORITY.set(priority);
+		try {
+			task.run();
+		} finally {
+			PRIORITY.set(previous);
+		}
+	}
+
+	/**
+	 * Priority of the I/O done by the calling thread.
+	 */
+	public static Priority currentPriority() {
+		return PRIORITY.get();
+	}
+
+	/**
+	 * Waits until the given bytes of a file of the given size may be read or
+	 * written, at the priority of the calling thread.
+	 */
+	public void acquireBytes(final long bytes, final long fileSize) throws InterruptedIOException {
+		acquire(currentPriority(), fileSize, bytes, 0);
+	}
+
+	/**
+	 * Waits until one more operation may be done, at the priority of the
+	 * calling thread.
+	 */
+	public void acquireOp() throws InterruptedIOException {
+		acquire(currentPriority(), 0, 0, 1);
+	}
+
+	public void acquire(final Priority priority, final long fileSize, final long bytes, final int ops)
+			throws InterruptedIOException {
+		if (unlimited) {
+			return;
+		}
+
+		synchronized (lock) {
+			final Request request = new Request(priority, fileSize, sequence++);
+			requests.add(request);
+			arrivals.add(request);
+			boolean served = false;
+			try {
+				while (true) {
+					refill();
+					if (next() != request) {
+						lock.wait();
+						continue;
+					}
+
+					final long waitNanos = waitNanos();
+					if (waitNanos <= 0) {
+						if (bytesPerSecond != UNLIMITED) {
+							byteTokens -= bytes;
+						}
+						if (opsPerSecond != UNLIMITED) {
+							opTokens -= ops;
+						}
+						served = true;
+						return;
+					}
+					TimeUnit.NANOSECONDS.timedWait(lock, waitNanos);
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for I/O");
+			} finally {
+				final boolean oldest = arrivals.iterator().next() == request;
+				requests.remove(request);
+				arrivals.remove(request);
+				if (oldest) {
+					bypasses = 0;
+				} else if (served) {
+					bypasses++;
+				}
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * The request to serve next : the first by priority, unless the oldest
+	 * one has waited long enough.
+	 */
+	private Request next() {
+		return bypasses >= MAX_BYPASSES ? arrivals.iterator().next() : requests.peek();
+	}
+
+	/**
+	 * Time until both buckets are out of debt.
+	 */
+	private long waitNanos() {
+		long waitNanos = 0;
+		if (bytesPerSecond != UNLIMITED && byteTokens < 0) {
+			waitNanos = (long) (-byteTokens * 1e9 / bytesPerSecond) + 1;
+		}
+		if (opsPerSecond != UNLIMITED && opTokens < 0) {
+			waitNanos = Math.max(waitNanos, (long) (-opTokens * 1e9 / opsPerSecond) + 1);
+		}
+		return waitNanos;
+	}
+
+	private void refill() {
+		final long now = System.nanoTime();
+		final double seconds = (now - lastRefill) / 1e9;
+		lastRefill = now;
+
+		byteTokens = Math.min(bytesPerSecond, byteTokens + seconds * bytesPerSecond);
+		opTokens = Math.min(opsPerSecond, opTokens + seconds * opsPerSecond);
+	}
+
+	@Override
+	public long getBytesPerSecond() {
+		synchronized (lock) {
+			return bytesPerSecond;
+		}
+	}
+
+	@Override
+	public long getOpsPerSecond() {
+		synchronized (lock) {
+			return opsPerSecond;
+		}
+	}
+
+	/**
+	 * Changes the limits, {@link #UNLIMITED} to lift one. Waiting requests
+	 * are rescheduled at once.
+	 */
+	public void setLimits(final long bytesPerSecond, final long opsPerSecond) {
+		if (bytesPerSecond < 0 || opsPerSecond < 0) {
+			throw new IllegalArgumentException("Limits must be positive : " + bytesPerSecond + ", " + opsPerSecond);
+		}
+
+		synchronized (lock) {
+			refill();
+			this.bytesPerSecond = bytesPerSecond;
+			this.opsPerSecond = opsPerSecond;
+			byteTokens = bytesPerSecond == UNLIMITED ? 0 : Math.min(byteTokens, bytesPerSecond);
+			opTokens = opsPerSecond == UNLIMITED ? 0 : Math.min(opTokens, opsPerSecond);
+			unlimited = bytesPerSecond == UNLIMITED && opsPerSecond == UNLIMITED;
+			lock.notifyAll();
+		}
+	}
+
+	@Override
+	public void setBytesPerSecond(final long bytesPerSecond) {
+		synchronized (lock) {
+			setLimits(bytesPerSecond, opsPerSecond);
+		}
+	}
+
+	@Override
+	public void setOpsPerSecond(final long opsPerSecond) {
+		synchronized (lock) {
+			setLimits(bytesPerSecond, opsPerSecond);
+		}
+	}
+
+	/**
+	 * Number of requests waiting for their turn.
+	 */
+	@Override
+	public int getWaitingCount() {
+		synchronized (lock) {
+			return requests.size();
+		}
+	}
+
+	/**
+	 * Registers this scheduler in the platform MBean server under the given
+	 * name, so that its limits can be changed while syncing.
+	 */
+	public synchronized void register(final String name) throws JMException {
+		unregister();
+		objectName = new ObjectName(SyncMetrics.JMX_DOMAIN + ":type=IoScheduler,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+	}
+
+	public synchronized void unregister() throws JMException {
+		if (objectName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			objectName = null;
+		}
+	}
+
+	private static class Request {
+
+		private final Priority priority;
+		private final long fileSize;
+		private final long sequence;
+
+		Request(final Priority priority, final long fileSize, final long sequence) {
+			this.priority = priority;
+			this.fileSize = fileSize;
+			this.sequence = sequence;
+		}
+	}
+}
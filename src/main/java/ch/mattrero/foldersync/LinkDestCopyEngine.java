@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static ch.mattrero.foldersync.SyncStatus.SYNCHRONIZED;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.function.BiPredicate;
+
+/**
+ * Copies like rsync's --link-dest : a source file found unchanged in a
+ * reference tree (the previous snapshot) is hard-linked from it instead of
+ * copied, the other files being copied by the given engine.
+ */
+class LinkDestCopyEngine extends FileByFileCopyEngine {
+
+	/** Syncs the source into the reference tree, only used to compare them */
+	private final FoldersSynchronizer reference;
+	private final ICopyEngine copyEngine;
+
+	private long linked;
+
+	LinkDestCopyEngine(final FoldersSynchronizer reference, final ICopyEngine copyEngine) {
+		this.reference = reference;
+		this.copyEngine = copyEngine;
+	}
+
+	/**
+	 * Number of files hard-linked so far.
+	 */
+	synchronized long getLinked() {
+		return linked;
+	}
+
+	@Override
+	long copyFile(final Path source, final BasicFileAttributes attributes, final Path target) throws IOException {
+		if (link(source, attributes, target)) {
+			return 0;
+		}
+		return copyEngine.copyFile(source, target);
+	}
+
+	/**
+	 * Hard-links the target to the reference file when it has the same
+	 * modification date and size (or content, in checksum mode) as the
+	 * source.
+	 */
+	private boolean link(final Path source, final BasicFileAttributes attributes, final Path target) {
+		final Path referenceFile = reference.resolveBackupItemPath(source);
+
+		try {
+			final BasicFileAttributes referenceAttributes = Files.readAttributes(referenceFile,
+					BasicFileAttributes.class, NOFOLLOW_LINKS);
+			if (!referenceAttributes.isRegularFile()
+					|| reference.compare(source, attributes, referenceAttributes) != SYNCHRONIZED) {
+				return false;
+			}
+
+			final Path temp = ChannelCopyEngine.tempPathFor(target);
+			Files.deleteIfExists(temp);
+			Files.createLink(temp, referenceFile);
+			ChannelCopyEngine.publish(temp, target);
+		} catch (final IOException | UnsupportedOperationException e) {
+			// Missing in the reference, or too many links : copied instead
+			logger.debug("Failed to link " + target + " to " + referenceFile, e);
+			return false;
+		}
+
+		synchronized (this) {
+			linked++;
+		}
+		return true;
+	}
+
+	@Override
+	public long copyDirectory(final Path source, final Path target,
+			final BiPredicate<Path, BasicFileAttributes> excluded) throws IOException {
+		if (!Files.isDirectory(reference.resolveBackupItemPath(source), NOFOLLOW_LINKS)) {
+			// Nothing to link from
+			return copyEngine.copyDirectory(source, target, excluded);
+		}
+		return super.copyDirectory(source, target, excluded);
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recognizes a deleted source entry and a created one as the same entry
+ * having been moved, so that the backup can be moved as well instead of
+ * being deleted and copied again.
+ * 
+ * Directories are recognized by the file key (inode) they had when they were
+ * met, files by size and modification date (which a move keeps), small files
+ * being cheaper to copy than to match. Files only pair as candidates : the
+ * synchronizer checks their content before replaying the move.
+ */
+public class MoveDetector {
+
+	public static final long DEFAULT_MIN_FILE_SIZE = 1024 * 1024;
+
+	private final FoldersSynchronizer foldersSynchronizer;
+	private final long minFileSize;
+
+	/** File key of each known source directory */
+	private final Map<Path, Object> directoryKeys;
+
+	public MoveDetector(final FoldersSynchronizer foldersSynchronizer) {
+		this(foldersSynchronizer, DEFAULT_MIN_FILE_SIZE);
+	}
+
+	public MoveDetector(final FoldersSynchronizer foldersSynchronizer, final long minFileSize) {
+		this.foldersSynchronizer = foldersSynchronizer;
+		this.minFileSize = minFileSize;
+		this.directoryKeys = new ConcurrentHashMap<Path, Object>();
+	}
+
+	public void remember(final Path sourceSubDir, final BasicFileAttributes attributes) {
+		if (attributes.fileKey() != null) {
+			directoryKeys.put(sourceSubDir, attributes.fileKey());
+		}
+	}
+
+	/**
+	 * Forgets the given directory and everything below.
+	 */
+	public void forget(final Path sourceSubDir) {
+		directoryKeys.keySet().removeIf(directory -> directory.startsWith(sourceSubDir));
+	}
+
+	/**
+	 * Key of a source entry which no longer exists, null if it cannot be
+	 * matched.
+	 */
+	public Object deletedKey(final Path sourceItem) {
+		final Object fileKey = directoryKeys.get(sourceItem);
+		if (fileKey != null) {
+			return new DirectoryKey(fileKey);
+		}
+
+		try {
+			return fileKey(foldersSynchronizer.readBackupAttributesOf(sourceItem));
+		} catch (final IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Key of a new source entry, null if it cannot be matched.
+	 */
+	public Object createdKey(final Path sourceItem) {
+		try {
+			final BasicFileAttributes attributes = Files.readAttributes(sourceItem, BasicFileAttributes.class);
+			if (attributes.isDirectory()) {
+				return attributes.fileKey() == null ? null : new DirectoryKey(attributes.fileKey());
+			}
+			return fileKey(attributes);
+		} catch (final IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Key of a file by size and modification date, null for a directory or a
+	 * file too small to be worth it.
+	 */
+	public Object fileKey(final BasicFileAttributes attributes) {
+		if (attributes.isDirectory() || attributes.size() < minFileSize) {
+			return null;
+		}
+		return new FileKey(attributes.size(), attributes.lastModifiedTime().toMillis());
+	}
+
+	private static class DirectoryKey {
+
+		private final Object fileKey;
+
+		DirectoryKey(final Object fileKey) {
+			this.fileKey = fileKey;
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			return other instanceof DirectoryKey && fileKey.equals(((DirectoryKey) other).fileKey);
+		}
+
+		@Override
+		public int hashCode() {
+			return fileKey.hashCode();
+		}
+	}
+
+	private static class FileKey {
+
+		private final long size;
+		private final long lastModified;
+
+		FileKey(final long size, final long lastModified) {
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			if (!(other instanceof FileKey)) {
+				return false;
+			}
+			return size == ((FileKey) other).size && lastModified == ((FileKey) other).lastModified;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(size) * 31 + Long.hashCode(lastModified);
+		}
+	}
+}
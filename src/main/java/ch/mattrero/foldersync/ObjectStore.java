@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Content-addressed store of chunks : each chunk is kept once, in a file
+ * named after its SHA-256 digest, deflated when compression is enabled and
+ * worth it.
+ */
+public class ObjectStore {
+
+	public static final String ALGORITHM = "SHA-256";
+
+	public static final int HASH_LENGTH = 32;
+
+	private static final byte RAW = 0;
+	private static final byte DEFLATED = 1;
+
+	private final Path storeDir;
+	private final boolean compress;
+
+	public ObjectStore(final Path storeDir, final boolean compress) {
+		this.storeDir = storeDir;
+		this.compress = compress;
+	}
+
+	public Path getStoreDir() {
+		return storeDir;
+	}
+
+	public boolean isCompress() {
+		return compress;
+	}
+
+	public static MessageDigest newMessageDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Stores a chunk under its digest, unless already stored.
+	 *
+	 * @return the number of bytes written, 0 if the chunk was already stored
+	 */
+	public long put(final byte[] hash, final byte[] data, final int length) throws IOException {
+		final Path object = pathOf(toHex(hash));
+		if (Files.isRegularFile(object)) {
+			return 0;
+		}
+
+		byte[] content = data;
+		int contentLength = length;
+		byte format = RAW;
+		if (compress) {
+			final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				deflater.setInput(data, 0, length);
+				deflater.finish();
+				final byte[] deflated = new byte[length];
+				final int deflatedLength = deflater.deflate(deflated);
+				if (deflater.finished() && deflatedLength < length) {
+					content = deflated;
+					contentLength = deflatedLength;
+					format = DEFLATED;
+				}
+			} finally {
+				deflater.end();
+			}
+		}
+
+		Files.createDirectories(object.getParent());
+		final Path temp = Files.createTempFile(object.getParent(), "." + object.getFileName(),
+				ChannelCopyEngine.TEMP_SUFFIX);
+		try {
+			try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+				out.writeByte(format);
+				out.writeInt(length);
+				out.write(content, 0, contentLength);
+			}
+			// Stored concurrently by another thread : same content anyway
+			ChannelCopyEngine.publish(temp, object);
+		} catch (final IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+
+		return contentLength + 5;
+	}
+
+	/**
+	 * Reads a chunk back, checking it against its digest.
+	 */
+	public byte[] get(final byte[] hash) throws IOException {
+		final Path object = pathOf(toHex(hash));
+
+		final byte[] data;
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(object))) {
+			final byte format = in.readByte();
+			data = new byte[in.readInt()];
+			if (format == RAW) {
+				in.readFully(data);
+			} else {
+				final byte[] deflated = new byte[(int) Files.size(object) - 5];
+				in.readFully(deflated);
+				inflate(deflated, data);
+			}
+		}
+
+		if (!Arrays.equals(newMessageDigest().digest(data), hash)) {
+			throw new IOException("Corrupted object " + object);
+		}
+		return data;
+	}
+
+	private static void inflate(final byte[] deflated, final byte[] data) throws IOException {
+		final Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(deflated);
+			int length = 0;
+			while (length < data.length && !inflater.finished()) {
+				length += inflater.inflate(data, length, data.length - length);
+				if (inflater.needsInput()) {
+					break;
+				}
+			}
+			if (length != data.length) {
+				throw new IOException("Truncated object");
+			}
+		} catch (final DataFormatException e) {
+			throw new IOException("Corrupted object", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Deletes the chunks whose digest (in hexadecimal) is not in the given
+	 * set, and the leftovers of interrupted writes.
+	 *
+	 * @return the number of bytes freed
+	 */
+	public long retainAll(final Set<String> hashes) throws IOException {
+		long freed = 0;
+		if (!Files.isDirectory(storeDir)) {
+			return freed;
+		}
+
+		try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(storeDir)) {
+			for (final Path prefix : prefixes) {
+				if (!Files.isDirectory(prefix)) {
+					continue;
+				}
+				try (DirectoryStream<Path> objects = Files.newDirectoryStream(prefix)) {
+					for (final Path object : objects) {
+						if (!hashes.contains(object.getFileName().toString())) {
+							freed += Files.size(object);
+							Files.delete(object);
+						}
+					}
+				}
+			}
+		}
+
+		return freed;
+	}
+
+	private Path pathOf(final String hex) {
+		return storeDir.resolve(hex.substring(0, 2)).resolve(hex);
+	}
+
+	public static String toHex(final byte[] hash) {
+		final StringBuilder hex = new StringBuilder(hash.length * 2);
+		for (final byte b : hash) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
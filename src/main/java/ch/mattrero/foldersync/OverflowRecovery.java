@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resyncs the directories whose watch events were lost. Each dirty directory
+ * is queued once and merged shallowly on the dispatcher, then only the
+ * sub-directories whose modification date changed since they were last seen
+ * are merged in turn.
+ * <p>
+ * A watch service overflow (reported for every watched directory at once)
+ * queues a single sweep instead, which only merges the known directories
+ * whose modification date changed : a rescan costs a stat per directory,
+ * plus a merge of the directories with entries added, deleted or renamed.
+ * As content changes of files leave their directory unchanged, the sweep is
+ * followed by a full compare of the tree, queued behind the merges of the
+ * changed directories (and at most one pending at a time).
+ */
+public class OverflowRecovery {
+
+	final Logger logger = LoggerFactory.getLogger(OverflowRecovery.class);
+
+	private final FoldersSynchronizer foldersSynchronizer;
+	/** Runs a recovery task, ordered with the other tasks of its path */
+	private final BiConsumer<Path, Runnable> dispatcher;
+
+	private final Set<Path> dirty;
+	private final Map<Path, FileTime> knownTimes;
+
+	/** A sweep is queued and has not started yet */
+	private final AtomicBoolean sweepQueued;
+
+	/** Tasks of the running full compare, if any */
+	private int comparing;
+	/** Another full compare is due once the running one is done */
+	private boolean compareAgain;
+
+	private final AtomicInteger pending;
+	private final AtomicLong scanned;
+	private final AtomicLong skipped;
+	private volatile long startTime;
+
+	private volatile long lastScanned;
+	private volatile long lastSkipped;
+
+	public OverflowRecovery(final FoldersSynchronizer foldersSynchronizer, final EventDispatcher dispatcher) {
+		this(foldersSynchronizer, dispatcher::dispatch);
+	}
+
+	public OverflowRecovery(final FoldersSynchronizer foldersSynchronizer,
+			final BiConsumer<Path, Runnable> dispatcher) {
+		this.foldersSynchronizer = foldersSynchronizer;
+		this.dispatcher = dispatcher;
+		this.dirty = ConcurrentHashMap.newKeySet();
+		this.knownTimes = new ConcurrentHashMap<Path, FileTime>();
+		this.sweepQueued = new AtomicBoolean();
+		this.pending = new AtomicInteger();
+		this.scanned = new AtomicLong();
+		this.skipped = new AtomicLong();
+	}
+
+	/**
+	 * Records the modification date of a directory known to be in sync.
+	 */
+	public void remember(final Path sourceSubDir, final FileTime lastModified) {
+		knownTimes.put(sourceSubDir, lastModified);
+	}
+
+	public void forget(final Path sourceSubDir) {
+		knownTimes.remove(sourceSubDir);
+	}
+
+	/**
+	 * Merges the given directory, whether its modification date changed or
+	 * not (some of its events were dropped).
+	 */
+	public void markDirty(final Path sourceSubDir) {
+		if (!dirty.add(sourceSubDir)) {
+			return;
+		}
+
+		queue(sourceSubDir, () -> recover(sourceSubDir));
+	}
+
+	/**
+	 * Rescans the source tree after the watch service lost events, however
+	 * many times it is called before the rescan starts.
+	 */
+	public void overflowed() {
+		if (!sweepQueued.compareAndSet(false, true)) {
+			return;
+		}
+
+		final Path sourceDir = foldersSynchronizer.getSourceDir();
+		queue(sourceDir, () -> {
+			// Overflows from now on may have missed the directories swept already
+			sweepQueued.set(false);
+			if (!knownTimes.containsKey(sourceDir)) {
+				markDirty(sourceDir);
+			}
+			for (final Path directory : knownTimes.keySet()) {
+				if (hasChanged(directory)) {
+					markDirty(directory);
+				} else {
+					skipped.incrementAndGet();
+				}
+			}
+			requestCompare();
+		});
+	}
+
+	private synchronized void requestCompare() {
+		if (comparing > 0) {
+			// Some directories may have been compared already
+			compareAgain = true;
+			return;
+		}
+
+		queueCompare(foldersSynchronizer.getSourceDir());
+	}
+
+	private synchronized void queueCompare(final Path sourceSubDir) {
+		comparing++;
+		queue(sourceSubDir, () -> {
+			try {
+				compare(sourceSubDir);
+			} finally {
+				compared();
+			}
+		});
+	}
+
+	private synchronized void compared() {
+		if (--comparing == 0 && compareAgain) {
+			compareAgain = false;
+			queueCompare(foldersSynchronizer.getSourceDir());
+		}
+	}
+
+	private void queue(final Path sourceSubDir, final Runnable task) {
+		if (pending.getAndIncrement() == 0) {
+			startTime = System.currentTimeMillis();
+		}
+
+		dispatcher.accept(sourceSubDir, () -> {
+			try {
+				task.run();
+			} finally {
+				if (pending.decrementAndGet() == 0) {
+					report();
+				}
+			}
+		});
+	}
+
+	public boolean isRecovering() {
+		return pending.get() > 0;
+	}
+
+	private void recover(final Path sourceSubDir) {
+		dirty.remove(sourceSubDir);
+
+		final FileTime lastModified;
+		try {
+			lastModified = Files.getLastModifiedTime(sourceSubDir);
+		} catch (final IOException e) {
+			// Gone : the parent directory recovery or event takes care of it
+			knownTimes.remove(sourceSubDir);
+			return;
+		}
+
+		scanned.incrementAndGet();
+		for (final Path subDir : foldersSynchronizer.mergeTree(sourceSubDir)) {
+			if (hasChanged(subDir)) {
+				// On the lane of its own entries' changes
+				markDirty(subDir);
+			} else {
+				skipped.incrementAndGet();
+			}
+		}
+		knownTimes.put(sourceSubDir, lastModified);
+	}
+
+	/**
+	 * Merges a directory, then each of its sub-directories in turn whatever
+	 * their modification date.
+	 */
+	private void compare(final Path sourceSubDir) {
+		final FileTime lastModified;
+		try {
+			lastModified = Files.getLastModifiedTime(sourceSubDir);
+		} catch (final IOException e) {
+			knownTimes.remove(sourceSubDir);
+			return;
+		}
+
+		scanned.incrementAndGet();
+		for (final Path subDir : foldersSynchronizer.mergeTree(sourceSubDir)) {
+			queueCompare(subDir);
+		}
+		knownTimes.put(sourceSubDir, lastModified);
+	}
+
+	private boolean hasChanged(final Path sourceSubDir) {
+		try {
+			return !Objects.equals(knownTimes.get(sourceSubDir), Files.getLastModifiedTime(sourceSubDir));
+		} catch (final IOException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Directories merged by the last complete recovery.
+	 */
+	public long getLastScanned() {
+		return lastScanned;
+	}
+
+	/**
+	 * Directories found unchanged, and not merged, by the last complete
+	 * recovery.
+	 */
+	public long getLastSkipped() {
+		return lastSkipped;
+	}
+
+	private void report() {
+		lastScanned = scanned.getAndSet(0);
+		lastSkipped = skipped.getAndSet(0);
+		logger.info("Overflow recovery done in {} ms : {} directories rescanned, {} unchanged skipped",
+				System.currentTimeMillis() - startTime, lastScanned, lastSkipped);
+	}
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Real-time sync without a watch service, for the file systems that give no
+ * events (network and FUSE mounts) or trees too large to watch. Every source
+ * directory is polled on its own schedule : a directory whose stamp (its
+ * modification date, and its size and number of links, which follow its
+ * entries on most file systems) did not change since it was last listed is
+ * not listed again, and its next poll comes later and later. A changed
+ * directory is merged shallowly and polled often again. The cost of a poll
+ * thus follows the changes rather than the size of the tree.
+ * <p>
+ * A file rewritten in place does not change its directory : every directory
+ * is also merged once per verify interval, to catch those.
+ */
+public class PollingRealTimeSynchronizer extends Thread implements IRealTimeSynchronizer {
+
+	final Logger logger = LoggerFactory.getLogger(PollingRealTimeSynchronizer.class);
+
+	public static final long DEFAULT_MIN_INTERVAL = 1000;
+	public static final long DEFAULT_MAX_INTERVAL = 30000;
+	public static final long DEFAULT_VERIFY_INTERVAL = 10 * 60 * 1000;
+
+	/**
+	 * A directory modified this close to being listed may change again
+	 * within the same tick of a coarse clock (FAT, some network file
+	 * systems) : it is listed again at its next poll.
+	 */
+	static final long RACY_WINDOW = 2000;
+
+	private final FoldersSynchronizer foldersSynchronizer;
+
+	private final Map<Path, PolledDirectory> directories;
+	private final DelayQueue<PolledDirectory> schedule;
+
+	/** Queued to wake up and stop the polling thread */
+	private final PolledDirectory stop;
+
+	private final boolean unixAttributes;
+
+	private long minInterval = DEFAULT_MIN_INTERVAL;
+	private long maxInterval = DEFAULT_MAX_INTERVAL;
+	private long verifyInterval = DEFAULT_VERIFY_INTERVAL;
+
+	private final AtomicLong polled;
+	private final AtomicLong merged;
+
+	private volatile boolean running;
+	/** Also stops the initial sync at its next entry */
+	private volatile boolean shutdownRequested;
+
+	private final CompletableFuture<Void> ready;
+
+	public PollingRealTimeSynchronizer(final FoldersSynchronizer foldersSynchronizer) {
+		super("folder-sync-poller");
+
+		this.foldersSynchronizer = foldersSynchronizer;
+		this.directories = new ConcurrentHashMap<Path, PolledDirectory>();
+		this.schedule = new DelayQueue<PolledDirectory>();
+		this.stop = new PolledDirectory(null, 0);
+		this.unixAttributes = foldersSynchronizer.getSourceDir().getFileSystem().supportedFileAttributeViews()
+				.contains("unix");
+		this.polled = new AtomicLong();
+		this.merged = new AtomicLong();
+
+		this.running = false;
+		this.ready = new CompletableFuture<Void>();
+	}
+
+	public SyncMetrics getMetrics() {
+		return foldersSynchronizer.getMetrics();
+	}
+
+	/**
+	 * A directory is polled again after the min interval once it changed,
+	 * then after twice as long each time it did not, up to the max interval.
+	 * To be called before starting.
+	 */
+	public void setPolling(final long minIntervalMillis, final long maxIntervalMillis) {
+		this.minInterval = minIntervalMillis;
+		this.maxInterval = maxIntervalMillis;
+	}
+
+	/**
+	 * Every directory is merged at least once per the given interval, even
+	 * if unchanged, 0 to never merge unchanged directories. To be called
+	 * before starting.
+	 */
+	public void setVerifyInterval(final long verifyIntervalMillis) {
+		this.verifyInterval = verifyIntervalMillis;
+	}
+
+	/**
+	 * Number of directory polls so far.
+	 */
+	public long getPolledCount() {
+		return polled.get();
+	}
+
+	/**
+	 * Number of polls that had to merge the directory.
+	 */
+	public long getMergedCount() {
+		return merged.get();
+	}
+
+	/**
+	 * Number of directories polled.
+	 */
+	public int getDirectoryCount() {
+		return directories.size();
+	}
+
+	/**
+	 * Records the stamp of a source directory about to be listed, and starts
+	 * polling it if new.
+	 */
+	void track(final Path directory) {
+		final Stamp stamp;
+		try {
+			stamp = stampOf(directory);
+		} catch (final IOException e) {
+			logger.debug("Failed to read attributes of " + directory, e);
+			return;
+		}
+
+		final PolledDirectory known = directories.get(directory);
+		if (known != null) {
+			known.listed(stamp);
+			return;
+		}
+
+		final PolledDirectory added = new PolledDirectory(directory, minInterval);
+		added.listed(stamp);
+		added.nextPoll = System.currentTimeMillis() + minInterval;
+		if (directories.putIfAbsent(directory, added) == null) {
+			schedule.add(added);
+		}
+	}
+
+	private Stamp stampOf(final Path directory) throws IOException {
+		if (unixAttributes) {
+			final Map<String, Object> attributes = Files.readAttributes(directory,
+					"unix:lastModifiedTime,size,nlink");
+			return new Stamp(((FileTime) attributes.get("lastModifiedTime")).toMillis(), (Long) attributes
+					.get("size"), (Integer) attributes.get("nlink"));
+		}
+
+		final BasicFileAttributes attributes = Files.readAttributes(directory, BasicFileAttributes.class);
+		return new Stamp(attributes.lastModifiedTime().toMillis(), attributes.size(), 0);
+	}
+
+	private void poll(final PolledDirectory directory) {
+		final Stamp stamp;
+		try {
+			stamp = stampOf(directory.path);
+		} catch (final IOException e) {
+			// Gone : its deletion is synced with its parent
+			directories.remove(directory.path);
+			return;
+		}
+		polled.incrementAndGet();
+
+		final long now = System.currentTimeMillis();
+		final boolean changed = directory.hasChanged(stamp);
+		if (changed || verifyInterval > 0 && now - directory.lastListed >= verifyInterval) {
+			merge(directory);
+		}
+
+		directory.interval = changed ? minInterval : Math.min(directory.interval * 2, maxInterval);
+		directory.nextPoll = System.currentTimeMillis() + directory.interval;
+		schedule.add(directory);
+	}
+
+	private void merge(final PolledDirectory directory) {
+		merged.incrementAndGet();
+
+		// The merge itself records the new stamp, right before listing
+		for (final Path subDir : foldersSynchronizer.mergeTree(directory.path)) {
+			if (!directories.containsKey(subDir)) {
+				// Moved in : its content still has to be merged
+				final PolledDirectory moved = new PolledDirectory(subDir, minInterval);
+				if (directories.putIfAbsent(subDir, moved) == null) {
+					schedule.add(moved);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		foldersSynchronizer.setDirectoryListener(this::track);
+		registerMBeans();
+
+		try {
+			foldersSynchronizer.sync(() -> shutdownRequested);
+		} catch (final RuntimeException e) {
+			ready.completeExceptionally(e);
+			unregisterMBeans();
+			throw e;
+		}
+
+		if (shutdownRequested) {
+			ready.cancel(false);
+		} else {
+			running = true;
+			ready.complete(null);
+			logger.info("Polling {} directories of {}", directories.size(), foldersSynchronizer.getSourceDir());
+		}
+
+		while (running) {
+			final PolledDirectory directory;
+			try {
+				directory = schedule.take();
+			} catch (final InterruptedException e) {
+				continue;
+			}
+
+			if (directory == stop) {
+				break;
+			}
+			IoScheduler.runWith(IoScheduler.Priority.REAL_TIME, () -> poll(directory));
+		}
+		running = false;
+
+		foldersSynchronizer.saveManifest();
+		foldersSynchronizer.saveDigests();
+
+		unregisterMBeans();
+	}
+
+	private void registerMBeans() {
+		final String name = foldersSynchronizer.getSourceDir().toAbsolutePath().toString();
+		try {
+			foldersSynchronizer.getMetrics().register(name);
+			if (foldersSynchronizer.getIoScheduler() != null) {
+				foldersSynchronizer.getIoScheduler().register(name);
+			}
+		} catch (final JMException e) {
+			logger.warn("Failed to register metrics for " + name, e);
+		}
+	}
+
+	private void unregisterMBeans() {
+		try {
+			foldersSynchronizer.getMetrics().unregister();
+			if (foldersSynchronizer.getIoScheduler() != null) {
+				foldersSynchronizer.getIoScheduler().unregister();
+			}
+		} catch (final JMException e) {
+			logger.debug("Failed to unregister metrics", e);
+		}
+	}
+
+	@Override
+	public boolean isRunning() {
+		return running;
+	}
+
+	@Override
+	public CompletableFuture<Void> whenReady() {
+		return ready;
+	}
+
+	/**
+	 * The same as {@link #whenReady()} : changes are only picked up once the
+	 * initial sync is done.
+	 */
+	@Override
+	public CompletableFuture<Void> whenSynced() {
+		return ready;
+	}
+
+	/**
+	 * Stops polling once the directory being polled (if any) is done, or the
+	 * initial sync at its next entry.
+	 */
+	@Override
+	public void shutdownNow() throws InterruptedException {
+		shutdownRequested = true;
+		running = false;
+		schedule.add(stop);
+		this.join();
+	}
+
+	/**
+	 * What is cheaply known of a directory without listing it.
+	 */
+	private static class Stamp {
+
+		final long lastModified;
+		final long size;
+		final int links;
+
+		Stamp(final long lastModified, final long size, final int links) {
+			this.lastModified = lastModified;
+			this.size = size;
+			this.links = links;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Stamp)) {
+				return false;
+			}
+			final Stamp other = (Stamp) obj;
+			return lastModified == other.lastModified && size == other.size && links == other.links;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(lastModified) * 31 + Long.hashCode(size) * 17 + links;
+		}
+	}
+
+	private static class PolledDirectory implements Delayed {
+
+		final Path path;
+
+		/** Only used by the polling thread, while out of the schedule */
+		long interval;
+		long nextPoll;
+
+		/** Null until listed */
+		private Stamp stamp;
+		private boolean racy;
+		private volatile long lastListed;
+
+		PolledDirectory(final Path path, final long interval) {
+			this.path = path;
+			this.interval = interval;
+		}
+
+		/**
+		 * Called right before the directory gets listed.
+		 */
+		synchronized void listed(final Stamp stamp) {
+			final long now = System.currentTimeMillis();
+			this.stamp = stamp;
+			this.racy = now - stamp.lastModified < RACY_WINDOW;
+			this.lastListed = now;
+		}
+
+		synchronized boolean hasChanged(final Stamp current) {
+			return stamp == null || racy || !stamp.equals(current);
+		}
+
+		@Override
+		public long getDelay(final TimeUnit unit) {
+			return unit.convert(nextPoll - System.currentTimeMillis(), MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(final Delayed other) {
+			return Long.compare(nextPoll, ((PolledDirectory) other).nextPoll);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Watch and queue state of a real-time synchronizer, and the lag between a
+ * change in the source and its backup.
+ */
+public class RealTimeMetrics implements RealTimeMetricsMBean {
+
+	private final IntSupplier watchKeyCount;
+	private final IntSupplier pendingEventCount;
+	private final IntSupplier queueDepth;
+
+	private final LongAdder overflows = new LongAdder();
+	private final LongAdder events = new LongAdder();
+
+	/** Milliseconds from the first event for a path to its sync */
+	private final Histogram lag = new Histogram();
+
+	private ObjectName objectName;
+
+	RealTimeMetrics(final IntSupplier watchKeyCount, final IntSupplier pendingEventCount,
+			final IntSupplier queueDepth) {
+		this.watchKeyCount = watchKeyCount;
+		this.pendingEventCount = pendingEventCount;
+		this.queueDepth = queueDepth;
+	}
+
+	void overflowed() {
+		overflows.increment();
+	}
+
+	void synced(final long firstSeen) {
+		events.increment();
+		lag.record(System.currentTimeMillis() - firstSeen);
+	}
+
+	public Histogram.Snapshot getLag() {
+		return lag.snapshot();
+	}
+
+	/**
+	 * Registers these metrics in the platform MBean server under the given
+	 * name (the source folder, typically).
+	 */
+	public synchronized void register(final String name) throws JMException {
+		unregister();
+		objectName = new ObjectName(SyncMetrics.JMX_DOMAIN + ":type=RealTimeMetrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+	}
+
+	public synchronized void unregister() throws JMException {
+		if (objectName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			objectName = null;
+		}
+	}
+
+	@Override
+	public int getWatchKeyCount() {
+		return watchKeyCount.getAsInt();
+	}
+
+	@Override
+	public int getPendingEventCount() {
+		return pendingEventCount.getAsInt();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return queueDepth.getAsInt();
+	}
+
+	@Override
+	public long getOverflowCount() {
+		return overflows.sum();
+	}
+
+	@Override
+	public long getEventCount() {
+		return events.sum();
+	}
+
+	@Override
+	public long getLagMeanMillis() {
+		return lag.snapshot().getMean();
+	}
+
+	@Override
+	public long getLagP99Millis() {
+		return lag.snapshot().getPercentile(99);
+	}
+
+	@Override
+	public long getLagMaxMillis() {
+		return lag.snapshot().getMax();
+	}
+}
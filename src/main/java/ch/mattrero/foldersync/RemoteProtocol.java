@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.GeneralSecurityException;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Messages exchanged between a {@link RemoteSynchronizer} and a
+ * {@link SyncReceiver} over one TCP connection. Each message is a type byte,
+ * an id and its fields; the content of a file follows its header as chunks
+ * (raw length, then payload length and payload, deflated when smaller), up
+ * to an empty chunk. The receiver answers in the order of the requests.
+ * <p>
+ * Handshake : the sender writes the magic number and the version, the
+ * receiver answers with the magic number and a random challenge, which the
+ * sender signs with the shared secret (HMAC-SHA256). The receiver welcomes a
+ * valid signature and drops the connection otherwise.
+ */
+final class RemoteProtocol {
+
+	static final int MAGIC = 0x46535231;
+	static final int VERSION = 2;
+
+	static final int CHALLENGE_LENGTH = 32;
+	static final String MAC_ALGORITHM = "HmacSHA256";
+	/** Time given to a sender to authenticate */
+	static final int HANDSHAKE_TIMEOUT = 10000;
+
+	/** Sender to receiver : id, relative path */
+	static final byte LIST = 'L';
+	/** Sender to receiver : id, relative path */
+	static final byte MKDIR = 'M';
+	/** Sender to receiver : id, relative path, modification date, permissions, chunks */
+	static final byte FILE = 'F';
+	/** Sender to receiver : id, relative path, modification date, permissions */
+	static final byte TOUCH = 'T';
+	/** Sender to receiver : id, relative path */
+	static final byte DELETE = 'D';
+	/** Both ways : no more requests, then no more answers */
+	static final byte END = 'E';
+
+	/** Receiver to sender : the signature of the challenge is valid */
+	static final byte WELCOME = 'w';
+	/** Receiver to sender : id, last batch, count, then name, directory, size and modification date */
+	static final byte LISTING = 'l';
+	/** Receiver to sender : every request up to the id is done */
+	static final byte ACK = 'a';
+	/** Receiver to sender : id, error message */
+	static final byte NACK = 'n';
+
+	static final int BUFFER_SIZE = 64 * 1024;
+	static final int CHUNK_SIZE = 256 * 1024;
+	static final int LISTING_BATCH = 1024;
+
+	static final int END_OF_DATA = 0;
+	/** The sender failed to read the file */
+	static final int ABORTED = -1;
+	static final int NO_PERMISSIONS = -1;
+
+	private static final PosixFilePermission[] PERMISSIONS = PosixFilePermission.values();
+
+	private RemoteProtocol() {
+	}
+
+	/**
+	 * Signature of a challenge with the shared secret, an empty one if null.
+	 */
+	static byte[] sign(final byte[] secret, final byte[] challenge) throws IOException {
+		try {
+			final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			// HMAC pads its key with zeros : the same as an empty key, which the key spec refuses
+			mac.init(new SecretKeySpec(secret == null || secret.length == 0 ? new byte[1] : secret,
+					MAC_ALGORITHM));
+			return mac.doFinal(challenge);
+		} catch (final GeneralSecurityException e) {
+			throw new IOException("Failed to sign the challenge", e);
+		}
+	}
+
+	/**
+	 * Writes a chunk, deflated if a deflater is given and it makes it smaller.
+	 */
+	static void writeChunk(final DataOutputStream out, final byte[] data, final int length, final Deflater deflater,
+			final byte[] deflated) throws IOException {
+		out.writeInt(length);
+
+		if (deflater != null) {
+			deflater.reset();
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			final int deflatedLength = deflater.deflate(deflated);
+			if (deflater.finished() && deflatedLength < length) {
+				out.writeInt(deflatedLength);
+				out.write(deflated, 0, deflatedLength);
+				return;
+			}
+		}
+
+		out.writeInt(length);
+		out.write(data, 0, length);
+	}
+
+	/**
+	 * Reads a chunk into the data buffer.
+	 *
+	 * @return its length, {@link #END_OF_DATA} or {@link #ABORTED}
+	 */
+	static int readChunk(final DataInputStream in, final byte[] data, final Inflater inflater, final byte[] deflated)
+			throws IOException {
+		final int length = in.readInt();
+		if (length <= 0) {
+			return length;
+		}
+		if (length > data.length) {
+			throw new IOException("Chunk too large : " + length);
+		}
+
+		final int payloadLength = in.readInt();
+		if (payloadLength == length) {
+			in.readFully(data, 0, length);
+			return length;
+		}
+		if (payloadLength < 0 || payloadLength > deflated.length) {
+			throw new IOException("Invalid chunk payload : " + payloadLength);
+		}
+
+		in.readFully(deflated, 0, payloadLength);
+		inflater.reset();
+		inflater.setInput(deflated, 0, payloadLength);
+		try {
+			if (inflater.inflate(data, 0, length) != length) {
+				throw new IOException("Truncated chunk");
+			}
+		} catch (final DataFormatException e) {
+			throw new IOException("Corrupted chunk", e);
+		}
+		return length;
+	}
+
+	/**
+	 * POSIX permissions of a file as bits, {@link #NO_PERMISSIONS} where not
+	 * supported.
+	 */
+	static int readPermissions(final Path item) throws IOException {
+		final PosixFileAttributeView view = Files.getFileAttributeView(item, PosixFileAttributeView.class);
+		if (view == null) {
+			return NO_PERMISSIONS;
+		}
+
+		int bits = 0;
+		for (final PosixFilePermission permission : view.readAttributes().permissions()) {
+			bits |= 1 << permission.ordinal();
+		}
+		return bits;
+	}
+
+	static void setAttributes(final Path item, final long lastModified, final int permissions) throws IOException {
+		if (permissions != NO_PERMISSIONS) {
+			final PosixFileAttributeView view = Files.getFileAttributeView(item, PosixFileAttributeView.class);
+			if (view != null) {
+				final Set<PosixFilePermission> set = EnumSet.noneOf(PosixFilePermission.class);
+				for (final PosixFilePermission permission : PERMISSIONS) {
+					if ((permissions & 1 << permission.ordinal()) != 0) {
+						set.add(permission);
+					}
+				}
+				view.setPermissions(set);
+			}
+		}
+
+		Files.setLastModifiedTime(item, FileTime.fromMillis(lastModified));
+	}
+}
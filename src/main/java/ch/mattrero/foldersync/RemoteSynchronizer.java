@@ -0,0 +1,620 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static ch.mattrero.foldersync.SyncStatus.ADDED;
+import static ch.mattrero.foldersync.SyncStatus.DELETED;
+import static ch.mattrero.foldersync.SyncStatus.MODIFIED;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Syncs a source folder into the backup folder of a {@link SyncReceiver}
+ * over a single TCP connection. The backup directories are listed by the
+ * receiver by batches, requested ahead of the merge; the changes are sent
+ * without waiting for each one to be applied (the receiver acknowledges them
+ * as a whole, reporting only the failures), so that the link stays busy
+ * instead of waiting out a round trip per file.
+ */
+public class RemoteSynchronizer {
+
+	final Logger logger = LoggerFactory.getLogger(RemoteSynchronizer.class);
+
+	/** Listings of subdirectories requested ahead of the one being merged */
+	static final int LISTING_WINDOW = 64;
+
+	private static final Entry[] END_OF_LISTING = new Entry[0];
+	private static final Entry[] LISTING_FAILED = new Entry[0];
+
+	private final Path sourceDir;
+	private final String host;
+	private final int port;
+	private final SyncFilter filter;
+
+	private final SyncMetrics metrics = new SyncMetrics();
+
+	private volatile boolean compress = false;
+
+	private volatile byte[] secret;
+
+	public RemoteSynchronizer(final Path sourceDir, final String host, final int port) {
+		this(sourceDir, host, port, SyncFilter.NONE);
+	}
+
+	public RemoteSynchronizer(final Path sourceDir, final String host, final int port, final SyncFilter filter) {
+		this.sourceDir = sourceDir;
+		this.host = host;
+		this.port = port;
+		this.filter = filter;
+	}
+
+	public Path getSourceDir() {
+		return sourceDir;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public SyncMetrics getMetrics() {
+		return metrics;
+	}
+
+	public boolean isCompress() {
+		return compress;
+	}
+
+	/**
+	 * Deflates the content of the files sent (disabled by default), for slow
+	 * links.
+	 */
+	public void setCompress(final boolean compress) {
+		this.compress = compress;
+	}
+
+	/**
+	 * The secret shared with the receiver, none by default (as a receiver
+	 * listening on the loopback interface only expects).
+	 */
+	public void setSecret(final byte[] secret) {
+		this.secret = secret == null ? null : secret.clone();
+	}
+
+	/**
+	 * @return what this sync did, the failures including the changes the
+	 *         receiver failed to apply
+	 */
+	public synchronized SyncReport sync() throws IOException {
+		final SyncReport before = metrics.report();
+
+		try (Socket socket = new Socket(host, port)) {
+			socket.setTcpNoDelay(true);
+			new Session(socket).run();
+		}
+
+		return metrics.report().since(before);
+	}
+
+	private boolean isExcluded(final Path sourceItem, final BasicFileAttributes attributes) {
+		if (filter.isEmpty()) {
+			return false;
+		}
+		return filter.isExcluded(sourceDir.relativize(sourceItem), attributes);
+	}
+
+	private static String childPath(final String relativePath, final String name) {
+		return relativePath.isEmpty() ? name : relativePath + "/" + name;
+	}
+
+	/**
+	 * A backup entry, as listed by the receiver.
+	 */
+	private static class Entry {
+
+		final byte[] name;
+		final BackupManifest.Entry attributes;
+
+		Entry(final byte[] name, final BackupManifest.Entry attributes) {
+			this.name = name;
+			this.attributes = attributes;
+		}
+	}
+
+	/**
+	 * A change sent, until the receiver acknowledges it.
+	 */
+	private static class Pending {
+
+		final int id;
+		/** Null for the content of a new directory, counted with it */
+		final SyncStatus status;
+		boolean failed;
+
+		Pending(final int id, final SyncStatus status) {
+			this.id = id;
+			this.status = status;
+		}
+	}
+
+	private class Session {
+
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+
+		private final Deflater deflater;
+		private final byte[] buffer = new byte[RemoteProtocol.CHUNK_SIZE];
+		private final byte[] deflated = new byte[RemoteProtocol.CHUNK_SIZE];
+
+		private final Map<Integer, Listing> listings = new ConcurrentHashMap<Integer, Listing>();
+		private final Deque<Pending> pending = new ArrayDeque<Pending>();
+		private int nextId = 1;
+
+		private volatile IOException failure;
+
+		Session(final Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(),
+					RemoteProtocol.BUFFER_SIZE));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+					RemoteProtocol.BUFFER_SIZE));
+			this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+		}
+
+		void run() throws IOException {
+			out.writeInt(RemoteProtocol.MAGIC);
+			out.writeInt(RemoteProtocol.VERSION);
+			out.flush();
+			if (in.readInt() != RemoteProtocol.MAGIC) {
+				throw new IOException("Not a sync receiver : " + host + ":" + port);
+			}
+			final byte[] challenge = new byte[RemoteProtocol.CHALLENGE_LENGTH];
+			in.readFully(challenge);
+			out.write(RemoteProtocol.sign(secret, challenge));
+			out.flush();
+			try {
+				if (in.readByte() != RemoteProtocol.WELCOME) {
+					throw new IOException("Unexpected answer from " + host + ":" + port);
+				}
+			} catch (final EOFException e) {
+				throw new IOException("Refused by the receiver " + host + ":" + port + " (wrong secret ?)", e);
+			}
+
+			final Thread reader = new Thread(this::readAnswers, "folder-sync-remote-" + host + ":" + port);
+			reader.setDaemon(true);
+			reader.start();
+
+			try {
+				syncDirectory(sourceDir, "", requestListing(""));
+				out.writeByte(RemoteProtocol.END);
+				out.flush();
+				reader.join();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted sync to " + host + ":" + port);
+			} catch (final IOException e) {
+				throw failure != null ? failure : e;
+			} finally {
+				if (deflater != null) {
+					deflater.end();
+				}
+			}
+
+			if (failure != null) {
+				throw failure;
+			}
+		}
+
+		/**
+		 * Merges a source directory with its backup, both read in the byte
+		 * order of the names, then goes down the directories found on both
+		 * sides.
+		 */
+		private void syncDirectory(final Path directory, final String relativePath, final Listing listing)
+				throws IOException {
+			final List<String> subDirs = new ArrayList<String>();
+
+			SortedNames names;
+			try {
+				names = SortedNames.list(directory, SortedNames.DEFAULT_MEMORY_LIMIT);
+			} catch (final IOException e) {
+				logger.warn("Failed to list " + directory, e);
+				metrics.applied(MODIFIED, false);
+				return;
+			}
+
+			try {
+				byte[] name = names.next();
+				Entry backupEntry = listing.next();
+
+				while (name != null || backupEntry != null) {
+					final int order = name == null ? 1 : backupEntry == null ? -1 : SortedNames.compare(name,
+							backupEntry.name);
+
+					if (order > 0) {
+						final Path sourceItem = directory.resolve(SortedNames.toString(backupEntry.name));
+						if (!isExcluded(sourceItem, backupEntry.attributes)) {
+							delete(childPath(relativePath, SortedNames.toString(backupEntry.name)));
+						}
+						backupEntry = listing.next();
+						continue;
+					}
+
+					final String entryName = SortedNames.toString(name);
+					final BackupManifest.Entry backupAttributes = order == 0 ? backupEntry.attributes : null;
+					if (syncItem(directory.resolve(entryName), childPath(relativePath, entryName),
+							backupAttributes)) {
+						subDirs.add(entryName);
+					}
+
+					name = names.next();
+					if (order == 0) {
+						backupEntry = listing.next();
+					}
+				}
+			} finally {
+				names.close();
+			}
+
+			final Deque<Listing> requested = new ArrayDeque<Listing>();
+			int next = 0;
+			for (int i = 0; i < subDirs.size(); i++) {
+				while (next < subDirs.size() && next < i + LISTING_WINDOW) {
+					requested.add(requestListing(childPath(relativePath, subDirs.get(next++))));
+				}
+				syncDirectory(directory.resolve(subDirs.get(i)), childPath(relativePath, subDirs.get(i)),
+						requested.poll());
+			}
+		}
+
+		/**
+		 * Sends what the source item needs.
+		 *
+		 * @return whether it is a directory also in the backup, to go down
+		 */
+		private boolean syncItem(final Path sourceItem, final String relativePath,
+				final BasicFileAttributes backupAttributes) throws IOException {
+			final BasicFileAttributes attributes;
+			try {
+				attributes = Files.readAttributes(sourceItem, BasicFileAttributes.class);
+			} catch (final IOException e) {
+				// Deleted meanwhile : the next sync removes its backup
+				logger.debug("Failed to read attributes of " + sourceItem, e);
+				return false;
+			}
+
+			metrics.scanned();
+			if (isExcluded(sourceItem, attributes)) {
+				return false;
+			}
+
+			if (backupAttributes == null) {
+				send(sourceItem, attributes, relativePath, ADDED);
+			} else if (attributes.isDirectory() != backupAttributes.isDirectory()) {
+				send(sourceItem, attributes, relativePath, MODIFIED);
+			} else if (attributes.isDirectory()) {
+				return true;
+			} else if (attributes.lastModifiedTime().toMillis() != backupAttributes.lastModifiedTime().toMillis()
+					|| attributes.size() != backupAttributes.size()) {
+				send(sourceItem, attributes, relativePath, MODIFIED);
+			}
+			return false;
+		}
+
+		private void send(final Path sourceItem, final BasicFileAttributes attributes, final String relativePath,
+				final SyncStatus status) throws IOException {
+			if (attributes.isDirectory()) {
+				sendDirectory(sourceItem, attributes, relativePath, status);
+			} else {
+				sendFile(sourceItem, attributes, relativePath, status);
+			}
+		}
+
+		/**
+		 * Sends a directory missing in the backup and all its content, without
+		 * listing the backup.
+		 */
+		private void sendDirectory(final Path directory, final BasicFileAttributes attributes,
+				final String relativePath, final SyncStatus status) throws IOException {
+			out.writeByte(RemoteProtocol.MKDIR);
+			out.writeInt(begin(status));
+			out.writeUTF(relativePath);
+
+			DirectoryStream<Path> entries = null;
+			try {
+				entries = Files.newDirectoryStream(directory);
+			} catch (final IOException e) {
+				logger.warn("Failed to list " + directory, e);
+				metrics.applied(status, false);
+			}
+			if (entries != null) {
+				try (DirectoryStream<Path> stream = entries) {
+					sendEntries(stream, relativePath);
+				} catch (final DirectoryIteratorException e) {
+					logger.warn("Failed to list " + directory, e.getCause());
+					metrics.applied(status, false);
+				}
+			}
+
+			// Once its content is written
+			out.writeByte(RemoteProtocol.TOUCH);
+			out.writeInt(begin(null));
+			out.writeUTF(relativePath);
+			out.writeLong(attributes.lastModifiedTime().toMillis());
+			out.writeInt(permissionsOf(directory));
+		}
+
+		private void sendEntries(final DirectoryStream<Path> entries, final String relativePath) throws IOException {
+			for (final Path entry : entries) {
+				final BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+				} catch (final IOException e) {
+					logger.debug("Failed to read attributes of " + entry, e);
+					continue;
+				}
+
+				metrics.scanned();
+				if (!isExcluded(entry, attributes)) {
+					send(entry, attributes, childPath(relativePath, entry.getFileName().toString()), null);
+				}
+			}
+		}
+
+		private void sendFile(final Path file, final BasicFileAttributes attributes, final String relativePath,
+				final SyncStatus status) throws IOException {
+			out.writeByte(RemoteProtocol.FILE);
+			out.writeInt(begin(status));
+			out.writeUTF(relativePath);
+			out.writeLong(attributes.lastModifiedTime().toMillis());
+
+			out.writeInt(permissionsOf(file));
+
+			final FileChannel channel;
+			try {
+				channel = FileChannel.open(file, READ);
+			} catch (final IOException e) {
+				logger.warn("Failed to read " + file, e);
+				out.writeInt(RemoteProtocol.ABORTED);
+				return;
+			}
+
+			final long start = System.nanoTime();
+			long sent = 0;
+			try (FileChannel in = channel) {
+				while (true) {
+					final int length;
+					try {
+						length = read(in);
+					} catch (final IOException e) {
+						logger.warn("Failed to read " + file, e);
+						out.writeInt(RemoteProtocol.ABORTED);
+						return;
+					}
+					if (length == 0) {
+						break;
+					}
+					RemoteProtocol.writeChunk(out, buffer, length, deflater, deflated);
+					sent += length;
+				}
+			}
+
+			out.writeInt(RemoteProtocol.END_OF_DATA);
+			metrics.copied(sent, System.nanoTime() - start);
+		}
+
+		private int permissionsOf(final Path sourceItem) {
+			try {
+				return RemoteProtocol.readPermissions(sourceItem);
+			} catch (final IOException e) {
+				logger.debug("Failed to read permissions of " + sourceItem, e);
+				return RemoteProtocol.NO_PERMISSIONS;
+			}
+		}
+
+		/**
+		 * Fills the buffer from the file, unless at its end.
+		 */
+		private int read(final FileChannel channel) throws IOException {
+			final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+			while (byteBuffer.hasRemaining() && channel.read(byteBuffer) >= 0) {
+				continue;
+			}
+			return byteBuffer.position();
+		}
+
+		private void delete(final String relativePath) throws IOException {
+			out.writeByte(RemoteProtocol.DELETE);
+			out.writeInt(begin(DELETED));
+			out.writeUTF(relativePath);
+		}
+
+		private int begin(final SyncStatus status) {
+			final int id = nextId++;
+			synchronized (pending) {
+				pending.add(new Pending(id, status));
+			}
+			return id;
+		}
+
+		private Listing requestListing(final String relativePath) throws IOException {
+			final int id = nextId++;
+			final Listing listing = new Listing();
+			listings.put(id, listing);
+
+			out.writeByte(RemoteProtocol.LIST);
+			out.writeInt(id);
+			out.writeUTF(relativePath);
+			return listing;
+		}
+
+		/**
+		 * Reads the answers of the receiver, in its own thread.
+		 */
+		private void readAnswers() {
+			try {
+				while (true) {
+					final byte type = in.readByte();
+					if (type == RemoteProtocol.LISTING) {
+						readListing();
+					} else if (type == RemoteProtocol.ACK) {
+						acknowledged(in.readInt());
+					} else if (type == RemoteProtocol.NACK) {
+						failed(in.readInt(), in.readUTF());
+					} else if (type == RemoteProtocol.END) {
+						return;
+					} else {
+						throw new IOException("Unexpected answer " + type);
+					}
+				}
+			} catch (final IOException e) {
+				failure = e;
+				for (final Listing listing : listings.values()) {
+					listing.batches.add(LISTING_FAILED);
+				}
+				try {
+					// Unblocks the sending thread
+					socket.close();
+				} catch (final IOException closeException) {
+					logger.debug("Failed to close connection to " + host + ":" + port, closeException);
+				}
+			}
+		}
+
+		private void readListing() throws IOException {
+			final int id = in.readInt();
+			final boolean last = in.readBoolean();
+			final Entry[] batch = new Entry[in.readInt()];
+			for (int i = 0; i < batch.length; i++) {
+				final byte[] name = new byte[in.readUnsignedShort()];
+				in.readFully(name);
+				batch[i] = new Entry(name, new BackupManifest.Entry(in.readBoolean(), in.readLong(), in.readLong()));
+			}
+
+			final Listing listing = last ? listings.remove(id) : listings.get(id);
+			if (listing == null) {
+				throw new IOException("Unexpected listing " + id);
+			}
+			listing.batches.add(batch);
+			if (last) {
+				listing.batches.add(END_OF_LISTING);
+			}
+		}
+
+		private void acknowledged(final int id) {
+			synchronized (pending) {
+				while (!pending.isEmpty() && pending.peek().id <= id) {
+					final Pending change = pending.poll();
+					if (change.failed) {
+						metrics.applied(change.status, false);
+					} else if (change.status != null) {
+						metrics.applied(change.status, true);
+					}
+				}
+			}
+		}
+
+		private void failed(final int id, final String message) {
+			logger.warn("Failed to sync {} to {}:{}", message, host, port);
+			synchronized (pending) {
+				for (final Pending change : pending) {
+					if (change.id == id) {
+						change.failed = true;
+						break;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Entries of a backup directory, filled by the reading thread.
+		 */
+		private class Listing {
+
+			final BlockingQueue<Entry[]> batches = new LinkedBlockingQueue<Entry[]>();
+
+			private Entry[] batch = new Entry[0];
+			private int index = 0;
+
+			/**
+			 * The next entry, null once all have been read.
+			 */
+			Entry next() throws IOException {
+				while (index == batch.length) {
+					if (batch == END_OF_LISTING) {
+						return null;
+					}
+
+					Entry[] next = batches.poll();
+					if (next == null) {
+						// Waiting for the receiver : the requests must go out
+						out.flush();
+						if (failure != null && batches.isEmpty()) {
+							throw new IOException("Connection to " + host + ":" + port + " lost", failure);
+						}
+						try {
+							next = batches.take();
+						} catch (final InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new InterruptedIOException("Interrupted sync to " + host + ":" + port);
+						}
+					}
+					if (next == LISTING_FAILED) {
+						throw new IOException("Connection to " + host + ":" + port + " lost", failure);
+					}
+
+					batch = next;
+					index = 0;
+				}
+
+				return batch[index++];
+			}
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.time.LocalDateTime;
+import java.time.temporal.IsoFields;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Which snapshots to keep : the last ones, then the last one of each of the
+ * most recent days, weeks and months which have one.
+ */
+public class RetentionPolicy {
+
+	public static final RetentionPolicy DEFAULT = new RetentionPolicy(1, 7, 4, 12);
+
+	private final int keepLast;
+	private final int keepDaily;
+	private final int keepWeekly;
+	private final int keepMonthly;
+
+	/**
+	 * @param keepLast
+	 *            number of most recent snapshots to keep, at least 1
+	 */
+	public RetentionPolicy(final int keepLast, final int keepDaily, final int keepWeekly, final int keepMonthly) {
+		if (keepLast < 1 || keepDaily < 0 || keepWeekly < 0 || keepMonthly < 0) {
+			throw new IllegalArgumentException("At least the last snapshot must be kept, and no count be negative");
+		}
+
+		this.keepLast = keepLast;
+		this.keepDaily = keepDaily;
+		this.keepWeekly = keepWeekly;
+		this.keepMonthly = keepMonthly;
+	}
+
+	/**
+	 * Reads a policy such as "last=3,daily=7,weekly=4,monthly=12", a missing
+	 * count being the one of {@link #DEFAULT}.
+	 */
+	public static RetentionPolicy parse(final String rules) {
+		final Map<String, Integer> counts = new TreeMap<String, Integer>();
+		for (final String rule : rules.split(",")) {
+			final String[] parts = rule.trim().split("=");
+			if (parts.length != 2) {
+				throw new IllegalArgumentException("Invalid retention rule : " + rule);
+			}
+			counts.put(parts[0].trim(), Integer.valueOf(parts[1].trim()));
+		}
+
+		final RetentionPolicy policy = new RetentionPolicy(remove(counts, "last", DEFAULT.keepLast), remove(counts,
+				"daily", DEFAULT.keepDaily), remove(counts, "weekly", DEFAULT.keepWeekly), remove(counts, "monthly",
+				DEFAULT.keepMonthly));
+		if (!counts.isEmpty()) {
+			throw new IllegalArgumentException("Unknown retention rules : " + counts.keySet());
+		}
+		return policy;
+	}
+
+	private static int remove(final Map<String, Integer> counts, final String name, final int defaultCount) {
+		final Integer count = counts.remove(name);
+		return count == null ? defaultCount : count;
+	}
+
+	public int getKeepLast() {
+		return keepLast;
+	}
+
+	public int getKeepDaily() {
+		return keepDaily;
+	}
+
+	public int getKeepWeekly() {
+		return keepWeekly;
+	}
+
+	public int getKeepMonthly() {
+		return keepMonthly;
+	}
+
+	/**
+	 * @return the snapshots to delete, oldest first
+	 */
+	public <T> List<T> expired(final NavigableMap<LocalDateTime, T> snapshots) {
+		final Set<LocalDateTime> kept = new HashSet<LocalDateTime>();
+
+		int last = 0;
+		for (final LocalDateTime time : snapshots.descendingKeySet()) {
+			if (last++ < keepLast) {
+				kept.add(time);
+			}
+		}
+		keepLastOf(snapshots, keepDaily, time -> time.toLocalDate(), kept);
+		keepLastOf(snapshots, keepWeekly, time -> time.get(IsoFields.WEEK_BASED_YEAR) * 100
+				+ time.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR), kept);
+		keepLastOf(snapshots, keepMonthly, time -> time.getYear() * 100 + time.getMonthValue(), kept);
+
+		final List<T> expired = new ArrayList<T>();
+		for (final Map.Entry<LocalDateTime, T> snapshot : snapshots.entrySet()) {
+			if (!kept.contains(snapshot.getKey())) {
+				expired.add(snapshot.getValue());
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * Keeps the last snapshot of each of the given number of most recent
+	 * periods.
+	 */
+	private static void keepLastOf(final NavigableMap<LocalDateTime, ?> snapshots, final int count,
+			final Function<LocalDateTime, Object> period, final Set<LocalDateTime> kept) {
+		final Set<Object> periods = new HashSet<Object>();
+		for (final LocalDateTime time : snapshots.descendingKeySet()) {
+			if (periods.size() >= count) {
+				return;
+			}
+			if (periods.add(period.apply(time))) {
+				kept.add(time);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "last=" + keepLast + ",daily=" + keepDaily + ",weekly=" + keepWeekly + ",monthly=" + keepMonthly;
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Point-in-time backups : each sync writes a new snapshot directory, named
+ * after its date (UTC), in the backup folder. The files unchanged since the
+ * previous snapshot (same modification date and size, or content in checksum
+ * mode) are hard-linked from it, so that a snapshot only costs the changed bytes, and the snapshots
+ * beyond the retention policy are pruned.
+ */
+public class SnapshotSynchronizer {
+
+	final Logger logger = LoggerFactory.getLogger(SnapshotSynchronizer.class);
+
+	public static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd_HHmmss");
+
+	private final Path sourceDir;
+	private final Path backupDir;
+	private final SyncFilter filter;
+
+	private RetentionPolicy retentionPolicy = RetentionPolicy.DEFAULT;
+
+	private IoScheduler ioScheduler;
+
+	private DigestStore digestStore;
+
+	public SnapshotSynchronizer(final Path sourceDir, final Path backupDir, final SyncFilter filter) {
+		this.sourceDir = sourceDir;
+		this.backupDir = backupDir;
+		this.filter = filter;
+	}
+
+	public SnapshotSynchronizer(final Path sourceDir, final Path backupDir) {
+		this(sourceDir, backupDir, SyncFilter.NONE);
+	}
+
+	/**
+	 * Writes a new snapshot of the source, then prunes the old ones.
+	 *
+	 * @return what this sync did, the linked files not counted as copied
+	 */
+	public SyncReport sync() throws IOException {
+		return sync(LocalDateTime.now(ZoneOffset.UTC));
+	}
+
+	SyncReport sync(final LocalDateTime time) throws IOException {
+		Files.createDirectories(backupDir);
+		removeIncomplete();
+
+		final Path previous = getLatestSnapshot();
+		final Path snapshot = backupDir.resolve(NAME_FORMAT.format(time.truncatedTo(ChronoUnit.SECONDS)));
+		if (Files.exists(snapshot)) {
+			throw new FileAlreadyExistsException(snapshot.toString(), null, "Snapshot already taken");
+		}
+
+		// Written aside, so that an interrupted snapshot is never linked from
+		final Path temp = ChannelCopyEngine.tempPathFor(snapshot);
+		Files.createDirectory(temp);
+
+		final FoldersSynchronizer synchronizer = new FoldersSynchronizer(sourceDir, temp, filter);
+		final ChannelCopyEngine channelCopyEngine = new ChannelCopyEngine();
+		if (previous != null) {
+			final FoldersSynchronizer reference = new FoldersSynchronizer(sourceDir, previous, filter);
+			reference.setDigestStore(digestStore);
+			synchronizer.setCopyEngine(new LinkDestCopyEngine(reference, channelCopyEngine));
+		} else {
+			synchronizer.setCopyEngine(channelCopyEngine);
+		}
+		channelCopyEngine.setIoScheduler(ioScheduler);
+		synchronizer.setIoScheduler(ioScheduler);
+
+		final SyncReport report = synchronizer.sync();
+		if (digestStore != null) {
+			try {
+				digestStore.save();
+			} catch (final IOException e) {
+				logger.warn("Failed to save digests", e);
+			}
+		}
+
+		ChannelCopyEngine.copyAttributes(sourceDir, temp);
+		ChannelCopyEngine.publish(temp, snapshot);
+		logger.info("Took snapshot " + snapshot + (previous == null ? "" : ", linked to " + previous));
+
+		prune();
+
+		return report;
+	}
+
+	/**
+	 * Deletes the snapshots left half-written by interrupted syncs.
+	 */
+	private void removeIncomplete() throws IOException {
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(backupDir)) {
+			for (final Path entry : entries) {
+				if (ChannelCopyEngine.isTempPath(entry) && Files.isDirectory(entry)) {
+					logger.info("Removing incomplete snapshot " + entry);
+					FileUtils.deleteQuietly(entry.toFile());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes the snapshots the retention policy does not keep, which only
+	 * frees the files not linked from the kept ones.
+	 */
+	public void prune() throws IOException {
+		for (final Path expired : retentionPolicy.expired(listSnapshots())) {
+			logger.info("Pruning snapshot " + expired);
+			FileUtils.deleteDirectory(expired.toFile());
+		}
+	}
+
+	/**
+	 * @return the complete snapshots, oldest first
+	 */
+	public List<Path> getSnapshots() throws IOException {
+		return new ArrayList<Path>(listSnapshots().values());
+	}
+
+	/**
+	 * @return the most recent complete snapshot, null if none
+	 */
+	public Path getLatestSnapshot() throws IOException {
+		final NavigableMap<LocalDateTime, Path> snapshots = listSnapshots();
+		return snapshots.isEmpty() ? null : snapshots.lastEntry().getValue();
+	}
+
+	private NavigableMap<LocalDateTime, Path> listSnapshots() throws IOException {
+		final NavigableMap<LocalDateTime, Path> snapshots = new TreeMap<LocalDateTime, Path>();
+		if (!Files.isDirectory(backupDir)) {
+			return snapshots;
+		}
+
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(backupDir)) {
+			for (final Path entry : entries) {
+				try {
+					final LocalDateTime time = LocalDateTime.parse(entry.getFileName().toString(), NAME_FORMAT);
+					if (Files.isDirectory(entry)) {
+						snapshots.put(time, entry);
+					}
+				} catch (final DateTimeParseException e) {
+					// Not a snapshot
+				}
+			}
+		}
+
+		return snapshots;
+	}
+
+	public RetentionPolicy getRetentionPolicy() {
+		return retentionPolicy;
+	}
+
+	public void setRetentionPolicy(final RetentionPolicy retentionPolicy) {
+		this.retentionPolicy = retentionPolicy;
+	}
+
+	public IoScheduler getIoScheduler() {
+		return ioScheduler;
+	}
+
+	/**
+	 * Paces the copies and the other I/O of the snapshots, null (the default)
+	 * to run at full speed.
+	 */
+	public void setIoScheduler(final IoScheduler ioScheduler) {
+		this.ioScheduler = ioScheduler;
+	}
+
+	public DigestStore getDigestStore() {
+		return digestStore;
+	}
+
+	/**
+	 * Compares the files with the previous snapshot by content digest before
+	 * linking them, null (the default) to compare by date and size.
+	 */
+	public void setDigestStore(final DigestStore digestStore) {
+		this.digestStore = digestStore;
+	}
+
+	public Path getSourceDir() {
+		return sourceDir;
+	}
+
+	public Path getBackupDir() {
+		return backupDir;
+	}
+}
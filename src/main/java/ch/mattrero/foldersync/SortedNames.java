@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Names of the entries of a directory, read in byte order. The names are kept
+ * as compact UTF-8 bytes and, once they exceed a memory limit, sorted by runs
+ * spilled to temporary files which are then merged, so that even a directory
+ * of millions of entries is read with a flat heap.
+ */
+public class SortedNames implements Closeable {
+
+	public static final long DEFAULT_MEMORY_LIMIT = 32 * 1024 * 1024;
+
+	/** Estimated heap used by a name beyond its bytes */
+	private static final int ENTRY_OVERHEAD = 32;
+
+	private final long memoryLimit;
+
+	private final List<byte[]> buffer;
+	private long bufferMemory;
+	private int bufferIndex;
+
+	private final List<Run> runs;
+	private final PriorityQueue<Run> heads;
+
+	private SortedNames(final long memoryLimit) {
+		this.memoryLimit = memoryLimit;
+		this.buffer = new ArrayList<byte[]>();
+		this.bufferMemory = 0;
+		this.bufferIndex = 0;
+		this.runs = new ArrayList<Run>();
+		this.heads = new PriorityQueue<Run>((run1, run2) -> compare(run1.current, run2.current));
+	}
+
+	/**
+	 * Names of the entries of the given directory.
+	 */
+	public static SortedNames list(final Path directory, final long memoryLimit) throws IOException {
+		final SortedNames names = new SortedNames(memoryLimit);
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (final Path entry : stream) {
+				names.add(entry.getFileName().toString().getBytes(UTF_8));
+			}
+			names.finish();
+		} catch (final DirectoryIteratorException e) {
+			names.close();
+			throw e.getCause();
+		} catch (final IOException | RuntimeException e) {
+			names.close();
+			throw e;
+		}
+
+		return names;
+	}
+
+	public static SortedNames of(final Collection<String> entryNames, final long memoryLimit) throws IOException {
+		final SortedNames names = new SortedNames(memoryLimit);
+
+		try {
+			for (final String name : entryNames) {
+				names.add(name.getBytes(UTF_8));
+			}
+			names.finish();
+		} catch (final IOException | RuntimeException e) {
+			names.close();
+			throw e;
+		}
+
+		return names;
+	}
+
+	/**
+	 * Orders names by their unsigned bytes, as paths of the default file
+	 * system compare.
+	 */
+	public static int compare(final byte[] name1, final byte[] name2) {
+		final int length = Math.min(name1.length, name2.length);
+		for (int i = 0; i < length; i++) {
+			final int c = (name1[i] & 0xff) - (name2[i] & 0xff);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return name1.length - name2.length;
+	}
+
+	public static String toString(final byte[] name) {
+		return new String(name, UTF_8);
+	}
+
+	/**
+	 * The next name, null once all have been read.
+	 */
+	public byte[] next() throws IOException {
+		if (runs.isEmpty()) {
+			return bufferIndex < buffer.size() ? buffer.get(bufferIndex++) : null;
+		}
+
+		final Run run = heads.poll();
+		if (run == null) {
+			return null;
+		}
+
+		final byte[] name = run.current;
+		if (run.advance()) {
+			heads.add(run);
+		}
+		return name;
+	}
+
+	/**
+	 * Whether the names did not fit in memory.
+	 */
+	public boolean isSpilled() {
+		return !runs.isEmpty();
+	}
+
+	private void add(final byte[] name) throws IOException {
+		buffer.add(name);
+		bufferMemory += name.length + ENTRY_OVERHEAD;
+
+		if (bufferMemory >= memoryLimit) {
+			spill();
+		}
+	}
+
+	private void finish() throws IOException {
+		if (runs.isEmpty()) {
+			buffer.sort(SortedNames::compare);
+			return;
+		}
+
+		if (!buffer.isEmpty()) {
+			spill();
+		}
+		for (final Run run : runs) {
+			if (run.advance()) {
+				heads.add(run);
+			}
+		}
+	}
+
+	private void spill() throws IOException {
+		buffer.sort(SortedNames::compare);
+
+		final Path runFile = Files.createTempFile("foldersync-names", ".run");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(runFile),
+					1 << 16))) {
+				for (final byte[] name : buffer) {
+					out.writeShort(name.length);
+					out.write(name);
+				}
+			}
+			// Removed once read, or right away where open files can be removed
+			runs.add(new Run(new DataInputStream(new BufferedInputStream(Files.newInputStream(runFile,
+					DELETE_ON_CLOSE), 1 << 16)), buffer.size()));
+		} catch (final IOException e) {
+			Files.deleteIfExists(runFile);
+			throw e;
+		}
+
+		buffer.clear();
+		bufferMemory = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		for (final Run run : runs) {
+			try {
+				run.in.close();
+			} catch (final IOException e) {
+				failure = e;
+			}
+		}
+		runs.clear();
+		heads.clear();
+		buffer.clear();
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private static class Run {
+
+		private final DataInputStream in;
+		private int remaining;
+
+		private byte[] current;
+
+		Run(final DataInputStream in, final int count) {
+			this.in = in;
+			this.remaining = count;
+		}
+
+		boolean advance() throws IOException {
+			if (remaining == 0) {
+				current = null;
+				return false;
+			}
+			current = new byte[in.readUnsignedShort()];
+			in.readFully(current);
+			remaining--;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,583 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Real-time sync of many source/backup pairs in one process : all of them
+ * share a single watch service and watching thread, a single event
+ * coalescer and a bounded pool of workers (see {@link FairDispatcher}) on
+ * which every pair gets its turn. A pair only costs its synchronizer and an
+ * empty queue while idle. Its initial sync is split in directory merges, so
+ * that a large pair does not hold a worker for long either.
+ * <p>
+ * The pairs are read from a config file, one per line :
+ *
+ * <pre>
+ * # comment
+ * &lt;source_directory&gt; -&gt; &lt;backup_directory&gt; [-x &lt;rules_file&gt;]
+ * </pre>
+ *
+ * relative paths being resolved from the folder of the config file. When
+ * the file changes, the pairs added to it start and the pairs removed from
+ * it stop, without a restart. The sources of the pairs must not overlap.
+ */
+public class SyncDaemon extends Thread implements IRealTimeSynchronizer {
+
+	final Logger logger = LoggerFactory.getLogger(SyncDaemon.class);
+
+	public static final int DEFAULT_WORKER_THREADS = 8;
+	/** Events queued for a pair before its directories get rescanned instead */
+	public static final int DEFAULT_LANE_CAPACITY = 1000;
+	public static final long SHUTDOWN_TIMEOUT = 60000;
+
+	private static final String SEPARATOR = "->";
+	private static final String RULES_OPTION = "-x ";
+
+	/** Null if the pairs are only added by code */
+	private final Path configFile;
+
+	private final WatchService watchService;
+	private final Map<WatchKey, Watched> watchKeys;
+
+	/** By source folder */
+	private final Map<Path, Pair> pairs;
+
+	private final FairDispatcher dispatcher;
+	private final EventCoalescer coalescer;
+
+	private int laneCapacity = DEFAULT_LANE_CAPACITY;
+
+	private volatile boolean running;
+
+	private final CompletableFuture<Void> ready;
+
+	public SyncDaemon(final Path configFile) throws IOException {
+		this(configFile, DEFAULT_WORKER_THREADS, FoldersRealTimeSynchronizer.DEFAULT_QUIET_PERIOD,
+				FoldersRealTimeSynchronizer.DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * @param configFile
+	 *            the file listing the pairs, null to only add them by code
+	 * @param quietPeriod
+	 *            see {@link EventCoalescer}
+	 */
+	public SyncDaemon(final Path configFile, final int workerThreads, final long quietPeriod, final long maxDelay)
+			throws IOException {
+		super("folder-sync-daemon");
+
+		this.configFile = configFile == null ? null : configFile.toAbsolutePath().normalize();
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.watchKeys = new ConcurrentHashMap<WatchKey, Watched>();
+		this.pairs = new ConcurrentHashMap<Path, Pair>();
+		this.dispatcher = new FairDispatcher(workerThreads);
+		this.coalescer = new EventCoalescer(quietPeriod, maxDelay, (path, kind) -> {
+			final Pair pair = pairOf(path);
+			if (pair != null) {
+				pair.handle(path, kind);
+			}
+		});
+
+		this.running = false;
+		this.ready = new CompletableFuture<Void>();
+	}
+
+	/**
+	 * Events queued for a pair, and paths with events held back for it, beyond
+	 * which its changed directories are rescanned instead. To be called before
+	 * adding pairs.
+	 */
+	public void setLaneCapacity(final int laneCapacity) {
+		this.laneCapacity = laneCapacity;
+	}
+
+	/**
+	 * Starts syncing a pair (in addition to the ones of the config file).
+	 *
+	 * @return completes once its initial sync is done
+	 */
+	public CompletableFuture<Void> addPair(final Path sourceDir, final Path backupDir, final SyncFilter filter)
+			throws IOException {
+		return addPair(sourceDir, new FoldersSynchronizer(sourceDir.toAbsolutePath().normalize(), backupDir
+				.toAbsolutePath().normalize(), filter), null);
+	}
+
+	private synchronized CompletableFuture<Void> addPair(final Path sourceDir,
+			final FoldersSynchronizer synchronizer, final PairConfig config) throws IOException {
+		final Path source = sourceDir.toAbsolutePath().normalize();
+		for (final Path other : pairs.keySet()) {
+			if (source.startsWith(other) || other.startsWith(source)) {
+				throw new IllegalArgumentException("Source " + source + " overlaps source " + other);
+			}
+		}
+
+		Files.createDirectories(synchronizer.getBackupDir());
+
+		final Pair pair = new Pair(synchronizer, config);
+		pairs.put(source, pair);
+		try {
+			synchronizer.getMetrics().register(source.toString());
+		} catch (final JMException e) {
+			logger.warn("Failed to register metrics for " + source, e);
+		}
+
+		logger.info("Syncing {} into {}", source, synchronizer.getBackupDir());
+		pair.start();
+		return pair.ready;
+	}
+
+	/**
+	 * Stops syncing a pair, its queued changes being dropped and its initial
+	 * sync, if not done yet, cancelled.
+	 *
+	 * @return whether it was synced
+	 */
+	public synchronized boolean removePair(final Path sourceDir) {
+		final Pair pair = pairs.remove(sourceDir.toAbsolutePath().normalize());
+		if (pair == null) {
+			return false;
+		}
+
+		pair.removed = true;
+		pair.lane.close();
+		// The scans dropped with the lane never report back
+		pair.ready.cancel(false);
+		watchKeys.entrySet().removeIf(entry -> {
+			if (entry.getValue().pair != pair) {
+				return false;
+			}
+			entry.getKey().cancel();
+			return true;
+		});
+
+		pair.synchronizer.saveManifest();
+		pair.synchronizer.saveDigests();
+		try {
+			pair.synchronizer.getMetrics().unregister();
+		} catch (final JMException e) {
+			logger.debug("Failed to unregister metrics", e);
+		}
+
+		logger.info("Stopped syncing {}", sourceDir);
+		return true;
+	}
+
+	/**
+	 * The source folders synced.
+	 */
+	public Set<Path> getSourceDirs() {
+		return new TreeSet<Path>(pairs.keySet());
+	}
+
+	/**
+	 * Metrics of a pair, null if not synced.
+	 */
+	public SyncMetrics getMetrics(final Path sourceDir) {
+		final Pair pair = pairs.get(sourceDir.toAbsolutePath().normalize());
+		return pair == null ? null : pair.synchronizer.getMetrics();
+	}
+
+	/**
+	 * Completes once the initial sync of a pair is done, null if not synced.
+	 */
+	public CompletableFuture<Void> whenReady(final Path sourceDir) {
+		final Pair pair = pairs.get(sourceDir.toAbsolutePath().normalize());
+		return pair == null ? null : pair.ready;
+	}
+
+	/**
+	 * The pair the given source item belongs to, if any.
+	 */
+	private Pair pairOf(final Path sourceItem) {
+		for (Path directory = sourceItem; directory != null; directory = directory.getParent()) {
+			final Pair pair = pairs.get(directory);
+			if (pair != null) {
+				return pair;
+			}
+		}
+		return null;
+	}
+
+	private void watch(final Pair pair, final Path directory) {
+		if (pair.removed) {
+			return;
+		}
+
+		try {
+			final WatchKey key = directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+			watchKeys.put(key, new Watched(pair, directory));
+			pair.recovery.remember(directory, Files.getLastModifiedTime(directory));
+		} catch (final IOException e) {
+			logger.warn("Failed to watch directory " + directory, e);
+		}
+	}
+
+	/**
+	 * Reads the pairs of the config file again, starting the new ones and
+	 * stopping the ones removed or changed. Kept as they are if the file
+	 * cannot be read.
+	 */
+	synchronized void reload() {
+		final Map<Path, PairConfig> configs;
+		try {
+			configs = parse(configFile.getParent(), Files.readAllLines(configFile, UTF_8));
+		} catch (final IOException | IllegalArgumentException e) {
+			logger.warn("Failed to read pairs from " + configFile + ", keeping the current ones", e);
+			return;
+		}
+
+		for (final Map.Entry<Path, Pair> entry : new ArrayList<Map.Entry<Path, Pair>>(pairs.entrySet())) {
+			final PairConfig config = entry.getValue().config;
+			if (config != null && !config.equals(configs.get(entry.getKey()))) {
+				removePair(entry.getKey());
+			}
+		}
+
+		for (final Map.Entry<Path, PairConfig> entry : configs.entrySet()) {
+			if (pairs.containsKey(entry.getKey())) {
+				continue;
+			}
+			final PairConfig config = entry.getValue();
+			try {
+				final SyncFilter filter = config.rulesFile == null ? SyncFilter.NONE : SyncFilter
+						.load(config.rulesFile);
+				addPair(entry.getKey(), new FoldersSynchronizer(entry.getKey(), config.backupDir, filter), config);
+			} catch (final IOException | IllegalArgumentException e) {
+				logger.warn("Failed to sync " + entry.getKey() + " into " + config.backupDir, e);
+			}
+		}
+	}
+
+	/**
+	 * Reads the pairs of a config file.
+	 *
+	 * @return the pairs by source folder
+	 */
+	static Map<Path, PairConfig> parse(final Path baseDir, final List<String> lines) {
+		final Map<Path, PairConfig> configs = new LinkedHashMap<Path, PairConfig>();
+
+		for (final String line : lines) {
+			final String trimmed = line.trim();
+			if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+				continue;
+			}
+
+			final int separator = trimmed.indexOf(SEPARATOR);
+			if (separator < 0) {
+				throw new IllegalArgumentException("Not a pair : " + line);
+			}
+			String backup = trimmed.substring(separator + SEPARATOR.length()).trim();
+			Path rulesFile = null;
+			final int rules = backup.lastIndexOf(RULES_OPTION);
+			if (rules >= 0 && (rules == 0 || Character.isWhitespace(backup.charAt(rules - 1)))) {
+				rulesFile = baseDir.resolve(backup.substring(rules + RULES_OPTION.length()).trim()).normalize();
+				backup = backup.substring(0, rules).trim();
+			}
+
+			final String source = trimmed.substring(0, separator).trim();
+			if (source.isEmpty() || backup.isEmpty()) {
+				throw new IllegalArgumentException("Not a pair : " + line);
+			}
+			configs.put(baseDir.resolve(source).normalize(), new PairConfig(baseDir.resolve(backup).normalize(),
+					rulesFile));
+		}
+
+		return configs;
+	}
+
+	private void watchConfig() throws IOException {
+		final Path configDir = configFile.getParent();
+		final WatchKey key = configDir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+		watchKeys.put(key, new Watched(null, configDir));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void run() {
+		if (configFile != null) {
+			try {
+				watchConfig();
+			} catch (final IOException e) {
+				logger.warn("Failed to watch " + configFile + ", its changes need a restart", e);
+			}
+			reload();
+		}
+
+		running = true;
+		coalescer.setOverflowHandler(laneCapacity, this::pairOf, path -> {
+			final Pair pair = pairOf(path);
+			if (pair != null) {
+				pair.recovery.markDirty(path.getParent());
+			}
+		});
+		coalescer.start();
+		final List<CompletableFuture<Void>> initialSyncs = new ArrayList<CompletableFuture<Void>>();
+		for (final Pair pair : pairs.values()) {
+			initialSyncs.add(pair.ready);
+		}
+		CompletableFuture.allOf(initialSyncs.toArray(new CompletableFuture<?>[initialSyncs.size()])).whenComplete((
+				result, e) -> ready.complete(null));
+
+		while (running) {
+			final WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (final InterruptedException e) {
+				continue;
+			} catch (final ClosedWatchServiceException e) {
+				break;
+			}
+
+			final Watched watched = watchKeys.get(key);
+			if (watched == null) {
+				continue;
+			}
+			if (watched.pair != null && watched.pair.removed) {
+				key.cancel();
+				watchKeys.remove(key);
+				continue;
+			}
+
+			boolean configChanged = false;
+			for (final WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == OVERFLOW) {
+					if (watched.pair != null) {
+						logger.warn("Overflow for key " + watched.directory);
+						watched.pair.recovery.overflowed();
+					} else {
+						configChanged = true;
+					}
+					continue;
+				}
+
+				final Path path = watched.directory.resolve(((WatchEvent<Path>) event).context());
+				if (watched.pair != null) {
+					coalescer.submit(path, event.kind());
+				} else if (path.equals(configFile)) {
+					configChanged = true;
+				}
+			}
+
+			if (!key.reset()) {
+				watchKeys.remove(key);
+				if (watched.pair != null) {
+					watched.pair.recovery.forget(watched.directory);
+				}
+			}
+
+			if (configChanged) {
+				logger.info("Reloading pairs from {}", configFile);
+				reload();
+			}
+		}
+
+		coalescer.shutdown();
+		try {
+			dispatcher.shutdown(SHUTDOWN_TIMEOUT);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		for (final Pair pair : pairs.values()) {
+			pair.synchronizer.saveManifest();
+			pair.synchronizer.saveDigests();
+			try {
+				pair.synchronizer.getMetrics().unregister();
+			} catch (final JMException e) {
+				logger.debug("Failed to unregister metrics", e);
+			}
+		}
+	}
+
+	@Override
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Completes once the initial sync of the pairs of the config file is
+	 * done.
+	 */
+	@Override
+	public CompletableFuture<Void> whenReady() {
+		return ready;
+	}
+
+	/**
+	 * The same as {@link #whenReady()} : changes are only picked up once the
+	 * initial sync is done.
+	 */
+	@Override
+	public CompletableFuture<Void> whenSynced() {
+		return ready;
+	}
+
+	/**
+	 * Stops watching, then lets the queued changes be synced (within the
+	 * shutdown timeout).
+	 */
+	@Override
+	public void shutdownNow() throws InterruptedException {
+		running = false;
+		try {
+			// Wakes up the watching thread
+			watchService.close();
+		} catch (final IOException e) {
+			logger.debug("Failed to close watch service", e);
+		}
+		this.join();
+	}
+
+	/**
+	 * A watched directory, of a pair or (without pair) of the config file.
+	 */
+	private static class Watched {
+
+		final Pair pair;
+		final Path directory;
+
+		Watched(final Pair pair, final Path directory) {
+			this.pair = pair;
+			this.directory = directory;
+		}
+	}
+
+	static class PairConfig {
+
+		final Path backupDir;
+		/** Null without exclusion rules */
+		final Path rulesFile;
+
+		PairConfig(final Path backupDir, final Path rulesFile) {
+			this.backupDir = backupDir;
+			this.rulesFile = rulesFile;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof PairConfig)) {
+				return false;
+			}
+			final PairConfig other = (PairConfig) obj;
+			return backupDir.equals(other.backupDir) && Objects.equals(rulesFile, other.rulesFile);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(backupDir, rulesFile);
+		}
+	}
+
+	private class Pair {
+
+		final FoldersSynchronizer synchronizer;
+		/** Null if added by code */
+		final PairConfig config;
+
+		final FairDispatcher.Lane lane;
+		final OverflowRecovery recovery;
+
+		final AtomicInteger scanning;
+		final CompletableFuture<Void> ready;
+
+		volatile boolean removed;
+
+		Pair(final FoldersSynchronizer synchronizer, final PairConfig config) {
+			this.synchronizer = synchronizer;
+			this.config = config;
+			this.lane = dispatcher.newLane(laneCapacity);
+			this.recovery = new OverflowRecovery(synchronizer, (path, task) -> lane.submit(task));
+			this.scanning = new AtomicInteger();
+			this.ready = new CompletableFuture<Void>();
+		}
+
+		/**
+		 * Queues the initial sync, each directory being watched right before
+		 * it gets listed.
+		 */
+		void start() {
+			synchronizer.setDirectoryListener(directory -> watch(this, directory));
+			synchronizer.prepareManifest();
+			scan(synchronizer.getSourceDir());
+		}
+
+		private void scan(final Path directory) {
+			scanning.incrementAndGet();
+			final boolean queued = lane.submit(() -> {
+				try {
+					if (!removed) {
+						for (final Path subDir : synchronizer.mergeTree(directory)) {
+							scan(subDir);
+						}
+					}
+				} finally {
+					scanned();
+				}
+			});
+			if (!queued) {
+				scanned();
+			}
+		}
+
+		private void scanned() {
+			if (scanning.decrementAndGet() == 0) {
+				ready.complete(null);
+			}
+		}
+
+		void handle(final Path sourceItem, final WatchEvent.Kind<?> kind) {
+			if (removed) {
+				return;
+			}
+			if (!lane.offer(() -> IoScheduler.runWith(IoScheduler.Priority.REAL_TIME, () -> synchronizer.syncEvent(
+					sourceItem, kind)))) {
+				// Too far behind : the directory gets merged as a whole instead
+				recovery.markDirty(sourceItem.getParent());
+			}
+		}
+	}
+}
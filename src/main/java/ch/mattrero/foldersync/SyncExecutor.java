@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static ch.mattrero.foldersync.SyncStatus.DELETED;
+import static ch.mattrero.foldersync.SyncStatus.MOVED;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies the operations of a plan by batches. In each batch the deletions
+ * and moves are applied first, which frees space before the copies, then
+ * everything else, the operations of a same step running in parallel.
+ */
+public class SyncExecutor {
+
+	final Logger logger = LoggerFactory.getLogger(SyncExecutor.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	private final FoldersSynchronizer foldersSynchronizer;
+	private final int parallelism;
+	private final int batchSize;
+
+	public SyncExecutor(final FoldersSynchronizer foldersSynchronizer, final int parallelism) {
+		this(foldersSynchronizer, parallelism, DEFAULT_BATCH_SIZE);
+	}
+
+	public SyncExecutor(final FoldersSynchronizer foldersSynchronizer, final int parallelism, final int batchSize) {
+		if (parallelism < 1 || batchSize < 1) {
+			throw new IllegalArgumentException("Parallelism and batch size must be at least 1");
+		}
+
+		this.foldersSynchronizer = foldersSynchronizer;
+		this.parallelism = parallelism;
+		this.batchSize = batchSize;
+	}
+
+	public void execute(final Iterator<SyncOperation> plan) {
+		execute(plan, () -> {
+		});
+	}
+
+	/**
+	 * @param checkpoint
+	 *            called after each batch, once all the operations taken from
+	 *            the plan so far are applied
+	 */
+	public void execute(final Iterator<SyncOperation> plan, final Runnable checkpoint) {
+		final ExecutorService workers = parallelism > 1 ? newWorkers() : null;
+
+		try {
+			final List<SyncOperation> removals = new ArrayList<SyncOperation>();
+			final List<SyncOperation> others = new ArrayList<SyncOperation>();
+
+			while (plan.hasNext()) {
+				final SyncOperation operation = plan.next();
+				if (operation.getStatus() == DELETED || operation.getStatus() == MOVED) {
+					removals.add(operation);
+				} else {
+					others.add(operation);
+				}
+
+				if (removals.size() + others.size() >= batchSize) {
+					apply(removals, workers);
+					apply(others, workers);
+					checkpoint(checkpoint);
+				}
+			}
+
+			apply(removals, workers);
+			apply(others, workers);
+			checkpoint(checkpoint);
+		} finally {
+			if (workers != null) {
+				workers.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Applies the given operations, waiting for all of them, and clears the
+	 * list.
+	 */
+	private void apply(final List<SyncOperation> operations, final ExecutorService workers) {
+		if (workers == null || operations.size() < 2) {
+			for (final SyncOperation operation : operations) {
+				apply(operation);
+			}
+			operations.clear();
+			return;
+		}
+
+		final List<Future<?>> futures = new ArrayList<Future<?>>(operations.size());
+		for (final SyncOperation operation : operations) {
+			futures.add(workers.submit(() -> apply(operation)));
+		}
+		operations.clear();
+
+		for (final Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (final ExecutionException e) {
+				logger.warn("Failed to apply sync operation", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Runs the checkpoint, unless interrupted while waiting for the batch
+	 * (whose operations may then still be running) or cancelled (the rest of
+	 * the batch being skipped).
+	 */
+	private void checkpoint(final Runnable checkpoint) {
+		if (!Thread.currentThread().isInterrupted() && !foldersSynchronizer.isCancelled()) {
+			checkpoint.run();
+		}
+	}
+
+	private void apply(final SyncOperation operation) {
+		if (foldersSynchronizer.isCancelled()) {
+			return;
+		}
+		if (foldersSynchronizer.apply(operation) && operation.getStatus() == MOVED && operation.isDirectory()) {
+			// Whatever changed within the moved directory
+			foldersSynchronizer.syncTree(operation.getSourceItem());
+		}
+	}
+
+	private ExecutorService newWorkers() {
+		final AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(parallelism, r -> {
+			final Thread thread = new Thread(r, "folder-sync-executor-" + count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Exclusion rules, one per line, the last matching rule winning :
+ * 
+ * <pre>
+ * # comment
+ * *.o               glob on the name, at any depth
+ * build/            trailing slash : directories only
+ * /target           leading slash (or any inner slash) : relative to the root
+ * docs/**&#47;*.tmp      ** matches any number of directories
+ * re:.*\.bak$       regular expression on the relative path
+ * size&gt;100M         files bigger (or smaller with &lt;) than, in K, M or G
+ * age&gt;30d           files older (or newer with &lt;) than, in s, m, h or d
+ * !keep.o           re-includes what a previous rule excluded
+ * </pre>
+ * 
+ * Plain names are looked up in a hash table and, when there is no negation,
+ * all globs are merged into two patterns (on names and on paths) so that an
+ * entry is matched in a constant number of steps whatever the rule count.
+ */
+public class SyncFilter {
+
+	public static final SyncFilter NONE = new SyncFilter(Collections.<Rule> emptyList());
+
+	private final List<Rule> rules;
+
+	private final Map<String, List<Rule>> literals;
+	private final List<Rule> others;
+
+	private final boolean ordered;
+	private final boolean needsAttributes;
+
+	private final Pattern combinedNames;
+	private final Pattern combinedPaths;
+
+	private SyncFilter(final List<Rule> rules) {
+		this.rules = rules;
+		this.literals = new HashMap<String, List<Rule>>();
+		this.others = new ArrayList<Rule>();
+
+		boolean negated = false;
+		boolean attributes = false;
+		for (final Rule rule : rules) {
+			negated |= rule.negated;
+			attributes |= rule.directoryOnly || rule.kind == RuleKind.SIZE || rule.kind == RuleKind.AGE;
+		}
+		this.ordered = negated;
+		this.needsAttributes = attributes;
+
+		final StringBuilder names = new StringBuilder();
+		final StringBuilder paths = new StringBuilder();
+
+		for (final Rule rule : rules) {
+			if (rule.kind == RuleKind.LITERAL) {
+				literals.computeIfAbsent(rule.expression, k -> new ArrayList<Rule>(1)).add(rule);
+			} else if (!ordered && rule.kind == RuleKind.NAME_GLOB && !rule.directoryOnly) {
+				append(names, rule.pattern);
+			} else if (!ordered && rule.kind == RuleKind.PATH_GLOB && !rule.directoryOnly) {
+				append(paths, rule.pattern);
+			} else {
+				others.add(rule);
+			}
+		}
+
+		this.combinedNames = names.length() == 0 ? null : Pattern.compile(names.toString());
+		this.combinedPaths = paths.length() == 0 ? null : Pattern.compile(paths.toString());
+	}
+
+	private static void append(final StringBuilder combined, final Pattern pattern) {
+		if (combined.length() > 0) {
+			combined.append('|');
+		}
+		combined.append("(?:").append(pattern.pattern()).append(')');
+	}
+
+	public static SyncFilter load(final Path ruleFile) throws IOException {
+		return parse(Files.readAllLines(ruleFile, StandardCharsets.UTF_8));
+	}
+
+	public static SyncFilter parse(final List<String> lines) {
+		final List<Rule> rules = new ArrayList<Rule>();
+		for (final String line : lines) {
+			final String trimmed = line.trim();
+			if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+				rules.add(Rule.parse(trimmed, rules.size()));
+			}
+		}
+		return new SyncFilter(rules);
+	}
+
+	/**
+	 * Excludes entries with one of the given names, at any depth.
+	 */
+	public static SyncFilter ofNames(final List<String> names) {
+		final List<Rule> rules = new ArrayList<Rule>();
+		for (final String name : names) {
+			rules.add(new Rule(rules.size(), false, false, RuleKind.LITERAL, name, null, 0));
+		}
+		return new SyncFilter(rules);
+	}
+
+	public boolean isEmpty() {
+		return rules.isEmpty();
+	}
+
+	/**
+	 * Whether {@link #isExcluded(Path, BasicFileAttributes)} needs the
+	 * attributes of the entries (null is accepted otherwise).
+	 */
+	public boolean needsAttributes() {
+		return needsAttributes;
+	}
+
+	/**
+	 * @param relativePath
+	 *            path of the entry relative to the synced root
+	 */
+	public boolean isExcluded(final Path relativePath, final BasicFileAttributes attributes) {
+		if (rules.isEmpty() || relativePath.getFileName() == null) {
+			return false;
+		}
+
+		final String name = relativePath.getFileName().toString();
+		final String path = toSlashPath(relativePath);
+
+		Rule matched = null;
+
+		final List<Rule> literalRules = literals.get(name);
+		if (literalRules != null) {
+			for (final Rule rule : literalRules) {
+				if (rule.matches(name, path, attributes)) {
+					matched = rule;
+				}
+			}
+		}
+
+		if (!ordered) {
+			return matched != null || (combinedNames != null && combinedNames.matcher(name).matches())
+					|| (combinedPaths != null && combinedPaths.matcher(path).matches()) || matchesAny(name, path,
+							attributes);
+		}
+
+		for (int i = others.size() - 1; i >= 0; i--) {
+			final Rule rule = others.get(i);
+			if (matched != null && rule.index < matched.index) {
+				break;
+			}
+			if (rule.matches(name, path, attributes)) {
+				matched = rule;
+				break;
+			}
+		}
+
+		return matched != null && !matched.negated;
+	}
+
+	private boolean matchesAny(final String name, final String path, final BasicFileAttributes attributes) {
+		for (final Rule rule : others) {
+			if (rule.matches(name, path, attributes)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String toSlashPath(final Path relativePath) {
+		if (relativePath.getNameCount() == 1) {
+			return relativePath.toString();
+		}
+		final StringBuilder path = new StringBuilder();
+		for (final Path element : relativePath) {
+			if (path.length() > 0) {
+				path.append('/');
+			}
+			path.append(element.toString());
+		}
+		return path.toString();
+	}
+
+	static Pattern globToPattern(final String glob) {
+		final StringBuilder regex = new StringBuilder();
+		for (int i = 0; i < glob.length(); i++) {
+			final char c = glob.charAt(i);
+			if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+				if (i + 2 < glob.length() && glob.charAt(i + 2) == '/') {
+					regex.append("(?:.*/)?");
+					i += 2;
+				} else {
+					regex.append(".*");
+					i++;
+				}
+			} else if (c == '*') {
+				regex.append("[^/]*");
+			} else if (c == '?') {
+				regex.append("[^/]");
+			} else if (c == '[') {
+				final int end = glob.indexOf(']', i + 1);
+				if (end < 0) {
+					regex.append("\\[");
+				} else {
+					String set = glob.substring(i + 1, end);
+					if (set.startsWith("!")) {
+						set = "^" + set.substring(1);
+					}
+					regex.append('[').append(set.replace("\\", "\\\\")).append(']');
+					i = end;
+				}
+			} else if ("\\.+()|^${}".indexOf(c) >= 0) {
+				regex.append('\\').append(c);
+			} else {
+				regex.append(c);
+			}
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+	private enum RuleKind {
+		LITERAL, NAME_GLOB, PATH_GLOB, REGEX, SIZE, AGE
+	}
+
+	private static class Rule {
+
+		private final int index;
+		private final boolean negated;
+		private final boolean directoryOnly;
+		private final RuleKind kind;
+		private final String expression;
+		private final Pattern pattern;
+
+		/** Size in bytes or age in milliseconds, negative for "less than" */
+		private final long threshold;
+
+		Rule(final int index, final boolean negated, final boolean directoryOnly, final RuleKind kind,
+				final String expression, final Pattern pattern, final long threshold) {
+			this.index = index;
+			this.negated = negated;
+			this.directoryOnly = directoryOnly;
+			this.kind = kind;
+			this.expression = expression;
+			this.pattern = pattern;
+			this.threshold = threshold;
+		}
+
+		static Rule parse(final String line, final int index) {
+			String expression = line;
+
+			final boolean negated = expression.startsWith("!");
+			if (negated) {
+				expression = expression.substring(1);
+			}
+
+			if (expression.startsWith("re:")) {
+				return new Rule(index, negated, false, RuleKind.REGEX, expression, Pattern.compile(expression
+						.substring(3)), 0);
+			}
+			if (expression.startsWith("size>") || expression.startsWith("size<")) {
+				final long size = parseQuantity(expression.substring(5), "KMG", new long[] { 1L << 10, 1L << 20,
+						1L << 30 });
+				return new Rule(index, negated, false, RuleKind.SIZE, expression, null,
+						expression.charAt(4) == '>' ? size : -size);
+			}
+			if (expression.startsWith("age>") || expression.startsWith("age<")) {
+				final long age = parseQuantity(expression.substring(4), "smhd", new long[] { 1000L, 60000L,
+						3600000L, 86400000L });
+				return new Rule(index, negated, false, RuleKind.AGE, expression, null, expression.charAt(3) == '>' ? age
+						: -age);
+			}
+
+			final boolean directoryOnly = expression.endsWith("/");
+			if (directoryOnly) {
+				expression = expression.substring(0, expression.length() - 1);
+			}
+
+			final boolean anchored = expression.contains("/");
+			if (expression.startsWith("/")) {
+				expression = expression.substring(1);
+			}
+
+			if (!anchored && !expression.matches(".*[*?\\[].*")) {
+				return new Rule(index, negated, directoryOnly, RuleKind.LITERAL, expression, null, 0);
+			}
+
+			return new Rule(index, negated, directoryOnly, anchored ? RuleKind.PATH_GLOB : RuleKind.NAME_GLOB,
+					expression, globToPattern(expression), 0);
+		}
+
+		private static long parseQuantity(final String value, final String units, final long[] factors) {
+			final char unit = value.charAt(value.length() - 1);
+			final int unitIndex = units.indexOf(unit);
+			if (unitIndex < 0) {
+				return Long.parseLong(value);
+			}
+			return Long.parseLong(value.substring(0, value.length() - 1)) * factors[unitIndex];
+		}
+
+		boolean matches(final String name, final String path, final BasicFileAttributes attributes) {
+			if (directoryOnly && (attributes == null || !attributes.isDirectory())) {
+				return false;
+			}
+
+			switch (kind) {
+				case LITERAL:
+					return expression.equals(name);
+				case NAME_GLOB:
+					return pattern.matcher(name).matches();
+				case PATH_GLOB:
+				case REGEX:
+					return pattern.matcher(path).matches();
+				case SIZE:
+					if (attributes == null || attributes.isDirectory()) {
+						return false;
+					}
+					return threshold >= 0 ? attributes.size() > threshold : attributes.size() < -threshold;
+				case AGE:
+					if (attributes == null || attributes.isDirectory()) {
+						return false;
+					}
+					final long age = System.currentTimeMillis() - attributes.lastModifiedTime().toMillis();
+					return threshold >= 0 ? age > threshold : age < -threshold;
+				default:
+					return false;
+			}
+		}
+	}
+}
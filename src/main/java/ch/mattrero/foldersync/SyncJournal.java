@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-ahead journal of a sync in progress : the source directories whose
+ * whole subtree is synced, and the offsets up to which large files have been
+ * copied and flushed. A sync interrupted by a crash or a reboot finds the
+ * journal on next run, skips the finished subtrees and resumes the partial
+ * copies. The journal is deleted once a sync completes.
+ */
+public class SyncJournal {
+
+	final Logger logger = LoggerFactory.getLogger(SyncJournal.class);
+
+	private static final int MAGIC = 0x46534a31;
+
+	private static final byte COMPLETED = 'D';
+	private static final byte CHECKPOINT = 'P';
+	private static final byte FINISHED = 'X';
+
+	/** Completed directories are flushed to the device at most this often */
+	private static final long FORCE_INTERVAL_MILLIS = 1000;
+
+	private static final char SEPARATOR = File.separatorChar;
+
+	private final Path journalFile;
+
+	/** Completed directories, the ones below a completed directory dropped */
+	private final TreeSet<String> completed;
+	private final Set<String> failed;
+	private final Map<String, Checkpoint> checkpoints;
+
+	private FileChannel channel;
+	private DataOutputStream out;
+	private boolean resumed;
+	private long lastForce;
+
+	public SyncJournal(final Path journalFile) {
+		this.journalFile = journalFile;
+		this.completed = new TreeSet<String>();
+		this.failed = new HashSet<String>();
+		this.checkpoints = new HashMap<String, Checkpoint>();
+	}
+
+	public Path getJournalFile() {
+		return journalFile;
+	}
+
+	public synchronized boolean isOpen() {
+		return out != null;
+	}
+
+	/**
+	 * Whether the journal was left by an interrupted sync of the same folders.
+	 */
+	public synchronized boolean isResumed() {
+		return resumed;
+	}
+
+	/**
+	 * Replays the journal of an interrupted sync of the same folders (if any),
+	 * a record torn by the crash being dropped, then starts recording.
+	 */
+	public synchronized void open(final Path sourceDir, final Path backupDir) throws IOException {
+		if (isOpen()) {
+			return;
+		}
+
+		completed.clear();
+		failed.clear();
+		checkpoints.clear();
+
+		final String source = keyOf(sourceDir);
+		final String backup = keyOf(backupDir);
+		final long length = Files.isRegularFile(journalFile) ? replay(source, backup) : 0;
+		resumed = length > 0;
+
+		channel = FileChannel.open(journalFile, CREATE, READ, WRITE);
+		channel.truncate(length);
+		channel.position(length);
+		out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+
+		if (!resumed) {
+			out.writeInt(MAGIC);
+			out.writeUTF(source);
+			out.writeUTF(backup);
+			force();
+		}
+	}
+
+	/**
+	 * @return the length of the valid records, 0 if the journal belongs to
+	 *         other folders
+	 */
+	private long replay(final String source, final String backup) throws IOException {
+		try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(
+				Files.newInputStream(journalFile)));
+				DataInputStream in = new DataInputStream(counter)) {
+			long length = 0;
+			try {
+				if (in.readInt() != MAGIC || !in.readUTF().equals(source) || !in.readUTF().equals(backup)) {
+					return 0;
+				}
+				length = counter.getByteCount();
+
+				while (true) {
+					final byte type = in.readByte();
+					final String key = in.readUTF();
+					if (type == COMPLETED) {
+						addCompleted(key);
+					} else if (type == CHECKPOINT) {
+						checkpoints.put(key, new Checkpoint(in.readLong(), in.readLong(), in.readLong()));
+					} else if (type == FINISHED) {
+						checkpoints.remove(key);
+					} else {
+						break;
+					}
+					length = counter.getByteCount();
+				}
+			} catch (final IOException e) {
+				// End of the journal, or a record torn by the crash
+			}
+			return length;
+		}
+	}
+
+	/**
+	 * Whether the given source directory, or one of its parents, has been
+	 * completely synced.
+	 */
+	public synchronized boolean isCompleted(final Path directory) {
+		for (Path parent = directory.toAbsolutePath().normalize(); parent != null; parent = parent.getParent()) {
+			if (completed.contains(parent.toString())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records that the whole subtree of the given source directory is synced,
+	 * unless something failed within it.
+	 */
+	public synchronized void completed(final Path directory) {
+		if (!isOpen()) {
+			return;
+		}
+
+		final String key = keyOf(directory);
+		final String prefix = prefixOf(key);
+		for (final String item : failed) {
+			if (item.equals(key) || item.startsWith(prefix)) {
+				return;
+			}
+		}
+
+		addCompleted(key);
+		append(COMPLETED, key);
+		if (System.currentTimeMillis() - lastForce >= FORCE_INTERVAL_MILLIS) {
+			flush();
+		}
+	}
+
+	private void addCompleted(final String key) {
+		final String prefix = prefixOf(key);
+		completed.subSet(prefix, prefix.substring(0, prefix.length() - 1) + (char) (SEPARATOR + 1)).clear();
+		completed.add(key);
+	}
+
+	/**
+	 * Keeps the parents of the given item from being recorded as completed, so
+	 * that they are synced again on resume.
+	 */
+	public synchronized void failed(final Path item) {
+		if (isOpen()) {
+			failed.add(keyOf(item));
+		}
+	}
+
+	/**
+	 * The last checkpoint of the given target file, null if none.
+	 */
+	public synchronized Checkpoint getCheckpoint(final Path target) {
+		return isOpen() ? checkpoints.get(keyOf(target)) : null;
+	}
+
+	/**
+	 * Records that the given target file, copied from a source of the given
+	 * size and modification date, is written and flushed up to the given
+	 * offset.
+	 */
+	public synchronized void checkpoint(final Path target, final long size, final long lastModified,
+			final long offset) {
+		if (!isOpen()) {
+			return;
+		}
+
+		final String key = keyOf(target);
+		checkpoints.put(key, new Checkpoint(size, lastModified, offset));
+		append(CHECKPOINT, key);
+		try {
+			out.writeLong(size);
+			out.writeLong(lastModified);
+			out.writeLong(offset);
+		} catch (final IOException e) {
+			logger.warn("Failed to write journal " + journalFile, e);
+		}
+		flush();
+	}
+
+	/**
+	 * Forgets the checkpoints of the given target file, complete or given up.
+	 */
+	public synchronized void finished(final Path target) {
+		if (isOpen() && checkpoints.remove(keyOf(target)) != null) {
+			append(FINISHED, keyOf(target));
+		}
+	}
+
+	private void append(final byte type, final String key) {
+		try {
+			out.writeByte(type);
+			out.writeUTF(key);
+		} catch (final IOException e) {
+			logger.warn("Failed to write journal " + journalFile, e);
+		}
+	}
+
+	/**
+	 * Writes the pending records through to the device.
+	 */
+	public synchronized void flush() {
+		if (!isOpen()) {
+			return;
+		}
+
+		try {
+			force();
+		} catch (final IOException e) {
+			logger.warn("Failed to write journal " + journalFile, e);
+		}
+	}
+
+	private void force() throws IOException {
+		out.flush();
+		channel.force(false);
+		lastForce = System.currentTimeMillis();
+	}
+
+	/**
+	 * Stops recording, the journal being kept for the next run to resume.
+	 */
+	public synchronized void close() throws IOException {
+		if (!isOpen()) {
+			return;
+		}
+
+		try {
+			force();
+			out.close();
+		} finally {
+			out = null;
+			channel = null;
+		}
+	}
+
+	/**
+	 * Stops recording and deletes the journal, the sync being complete.
+	 */
+	public synchronized void delete() throws IOException {
+		if (isOpen()) {
+			try {
+				out.close();
+			} finally {
+				out = null;
+				channel = null;
+			}
+		}
+
+		completed.clear();
+		failed.clear();
+		checkpoints.clear();
+		resumed = false;
+
+		Files.deleteIfExists(journalFile);
+	}
+
+	private static String keyOf(final Path path) {
+		return path.toAbsolutePath().normalize().toString();
+	}
+
+	private static String prefixOf(final String key) {
+		return key.charAt(key.length() - 1) == SEPARATOR ? key : key + SEPARATOR;
+	}
+
+	public static class Checkpoint {
+
+		private final long size;
+		private final long lastModified;
+		private final long offset;
+
+		Checkpoint(final long size, final long lastModified, final long offset) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.offset = offset;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * Whether the copied source still has the size and modification date
+		 * it had at the checkpoint.
+		 */
+		public boolean matches(final long size, final long lastModified) {
+			return this.size == size && this.lastModified == lastModified;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * What a synchronizer did since it was created. Updated concurrently by the
+ * sync threads, read through {@link #report()} or JMX.
+ */
+public class SyncMetrics implements SyncMetricsMBean {
+
+	public static final String JMX_DOMAIN = "ch.mattrero.foldersync";
+
+	private final LongAdder scanned = new LongAdder();
+	private final LongAdder added = new LongAdder();
+	private final LongAdder modified = new LongAdder();
+	private final LongAdder deleted = new LongAdder();
+	private final LongAdder moved = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder bytesCopied = new LongAdder();
+
+	/** Microseconds to copy a file */
+	private final Histogram copyLatency = new Histogram();
+
+	private ObjectName objectName;
+
+	void scanned() {
+		scanned.increment();
+	}
+
+	/**
+	 * Counts an applied change, or a failure.
+	 */
+	void applied(final SyncStatus status, final boolean succeeded) {
+		if (!succeeded) {
+			failures.increment();
+			return;
+		}
+
+		switch (status) {
+			case ADDED:
+				added.increment();
+				break;
+			case MODIFIED:
+			case TOUCHED:
+				modified.increment();
+				break;
+			case DELETED:
+				deleted.increment();
+				break;
+			case MOVED:
+				moved.increment();
+				break;
+			default:
+				break;
+		}
+	}
+
+	void copied(final long bytes) {
+		bytesCopied.add(bytes);
+	}
+
+	void copied(final long bytes, final long nanos) {
+		bytesCopied.add(bytes);
+		copyLatency.record(nanos / 1000);
+	}
+
+	public SyncReport report() {
+		return new SyncReport(System.currentTimeMillis(), scanned.sum(), added.sum(), modified.sum(), deleted.sum(),
+				moved.sum(), failures.sum(), bytesCopied.sum(), copyLatency.snapshot());
+	}
+
+	/**
+	 * Registers these metrics in the platform MBean server under the given
+	 * name (the source folder, typically).
+	 */
+	public synchronized void register(final String name) throws JMException {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		unregister();
+		objectName = new ObjectName(JMX_DOMAIN + ":type=SyncMetrics,name=" + ObjectName.quote(name));
+		server.registerMBean(this, objectName);
+	}
+
+	public synchronized void unregister() throws JMException {
+		if (objectName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			objectName = null;
+		}
+	}
+
+	@Override
+	public long getScannedCount() {
+		return scanned.sum();
+	}
+
+	@Override
+	public long getAddedCount() {
+		return added.sum();
+	}
+
+	@Override
+	public long getModifiedCount() {
+		return modified.sum();
+	}
+
+	@Override
+	public long getDeletedCount() {
+		return deleted.sum();
+	}
+
+	@Override
+	public long getMovedCount() {
+		return moved.sum();
+	}
+
+	@Override
+	public long getFailureCount() {
+		return failures.sum();
+	}
+
+	@Override
+	public long getBytesCopied() {
+		return bytesCopied.sum();
+	}
+
+	@Override
+	public long getCopyLatencyMeanMicros() {
+		return copyLatency.snapshot().getMean();
+	}
+
+	@Override
+	public long getCopyLatencyP99Micros() {
+		return copyLatency.snapshot().getPercentile(99);
+	}
+
+	@Override
+	public long getCopyLatencyMaxMicros() {
+		return copyLatency.snapshot().getMax();
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.function.BiPredicate;
+
+/**
+ * A change to apply to the backup of one source entry, as decided by the
+ * merge of its directory.
+ */
+public class SyncOperation {
+
+	private static final long UNKNOWN = -1;
+
+	private final SyncStatus status;
+	private final Path sourceItem;
+	private final Path movedFrom;
+
+	private final BasicFileAttributes sourceAttributes;
+	private final BasicFileAttributes backupAttributes;
+
+	private final BiPredicate<Path, BasicFileAttributes> excluded;
+
+	private volatile long bytes;
+
+	SyncOperation(final SyncStatus status, final Path sourceItem, final Path movedFrom,
+			final BasicFileAttributes sourceAttributes, final BasicFileAttributes backupAttributes,
+			final BiPredicate<Path, BasicFileAttributes> excluded) {
+		this.status = status;
+		this.sourceItem = sourceItem;
+		this.movedFrom = movedFrom;
+		this.sourceAttributes = sourceAttributes;
+		this.backupAttributes = backupAttributes;
+		this.bytes = UNKNOWN;
+		this.excluded = excluded;
+	}
+
+	static SyncOperation of(final SyncStatus status, final Path sourceItem,
+			final BasicFileAttributes sourceAttributes, final BasicFileAttributes backupAttributes,
+			final BiPredicate<Path, BasicFileAttributes> excluded) {
+		return new SyncOperation(status, sourceItem, null, sourceAttributes, backupAttributes, excluded);
+	}
+
+	public SyncStatus getStatus() {
+		return status;
+	}
+
+	/**
+	 * The source entry, which no longer exists for a deletion.
+	 */
+	public Path getSourceItem() {
+		return sourceItem;
+	}
+
+	/**
+	 * The former source entry of a move, null for any other operation.
+	 */
+	public Path getMovedFrom() {
+		return movedFrom;
+	}
+
+	/**
+	 * Whether the source entry is a directory, or the backup one for a
+	 * deletion.
+	 */
+	public boolean isDirectory() {
+		return (sourceAttributes != null ? sourceAttributes : backupAttributes).isDirectory();
+	}
+
+	/**
+	 * Attributes of the source entry as read when planning, null for a
+	 * deletion.
+	 */
+	public BasicFileAttributes getSourceAttributes() {
+		return sourceAttributes;
+	}
+
+	/**
+	 * Attributes of the backup entry as read when planning (from the manifest
+	 * if any), null for an addition.
+	 */
+	public BasicFileAttributes getBackupAttributes() {
+		return backupAttributes;
+	}
+
+	/**
+	 * Bytes to copy, at most : the size of the new source file or subtree for
+	 * an addition or a modification, 0 otherwise. Reads the source on first
+	 * call, unless already known.
+	 */
+	public long getBytes() {
+		if (bytes == UNKNOWN) {
+			bytes = estimateBytes();
+		}
+		return bytes;
+	}
+
+	private long estimateBytes() {
+		if (status != SyncStatus.ADDED && status != SyncStatus.MODIFIED) {
+			return 0;
+		}
+
+		if (!sourceAttributes.isDirectory()) {
+			return sourceAttributes.size();
+		}
+
+		try {
+
+			final long[] total = new long[1];
+			Files.walkFileTree(sourceItem, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(final Path directory, final BasicFileAttributes attrs) {
+					if (!directory.equals(sourceItem) && excluded.test(directory, attrs)) {
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+					if (!excluded.test(file, attrs)) {
+						total[0] += attrs.size();
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(final Path file, final IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			return total[0];
+		} catch (final IOException e) {
+			return 0;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return status + (movedFrom == null ? " " : " " + movedFrom + " -> ") + sourceItem;
+	}
+}
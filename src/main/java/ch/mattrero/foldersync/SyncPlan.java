@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * The operations needed to sync a source tree, planned lazily : a directory
+ * is compared with its backup only once the operations of the previous ones
+ * have all been taken, so that the plan of a huge tree never sits in memory.
+ */
+public class SyncPlan implements Iterator<SyncOperation> {
+
+	private final FoldersSynchronizer foldersSynchronizer;
+
+	/** Directories still to be compared, depth first */
+	private final Deque<Path> directories;
+
+	/** Journal of the sync in progress, null if none */
+	private final SyncJournal journal;
+
+	/** Directories being compared, with their sub-directories still pending */
+	private final Deque<OpenDirectory> openDirectories;
+
+	/** Directories whose operations have all been taken */
+	private final List<Path> completed;
+
+	private Path directory;
+	private Iterator<SyncOperation> operations;
+	private List<Path> subDirs;
+
+	SyncPlan(final FoldersSynchronizer foldersSynchronizer, final Path sourceSubDir, final SyncJournal journal) {
+		this.foldersSynchronizer = foldersSynchronizer;
+		this.directories = new ArrayDeque<Path>();
+		this.directories.push(sourceSubDir);
+		this.journal = journal;
+		this.openDirectories = new ArrayDeque<OpenDirectory>();
+		this.completed = new ArrayList<Path>();
+		this.operations = Collections.<SyncOperation> emptyIterator();
+		this.subDirs = new ArrayList<Path>();
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (!operations.hasNext()) {
+			if (foldersSynchronizer.isCancelled()) {
+				// The directory stopped short is not complete : planned again by the next sync
+				return false;
+			}
+
+			if (directory != null) {
+				exhausted(directory, subDirs.size());
+				directory = null;
+			}
+
+			// The sub-directories are all known once their parent is exhausted
+			for (int i = subDirs.size() - 1; i >= 0; i--) {
+				directories.push(subDirs.get(i));
+			}
+
+			if (directories.isEmpty()) {
+				return false;
+			}
+
+			directory = directories.pop();
+			subDirs = new ArrayList<Path>();
+			if (journal != null && journal.isCompleted(directory)) {
+				// Synced by the interrupted run this one resumes
+				operations = Collections.<SyncOperation> emptyIterator();
+			} else {
+				operations = foldersSynchronizer.planTree(directory, subDirs);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Follows the directories through the depth-first walk : a directory is
+	 * complete once its operations and the ones of all its sub-directories
+	 * have been taken.
+	 */
+	private void exhausted(final Path exhaustedDirectory, final int subDirCount) {
+		if (journal == null) {
+			return;
+		}
+
+		if (subDirCount > 0) {
+			openDirectories.push(new OpenDirectory(exhaustedDirectory, subDirCount));
+			return;
+		}
+
+		completed.add(exhaustedDirectory);
+		while (!openDirectories.isEmpty() && --openDirectories.peek().pending == 0) {
+			completed.add(openDirectories.pop().directory);
+		}
+	}
+
+	/**
+	 * Records in the journal (if any) the directories whose operations have
+	 * all been taken, to be called once these operations are applied.
+	 */
+	public void checkpoint() {
+		if (journal == null) {
+			return;
+		}
+
+		for (final Path completedDirectory : completed) {
+			journal.completed(completedDirectory);
+		}
+		completed.clear();
+	}
+
+	@Override
+	public SyncOperation next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return operations.next();
+	}
+
+	/**
+	 * Takes the remaining operations without applying them and sums them up
+	 * by status, as a dry run.
+	 */
+	public Map<SyncStatus, Estimate> estimate() {
+		final Map<SyncStatus, Estimate> estimates = new EnumMap<SyncStatus, Estimate>(SyncStatus.class);
+		while (hasNext()) {
+			final SyncOperation operation = next();
+			estimates.computeIfAbsent(operation.getStatus(), k -> new Estimate()).add(operation);
+		}
+		return estimates;
+	}
+
+	private static class OpenDirectory {
+
+		private final Path directory;
+		private int pending;
+
+		OpenDirectory(final Path directory, final int pending) {
+			this.directory = directory;
+			this.pending = pending;
+		}
+	}
+
+	public static class Estimate {
+
+		private long operations;
+		private long bytes;
+
+		void add(final SyncOperation operation) {
+			operations++;
+			bytes += operation.getBytes();
+		}
+
+		public long getOperations() {
+			return operations;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		@Override
+		public String toString() {
+			return operations + " operation(s), " + bytes + " byte(s)";
+		}
+	}
+}
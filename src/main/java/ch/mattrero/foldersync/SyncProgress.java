@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+/**
+ * Where a running sync stands : what it did so far, out of what its
+ * estimate pass (if asked for) found to do, and the time it should still take
+ * at the current pace.
+ */
+public class SyncProgress {
+
+	public static final long UNKNOWN = -1;
+
+	private final SyncReport report;
+	private final long totalOperations;
+	private final long totalBytes;
+
+	SyncProgress(final SyncReport report, final long totalOperations, final long totalBytes) {
+		this.report = report;
+		this.totalOperations = totalOperations;
+		this.totalBytes = totalBytes;
+	}
+
+	/**
+	 * What the sync did so far.
+	 */
+	public SyncReport getReport() {
+		return report;
+	}
+
+	/**
+	 * Additions, modifications, deletions and moves applied (or failed) so
+	 * far.
+	 */
+	public long getOperations() {
+		return report.getAdded() + report.getModified() + report.getDeleted() + report.getMoved()
+				+ report.getFailures();
+	}
+
+	/**
+	 * {@link #UNKNOWN} without an estimate pass, as the other totals.
+	 */
+	public long getTotalOperations() {
+		return totalOperations;
+	}
+
+	public long getBytesCopied() {
+		return report.getBytesCopied();
+	}
+
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public long getElapsedMillis() {
+		return report.getElapsedMillis();
+	}
+
+	/**
+	 * Milliseconds still needed at the pace so far, by bytes when there is
+	 * anything to copy, else by operations, {@link #UNKNOWN} before the
+	 * first of them or without totals.
+	 */
+	public long getEtaMillis() {
+		if (totalBytes > 0 && getBytesCopied() > 0) {
+			return remainingMillis(getBytesCopied(), totalBytes);
+		}
+		if (totalOperations > 0 && getOperations() > 0) {
+			return remainingMillis(getOperations(), totalOperations);
+		}
+		return UNKNOWN;
+	}
+
+	private long remainingMillis(final long done, final long total) {
+		// As a double : elapsed milliseconds times bytes may overflow
+		return (long) ((double) getElapsedMillis() * Math.max(0, total - done) / done);
+	}
+
+	@Override
+	public String toString() {
+		return getOperations() + "/" + totalOperations + " operation(s) " + getBytesCopied() + "/" + totalBytes
+				+ " byte(s) elapsed=" + getElapsedMillis() + "ms eta=" + getEtaMillis() + "ms";
+	}
+}
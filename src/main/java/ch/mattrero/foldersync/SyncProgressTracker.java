@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands the progress of a sync to a listener, from the threads applying its
+ * operations, at most once per interval.
+ */
+class SyncProgressTracker {
+
+	final Logger logger = LoggerFactory.getLogger(SyncProgressTracker.class);
+
+	static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(500);
+
+	private final SyncMetrics metrics;
+	private final Consumer<SyncProgress> listener;
+	private final SyncReport start;
+	private final long totalOperations;
+	private final long totalBytes;
+
+	/** When the next progress is due, in nanoseconds */
+	private final AtomicLong next;
+
+	/**
+	 * @param estimates
+	 *            for the totals, null if unknown
+	 */
+	SyncProgressTracker(final SyncMetrics metrics, final Consumer<SyncProgress> listener,
+			final Map<SyncStatus, SyncPlan.Estimate> estimates) {
+		this.metrics = metrics;
+		this.listener = listener;
+		this.start = metrics.report();
+
+		long operations = estimates == null ? SyncProgress.UNKNOWN : 0;
+		long bytes = estimates == null ? SyncProgress.UNKNOWN : 0;
+		if (estimates != null) {
+			for (final Map.Entry<SyncStatus, SyncPlan.Estimate> estimate : estimates.entrySet()) {
+				// The same operations as the ones counted by the reports
+				if (estimate.getKey() != SyncStatus.TOUCHED && estimate.getKey() != SyncStatus.SYNCHRONIZED) {
+					operations += estimate.getValue().getOperations();
+					bytes += estimate.getValue().getBytes();
+				}
+			}
+		}
+		this.totalOperations = operations;
+		this.totalBytes = bytes;
+		this.next = new AtomicLong(System.nanoTime() + INTERVAL);
+	}
+
+	/**
+	 * Called after each operation : the one thread finding the progress due
+	 * reports it.
+	 */
+	void applied() {
+		final long now = System.nanoTime();
+		final long due = next.get();
+		if (now - due >= 0 && next.compareAndSet(due, now + INTERVAL)) {
+			report();
+		}
+	}
+
+	/**
+	 * Reports the final progress, once all the operations are applied.
+	 */
+	void finished() {
+		report();
+	}
+
+	private void report() {
+		try {
+			listener.accept(new SyncProgress(metrics.report().since(start), totalOperations, totalBytes));
+		} catch (final RuntimeException e) {
+			logger.warn("Progress listener failed", e);
+		}
+	}
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static ch.mattrero.foldersync.RemoteProtocol.ABORTED;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Inflater;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receiving end of a {@link RemoteSynchronizer} : listens on a TCP port and
+ * applies the changes sent by the senders to a local backup folder, one
+ * connection at a time.
+ * <p>
+ * Anyone able to connect can write to the backup folder : the receiver
+ * listens on the loopback interface unless told otherwise, and only accepts
+ * the senders which know its shared secret (see {@link RemoteProtocol}). The
+ * traffic itself is not encrypted.
+ */
+public class SyncReceiver implements Closeable {
+
+	final Logger logger = LoggerFactory.getLogger(SyncReceiver.class);
+
+	/** Requests done before they are acknowledged even if more are waiting */
+	static final int ACK_INTERVAL = 1024;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final Path backupDir;
+	private final byte[] secret;
+	private final ServerSocket serverSocket;
+	private final Thread acceptor;
+
+	/**
+	 * Listens on the loopback interface only, without a secret.
+	 */
+	public SyncReceiver(final Path backupDir, final int port) throws IOException {
+		this(backupDir, InetAddress.getLoopbackAddress(), port, null);
+	}
+
+	/**
+	 * @param bindAddress
+	 *            interface to listen on, the wildcard address for all of them
+	 * @param secret
+	 *            shared with the senders, needed unless listening on the
+	 *            loopback interface
+	 */
+	public SyncReceiver(final Path backupDir, final InetAddress bindAddress, final int port, final byte[] secret)
+			throws IOException {
+		if ((secret == null || secret.length == 0) && !bindAddress.isLoopbackAddress()) {
+			throw new IllegalArgumentException("A shared secret is needed to listen on " + bindAddress);
+		}
+
+		this.backupDir = backupDir.toAbsolutePath().normalize();
+		this.secret = secret == null ? new byte[0] : secret.clone();
+		this.serverSocket = new ServerSocket(port, 0, bindAddress);
+		this.acceptor = new Thread(this::acceptConnections, "folder-sync-receiver-" + serverSocket.getLocalPort());
+	}
+
+	public Path getBackupDir() {
+		return backupDir;
+	}
+
+	public InetAddress getBindAddress() {
+		return serverSocket.getInetAddress();
+	}
+
+	/**
+	 * The port listened on (the one picked by the system if 0 was given).
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public void start() {
+		acceptor.start();
+	}
+
+	/**
+	 * Stops listening, the connection in progress being dropped.
+	 */
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+		acceptor.interrupt();
+		try {
+			acceptor.join();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void acceptConnections() {
+		while (!serverSocket.isClosed()) {
+			try (Socket socket = serverSocket.accept()) {
+				socket.setTcpNoDelay(true);
+				logger.info("Receiving sync from {} into {}", socket.getRemoteSocketAddress(), backupDir);
+				new Session(socket).run();
+			} catch (final IOException e) {
+				if (!serverSocket.isClosed()) {
+					logger.warn("Failed to receive sync into " + backupDir, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The backup item at the given relative path, which must not lead outside
+	 * of the backup folder.
+	 */
+	Path resolve(final String relativePath) throws IOException {
+		final Path item = backupDir.resolve(relativePath).normalize();
+		if (!item.startsWith(backupDir)) {
+			throw new IOException("Outside of the backup folder : " + relativePath);
+		}
+		return item;
+	}
+
+	/**
+	 * Like {@link #resolve(String)}, but for an entry of the backup folder.
+	 */
+	private Path resolveEntry(final String relativePath) throws IOException {
+		final Path item = resolve(relativePath);
+		if (item.equals(backupDir)) {
+			throw new IOException("Not an entry of the backup folder : " + relativePath);
+		}
+		return item;
+	}
+
+	private class Session {
+
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+
+		private final byte[] buffer = new byte[RemoteProtocol.CHUNK_SIZE];
+		private final byte[] deflated = new byte[RemoteProtocol.CHUNK_SIZE];
+		private final Inflater inflater = new Inflater();
+
+		private int lastDone;
+		private int lastAcknowledged;
+		private int unacknowledged;
+
+		Session(final Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(),
+					RemoteProtocol.BUFFER_SIZE));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+					RemoteProtocol.BUFFER_SIZE));
+		}
+
+		/**
+		 * Checks that the sender knows the shared secret, within the
+		 * handshake timeout so that a silent peer does not hold the receiver.
+		 */
+		private void authenticate() throws IOException {
+			socket.setSoTimeout(RemoteProtocol.HANDSHAKE_TIMEOUT);
+			if (in.readInt() != RemoteProtocol.MAGIC || in.readInt() != RemoteProtocol.VERSION) {
+				throw new IOException("Not a sync sender : " + socket.getRemoteSocketAddress());
+			}
+
+			final byte[] challenge = new byte[RemoteProtocol.CHALLENGE_LENGTH];
+			RANDOM.nextBytes(challenge);
+			out.writeInt(RemoteProtocol.MAGIC);
+			out.write(challenge);
+			out.flush();
+
+			final byte[] signature = new byte[RemoteProtocol.sign(secret, challenge).length];
+			in.readFully(signature);
+			if (!MessageDigest.isEqual(signature, RemoteProtocol.sign(secret, challenge))) {
+				throw new IOException("Wrong secret from " + socket.getRemoteSocketAddress());
+			}
+			out.writeByte(RemoteProtocol.WELCOME);
+			out.flush();
+			socket.setSoTimeout(0);
+		}
+
+		void run() throws IOException {
+			try {
+				authenticate();
+				Files.createDirectories(backupDir);
+
+				while (true) {
+					// Answers go out before waiting for more requests
+					final boolean idle = in.available() == 0;
+					if (idle || unacknowledged >= ACK_INTERVAL) {
+						acknowledge();
+						out.flush();
+					}
+
+					final byte type = in.readByte();
+					if (type == RemoteProtocol.END) {
+						acknowledge();
+						out.writeByte(RemoteProtocol.END);
+						out.flush();
+						return;
+					}
+
+					final int id = in.readInt();
+					final String relativePath = in.readUTF();
+					switch (type) {
+						case RemoteProtocol.LIST:
+							list(id, relativePath);
+							break;
+						case RemoteProtocol.FILE:
+							receiveFile(id, relativePath);
+							break;
+						case RemoteProtocol.MKDIR:
+							makeDirectory(id, relativePath);
+							break;
+						case RemoteProtocol.TOUCH:
+							touch(id, relativePath, in.readLong(), in.readInt());
+							break;
+						case RemoteProtocol.DELETE:
+							delete(id, relativePath);
+							break;
+						default:
+							throw new IOException("Unexpected request " + type);
+					}
+
+					lastDone = id;
+					unacknowledged++;
+				}
+			} finally {
+				inflater.end();
+			}
+		}
+
+		private void acknowledge() throws IOException {
+			if (lastDone != lastAcknowledged) {
+				out.writeByte(RemoteProtocol.ACK);
+				out.writeInt(lastDone);
+				lastAcknowledged = lastDone;
+				unacknowledged = 0;
+			}
+		}
+
+		private void fail(final int id, final String relativePath, final Exception e) throws IOException {
+			logger.warn("Failed to sync " + relativePath + " into " + backupDir, e);
+			out.writeByte(RemoteProtocol.NACK);
+			out.writeInt(id);
+			out.writeUTF(relativePath + " : " + e);
+		}
+
+		/**
+		 * Sends the entries of a backup directory, in the byte order of their
+		 * names, by batches. None if it does not exist.
+		 */
+		private void list(final int id, final String relativePath) throws IOException {
+			final List<byte[]> names = new ArrayList<byte[]>();
+			final List<BasicFileAttributes> attributes = new ArrayList<BasicFileAttributes>();
+
+			Path directory = null;
+			try {
+				directory = resolve(relativePath);
+			} catch (final IOException e) {
+				logger.warn("Failed to list " + relativePath, e);
+			}
+
+			if (directory != null && Files.isDirectory(directory, NOFOLLOW_LINKS)) {
+				try (SortedNames sortedNames = SortedNames.list(directory, SortedNames.DEFAULT_MEMORY_LIMIT)) {
+					for (byte[] name = sortedNames.next(); name != null; name = sortedNames.next()) {
+						try {
+							attributes.add(Files.readAttributes(directory.resolve(SortedNames.toString(name)),
+									BasicFileAttributes.class));
+							names.add(name);
+						} catch (final IOException e) {
+							// Deleted meanwhile
+							continue;
+						}
+						if (names.size() == RemoteProtocol.LISTING_BATCH) {
+							writeListing(id, false, names, attributes);
+						}
+					}
+				} catch (final IOException e) {
+					logger.warn("Failed to list " + directory, e);
+				}
+			}
+
+			writeListing(id, true, names, attributes);
+			out.flush();
+		}
+
+		private void writeListing(final int id, final boolean last, final List<byte[]> names,
+				final List<BasicFileAttributes> attributes) throws IOException {
+			out.writeByte(RemoteProtocol.LISTING);
+			out.writeInt(id);
+			out.writeBoolean(last);
+			out.writeInt(names.size());
+			for (int i = 0; i < names.size(); i++) {
+				final BasicFileAttributes entry = attributes.get(i);
+				out.writeShort(names.get(i).length);
+				out.write(names.get(i));
+				out.writeBoolean(entry.isDirectory());
+				out.writeLong(entry.size());
+				out.writeLong(entry.lastModifiedTime().toMillis());
+			}
+			names.clear();
+			attributes.clear();
+		}
+
+		/**
+		 * Writes the file to a temporary sibling, published once complete. The
+		 * chunks are read to the end even if writing fails.
+		 */
+		private void receiveFile(final int id, final String relativePath) throws IOException {
+			final long lastModified = in.readLong();
+			final int permissions = in.readInt();
+
+			Path target = null;
+			Path temp = null;
+			OutputStream file = null;
+			Exception error = null;
+			try {
+				target = resolveEntry(relativePath);
+				temp = ChannelCopyEngine.tempPathFor(target);
+				file = Files.newOutputStream(temp);
+			} catch (final IOException e) {
+				error = e;
+			}
+
+			int length;
+			while ((length = RemoteProtocol.readChunk(in, buffer, inflater, deflated)) > 0) {
+				if (error == null) {
+					try {
+						file.write(buffer, 0, length);
+					} catch (final IOException e) {
+						error = e;
+					}
+				}
+			}
+			if (length == ABORTED && error == null) {
+				error = new IOException("Not readable in the source");
+			}
+
+			try {
+				if (file != null) {
+					file.close();
+				}
+				if (error == null) {
+					RemoteProtocol.setAttributes(temp, lastModified, permissions);
+					if (Files.isDirectory(target, NOFOLLOW_LINKS)) {
+						FileUtils.deleteDirectory(target.toFile());
+					}
+					ChannelCopyEngine.publish(temp, target);
+				}
+			} catch (final IOException e) {
+				error = e;
+			}
+
+			if (error != null) {
+				if (temp != null) {
+					Files.deleteIfExists(temp);
+				}
+				fail(id, relativePath, error);
+			}
+		}
+
+		private void makeDirectory(final int id, final String relativePath) throws IOException {
+			try {
+				final Path directory = resolve(relativePath);
+				if (Files.exists(directory, NOFOLLOW_LINKS) && !Files.isDirectory(directory, NOFOLLOW_LINKS)) {
+					Files.delete(directory);
+				}
+				Files.createDirectories(directory);
+			} catch (final IOException e) {
+				fail(id, relativePath, e);
+			}
+		}
+
+		private void touch(final int id, final String relativePath, final long lastModified, final int permissions)
+				throws IOException {
+			try {
+				RemoteProtocol.setAttributes(resolve(relativePath), lastModified, permissions);
+			} catch (final IOException e) {
+				fail(id, relativePath, e);
+			}
+		}
+
+		private void delete(final int id, final String relativePath) throws IOException {
+			try {
+				final Path item = resolveEntry(relativePath);
+				if (Files.isDirectory(item, NOFOLLOW_LINKS)) {
+					FileUtils.deleteDirectory(item.toFile());
+				} else {
+					Files.deleteIfExists(item);
+				}
+			} catch (final IOException e) {
+				fail(id, relativePath, e);
+			}
+		}
+	}
+}
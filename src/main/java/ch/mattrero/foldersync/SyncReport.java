@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+/**
+ * Counters of a synchronizer at a point in time, or between two points in
+ * time for the report of one sync.
+ */
+public class SyncReport {
+
+	private final long time;
+	private final long elapsedMillis;
+
+	private final long scanned;
+	private final long added;
+	private final long modified;
+	private final long deleted;
+	private final long moved;
+	private final long failures;
+	private final long bytesCopied;
+
+	private final Histogram.Snapshot copyLatency;
+
+	SyncReport(final long time, final long scanned, final long added, final long modified, final long deleted,
+			final long moved, final long failures, final long bytesCopied, final Histogram.Snapshot copyLatency) {
+		this(time, 0, scanned, added, modified, deleted, moved, failures, bytesCopied, copyLatency);
+	}
+
+	private SyncReport(final long time, final long elapsedMillis, final long scanned, final long added,
+			final long modified, final long deleted, final long moved, final long failures, final long bytesCopied,
+			final Histogram.Snapshot copyLatency) {
+		this.time = time;
+		this.elapsedMillis = elapsedMillis;
+		this.scanned = scanned;
+		this.added = added;
+		this.modified = modified;
+		this.deleted = deleted;
+		this.moved = moved;
+		this.failures = failures;
+		this.bytesCopied = bytesCopied;
+		this.copyLatency = copyLatency;
+	}
+
+	/**
+	 * What happened between the given report and this one.
+	 */
+	public SyncReport since(final SyncReport previous) {
+		return new SyncReport(time, time - previous.time, scanned - previous.scanned, added - previous.added,
+				modified - previous.modified, deleted - previous.deleted, moved - previous.moved, failures
+						- previous.failures, bytesCopied - previous.bytesCopied, copyLatency
+						.since(previous.copyLatency));
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/**
+	 * Source entries compared with their backup.
+	 */
+	public long getScanned() {
+		return scanned;
+	}
+
+	public long getAdded() {
+		return added;
+	}
+
+	public long getModified() {
+		return modified;
+	}
+
+	public long getDeleted() {
+		return deleted;
+	}
+
+	public long getMoved() {
+		return moved;
+	}
+
+	public long getFailures() {
+		return failures;
+	}
+
+	public long getBytesCopied() {
+		return bytesCopied;
+	}
+
+	/**
+	 * Microseconds to copy each new or modified file.
+	 */
+	public Histogram.Snapshot getCopyLatency() {
+		return copyLatency;
+	}
+
+	@Override
+	public String toString() {
+		return "scanned=" + scanned + " added=" + added + " modified=" + modified + " deleted=" + deleted
+				+ " moved=" + moved + " failures=" + failures + " bytesCopied=" + bytesCopied + " elapsed="
+				+ elapsedMillis + "ms copyLatency(us)=[" + copyLatency + "]";
+	}
+}
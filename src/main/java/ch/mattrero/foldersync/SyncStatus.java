@@ -17,5 +17,5 @@
 package ch.mattrero.foldersync;
 
 public enum SyncStatus {
-	SYNCHRONIZED, ADDED, DELETED, MODIFIED
+	SYNCHRONIZED, ADDED, DELETED, MODIFIED, MOVED, TOUCHED
 }
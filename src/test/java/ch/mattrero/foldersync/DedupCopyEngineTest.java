@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DedupCopyEngineTest {
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	Path sourceDir;
+	Path backupDir;
+	Path storeDir;
+	FoldersSynchronizer synchronizer;
+	DedupCopyEngine copyEngine;
+
+	@Before
+	public void setUp() throws IOException {
+		sourceDir = temporaryFolder.newFolder().toPath();
+		backupDir = temporaryFolder.newFolder().toPath();
+		storeDir = temporaryFolder.newFolder().toPath();
+		copyEngine = new DedupCopyEngine(new ObjectStore(storeDir, true));
+		synchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		synchronizer.setCopyEngine(copyEngine);
+	}
+
+	@Test
+	public void should_store_identical_files_once_and_restore_them() throws IOException {
+		//Given
+		final byte[] data = new byte[3 * DedupCopyEngine.MIN_CHUNK_SIZE];
+		new Random(42).nextBytes(data);
+		Files.createDirectories(sourceDir.resolve("vendor"));
+		Files.write(sourceDir.resolve("original"), data);
+		Files.write(sourceDir.resolve("vendor").resolve("copy"), data);
+		Files.write(sourceDir.resolve("text"), new byte[100000]);
+
+		//When
+		final SyncReport report = synchronizer.sync();
+
+		//Then
+		assertThat(report.getBytesCopied()).isLessThan(data.length + 1000);
+		assertThat(Files.size(backupDir.resolve("vendor").resolve("copy"))).isLessThan(1000);
+		assertThat(synchronizer.sync().getAdded() + synchronizer.sync().getModified()).isEqualTo(0);
+
+		//When
+		final Path restoreDir = temporaryFolder.getRoot().toPath().resolve("restore");
+		copyEngine.restore(backupDir, restoreDir);
+
+		//Then
+		assertThat(Arrays.equals(Files.readAllBytes(restoreDir.resolve("original")), data)).isTrue();
+		assertThat(Arrays.equals(Files.readAllBytes(restoreDir.resolve("vendor").resolve("copy")), data)).isTrue();
+		assertThat(Files.readAllBytes(restoreDir.resolve("text"))).isEqualTo(new byte[100000]);
+		assertThat(Files.getLastModifiedTime(restoreDir.resolve("original"))).isEqualTo(
+				Files.getLastModifiedTime(sourceDir.resolve("original")));
+	}
+
+	@Test
+	public void should_compare_against_the_size_behind_the_pointers() throws IOException {
+		//Given
+		final byte[] data = new byte[3 * DedupCopyEngine.MIN_CHUNK_SIZE];
+		new Random(42).nextBytes(data);
+		final Path file = sourceDir.resolve("large");
+		Files.write(file, data);
+		synchronizer.sync();
+
+		//Then
+		assertThat(Files.size(backupDir.resolve("large"))).isLessThan(1000);
+		assertThat(copyEngine.readAttributes(backupDir.resolve("large")).size()).isEqualTo(data.length);
+		assertThat(copyEngine.readAttributes(backupDir.resolve("large")).lastModifiedTime().toMillis()).isEqualTo(
+				Files.getLastModifiedTime(file).toMillis());
+
+		//When
+		final SyncReport unchanged = synchronizer.sync();
+		Files.write(file, Arrays.copyOf(data, data.length - 1));
+		Files.setLastModifiedTime(file, copyEngine.readAttributes(backupDir.resolve("large")).lastModifiedTime());
+		final SyncReport truncated = synchronizer.sync();
+
+		//Then
+		assertThat(unchanged.getModified()).isEqualTo(0);
+		assertThat(truncated.getModified()).isEqualTo(1);
+		assertThat(copyEngine.readAttributes(backupDir.resolve("large")).size()).isEqualTo(data.length - 1);
+	}
+
+	@Test
+	public void should_only_store_the_changed_chunks() throws IOException {
+		//Given a byte inserted in the middle of a large file
+		final byte[] data = new byte[16 * DedupCopyEngine.MIN_CHUNK_SIZE];
+		new Random(42).nextBytes(data);
+		final Path file = sourceDir.resolve("large");
+		Files.write(file, data);
+		synchronizer.sync();
+
+		final byte[] changed = new byte[data.length + 1];
+		System.arraycopy(data, 0, changed, 0, data.length / 2);
+		System.arraycopy(data, data.length / 2, changed, data.length / 2 + 1, data.length / 2);
+		Files.write(file, changed);
+		Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+
+		//When
+		final SyncReport report = synchronizer.sync();
+
+		//Then
+		assertThat(report.getModified()).isEqualTo(1);
+		assertThat(report.getBytesCopied()).isLessThan(data.length / 2);
+
+		//When the old chunks are no longer used
+		final long freed = copyEngine.collectGarbage(Collections.singletonList(backupDir));
+		final Path restoreDir = temporaryFolder.getRoot().toPath().resolve("restore");
+		copyEngine.restore(backupDir, restoreDir);
+
+		//Then
+		assertThat(freed).isGreaterThan(0);
+		assertThat(Arrays.equals(Files.readAllBytes(restoreDir.resolve("large")), changed)).isTrue();
+		assertThat(FileUtils.sizeOfDirectory(storeDir.toFile())).isLessThan(data.length + data.length / 2);
+	}
+}
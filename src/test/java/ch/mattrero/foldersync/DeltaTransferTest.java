@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeltaTransferTest {
+
+	private static final int BLOCK_SIZE = 1024;
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	Path source;
+	Path target;
+
+	byte[] data;
+
+	@Before
+	public void setUp() throws IOException {
+		source = temporaryFolder.newFile().toPath();
+		target = temporaryFolder.newFile().toPath();
+
+		data = new byte[10 * BLOCK_SIZE + 100];
+		new Random(42).nextBytes(data);
+		Files.write(target, data);
+	}
+
+	@Test
+	public void should_only_rewrite_modified_blocks() throws IOException {
+		//Given
+		final byte[] modified = data.clone();
+		modified[3 * BLOCK_SIZE + 10]++;
+		Files.write(source, modified);
+
+		//When
+		final long written = new DeltaTransfer(BLOCK_SIZE).update(source, target);
+
+		//Then
+		assertThat(written).isEqualTo(BLOCK_SIZE);
+		assertThat(Arrays.equals(Files.readAllBytes(target), modified)).isTrue();
+		assertThat(Files.getLastModifiedTime(target)).isEqualTo(Files.getLastModifiedTime(source));
+	}
+
+	@Test
+	public void should_only_write_the_appended_tail() throws IOException {
+		//Given
+		final byte[] appended = Arrays.copyOf(data, data.length + 2 * BLOCK_SIZE);
+		Files.write(source, appended);
+
+		//When
+		final long written = new DeltaTransfer(BLOCK_SIZE).update(source, target);
+
+		//Then
+		assertThat(written).isEqualTo(2 * BLOCK_SIZE + 100);
+		assertThat(Arrays.equals(Files.readAllBytes(target), appended)).isTrue();
+	}
+
+	@Test
+	public void should_truncate_the_removed_tail() throws IOException {
+		//Given
+		final byte[] truncated = Arrays.copyOf(data, 4 * BLOCK_SIZE);
+		Files.write(source, truncated);
+
+		//When
+		final long written = new DeltaTransfer(BLOCK_SIZE).update(source, target);
+
+		//Then
+		assertThat(written).isEqualTo(0);
+		assertThat(Arrays.equals(Files.readAllBytes(target), truncated)).isTrue();
+	}
+
+	@Test
+	public void should_rewrite_a_shorter_last_block() throws IOException {
+		//Given
+		final byte[] modified = Arrays.copyOf(data, data.length - 50);
+		modified[modified.length - 1]++;
+		Files.write(source, modified);
+
+		//When
+		final long written = new DeltaTransfer(BLOCK_SIZE).update(source, target);
+
+		//Then
+		assertThat(written).isEqualTo(50);
+		assertThat(Arrays.equals(Files.readAllBytes(target), modified)).isTrue();
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent.Kind;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class EventCoalescerTest {
+
+	final Path file = Paths.get("file");
+	final Path file2 = Paths.get("file2");
+
+	List<String> handled;
+	EventCoalescer coalescer;
+
+	@Before
+	public void setUp() {
+		handled = new ArrayList<String>();
+		coalescer = new EventCoalescer(60000, 60000, (final Path path, final Kind<?> kind) -> handled.add(path + " "
+				+ kind.name()));
+	}
+
+	@Test
+	public void should_collapse_modifications() {
+		//Given
+		for (int i = 0; i < 1000; i++) {
+			coalescer.submit(file, ENTRY_MODIFY);
+		}
+		coalescer.submit(file2, ENTRY_MODIFY);
+
+		//When
+		coalescer.flush(false);
+		final int handledBeforeQuiet = handled.size();
+		coalescer.flush(true);
+
+		//Then
+		assertThat(handledBeforeQuiet).isEqualTo(0);
+		assertThat(handled).containsExactly("file ENTRY_MODIFY", "file2 ENTRY_MODIFY");
+	}
+
+	@Test
+	public void should_keep_a_creation_when_written_afterwards() {
+		//Given
+		coalescer.submit(file, ENTRY_CREATE);
+		coalescer.submit(file, ENTRY_MODIFY);
+		coalescer.submit(file, ENTRY_MODIFY);
+
+		//When
+		coalescer.flush(true);
+
+		//Then
+		assertThat(handled).containsExactly("file ENTRY_CREATE");
+	}
+
+	@Test
+	public void should_drop_a_temporary_file() {
+		//Given
+		coalescer.submit(file, ENTRY_CREATE);
+		coalescer.submit(file, ENTRY_MODIFY);
+		coalescer.submit(file, ENTRY_DELETE);
+
+		//When
+		coalescer.flush(true);
+
+		//Then
+		assertThat(handled).isEmpty();
+	}
+
+	@Test
+	public void should_replace_a_deleted_then_created_path() {
+		//Given
+		coalescer.submit(file, ENTRY_MODIFY);
+		coalescer.submit(file, ENTRY_DELETE);
+		coalescer.submit(file, ENTRY_CREATE);
+
+		//When
+		coalescer.flush(true);
+
+		//Then
+		assertThat(handled).containsExactly("file ENTRY_DELETE", "file ENTRY_CREATE");
+	}
+
+	@Test
+	public void should_not_hold_events_when_disabled() {
+		//Given
+		coalescer = new EventCoalescer(0, 0, (final Path path, final Kind<?> kind) -> handled.add(path + " "
+				+ kind.name()));
+
+		//When
+		coalescer.submit(file, ENTRY_MODIFY);
+
+		//Then
+		assertThat(handled).containsExactly("file ENTRY_MODIFY");
+	}
+
+	@Test
+	public void should_hand_over_new_paths_past_the_pending_limit() {
+		//Given
+		final List<Path> overflowed = new ArrayList<Path>();
+		coalescer.setOverflowHandler(1, overflowed::add);
+
+		//When
+		coalescer.submit(file, ENTRY_CREATE);
+		coalescer.submit(file2, ENTRY_CREATE);
+		coalescer.submit(file, ENTRY_MODIFY);
+		coalescer.flush(true);
+
+		//Then
+		assertThat(overflowed).containsExactly(file2);
+		assertThat(handled).containsExactly("file ENTRY_CREATE");
+	}
+
+	@Test
+	public void should_apply_the_pending_limit_to_each_group() {
+		//Given
+		final Path other = Paths.get("other", "file");
+		final List<Path> overflowed = new ArrayList<Path>();
+		coalescer.setOverflowHandler(1, path -> path.getParent(), overflowed::add);
+
+		//When
+		coalescer.submit(file, ENTRY_CREATE);
+		coalescer.submit(file2, ENTRY_CREATE);
+		coalescer.submit(other, ENTRY_CREATE);
+		coalescer.flush(true);
+		coalescer.submit(file2, ENTRY_MODIFY);
+		coalescer.flush(true);
+
+		//Then
+		assertThat(overflowed).containsExactly(file2);
+		assertThat(handled).containsExactly("file ENTRY_CREATE", other + " ENTRY_CREATE", "file2 ENTRY_MODIFY");
+	}
+}
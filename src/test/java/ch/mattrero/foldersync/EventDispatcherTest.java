@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EventDispatcherTest {
+
+	final Path directory = Paths.get("source", "folder");
+
+	EventDispatcher dispatcher;
+
+	@Before
+	public void setUp() {
+		dispatcher = new EventDispatcher(4, 2);
+	}
+
+	@After
+	public void tearDown() {
+		dispatcher.shutdownNow();
+	}
+
+	@Test
+	public void should_keep_the_changes_of_a_directory_in_order() throws InterruptedException {
+		//Given
+		final List<Integer> done = new CopyOnWriteArrayList<Integer>();
+		final CountDownLatch release = new CountDownLatch(1);
+		dispatcher.dispatch(directory, () -> await(release));
+
+		//When
+		for (int i = 0; i < 100; i++) {
+			final int index = i;
+			dispatcher.dispatch(directory, () -> done.add(index));
+		}
+		release.countDown();
+		dispatcher.shutdown(10000);
+
+		//Then
+		assertThat(done).hasSize(100);
+		for (int i = 0; i < 100; i++) {
+			assertThat(done.get(i)).isEqualTo(i);
+		}
+	}
+
+	@Test
+	public void should_refuse_offers_to_a_full_lane_only() throws InterruptedException {
+		//Given a lane busy with one task and holding two more
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		assertThat(dispatcher.offer(directory.resolve("a"), () -> {
+			started.countDown();
+			await(release);
+		})).isTrue();
+		assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+		assertThat(dispatcher.offer(directory.resolve("b"), () -> {
+		})).isTrue();
+		assertThat(dispatcher.offer(directory.resolve("c"), () -> {
+		})).isTrue();
+
+		//When
+		final boolean offered = dispatcher.offer(directory.resolve("d"), () -> {
+		});
+		final Path otherDirectory = otherLaneThan(directory);
+		final boolean offeredElsewhere = dispatcher.offer(otherDirectory.resolve("e"), () -> {
+		});
+		dispatcher.dispatch(directory, () -> {
+		});
+
+		//Then the caller is never blocked
+		assertThat(offered).isFalse();
+		assertThat(offeredElsewhere).isTrue();
+		assertThat(dispatcher.getQueueDepth()).isGreaterThanOrEqualTo(3);
+		release.countDown();
+	}
+
+	@Test
+	public void should_queue_the_changes_of_a_new_directory_behind_its_copy() throws InterruptedException {
+		//Given a copy in progress
+		final Path newDirectory = otherLaneThan(directory).resolve("new");
+		final List<String> done = new CopyOnWriteArrayList<String>();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		assertThat(dispatcher.offerTree(newDirectory, () -> {
+			started.countDown();
+			await(release);
+			done.add("copy");
+		})).isTrue();
+		assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+
+		//When
+		assertThat(dispatcher.offer(newDirectory.resolve("sub").resolve("file"), () -> done.add("file"))).isTrue();
+		release.countDown();
+		dispatcher.shutdown(10000);
+
+		//Then
+		assertThat(done).containsExactly("copy", "file");
+	}
+
+	private Path otherLaneThan(final Path sourceSubDir) {
+		for (int i = 0;; i++) {
+			final Path other = Paths.get("source", "other" + i);
+			if (dispatcher.laneOf(other) != dispatcher.laneOf(sourceSubDir)) {
+				return other;
+			}
+		}
+	}
+
+	private static void await(final CountDownLatch latch) {
+		try {
+			latch.await(10, TimeUnit.SECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
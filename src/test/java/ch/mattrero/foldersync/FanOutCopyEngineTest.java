@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FanOutCopyEngineTest {
+
+	private static final int CHUNK_SIZE = 4096;
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	Path source;
+	byte[] data;
+
+	@Before
+	public void setUp() throws IOException {
+		source = temporaryFolder.newFile().toPath();
+		data = new byte[500 * CHUNK_SIZE + 100];
+		new Random(42).nextBytes(data);
+		Files.write(source, data);
+	}
+
+	@Test
+	public void should_complete_every_target_even_when_detached() throws IOException {
+		//Given a single chunk of queue, so that targets get detached
+		final FanOutCopyEngine engine = new FanOutCopyEngine(CHUNK_SIZE, 1);
+		final Path first = temporaryFolder.getRoot().toPath().resolve("first");
+		final Path second = temporaryFolder.getRoot().toPath().resolve("second");
+		final Path third = temporaryFolder.getRoot().toPath().resolve("third");
+
+		//When
+		final FanOutCopyEngine.Result result = engine.copyFile(source, Arrays.asList(first, second, third));
+
+		//Then
+		assertThat(result.getFailures()).isEmpty();
+		assertThat(result.getBytes()).isEqualTo(data.length);
+		for (final Path target : Arrays.asList(first, second, third)) {
+			assertThat(Files.readAllBytes(target)).isEqualTo(data);
+			assertThat(Files.getLastModifiedTime(target)).isEqualTo(Files.getLastModifiedTime(source));
+			assertThat(Files.exists(ChannelCopyEngine.tempPathFor(target))).isFalse();
+		}
+	}
+
+	@Test
+	public void should_not_fail_the_other_targets() throws IOException {
+		//Given
+		final FanOutCopyEngine engine = new FanOutCopyEngine(CHUNK_SIZE, 4);
+		final Path good = temporaryFolder.getRoot().toPath().resolve("good");
+		final Path bad = temporaryFolder.getRoot().toPath().resolve("missing").resolve("bad");
+
+		//When
+		final FanOutCopyEngine.Result result = engine.copyFile(source, Arrays.asList(bad, good));
+
+		//Then
+		assertThat(result.isFailed(bad)).isTrue();
+		assertThat(result.isFailed(good)).isFalse();
+		assertThat(Files.readAllBytes(good)).isEqualTo(data);
+	}
+}
@@ -21,7 +21,12 @@ import static org.fest.assertions.Assertions.assertThat;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.BooleanSupplier;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.Before;
@@ -187,4 +192,463 @@ public class FolderSyncTest {
 		FileUtils.writeStringToFile(backupDir.resolve("file").toFile(), "newdata");
 	}
 
+	@Test
+	public void should_keep_the_backup_when_its_replacement_fails() throws IOException {
+		//Given
+		FileUtils.writeStringToFile(sourceDir.resolve("file").toFile(), "newdata");
+		FileUtils.writeStringToFile(backupDir.resolve("file").toFile(), "olddata");
+		Files.setLastModifiedTime(backupDir.resolve("file"),
+				FileTime.fromMillis(Files.getLastModifiedTime(sourceDir.resolve("file")).toMillis() - 1000));
+		final FoldersSynchronizer synchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		synchronizer.setCopyEngine(new ChannelCopyEngine() {
+			@Override
+			public long copyFile(final Path source, final Path target) throws IOException {
+				throw new IOException("Disk full");
+			}
+		});
+
+		//When
+		final SyncReport report = synchronizer.sync();
+
+		//Then
+		assertThat(report.getFailures()).isEqualTo(1);
+		assertThat(FileUtils.readFileToString(backupDir.resolve("file").toFile())).isEqualTo("olddata");
+	}
+
+	@Test
+	public void should_sync_the_same_tree_in_parallel() throws IOException {
+		//Given
+		for (int i = 0; i < 5; i++) {
+			final Path folder = Files.createDirectories(sourceDir.resolve("folder" + i).resolve("subfolder"));
+			FileUtils.writeStringToFile(folder.resolve("file").toFile(), "data" + i);
+			FileUtils.writeStringToFile(backupDir.resolve("deleted" + i).toFile(), "data" + i);
+		}
+		Files.createDirectories(backupDir.resolve("folder0").resolve("old"));
+
+		final FoldersSynchronizer synchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		synchronizer.setParallelism(4);
+
+		//When
+		synchronizer.sync();
+
+		//Then
+		for (int i = 0; i < 5; i++) {
+			assertThat(FileUtils.readFileToString(backupDir.resolve("folder" + i).resolve("subfolder").resolve("file")
+					.toFile())).isEqualTo("data" + i);
+			assertThat(Files.exists(backupDir.resolve("deleted" + i))).isFalse();
+		}
+		assertThat(Files.exists(backupDir.resolve("folder0").resolve("old"))).isFalse();
+	}
+
+	@Test
+	public void should_merge_against_the_manifest() throws IOException {
+		//Given
+		final Path manifestFile = temporaryFolder.getRoot().toPath().resolve("manifest");
+		FileUtils.writeStringToFile(sourceDir.resolve("folder").resolve("file").toFile(), "data");
+
+		FoldersSynchronizer synchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		synchronizer.setManifest(manifestFile);
+		synchronizer.sync();
+
+		Files.delete(backupDir.resolve("folder").resolve("file"));
+		FileUtils.writeStringToFile(sourceDir.resolve("file2").toFile(), "data2");
+
+		//When
+		synchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		synchronizer.setManifest(manifestFile);
+		synchronizer.sync();
+
+		//Then
+		assertThat(Files.exists(manifestFile)).isTrue();
+		assertThat(Files.exists(backupDir.resolve("file2"))).isTrue();
+		assertThat(Files.exists(backupDir.resolve("folder").resolve("file"))).isFalse();
+	}
+
+	@Test
+	public void should_take_the_backup_attributes_from_the_manifest() throws IOException {
+		//Given a backup changed behind the manifest
+		final Path manifestFile = temporaryFolder.getRoot().toPath().resolve("manifest");
+		FileUtils.writeStringToFile(sourceDir.resolve("folder").resolve("file").toFile(), "data");
+
+		final FoldersSynchronizer synchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		synchronizer.setManifest(manifestFile);
+		synchronizer.sync();
+
+		FileUtils.writeStringToFile(backupDir.resolve("folder").resolve("file").toFile(), "changed behind");
+
+		//When
+		final SyncReport report = synchronizer.sync();
+
+		//Then the backup is not stat'ed again
+		assertThat(report.getModified()).isEqualTo(0);
+		assertThat(FileUtils.readFileToString(backupDir.resolve("folder").resolve("file").toFile())).isEqualTo(
+				"changed behind");
+	}
+
+	@Test
+	public void should_rescan_the_backup_on_verify() throws IOException {
+		//Given
+		final Path manifestFile = backupDir.resolve(".manifest");
+		FileUtils.writeStringToFile(sourceDir.resolve("folder").resolve("file").toFile(), "data");
+
+		final FoldersSynchronizer synchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		synchronizer.setManifest(manifestFile);
+		synchronizer.sync();
+
+		Files.delete(backupDir.resolve("folder").resolve("file"));
+
+		//When
+		synchronizer.verify();
+
+		//Then
+		assertThat(Files.exists(manifestFile)).isTrue();
+		assertThat(FileUtils.readFileToString(backupDir.resolve("folder").resolve("file").toFile())).isEqualTo("data");
+	}
+
+	@Test
+	public void should_replace_when_content_differs_with_same_size_and_age() throws IOException {
+		//Given
+		FileUtils.writeStringToFile(sourceDir.resolve("file").toFile(), "newdata");
+		FileUtils.writeStringToFile(backupDir.resolve("file").toFile(), "olddata");
+		Files.setLastModifiedTime(backupDir.resolve("file"), Files.getLastModifiedTime(sourceDir.resolve("file")));
+
+		final FoldersSynchronizer synchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		synchronizer.setDigestStore(new DigestStore());
+
+		//When
+		synchronizer.sync();
+
+		//Then
+		assertThat(FileUtils.readFileToString(backupDir.resolve("file").toFile())).isEqualTo("newdata");
+	}
+
+	@Test
+	public void should_only_touch_when_content_is_the_same() throws IOException {
+		//Given
+		final Path digestsFile = temporaryFolder.getRoot().toPath().resolve("digests");
+		FileUtils.writeStringToFile(sourceDir.resolve("file").toFile(), "data");
+		FileUtils.writeStringToFile(backupDir.resolve("file").toFile(), "data");
+		Files.setLastModifiedTime(backupDir.resolve("file"),
+				FileTime.fromMillis(Files.getLastModifiedTime(sourceDir.resolve("file")).toMillis() - 10000));
+		final Object fileKey = Files.readAttributes(backupDir.resolve("file"), BasicFileAttributes.class).fileKey();
+
+		final FoldersSynchronizer synchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		synchronizer.setDigestStore(new DigestStore("SHA-256", digestsFile));
+
+		//When
+		synchronizer.sync();
+
+		//Then
+		assertThat(Files.readAttributes(backupDir.resolve("file"), BasicFileAttributes.class).fileKey()).isEqualTo(
+				fileKey);
+		assertThat(Files.getLastModifiedTime(backupDir.resolve("file"))).isEqualTo(
+				Files.getLastModifiedTime(sourceDir.resolve("file")));
+		assertThat(Files.exists(digestsFile)).isTrue();
+	}
+
+	@Test
+	public void should_copy_with_attributes_and_no_temporary_file_left() throws IOException {
+		//Given
+		FileUtils.writeStringToFile(sourceDir.resolve("folder").resolve("subfolder").resolve("file").toFile(), "data");
+		FileUtils.writeStringToFile(sourceDir.resolve("file2").toFile(), "data2");
+		Files.setLastModifiedTime(sourceDir.resolve("file2"), FileTime.fromMillis(1000000000000L));
+
+		//When
+		new FolderSync().sync(sourceDir, backupDir);
+
+		//Then
+		assertThat(FileUtils.readFileToString(backupDir.resolve("folder").resolve("subfolder").resolve("file")
+				.toFile())).isEqualTo("data");
+		assertThat(Files.getLastModifiedTime(backupDir.resolve("file2")).toMillis()).isEqualTo(1000000000000L);
+		assertThat(backupDir.toFile().list()).containsOnly("folder", "file2");
+		assertThat(backupDir.resolve("folder").toFile().list()).containsOnly("subfolder");
+	}
+
+	@Test
+	public void should_move_renamed_paths() throws IOException {
+		//Given
+		FileUtils.writeStringToFile(sourceDir.resolve("folder").resolve("file").toFile(), "data");
+		FileUtils.writeStringToFile(sourceDir.resolve("folder").resolve("file2").toFile(), "data2");
+		Files.write(sourceDir.resolve("big"), new byte[(int) MoveDetector.DEFAULT_MIN_FILE_SIZE]);
+
+		final FoldersSynchronizer synchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		synchronizer.setManifest(temporaryFolder.getRoot().toPath().resolve("manifest"));
+		synchronizer.setMoveDetection(true);
+		synchronizer.sync();
+
+		final Object folderKey = Files.readAttributes(backupDir.resolve("folder"), BasicFileAttributes.class)
+				.fileKey();
+		final Object fileKey = Files.readAttributes(backupDir.resolve("big"), BasicFileAttributes.class).fileKey();
+
+		Files.move(sourceDir.resolve("folder"), sourceDir.resolve("renamed"));
+		Files.delete(sourceDir.resolve("renamed").resolve("file2"));
+		Files.move(sourceDir.resolve("big"), sourceDir.resolve("big2"));
+
+		//When
+		synchronizer.sync();
+
+		//Then
+		assertThat(backupDir.toFile().list()).containsOnly("renamed", "big2");
+		assertThat(Files.readAttributes(backupDir.resolve("renamed"), BasicFileAttributes.class).fileKey())
+				.isEqualTo(folderKey);
+		assertThat(Files.readAttributes(backupDir.resolve("big2"), BasicFileAttributes.class).fileKey()).isEqualTo(
+				fileKey);
+		assertThat(backupDir.resolve("renamed").toFile().list()).containsOnly("file");
+		assertThat(synchronizer.getManifest().get(backupDir.relativize(backupDir.resolve("renamed").resolve("file"))))
+				.isNotNull();
+	}
+
+	@Test
+	public void should_not_move_a_different_file_of_same_size_and_date() throws IOException {
+		//Given
+		final byte[] data = new byte[(int) MoveDetector.DEFAULT_MIN_FILE_SIZE * 2];
+		Arrays.fill(data, (byte) 'A');
+		Files.write(sourceDir.resolve("x"), data);
+		Files.setLastModifiedTime(sourceDir.resolve("x"), FileTime.fromMillis(1000000000000L));
+
+		final FoldersSynchronizer synchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		synchronizer.setMoveDetection(true);
+		synchronizer.sync();
+
+		Files.delete(sourceDir.resolve("x"));
+		Arrays.fill(data, (byte) 'C');
+		Files.write(sourceDir.resolve("z"), data);
+		Files.setLastModifiedTime(sourceDir.resolve("z"), FileTime.fromMillis(1000000000000L));
+
+		//When
+		synchronizer.sync();
+
+		//Then
+		assertThat(backupDir.toFile().list()).containsOnly("z");
+		assertThat(Arrays.equals(Files.readAllBytes(backupDir.resolve("z")), data)).isTrue();
+		assertThat(synchronizer.getMetrics().getMovedCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void should_refuse_to_replay_the_move_of_a_different_file() throws IOException {
+		//Given
+		FileUtils.writeStringToFile(sourceDir.resolve("x").toFile(), "AAAA");
+		Files.setLastModifiedTime(sourceDir.resolve("x"), FileTime.fromMillis(1000000000000L));
+
+		final FoldersSynchronizer synchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		synchronizer.sync();
+
+		Files.delete(sourceDir.resolve("x"));
+		FileUtils.writeStringToFile(sourceDir.resolve("z").toFile(), "CCCC");
+		Files.setLastModifiedTime(sourceDir.resolve("z"), FileTime.fromMillis(1000000000000L));
+
+		//When
+		final boolean moved = synchronizer.syncMoved(sourceDir.resolve("x"), sourceDir.resolve("z"));
+
+		//Then
+		assertThat(moved).isFalse();
+		assertThat(backupDir.toFile().list()).containsOnly("x");
+	}
+
+	@Test
+	public void should_plan_without_changing_anything() throws IOException {
+		//Given
+		FileUtils.writeStringToFile(sourceDir.resolve("file").toFile(), "data");
+		FileUtils.writeStringToFile(sourceDir.resolve("folder").resolve("file2").toFile(), "data2");
+		FileUtils.writeStringToFile(sourceDir.resolve("folder2").resolve("file3").toFile(), "data3");
+		FileUtils.writeStringToFile(backupDir.resolve("folder2").resolve("file4").toFile(), "data4");
+
+		//When
+		final Map<SyncStatus, SyncPlan.Estimate> estimates = new FoldersSynchronizer(sourceDir, backupDir).plan()
+				.estimate();
+
+		//Then
+		assertThat(estimates.keySet()).containsOnly(SyncStatus.ADDED, SyncStatus.DELETED);
+		assertThat(estimates.get(SyncStatus.ADDED).getOperations()).isEqualTo(3);
+		assertThat(estimates.get(SyncStatus.ADDED).getBytes()).isEqualTo(14);
+		assertThat(estimates.get(SyncStatus.DELETED).getOperations()).isEqualTo(1);
+		assertThat(backupDir.toFile().list()).containsOnly("folder2");
+		assertThat(backupDir.resolve("folder2").toFile().list()).containsOnly("file4");
+	}
+
+	@Test
+	public void should_merge_huge_directories_on_disk() throws IOException {
+		//Given
+		for (int i = 0; i < 200; i++) {
+			FileUtils.writeStringToFile(sourceDir.resolve("file" + i).toFile(), "data" + i);
+			if (i % 2 == 0) {
+				FileUtils.writeStringToFile(backupDir.resolve("file" + i).toFile(), "data" + i);
+				Files.setLastModifiedTime(backupDir.resolve("file" + i),
+						Files.getLastModifiedTime(sourceDir.resolve("file" + i)));
+			} else {
+				FileUtils.writeStringToFile(backupDir.resolve("old" + i).toFile(), "data" + i);
+			}
+		}
+
+		final FoldersSynchronizer synchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		synchronizer.setSpillThreshold(500);
+
+		//When
+		synchronizer.sync();
+
+		//Then
+		assertThat(backupDir.toFile().list()).hasSize(200);
+		for (int i = 0; i < 200; i++) {
+			assertThat(FileUtils.readFileToString(backupDir.resolve("file" + i).toFile())).isEqualTo("data" + i);
+		}
+	}
+
+	@Test
+	public void should_report_what_was_synced() throws IOException {
+		//Given
+		FileUtils.writeStringToFile(sourceDir.resolve("file").toFile(), "data");
+		FileUtils.writeStringToFile(sourceDir.resolve("folder").resolve("file2").toFile(), "data2");
+		FileUtils.writeStringToFile(backupDir.resolve("old").toFile(), "old");
+
+		//When
+		final SyncReport report = new FolderSync().sync(sourceDir, backupDir);
+
+		//Then
+		assertThat(report.getScanned()).isEqualTo(2);
+		assertThat(report.getAdded()).isEqualTo(2);
+		assertThat(report.getDeleted()).isEqualTo(1);
+		assertThat(report.getModified()).isEqualTo(0);
+		assertThat(report.getFailures()).isEqualTo(0);
+		assertThat(report.getBytesCopied()).isEqualTo(9);
+		assertThat(report.getCopyLatency().getCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void should_sync_into_several_backups() throws IOException {
+		//Given
+		final Path otherBackupDir = temporaryFolder.newFolder().toPath();
+		FileUtils.writeStringToFile(sourceDir.resolve("file").toFile(), "data");
+		FileUtils.writeStringToFile(sourceDir.resolve("folder").resolve("file2").toFile(), "data2");
+		final byte[] big = new byte[3 * FanOutCopyEngine.DEFAULT_CHUNK_SIZE + 10];
+		new Random(42).nextBytes(big);
+		Files.write(sourceDir.resolve("big"), big);
+
+		FileUtils.writeStringToFile(backupDir.resolve("old").toFile(), "old");
+		FileUtils.writeStringToFile(otherBackupDir.resolve("file").toFile(), "stale");
+		FileUtils.writeStringToFile(otherBackupDir.resolve("folder").resolve("file2").toFile(), "data2");
+		Files.setLastModifiedTime(otherBackupDir.resolve("folder").resolve("file2"), Files.getLastModifiedTime(
+				sourceDir.resolve("folder").resolve("file2")));
+
+		//When
+		final Map<Path, SyncReport> reports = new FolderSync().sync(sourceDir, Arrays.asList(backupDir,
+				otherBackupDir), SyncFilter.NONE);
+
+		//Then
+		for (final Path dir : Arrays.asList(backupDir, otherBackupDir)) {
+			assertThat(FileUtils.readFileToString(dir.resolve("file").toFile())).isEqualTo("data");
+			assertThat(FileUtils.readFileToString(dir.resolve("folder").resolve("file2").toFile())).isEqualTo(
+					"data2");
+			assertThat(Files.readAllBytes(dir.resolve("big"))).isEqualTo(big);
+			assertThat(Files.getLastModifiedTime(dir.resolve("big"))).isEqualTo(
+					Files.getLastModifiedTime(sourceDir.resolve("big")));
+		}
+		assertThat(Files.exists(backupDir.resolve("old"))).isFalse();
+
+		assertThat(reports.get(backupDir).getAdded()).isEqualTo(3);
+		assertThat(reports.get(backupDir).getDeleted()).isEqualTo(1);
+		assertThat(reports.get(otherBackupDir).getAdded()).isEqualTo(1);
+		assertThat(reports.get(otherBackupDir).getModified()).isEqualTo(1);
+		assertThat(reports.get(otherBackupDir).getBytesCopied()).isEqualTo(big.length + 4);
+	}
+
+	@Test
+	public void should_sync_the_other_backups_when_one_is_unreadable() throws IOException {
+		//Given a backup folder which is not a folder
+		final Path brokenBackupDir = temporaryFolder.newFile().toPath();
+		FileUtils.writeStringToFile(sourceDir.resolve("file").toFile(), "data");
+		FileUtils.writeStringToFile(sourceDir.resolve("folder").resolve("file2").toFile(), "data2");
+
+		//When
+		final Map<Path, SyncReport> reports = new FolderSync().sync(sourceDir, Arrays.asList(brokenBackupDir,
+				backupDir), SyncFilter.NONE);
+
+		//Then
+		assertThat(FileUtils.readFileToString(backupDir.resolve("file").toFile())).isEqualTo("data");
+		assertThat(FileUtils.readFileToString(backupDir.resolve("folder").resolve("file2").toFile())).isEqualTo(
+				"data2");
+		assertThat(reports.get(backupDir).getAdded()).isEqualTo(2);
+		assertThat(reports.get(brokenBackupDir).getAdded()).isEqualTo(0);
+		assertThat(Files.isRegularFile(brokenBackupDir)).isTrue();
+	}
+
+	@Test
+	public void should_skip_excluded_paths_on_both_sides() throws IOException {
+		//Given
+		FileUtils.writeStringToFile(sourceDir.resolve("file").toFile(), "data");
+		FileUtils.writeStringToFile(sourceDir.resolve("file.tmp").toFile(), "data");
+		FileUtils.writeStringToFile(sourceDir.resolve("folder").resolve("build").resolve("file").toFile(), "data");
+		FileUtils.writeStringToFile(sourceDir.resolve("build").resolve("file").toFile(), "data");
+		FileUtils.writeStringToFile(backupDir.resolve("old.tmp").toFile(), "data");
+
+		//When
+		new FolderSync().sync(sourceDir, backupDir, SyncFilter.parse(Arrays.asList("*.tmp", "build/")));
+
+		//Then
+		assertThat(Files.exists(backupDir.resolve("file"))).isTrue();
+		assertThat(Files.exists(backupDir.resolve("file.tmp"))).isFalse();
+		assertThat(Files.exists(backupDir.resolve("build"))).isFalse();
+		assertThat(Files.exists(backupDir.resolve("folder"))).isTrue();
+		assertThat(Files.exists(backupDir.resolve("folder").resolve("build"))).isFalse();
+		assertThat(Files.exists(backupDir.resolve("old.tmp"))).isTrue();
+	}
+
+	@Test
+	public void should_exclude_by_the_attributes_read_on_each_side() throws IOException {
+		//Given
+		FileUtils.writeStringToFile(sourceDir.resolve("small").toFile(), "data");
+		Files.write(sourceDir.resolve("large"), new byte[4096]);
+		FileUtils.writeStringToFile(sourceDir.resolve("folder").resolve("small").toFile(), "data");
+		FileUtils.writeStringToFile(backupDir.resolve("stale").toFile(), "data");
+		Files.write(backupDir.resolve("old_large"), new byte[4096]);
+
+		final FoldersSynchronizer synchronizer = new FoldersSynchronizer(sourceDir, backupDir,
+				SyncFilter.parse(Arrays.asList("size>2K")));
+
+		//When
+		final SyncReport report = synchronizer.sync();
+
+		//Then
+		assertThat(Files.exists(backupDir.resolve("small"))).isTrue();
+		assertThat(Files.exists(backupDir.resolve("folder").resolve("small"))).isTrue();
+		assertThat(Files.exists(backupDir.resolve("large"))).isFalse();
+		assertThat(Files.exists(backupDir.resolve("stale"))).isFalse();
+		assertThat(Files.exists(backupDir.resolve("old_large"))).isTrue();
+		assertThat(report.getFailures()).isEqualTo(0);
+	}
+
+	@Test
+	public void should_sync_in_real_time_until_shut_down() throws Exception {
+		//Given
+		FileUtils.writeStringToFile(sourceDir.resolve("file").toFile(), "data");
+		final IRealTimeSynchronizer synchronizer = new FolderSync().realTimeSync(sourceDir, backupDir);
+
+		try {
+			//When
+			FileUtils.writeStringToFile(sourceDir.resolve("folder").resolve("file2").toFile(), "data2");
+			Files.createDirectory(sourceDir.resolve("folder2"));
+			FileUtils.writeStringToFile(sourceDir.resolve("folder2").resolve("file3").toFile(), "data3");
+			Files.delete(sourceDir.resolve("file"));
+
+			//Then
+			waitUntilExists(backupDir.resolve("folder").resolve("file2"));
+			waitUntilExists(backupDir.resolve("folder2").resolve("file3"));
+			assertThat(FileUtils.readFileToString(backupDir.resolve("folder2").resolve("file3").toFile())).isEqualTo(
+					"data3");
+			waitUntil(() -> !Files.exists(backupDir.resolve("file")));
+		} finally {
+			synchronizer.shutdownNow();
+		}
+	}
+
+	private static void waitUntilExists(final Path path) throws InterruptedException {
+		waitUntil(() -> Files.exists(path));
+	}
+
+	private static void waitUntil(final BooleanSupplier condition) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertThat(condition.getAsBoolean()).isTrue();
+	}
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FoldersRealTimeSynchronizerTest {
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	Path sourceDir;
+	Path backupDir;
+	CountDownLatch copying;
+	CountDownLatch release;
+	FoldersRealTimeSynchronizer synchronizer;
+
+	@Before
+	public void setUp() throws IOException {
+		sourceDir = temporaryFolder.newFolder().toPath();
+		backupDir = temporaryFolder.newFolder().toPath();
+		copying = new CountDownLatch(1);
+		release = new CountDownLatch(1);
+
+		// The initial sync is held on the copy of the "slow" file
+		final FoldersSynchronizer foldersSynchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		foldersSynchronizer.setCopyEngine(new ChannelCopyEngine() {
+			@Override
+			public long copyFile(final Path source, final Path target) throws IOException {
+				if (source.getFileName().toString().equals("slow")) {
+					copying.countDown();
+					try {
+						release.await();
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return super.copyFile(source, target);
+			}
+		});
+		synchronizer = new FoldersRealTimeSynchronizer(foldersSynchronizer);
+		synchronizer.setCoalescing(20, 100);
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		release.countDown();
+		synchronizer.shutdownNow();
+	}
+
+	@Test
+	public void should_be_ready_before_the_initial_sync_is_done() throws Exception {
+		//Given
+		Files.write(sourceDir.resolve("slow"), "slow".getBytes());
+
+		//When
+		synchronizer.start();
+
+		//Then
+		synchronizer.whenReady().get(10, TimeUnit.SECONDS);
+		assertThat(copying.await(10, TimeUnit.SECONDS)).isTrue();
+		assertThat(synchronizer.whenSynced().isDone()).isFalse();
+		assertThat(synchronizer.isRunning()).isTrue();
+
+		//When
+		release.countDown();
+
+		//Then
+		synchronizer.whenSynced().get(10, TimeUnit.SECONDS);
+		assertThat(new String(Files.readAllBytes(backupDir.resolve("slow")))).isEqualTo("slow");
+	}
+
+	@Test
+	public void should_sync_a_change_made_during_the_initial_sync() throws Exception {
+		//Given
+		Files.write(sourceDir.resolve("slow"), "slow".getBytes());
+		synchronizer.start();
+		assertThat(copying.await(10, TimeUnit.SECONDS)).isTrue();
+
+		//When
+		Files.write(sourceDir.resolve("added"), "added".getBytes());
+		Files.createDirectory(sourceDir.resolve("folder"));
+		Files.write(sourceDir.resolve("folder").resolve("file"), "file".getBytes());
+		release.countDown();
+
+		//Then
+		synchronizer.whenSynced().get(10, TimeUnit.SECONDS);
+		waitFor(() -> Files.exists(backupDir.resolve("added"))
+				&& Files.exists(backupDir.resolve("folder").resolve("file")));
+		assertThat(new String(Files.readAllBytes(backupDir.resolve("added")))).isEqualTo("added");
+	}
+
+	@Test
+	public void should_sync_a_file_written_into_a_directory_being_copied() throws Exception {
+		//Given a new directory held on the copy of its "slow" file
+		final CountDownLatch copyingDirectory = new CountDownLatch(1);
+		final CountDownLatch releaseDirectory = new CountDownLatch(1);
+		final FoldersSynchronizer foldersSynchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		foldersSynchronizer.setCopyEngine(new ChannelCopyEngine() {
+			@Override
+			long transfer(final Path source, final Path target) throws IOException {
+				if (source.getFileName().toString().equals("slow")) {
+					copyingDirectory.countDown();
+					try {
+						releaseDirectory.await();
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return super.transfer(source, target);
+			}
+		});
+		final FoldersRealTimeSynchronizer copying = new FoldersRealTimeSynchronizer(foldersSynchronizer);
+		copying.setCoalescing(20, 100);
+		copying.start();
+		copying.whenSynced().get(10, TimeUnit.SECONDS);
+
+		final Path folder = Files.createDirectory(sourceDir.resolve("folder"));
+		Files.write(folder.resolve("slow"), "slow".getBytes());
+		assertThat(copyingDirectory.await(10, TimeUnit.SECONDS)).isTrue();
+
+		//When
+		Files.write(folder.resolve("later"), "later".getBytes());
+		Thread.sleep(200);
+		releaseDirectory.countDown();
+
+		//Then
+		try {
+			waitFor(() -> Files.exists(backupDir.resolve("folder").resolve("later")));
+			assertThat(new String(Files.readAllBytes(backupDir.resolve("folder").resolve("later")))).isEqualTo(
+					"later");
+		} finally {
+			copying.shutdownNow();
+		}
+	}
+
+	@Test
+	public void should_shut_down_promptly_during_the_initial_sync() throws Exception {
+		//Given an initial sync of several seconds
+		for (int i = 0; i < 200; i++) {
+			Files.write(sourceDir.resolve("file" + i), "data".getBytes());
+		}
+		final FoldersSynchronizer foldersSynchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		foldersSynchronizer.setCopyEngine(new ChannelCopyEngine() {
+			@Override
+			public long copyFile(final Path source, final Path target) throws IOException {
+				try {
+					Thread.sleep(20);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.copyFile(source, target);
+			}
+		});
+		final FoldersRealTimeSynchronizer slow = new FoldersRealTimeSynchronizer(foldersSynchronizer);
+		slow.start();
+		slow.whenReady().get(10, TimeUnit.SECONDS);
+		waitFor(() -> Files.exists(backupDir.resolve("file1")));
+
+		//When
+		final long start = System.currentTimeMillis();
+		slow.shutdownNow();
+
+		//Then
+		assertThat(System.currentTimeMillis() - start).isLessThan(1000);
+		assertThat(slow.isRunning()).isFalse();
+		assertThat(slow.whenSynced().isCancelled()).isTrue();
+		assertThat(Files.exists(backupDir.resolve("file99"))).isFalse();
+	}
+
+	private static void waitFor(final BooleanSupplier condition) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean()) {
+			assertThat(System.currentTimeMillis()).isLessThan(deadline);
+			Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void should_bound_percentiles_within_a_power_of_two() {
+		final Histogram histogram = new Histogram();
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i);
+		}
+
+		final Histogram.Snapshot snapshot = histogram.snapshot();
+		assertThat(snapshot.getCount()).isEqualTo(100);
+		assertThat(snapshot.getMean()).isEqualTo(50);
+		assertThat(snapshot.getPercentile(50)).isEqualTo(63);
+		assertThat(snapshot.getPercentile(99)).isEqualTo(127);
+		assertThat(snapshot.getMax()).isEqualTo(127);
+	}
+
+	@Test
+	public void should_subtract_a_previous_snapshot() {
+		final Histogram histogram = new Histogram();
+		histogram.record(1000);
+		final Histogram.Snapshot before = histogram.snapshot();
+		histogram.record(0);
+		histogram.record(3);
+
+		final Histogram.Snapshot since = histogram.snapshot().since(before);
+		assertThat(since.getCount()).isEqualTo(2);
+		assertThat(since.getMean()).isEqualTo(1);
+		assertThat(since.getMax()).isEqualTo(3);
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class IoSchedulerTest {
+
+	private static final long RATE = 1000000;
+
+	@Test
+	public void should_limit_bytes_per_second() throws InterruptedIOException {
+		//Given
+		final IoScheduler scheduler = new IoScheduler(RATE, IoScheduler.UNLIMITED);
+
+		//When
+		final long start = System.currentTimeMillis();
+		for (int i = 0; i < 4; i++) {
+			scheduler.acquireBytes(RATE / 4, RATE);
+		}
+
+		//Then the first chunk is free, the three others wait for their tokens
+		assertThat(System.currentTimeMillis() - start).isGreaterThanOrEqualTo(700);
+	}
+
+	@Test
+	public void should_serve_real_time_then_small_files_first() throws Exception {
+		//Given a scheduler in debt for a second
+		final IoScheduler scheduler = new IoScheduler(RATE, IoScheduler.UNLIMITED);
+		scheduler.acquireBytes(RATE, RATE);
+
+		final List<String> served = Collections.synchronizedList(new ArrayList<String>());
+		final List<Thread> threads = new ArrayList<Thread>();
+
+		//When
+		threads.add(waiter(scheduler, IoScheduler.Priority.BULK, 100 * RATE, "bulk huge", served));
+		threads.add(waiter(scheduler, IoScheduler.Priority.BULK, RATE, "bulk small", served));
+		threads.add(waiter(scheduler, IoScheduler.Priority.REAL_TIME, 100 * RATE, "real-time", served));
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+
+		//Then
+		assertThat(served).containsExactly("real-time", "bulk small", "bulk huge");
+	}
+
+	@Test
+	public void should_not_starve_a_huge_bulk_copy() throws Exception {
+		//Given a scheduler in debt and a huge bulk copy waiting
+		final IoScheduler scheduler = new IoScheduler(RATE, IoScheduler.UNLIMITED);
+		scheduler.acquireBytes(RATE / 10, RATE);
+
+		final List<String> served = Collections.synchronizedList(new ArrayList<String>());
+		final Thread bulk = waiter(scheduler, IoScheduler.Priority.BULK, 100 * RATE, "bulk huge", served);
+
+		//When a steady flow of small real-time requests keeps coming
+		final List<Thread> feeders = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			final Thread feeder = new Thread(() -> {
+				try {
+					for (int j = 0; j < 10; j++) {
+						scheduler.acquire(IoScheduler.Priority.REAL_TIME, 1, RATE / 100, 0);
+						served.add("real-time");
+					}
+				} catch (final InterruptedIOException e) {
+					served.add(e.toString());
+				}
+			});
+			feeder.start();
+			feeders.add(feeder);
+		}
+		bulk.join();
+		for (final Thread feeder : feeders) {
+			feeder.join();
+		}
+
+		//Then
+		assertThat(served).hasSize(41);
+		assertThat(served.indexOf("bulk huge")).isLessThanOrEqualTo(IoScheduler.MAX_BYPASSES);
+	}
+
+	private static Thread waiter(final IoScheduler scheduler, final IoScheduler.Priority priority,
+			final long fileSize, final String name, final List<String> served) throws InterruptedException {
+		final int waiting = scheduler.getWaitingCount();
+		final Thread thread = new Thread(() -> {
+			try {
+				scheduler.acquire(priority, fileSize, RATE / 4, 0);
+				served.add(name);
+			} catch (final InterruptedIOException e) {
+				served.add(e.toString());
+			}
+		});
+		thread.start();
+
+		while (scheduler.getWaitingCount() == waiting) {
+			Thread.sleep(10);
+		}
+		return thread;
+	}
+}
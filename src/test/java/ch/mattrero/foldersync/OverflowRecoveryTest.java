@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OverflowRecoveryTest {
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	Path sourceDir;
+	Path backupDir;
+	Deque<Runnable> tasks;
+	OverflowRecovery recovery;
+
+	@Before
+	public void setUp() throws IOException {
+		sourceDir = temporaryFolder.newFolder().toPath();
+		backupDir = temporaryFolder.newFolder().toPath();
+		Files.createDirectories(sourceDir.resolve("a"));
+		Files.createDirectories(sourceDir.resolve("b"));
+
+		final FoldersSynchronizer synchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		synchronizer.sync();
+
+		tasks = new ArrayDeque<Runnable>();
+		recovery = new OverflowRecovery(synchronizer, (path, task) -> tasks.add(task));
+		for (final Path directory : new Path[] { sourceDir, sourceDir.resolve("a"), sourceDir.resolve("b") }) {
+			recovery.remember(directory, Files.getLastModifiedTime(directory));
+		}
+	}
+
+	@Test
+	public void should_queue_a_dirty_directory_once() {
+		//When
+		recovery.markDirty(sourceDir.resolve("a"));
+		recovery.markDirty(sourceDir.resolve("a"));
+
+		//Then
+		assertThat(tasks).hasSize(1);
+		assertThat(recovery.isRecovering()).isTrue();
+		runTasks();
+		assertThat(recovery.isRecovering()).isFalse();
+	}
+
+	@Test
+	public void should_collapse_overflows_into_one_sweep() {
+		//When
+		for (int i = 0; i < 100; i++) {
+			recovery.overflowed();
+		}
+
+		//Then
+		assertThat(tasks).hasSize(1);
+	}
+
+	@Test
+	public void should_merge_the_directories_which_changed_before_comparing_all() throws IOException {
+		//Given a file added to a, and one slipped into b without changing its date
+		FileUtils.writeStringToFile(sourceDir.resolve("a").resolve("file").toFile(), "data");
+		final FileTime bTime = Files.getLastModifiedTime(sourceDir.resolve("b"));
+		FileUtils.writeStringToFile(sourceDir.resolve("b").resolve("file").toFile(), "data");
+		Files.setLastModifiedTime(sourceDir.resolve("b"), bTime);
+		Files.setLastModifiedTime(sourceDir.resolve("a"), FileTime.fromMillis(bTime.toMillis() + 10000));
+
+		//When the sweep and the merge of a are done
+		recovery.overflowed();
+		tasks.poll().run();
+		tasks.poll().run();
+
+		//Then
+		assertThat(Files.exists(backupDir.resolve("a").resolve("file"))).isTrue();
+		assertThat(Files.exists(backupDir.resolve("b").resolve("file"))).isFalse();
+
+		//When the full compare is done
+		runTasks();
+
+		//Then
+		assertThat(Files.exists(backupDir.resolve("b").resolve("file"))).isTrue();
+		assertThat(recovery.getLastScanned()).isEqualTo(4);
+		assertThat(recovery.getLastSkipped()).isEqualTo(2);
+	}
+
+	@Test
+	public void should_run_one_more_full_compare_for_overflows_during_one() {
+		//Given a full compare in progress
+		recovery.overflowed();
+		tasks.poll().run();
+		tasks.poll().run();
+
+		//When
+		for (int i = 0; i < 10; i++) {
+			recovery.overflowed();
+		}
+		runTasks();
+
+		//Then the tree was compared twice
+		assertThat(recovery.getLastScanned()).isEqualTo(6);
+		assertThat(recovery.isRecovering()).isFalse();
+	}
+
+	@Test
+	public void should_merge_a_directory_marked_dirty_even_if_unchanged() throws IOException {
+		//Given
+		final FileTime bTime = Files.getLastModifiedTime(sourceDir.resolve("b"));
+		FileUtils.writeStringToFile(sourceDir.resolve("b").resolve("file").toFile(), "data");
+		Files.setLastModifiedTime(sourceDir.resolve("b"), bTime);
+
+		//When
+		recovery.markDirty(sourceDir.resolve("b"));
+		runTasks();
+
+		//Then
+		assertThat(Files.exists(backupDir.resolve("b").resolve("file"))).isTrue();
+		assertThat(recovery.getLastScanned()).isEqualTo(1);
+	}
+
+	private void runTasks() {
+		while (!tasks.isEmpty()) {
+			tasks.poll().run();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PollingRealTimeSynchronizerTest {
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	Path sourceDir;
+	Path backupDir;
+	PollingRealTimeSynchronizer synchronizer;
+
+	@Before
+	public void setUp() throws IOException {
+		sourceDir = temporaryFolder.newFolder().toPath();
+		backupDir = temporaryFolder.newFolder().toPath();
+		synchronizer = new PollingRealTimeSynchronizer(new FoldersSynchronizer(sourceDir, backupDir));
+		synchronizer.setPolling(20, 100);
+		synchronizer.setVerifyInterval(0);
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		synchronizer.shutdownNow();
+	}
+
+	@Test
+	public void should_only_merge_the_directories_that_changed() throws Exception {
+		//Given a tree last changed a while ago
+		final FileTime past = FileTime.fromMillis(System.currentTimeMillis() - 60000);
+		for (int i = 0; i < 10; i++) {
+			final Path subDir = Files.createDirectories(sourceDir.resolve("dir" + i));
+			Files.write(subDir.resolve("file"), "content".getBytes());
+			Files.setLastModifiedTime(subDir, past);
+		}
+		Files.setLastModifiedTime(sourceDir, past);
+		synchronizer.start();
+		synchronizer.whenReady().join();
+
+		//When nothing changes
+		waitFor(() -> synchronizer.getPolledCount() >= 50);
+
+		//Then
+		assertThat(synchronizer.getDirectoryCount()).isEqualTo(11);
+		assertThat(synchronizer.getMergedCount()).isEqualTo(0);
+
+		//When
+		Files.write(sourceDir.resolve("dir3").resolve("added"), "added".getBytes());
+		Files.delete(sourceDir.resolve("dir5").resolve("file"));
+		Files.createDirectories(sourceDir.resolve("dir7").resolve("new"));
+
+		//Then
+		waitFor(() -> Files.exists(backupDir.resolve("dir3").resolve("added"))
+				&& !Files.exists(backupDir.resolve("dir5").resolve("file"))
+				&& Files.isDirectory(backupDir.resolve("dir7").resolve("new")));
+		assertThat(synchronizer.getDirectoryCount()).isEqualTo(12);
+		assertThat(synchronizer.getMergedCount()).isLessThan(synchronizer.getPolledCount() / 4);
+	}
+
+	private static void waitFor(final BooleanSupplier condition) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean()) {
+			assertThat(System.currentTimeMillis()).isLessThan(deadline);
+			Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RemoteSynchronizerTest {
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	Path sourceDir;
+	Path backupDir;
+	SyncReceiver receiver;
+
+	@Before
+	public void setUp() throws IOException {
+		sourceDir = temporaryFolder.newFolder().toPath();
+		backupDir = temporaryFolder.newFolder().toPath();
+		receiver = new FolderSync().receive(backupDir, 0);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		receiver.close();
+	}
+
+	@Test
+	public void should_sync_a_tree_over_localhost() throws IOException {
+		//Given more entries than a listing batch, and compressible content
+		final byte[] data = new byte[3 * RemoteProtocol.CHUNK_SIZE + 10];
+		new Random(42).nextBytes(data);
+		Files.createDirectories(sourceDir.resolve("a").resolve("b"));
+		Files.write(sourceDir.resolve("a").resolve("b").resolve("large"), data);
+		Files.write(sourceDir.resolve("zeros"), new byte[1000000]);
+		Files.createDirectories(sourceDir.resolve("many"));
+		for (int i = 0; i < RemoteProtocol.LISTING_BATCH + 10; i++) {
+			Files.write(sourceDir.resolve("many").resolve("file" + i), ("content " + i).getBytes());
+		}
+		Files.createDirectories(backupDir.resolve("many"));
+		Files.write(backupDir.resolve("many").resolve("file7"), "old".getBytes());
+		final RemoteSynchronizer synchronizer = new RemoteSynchronizer(sourceDir, "localhost", receiver.getPort());
+		synchronizer.setCompress(true);
+
+		//When
+		final SyncReport report = synchronizer.sync();
+
+		//Then
+		assertThat(report.getFailures()).isEqualTo(0);
+		assertThat(report.getAdded()).isEqualTo(2 + RemoteProtocol.LISTING_BATCH + 9);
+		assertThat(report.getModified()).isEqualTo(1);
+		assertThat(Arrays.equals(Files.readAllBytes(backupDir.resolve("a").resolve("b").resolve("large")), data))
+				.isTrue();
+		assertThat(Files.readAllBytes(backupDir.resolve("zeros"))).isEqualTo(new byte[1000000]);
+		assertThat(new String(Files.readAllBytes(backupDir.resolve("many").resolve("file7")))).isEqualTo(
+				"content 7");
+		assertThat(Files.getLastModifiedTime(backupDir.resolve("a")).toMillis()).isEqualTo(
+				Files.getLastModifiedTime(sourceDir.resolve("a")).toMillis());
+		assertThat(Files.getLastModifiedTime(backupDir.resolve("zeros")).toMillis()).isEqualTo(
+				Files.getLastModifiedTime(sourceDir.resolve("zeros")).toMillis());
+
+		//When nothing changed
+		final SyncReport again = synchronizer.sync();
+
+		//Then
+		assertThat(again.getAdded() + again.getModified() + again.getDeleted() + again.getFailures()).isEqualTo(0);
+		assertThat(again.getBytesCopied()).isEqualTo(0);
+	}
+
+	@Test
+	public void should_apply_changes_and_keep_excluded_entries() throws IOException {
+		//Given
+		Files.createDirectories(sourceDir.resolve("dir"));
+		Files.write(sourceDir.resolve("dir").resolve("file"), "a".getBytes());
+		Files.write(sourceDir.resolve("becomes_dir"), "b".getBytes());
+		Files.write(sourceDir.resolve("deleted"), "c".getBytes());
+		final RemoteSynchronizer synchronizer = new RemoteSynchronizer(sourceDir, "localhost", receiver.getPort(),
+				SyncFilter.parse(Arrays.asList("*.tmp")));
+		synchronizer.sync();
+
+		Files.write(backupDir.resolve("kept.tmp"), "d".getBytes());
+		Files.delete(sourceDir.resolve("deleted"));
+		Files.delete(sourceDir.resolve("becomes_dir"));
+		Files.createDirectories(sourceDir.resolve("becomes_dir"));
+		Files.write(sourceDir.resolve("becomes_dir").resolve("child"), "e".getBytes());
+		final Path file = sourceDir.resolve("dir").resolve("file");
+		Files.write(file, "changed".getBytes());
+		Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+
+		//When
+		final SyncReport report = synchronizer.sync();
+
+		//Then
+		assertThat(report.getModified()).isEqualTo(2);
+		assertThat(report.getDeleted()).isEqualTo(1);
+		assertThat(report.getFailures()).isEqualTo(0);
+		assertThat(Files.exists(backupDir.resolve("deleted"))).isFalse();
+		assertThat(Files.exists(backupDir.resolve("kept.tmp"))).isTrue();
+		assertThat(new String(Files.readAllBytes(backupDir.resolve("becomes_dir").resolve("child")))).isEqualTo("e");
+		assertThat(new String(Files.readAllBytes(backupDir.resolve("dir").resolve("file")))).isEqualTo("changed");
+	}
+
+	@Test
+	public void should_only_accept_the_senders_knowing_the_secret() throws IOException {
+		//Given
+		Files.write(sourceDir.resolve("file"), "data".getBytes());
+		final Path otherBackupDir = temporaryFolder.newFolder().toPath();
+		final SyncReceiver secured = new FolderSync().receive(otherBackupDir, InetAddress.getLoopbackAddress(), 0,
+				"secret".getBytes());
+		final RemoteSynchronizer synchronizer = new RemoteSynchronizer(sourceDir, "localhost", secured.getPort());
+
+		try {
+			//When
+			synchronizer.setSecret("guess".getBytes());
+			try {
+				synchronizer.sync();
+				fail("Accepted a wrong secret");
+			} catch (final IOException e) {
+				//Then
+				assertThat(Files.exists(otherBackupDir.resolve("file"))).isFalse();
+			}
+
+			//When
+			synchronizer.setSecret("secret".getBytes());
+			final SyncReport report = synchronizer.sync();
+
+			//Then
+			assertThat(report.getAdded()).isEqualTo(1);
+			assertThat(new String(Files.readAllBytes(otherBackupDir.resolve("file")))).isEqualTo("data");
+		} finally {
+			secured.close();
+		}
+	}
+
+	@Test
+	public void should_listen_on_loopback_by_default() {
+		assertThat(receiver.getBindAddress().isLoopbackAddress()).isTrue();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void should_need_a_secret_to_listen_on_other_interfaces() throws IOException {
+		new SyncReceiver(backupDir, InetAddress.getByName("0.0.0.0"), 0, null).close();
+	}
+}
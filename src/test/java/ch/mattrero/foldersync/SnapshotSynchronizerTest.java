@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SnapshotSynchronizerTest {
+
+	private static final LocalDateTime MONDAY = LocalDateTime.of(2014, 6, 2, 12, 0);
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	Path sourceDir;
+	Path backupDir;
+
+	@Before
+	public void setUp() throws IOException {
+		sourceDir = temporaryFolder.newFolder().toPath();
+		backupDir = temporaryFolder.newFolder().toPath();
+	}
+
+	@Test
+	public void should_link_the_unchanged_files_from_the_previous_snapshot() throws IOException {
+		//Given
+		Files.createDirectories(sourceDir.resolve("dir"));
+		Files.write(sourceDir.resolve("dir").resolve("unchanged"), "same".getBytes());
+		Files.write(sourceDir.resolve("dir").resolve("changed"), "old".getBytes());
+		Files.write(sourceDir.resolve("deleted"), "gone".getBytes());
+
+		final SnapshotSynchronizer synchronizer = new SnapshotSynchronizer(sourceDir, backupDir);
+		synchronizer.setRetentionPolicy(new RetentionPolicy(2, 0, 0, 0));
+		synchronizer.sync(MONDAY);
+
+		Files.write(sourceDir.resolve("dir").resolve("changed"), "new".getBytes());
+		Files.setLastModifiedTime(sourceDir.resolve("dir").resolve("changed"),
+				FileTime.fromMillis(System.currentTimeMillis() + 10000));
+		Files.delete(sourceDir.resolve("deleted"));
+
+		//When
+		final SyncReport report = synchronizer.sync(MONDAY.plusHours(1));
+
+		//Then
+		final List<Path> snapshots = synchronizer.getSnapshots();
+		assertThat(snapshots).hasSize(2);
+		final Path first = snapshots.get(0);
+		final Path second = snapshots.get(1);
+
+		assertThat(report.getBytesCopied()).isEqualTo(3);
+		assertThat(Files.isSameFile(first.resolve("dir").resolve("unchanged"), second.resolve("dir").resolve(
+				"unchanged"))).isTrue();
+		assertThat(Files.readAllBytes(first.resolve("dir").resolve("changed"))).isEqualTo("old".getBytes());
+		assertThat(Files.readAllBytes(second.resolve("dir").resolve("changed"))).isEqualTo("new".getBytes());
+		assertThat(Files.exists(first.resolve("deleted"))).isTrue();
+		assertThat(Files.exists(second.resolve("deleted"))).isFalse();
+	}
+
+	@Test
+	public void should_only_link_the_same_content_in_checksum_mode() throws IOException {
+		//Given a file changed without its date nor its size
+		Files.write(sourceDir.resolve("unchanged"), "same".getBytes());
+		Files.write(sourceDir.resolve("changed"), "old".getBytes());
+		final FileTime lastModified = Files.getLastModifiedTime(sourceDir.resolve("changed"));
+
+		final SnapshotSynchronizer synchronizer = new SnapshotSynchronizer(sourceDir, backupDir);
+		synchronizer.setRetentionPolicy(new RetentionPolicy(2, 0, 0, 0));
+		synchronizer.setDigestStore(new DigestStore());
+		synchronizer.sync(MONDAY);
+
+		Files.write(sourceDir.resolve("changed"), "new".getBytes());
+		Files.setLastModifiedTime(sourceDir.resolve("changed"), lastModified);
+
+		//When
+		synchronizer.sync(MONDAY.plusHours(1));
+
+		//Then
+		final List<Path> snapshots = synchronizer.getSnapshots();
+		final Path first = snapshots.get(0);
+		final Path second = snapshots.get(1);
+
+		assertThat(Files.isSameFile(first.resolve("unchanged"), second.resolve("unchanged"))).isTrue();
+		assertThat(Files.isSameFile(first.resolve("changed"), second.resolve("changed"))).isFalse();
+		assertThat(Files.readAllBytes(second.resolve("changed"))).isEqualTo("new".getBytes());
+	}
+
+	@Test
+	public void should_prune_the_snapshots_beyond_the_retention_policy() throws IOException {
+		//Given the last snapshot and the last one of the 2 last days to keep
+		Files.write(sourceDir.resolve("file"), "content".getBytes());
+
+		final SnapshotSynchronizer synchronizer = new SnapshotSynchronizer(sourceDir, backupDir);
+		synchronizer.setRetentionPolicy(RetentionPolicy.parse("last=1,daily=2,weekly=0,monthly=0"));
+
+		//When
+		for (final LocalDateTime time : Arrays.asList(MONDAY, MONDAY.plusDays(1), MONDAY.plusDays(2).minusHours(1),
+				MONDAY.plusDays(2))) {
+			synchronizer.sync(time);
+		}
+
+		//Then
+		final List<Path> snapshots = synchronizer.getSnapshots();
+		assertThat(snapshots).hasSize(2);
+		assertThat(snapshots.get(0).getFileName().toString()).isEqualTo("2014-06-03_120000");
+		assertThat(snapshots.get(1).getFileName().toString()).isEqualTo("2014-06-04_120000");
+		assertThat(Files.readAllBytes(snapshots.get(1).resolve("file"))).isEqualTo("content".getBytes());
+	}
+}
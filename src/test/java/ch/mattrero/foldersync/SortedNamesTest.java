@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SortedNamesTest {
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void should_sort_in_memory_below_the_limit() throws IOException {
+		try (SortedNames names = SortedNames.of(Arrays.asList("b", "a", "é", "B"), SortedNames.DEFAULT_MEMORY_LIMIT)) {
+			assertThat(names.isSpilled()).isFalse();
+			assertThat(readAll(names)).containsExactly("B", "a", "b", "é");
+		}
+	}
+
+	@Test
+	public void should_merge_spilled_runs_above_the_limit() throws IOException {
+		final Path directory = temporaryFolder.newFolder().toPath();
+		for (int i = 999; i >= 0; i--) {
+			Files.createFile(directory.resolve(String.format("file%04d", i)));
+		}
+		final long tempFiles = countTempFiles();
+
+		try (SortedNames names = SortedNames.list(directory, 1000)) {
+			assertThat(names.isSpilled()).isTrue();
+
+			final List<String> read = readAll(names);
+			assertThat(read).hasSize(1000);
+			for (int i = 0; i < 1000; i++) {
+				assertThat(read.get(i)).isEqualTo(String.format("file%04d", i));
+			}
+		}
+
+		assertThat(countTempFiles()).isEqualTo(tempFiles);
+	}
+
+	private static List<String> readAll(final SortedNames names) throws IOException {
+		final List<String> read = new ArrayList<String>();
+		for (byte[] name = names.next(); name != null; name = names.next()) {
+			read.add(SortedNames.toString(name));
+		}
+		return read;
+	}
+
+	private static long countTempFiles() throws IOException {
+		try (Stream<Path> files = Files.list(Paths.get(System.getProperty("java.io.tmpdir")))) {
+			return files.filter(file -> file.getFileName().toString().startsWith("foldersync-names")).count();
+		}
+	}
+}
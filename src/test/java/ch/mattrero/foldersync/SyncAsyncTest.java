@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SyncAsyncTest {
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	Path sourceDir;
+	Path backupDir;
+	ExecutorService executor;
+
+	@Before
+	public void setUp() throws IOException {
+		sourceDir = temporaryFolder.newFolder().toPath();
+		backupDir = temporaryFolder.newFolder().toPath();
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void should_sync_asynchronously_and_report_progress() throws Exception {
+		//Given
+		for (int i = 0; i < 5; i++) {
+			FileUtils.writeStringToFile(sourceDir.resolve("file" + i).toFile(), "data" + i);
+		}
+		final List<SyncProgress> progresses = new CopyOnWriteArrayList<SyncProgress>();
+
+		//When
+		final SyncReport report = new FolderSync().syncAsync(sourceDir, backupDir, SyncFilter.NONE, executor,
+				progresses::add).get(10, TimeUnit.SECONDS);
+
+		//Then
+		assertThat(report.getAdded()).isEqualTo(5);
+		assertThat(Files.exists(backupDir.resolve("file4"))).isTrue();
+
+		final SyncProgress last = progresses.get(progresses.size() - 1);
+		assertThat(last.getOperations()).isEqualTo(5);
+		assertThat(last.getBytesCopied()).isEqualTo(25);
+		assertThat(last.getTotalOperations()).isEqualTo(SyncProgress.UNKNOWN);
+		assertThat(last.getEtaMillis()).isEqualTo(SyncProgress.UNKNOWN);
+	}
+
+	@Test
+	public void should_report_the_totals_of_the_estimate_pass() throws Exception {
+		//Given
+		for (int i = 0; i < 5; i++) {
+			FileUtils.writeStringToFile(sourceDir.resolve("file" + i).toFile(), "data" + i);
+		}
+		final List<SyncProgress> progresses = new CopyOnWriteArrayList<SyncProgress>();
+
+		//When
+		new FoldersSynchronizer(sourceDir, backupDir).syncAsync(executor, progresses::add, true).get(10,
+				TimeUnit.SECONDS);
+
+		//Then
+		final SyncProgress last = progresses.get(progresses.size() - 1);
+		assertThat(last.getTotalOperations()).isEqualTo(5);
+		assertThat(last.getOperations()).isEqualTo(5);
+		assertThat(last.getBytesCopied()).isEqualTo(last.getTotalBytes());
+		assertThat(last.getTotalBytes()).isEqualTo(25);
+		assertThat(last.getEtaMillis()).isEqualTo(0);
+	}
+
+	@Test
+	public void should_stop_mid_tree_when_cancelled() throws Exception {
+		//Given directories to descend into, one blocking until the sync is cancelled
+		for (int i = 0; i < 10; i++) {
+			FileUtils.writeStringToFile(sourceDir.resolve("dir" + i).resolve("file").toFile(), "data");
+			Files.createDirectories(backupDir.resolve("dir" + i));
+		}
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch cancelled = new CountDownLatch(1);
+		final FoldersSynchronizer synchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		synchronizer.setDirectoryListener(directory -> {
+			if (directory.equals(sourceDir.resolve("dir3"))) {
+				blocked.countDown();
+				try {
+					cancelled.await();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		//When
+		final CompletableFuture<SyncReport> future = synchronizer.syncAsync(executor, null);
+		assertThat(blocked.await(10, TimeUnit.SECONDS)).isTrue();
+		future.cancel(false);
+		cancelled.countDown();
+		executor.shutdown();
+		assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+		//Then nothing is copied past the cancellation, not even what was planned before
+		assertThat(future.isCancelled()).isTrue();
+		assertThat(Files.exists(backupDir.resolve("dir2").resolve("file"))).isFalse();
+		assertThat(Files.exists(backupDir.resolve("dir3").resolve("file"))).isFalse();
+		assertThat(Files.exists(backupDir.resolve("dir9").resolve("file"))).isFalse();
+
+		//When synced again
+		synchronizer.setDirectoryListener(null);
+		final SyncReport report = synchronizer.sync();
+
+		//Then
+		assertThat(report.getAdded()).isEqualTo(10);
+		assertThat(Files.exists(backupDir.resolve("dir9").resolve("file"))).isTrue();
+	}
+}
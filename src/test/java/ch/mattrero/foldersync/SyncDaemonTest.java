@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SyncDaemonTest {
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	Path root;
+	Path configFile;
+	SyncDaemon daemon;
+
+	@Before
+	public void setUp() throws IOException {
+		root = temporaryFolder.getRoot().toPath().toRealPath();
+		configFile = root.resolve("config").resolve("pairs");
+		Files.createDirectories(configFile.getParent());
+		for (final String pair : Arrays.asList("a", "b", "c")) {
+			Files.createDirectories(root.resolve("source_" + pair));
+			Files.write(root.resolve("source_" + pair).resolve("file"), pair.getBytes());
+		}
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		if (daemon != null) {
+			daemon.shutdownNow();
+		}
+	}
+
+	@Test
+	public void should_sync_the_pairs_of_the_config_file_as_it_changes() throws Exception {
+		//Given
+		writeConfig("../source_a -> ../backup_a", "../source_b -> ../backup_b");
+		daemon = new SyncDaemon(configFile, 2, 0, 0);
+
+		//When
+		daemon.start();
+		daemon.whenReady().join();
+
+		//Then
+		assertThat(daemon.getSourceDirs()).containsOnly(root.resolve("source_a"), root.resolve("source_b"));
+		assertThat(Files.readAllBytes(root.resolve("backup_a").resolve("file"))).isEqualTo("a".getBytes());
+		assertThat(Files.readAllBytes(root.resolve("backup_b").resolve("file"))).isEqualTo("b".getBytes());
+
+		//When
+		Files.createDirectories(root.resolve("source_a").resolve("dir"));
+		Files.write(root.resolve("source_a").resolve("dir").resolve("added"), "added".getBytes());
+		Files.delete(root.resolve("source_b").resolve("file"));
+
+		//Then
+		waitFor(() -> Files.exists(root.resolve("backup_a").resolve("dir").resolve("added"))
+				&& !Files.exists(root.resolve("backup_b").resolve("file")));
+
+		//When a pair is replaced
+		writeConfig("../source_a -> ../backup_a", "../source_c -> ../backup_c");
+
+		//Then
+		waitFor(() -> daemon.getSourceDirs().contains(root.resolve("source_c"))
+				&& daemon.getSourceDirs().size() == 2);
+		daemon.whenReady(root.resolve("source_c")).join();
+		assertThat(Files.readAllBytes(root.resolve("backup_c").resolve("file"))).isEqualTo("c".getBytes());
+
+		Files.write(root.resolve("source_b").resolve("ignored"), "b".getBytes());
+		Files.write(root.resolve("source_c").resolve("added"), "c".getBytes());
+		waitFor(() -> Files.exists(root.resolve("backup_c").resolve("added")));
+		assertThat(Files.exists(root.resolve("backup_b").resolve("ignored"))).isFalse();
+	}
+
+	@Test
+	public void should_not_wait_for_the_initial_sync_of_a_removed_pair() throws Exception {
+		//Given
+		daemon = new SyncDaemon(null, 1, 0, 0);
+		for (int i = 0; i < 100; i++) {
+			Files.createDirectories(root.resolve("source_a").resolve("dir" + i));
+			Files.createDirectories(root.resolve("backup_a").resolve("dir" + i));
+		}
+		final CompletableFuture<Void> initialSync = daemon.addPair(root.resolve("source_a"), root.resolve(
+				"backup_a"), SyncFilter.NONE);
+
+		//When
+		daemon.removePair(root.resolve("source_a"));
+
+		//Then
+		assertThat(initialSync.isDone()).isTrue();
+		assertThat(daemon.getSourceDirs()).isEmpty();
+	}
+
+	@Test
+	public void should_parse_pairs() {
+		//Given
+		final Path baseDir = Paths.get("/etc/foldersync");
+
+		//When
+		final Map<Path, SyncDaemon.PairConfig> configs = SyncDaemon.parse(baseDir, Arrays.asList("# pairs", "",
+				"/data/photos -> /backup/photos", "  music -> /backup/my music -x rules/music.rules"));
+
+		//Then
+		assertThat(configs.keySet()).containsOnly(Paths.get("/data/photos"), Paths.get("/etc/foldersync/music"));
+		assertThat(configs.get(Paths.get("/data/photos")).backupDir.toString()).isEqualTo("/backup/photos");
+		assertThat(configs.get(Paths.get("/data/photos")).rulesFile).isNull();
+		assertThat(configs.get(Paths.get("/etc/foldersync/music")).backupDir.toString()).isEqualTo("/backup/my music");
+		assertThat(configs.get(Paths.get("/etc/foldersync/music")).rulesFile.toString()).isEqualTo(
+				"/etc/foldersync/rules/music.rules");
+	}
+
+	private void writeConfig(final String... lines) throws IOException {
+		final Path temp = configFile.resolveSibling("pairs.tmp");
+		Files.write(temp, Arrays.asList(lines), UTF_8);
+		Files.move(temp, configFile, REPLACE_EXISTING);
+	}
+
+	private static void waitFor(final BooleanSupplier condition) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean()) {
+			assertThat(System.currentTimeMillis()).isLessThan(deadline);
+			Thread.sleep(10);
+		}
+	}
+}
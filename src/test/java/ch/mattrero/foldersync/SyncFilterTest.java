@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SyncFilterTest {
+
+	@Test
+	public void should_match_names_at_any_depth() {
+		final SyncFilter filter = SyncFilter.parse(Arrays.asList("# comment", "", "node_modules", "*.o"));
+
+		assertThat(filter.isExcluded(Paths.get("node_modules"), null)).isTrue();
+		assertThat(filter.isExcluded(Paths.get("a", "b", "node_modules"), null)).isTrue();
+		assertThat(filter.isExcluded(Paths.get("a", "main.o"), null)).isTrue();
+		assertThat(filter.isExcluded(Paths.get("a", "main.c"), null)).isFalse();
+	}
+
+	@Test
+	public void should_anchor_paths_with_a_slash() {
+		final SyncFilter filter = SyncFilter.parse(Arrays.asList("/target", "docs/**/*.tmp"));
+
+		assertThat(filter.isExcluded(Paths.get("target"), null)).isTrue();
+		assertThat(filter.isExcluded(Paths.get("module", "target"), null)).isFalse();
+		assertThat(filter.isExcluded(Paths.get("docs", "a.tmp"), null)).isTrue();
+		assertThat(filter.isExcluded(Paths.get("docs", "x", "y", "a.tmp"), null)).isTrue();
+		assertThat(filter.isExcluded(Paths.get("src", "a.tmp"), null)).isFalse();
+	}
+
+	@Test
+	public void should_only_match_directories_with_a_trailing_slash() {
+		final SyncFilter filter = SyncFilter.parse(Arrays.asList("build/"));
+
+		assertThat(filter.needsAttributes()).isTrue();
+		assertThat(filter.isExcluded(Paths.get("build"), attributes(true, 0, 0))).isTrue();
+		assertThat(filter.isExcluded(Paths.get("build"), attributes(false, 0, 0))).isFalse();
+	}
+
+	@Test
+	public void should_let_the_last_matching_rule_win() {
+		final SyncFilter filter = SyncFilter.parse(Arrays.asList("*.log", "!important.log", "re:.*/debug/.*"));
+
+		assertThat(filter.isExcluded(Paths.get("a.log"), null)).isTrue();
+		assertThat(filter.isExcluded(Paths.get("important.log"), null)).isFalse();
+		assertThat(filter.isExcluded(Paths.get("x", "debug", "important.log"), null)).isTrue();
+	}
+
+	@Test
+	public void should_match_size_and_age() {
+		final SyncFilter filter = SyncFilter.parse(Arrays.asList("size>1M", "age>2d"));
+		final long now = System.currentTimeMillis();
+		final Path file = Paths.get("file");
+
+		assertThat(filter.isExcluded(file, attributes(false, 2 << 20, now))).isTrue();
+		assertThat(filter.isExcluded(file, attributes(false, 100, now))).isFalse();
+		assertThat(filter.isExcluded(file, attributes(false, 100, now - 3 * 86400000L))).isTrue();
+		assertThat(filter.isExcluded(file, attributes(true, 2 << 20, now - 3 * 86400000L))).isFalse();
+	}
+
+	private static BasicFileAttributes attributes(final boolean directory, final long size, final long lastModified) {
+		return new BackupManifest.Entry(directory, size, lastModified);
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 Matthieu Ferrero
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.mattrero.foldersync;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SyncJournalTest {
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	Path sourceDir;
+	Path backupDir;
+	Path journalFile;
+
+	@Before
+	public void setUp() throws IOException {
+		sourceDir = temporaryFolder.newFolder().toPath();
+		backupDir = temporaryFolder.newFolder().toPath();
+		journalFile = temporaryFolder.getRoot().toPath().resolve("sync.journal");
+	}
+
+	@Test
+	public void should_skip_the_subtrees_completed_by_the_interrupted_sync() throws IOException {
+		//Given a sync interrupted once "done" was completed, which changed since
+		Files.createDirectories(sourceDir.resolve("done"));
+		Files.createDirectories(sourceDir.resolve("todo"));
+		Files.write(sourceDir.resolve("done").resolve("file"), "old".getBytes());
+		Files.write(sourceDir.resolve("todo").resolve("file"), "old".getBytes());
+		new FoldersSynchronizer(sourceDir, backupDir).sync();
+
+		final FileTime lastModified = FileTime.fromMillis(System.currentTimeMillis() + 10000);
+		Files.write(sourceDir.resolve("done").resolve("file"), "new".getBytes());
+		Files.write(sourceDir.resolve("todo").resolve("file"), "new".getBytes());
+		Files.setLastModifiedTime(sourceDir.resolve("done").resolve("file"), lastModified);
+		Files.setLastModifiedTime(sourceDir.resolve("todo").resolve("file"), lastModified);
+
+		final SyncJournal journal = new SyncJournal(journalFile);
+		journal.open(sourceDir, backupDir);
+		journal.completed(sourceDir.resolve("done"));
+		journal.close();
+
+		final FoldersSynchronizer synchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		synchronizer.setJournal(journalFile);
+
+		//When
+		synchronizer.sync();
+
+		//Then
+		assertThat(Files.readAllBytes(backupDir.resolve("done").resolve("file"))).isEqualTo("old".getBytes());
+		assertThat(Files.readAllBytes(backupDir.resolve("todo").resolve("file"))).isEqualTo("new".getBytes());
+		assertThat(Files.exists(journalFile)).isFalse();
+
+		//When the next sync starts over
+		synchronizer.sync();
+
+		//Then
+		assertThat(Files.readAllBytes(backupDir.resolve("done").resolve("file"))).isEqualTo("new".getBytes());
+	}
+
+	@Test
+	public void should_resume_a_partial_copy_from_its_checkpoint() throws IOException {
+		//Given a copy interrupted after its checkpoint, and some unflushed bytes
+		final byte[] data = new byte[3 * ChannelCopyEngine.VERIFY_WINDOW + 100];
+		new Random(42).nextBytes(data);
+		final Path sourceFile = sourceDir.resolve("big");
+		Files.write(sourceFile, data);
+
+		final int offset = 2 * ChannelCopyEngine.VERIFY_WINDOW;
+		final Path temp = ChannelCopyEngine.tempPathFor(backupDir.resolve("big"));
+		Files.write(temp, Arrays.copyOf(data, offset + 1000));
+
+		final SyncJournal journal = new SyncJournal(journalFile);
+		journal.open(sourceDir, backupDir);
+		journal.checkpoint(temp, data.length, Files.getLastModifiedTime(sourceFile).toMillis(), offset);
+		journal.close();
+
+		final FoldersSynchronizer synchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		synchronizer.setJournal(journalFile);
+
+		//When
+		final SyncReport report = synchronizer.sync();
+
+		//Then
+		assertThat(report.getBytesCopied()).isEqualTo(data.length - offset);
+		assertThat(Arrays.equals(Files.readAllBytes(backupDir.resolve("big")), data)).isTrue();
+		assertThat(Files.exists(temp)).isFalse();
+		assertThat(Files.exists(journalFile)).isFalse();
+	}
+
+	@Test
+	public void should_copy_again_when_the_bytes_before_the_checkpoint_differ() throws IOException {
+		//Given
+		final byte[] data = new byte[3 * ChannelCopyEngine.VERIFY_WINDOW];
+		new Random(42).nextBytes(data);
+		final Path sourceFile = sourceDir.resolve("big");
+		Files.write(sourceFile, data);
+
+		final int offset = 2 * ChannelCopyEngine.VERIFY_WINDOW;
+		final Path temp = ChannelCopyEngine.tempPathFor(backupDir.resolve("big"));
+		final byte[] partial = Arrays.copyOf(data, offset);
+		partial[offset - 1]++;
+		Files.write(temp, partial);
+
+		final SyncJournal journal = new SyncJournal(journalFile);
+		journal.open(sourceDir, backupDir);
+		journal.checkpoint(temp, data.length, Files.getLastModifiedTime(sourceFile).toMillis(), offset);
+		journal.close();
+
+		final FoldersSynchronizer synchronizer = new FoldersSynchronizer(sourceDir, backupDir);
+		synchronizer.setJournal(journalFile);
+
+		//When
+		final SyncReport report = synchronizer.sync();
+
+		//Then
+		assertThat(report.getBytesCopied()).isEqualTo(data.length);
+		assertThat(Arrays.equals(Files.readAllBytes(backupDir.resolve("big")), data)).isTrue();
+	}
+}